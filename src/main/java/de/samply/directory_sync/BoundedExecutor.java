@@ -0,0 +1,173 @@
+package de.samply.directory_sync;
+
+import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.ERROR;
+
+import io.vavr.control.Either;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.hl7.fhir.r4.model.OperationOutcome;
+
+/**
+ * Runs independent requests in parallel, with at most a fixed number of them in flight at
+ * any one time, so that a remote server is not flooded.
+ *
+ * Results are always returned in the order of the inputs, regardless of the order in which
+ * the requests complete. A failing request does not stop the others. Its exception is
+ * turned into an OperationOutcome instead.
+ *
+ * All calls share the same threads, so the limit holds for the server as a whole, even if
+ * several calls run at the same time. Use one instance per server. Idle threads end after a
+ * while and are started again on demand.
+ */
+public class BoundedExecutor {
+
+  public static final int DEFAULT_MAX_CONCURRENCY = 16;
+
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  private volatile int maxConcurrency;
+  // Replaced when the limit changes. Guarded by this, so that no request is submitted to a
+  // pool that has already been shut down.
+  private ThreadPoolExecutor executor;
+
+  // Set on the threads of this executor. Requests that call map themselves run their inputs
+  // on their own thread, as waiting for other threads of the same pool could deadlock.
+  private final ThreadLocal<Boolean> onWorkerThread = ThreadLocal.withInitial(() -> false);
+
+  public BoundedExecutor() {
+    this(DEFAULT_MAX_CONCURRENCY);
+  }
+
+  /**
+   * @param maxConcurrency the maximum number of requests running at the same time, at least 1
+   */
+  public BoundedExecutor(int maxConcurrency) {
+    checkMaxConcurrency(maxConcurrency);
+    this.maxConcurrency = maxConcurrency;
+    this.executor = createPool(maxConcurrency);
+  }
+
+  private ThreadPoolExecutor createPool(int maxConcurrency) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(() -> {
+            onWorkerThread.set(true);
+            runnable.run();
+          }, "bounded-executor");
+          thread.setDaemon(true);
+          return thread;
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * Changes the maximum number of requests running at the same time, for calls made from now
+   * on. The threads of the previous limit finish the requests already submitted to them and
+   * then end, so that no threads are left behind.
+   *
+   * A thread pool cannot lower its size while it is in use without briefly exceeding the new
+   * size, which is why the pool is replaced instead.
+   *
+   * @param maxConcurrency the maximum number of requests running at the same time, at least 1
+   */
+  public synchronized void setMaxConcurrency(int maxConcurrency) {
+    checkMaxConcurrency(maxConcurrency);
+    ThreadPoolExecutor previous = executor;
+    executor = createPool(maxConcurrency);
+    this.maxConcurrency = maxConcurrency;
+    previous.shutdown();
+  }
+
+  private static void checkMaxConcurrency(int maxConcurrency) {
+    if (maxConcurrency < 1)
+      throw new IllegalArgumentException("maxConcurrency must be at least 1, got " + maxConcurrency);
+  }
+
+  /**
+   * Applies the request to every input.
+   *
+   * @param inputs the inputs, one request per input
+   * @param request performs a single request
+   * @return one result per input, in input order. Failed requests are represented by an OperationOutcome
+   * @param <T> the type of the inputs
+   * @param <R> the type of the results
+   */
+  public <T, R> List<Either<OperationOutcome, R>> map(List<T> inputs, Function<T, R> request) {
+    List<Either<OperationOutcome, R>> results = new ArrayList<>(inputs.size());
+
+    // Nothing to gain from threads if only one request can run at a time.
+    if (inputs.size() <= 1 || maxConcurrency == 1 || onWorkerThread.get()) {
+      for (T input : inputs)
+        results.add(apply(request, input));
+      return results;
+    }
+
+    List<Future<Either<OperationOutcome, R>>> futures = new ArrayList<>(inputs.size());
+    try {
+      synchronized (this) {
+        for (T input : inputs)
+          futures.add(executor.submit(() -> apply(request, input)));
+      }
+      for (Future<Either<OperationOutcome, R>> future : futures)
+        results.add(future.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      for (Future<Either<OperationOutcome, R>> future : futures)
+        future.cancel(true);
+      while (results.size() < inputs.size())
+        results.add(Either.left(createOutcomeWithError("interrupted while waiting for request")));
+    } catch (ExecutionException e) {
+      // apply() does not throw, so this should not happen.
+      throw new IllegalStateException(e.getCause());
+    }
+
+    return results;
+  }
+
+  /**
+   * Applies the request to every input and collects the results.
+   *
+   * @param inputs the inputs, one request per input
+   * @param request performs a single request
+   * @return the results in input order, or an OperationOutcome with one issue per failed request
+   * @param <T> the type of the inputs
+   * @param <R> the type of the results
+   */
+  public <T, R> Either<OperationOutcome, List<R>> mapAll(List<T> inputs, Function<T, R> request) {
+    List<R> values = new ArrayList<>(inputs.size());
+    OperationOutcome outcome = new OperationOutcome();
+    for (Either<OperationOutcome, R> result : map(inputs, request)) {
+      if (result.isLeft())
+        outcome.getIssue().addAll(result.getLeft().getIssue());
+      else
+        values.add(result.get());
+    }
+
+    return outcome.hasIssue() ? Either.left(outcome) : Either.right(values);
+  }
+
+  private static <T, R> Either<OperationOutcome, R> apply(Function<T, R> request, T input) {
+    try {
+      return Either.right(request.apply(input));
+    } catch (Exception e) {
+      return Either.left(createOutcomeWithError(e.getMessage()));
+    }
+  }
+
+  private static OperationOutcome createOutcomeWithError(String message) {
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue().setSeverity(ERROR).setDiagnostics(message);
+    return outcome;
+  }
+}
@@ -0,0 +1,200 @@
+package de.samply.directory_sync;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the HTTP clients used to talk to the Directory and to the FHIR server.
+ *
+ * Every client gets its own pool of keep-alive connections, so that one upstream cannot
+ * starve the other. Within a pool, the number of connections per host is limited. Requests
+ * fail instead of hanging if no connection can be made, no data arrives, or no pooled
+ * connection becomes free within the respective timeout. Idempotent requests that fail
+ * transiently are retried according to a {@link RetryPolicy}.
+ *
+ * Example:
+ * HttpTransport transport = new HttpTransport();
+ * DirectoryApi directoryApi = DirectoryApi.createWithLogin(transport.newHttpClient(), directoryUrl, username, password);
+ * transport.configure(fhirContext);
+ * FhirApi fhirApi = new FhirApi(fhirContext.newRestfulGenericClient(fhirUrl));
+ * transport.getRetryPolicy().startRun(); // at the start of every run
+ * ...
+ * transport.close();
+ */
+public class HttpTransport implements Closeable {
+
+  public static final int DEFAULT_MAX_PER_ROUTE = BoundedExecutor.DEFAULT_MAX_CONCURRENCY;
+  public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+  public static final Duration DEFAULT_SOCKET_TIMEOUT = Duration.ofMinutes(5);
+  public static final Duration DEFAULT_POOL_ACQUIRE_TIMEOUT = Duration.ofMinutes(1);
+  public static final Duration DEFAULT_KEEP_ALIVE = Duration.ofSeconds(30);
+
+  private static final Logger logger = LoggerFactory.getLogger(HttpTransport.class);
+
+  private int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+  private Duration connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+  private Duration socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+  private Duration poolAcquireTimeout = DEFAULT_POOL_ACQUIRE_TIMEOUT;
+  private Duration keepAlive = DEFAULT_KEEP_ALIVE;
+  private RetryPolicy retryPolicy = new RetryPolicy();
+
+  private final List<PoolingHttpClientConnectionManager> connectionManagers = new CopyOnWriteArrayList<>();
+  private final List<CloseableHttpClient> httpClients = new CopyOnWriteArrayList<>();
+
+  /**
+   * @param maxPerRoute the maximum number of connections to a single host, at least 1
+   * @return this transport
+   */
+  public HttpTransport setMaxPerRoute(int maxPerRoute) {
+    if (maxPerRoute < 1)
+      throw new IllegalArgumentException("maxPerRoute must be at least 1, got " + maxPerRoute);
+    this.maxPerRoute = maxPerRoute;
+    return this;
+  }
+
+  /**
+   * @param connectTimeout how long to wait for a connection to be established
+   * @return this transport
+   */
+  public HttpTransport setConnectTimeout(Duration connectTimeout) {
+    this.connectTimeout = connectTimeout;
+    return this;
+  }
+
+  /**
+   * @param socketTimeout how long to wait for data on an established connection
+   * @return this transport
+   */
+  public HttpTransport setSocketTimeout(Duration socketTimeout) {
+    this.socketTimeout = socketTimeout;
+    return this;
+  }
+
+  /**
+   * @param poolAcquireTimeout how long to wait for a free connection from the pool
+   * @return this transport
+   */
+  public HttpTransport setPoolAcquireTimeout(Duration poolAcquireTimeout) {
+    this.poolAcquireTimeout = poolAcquireTimeout;
+    return this;
+  }
+
+  /**
+   * @param keepAlive how long an idle connection is kept, unless the server asks for less
+   * @return this transport
+   */
+  public HttpTransport setKeepAlive(Duration keepAlive) {
+    this.keepAlive = keepAlive;
+    return this;
+  }
+
+  /**
+   * @param retryPolicy the policy for retrying failed requests, or null to never retry
+   * @return this transport
+   */
+  public HttpTransport setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
+    return this;
+  }
+
+  /**
+   * @return the policy for retrying failed requests, shared by all clients, or null
+   */
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  /**
+   * Creates a client with a pool of its own. Use one client per upstream.
+   *
+   * @return a new client, closed together with this transport
+   */
+  public CloseableHttpClient newHttpClient() {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+        keepAlive.toMillis(), TimeUnit.MILLISECONDS);
+    connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    connectionManager.setMaxTotal(maxPerRoute * 4);
+    // Stale connections are detected before reuse rather than failing the request.
+    connectionManager.setValidateAfterInactivity(2000);
+
+    HttpClientBuilder builder = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout((int) connectTimeout.toMillis())
+            .setSocketTimeout((int) socketTimeout.toMillis())
+            .setConnectionRequestTimeout((int) poolAcquireTimeout.toMillis())
+            .build())
+        .setKeepAliveStrategy(keepAliveStrategy())
+        .evictExpiredConnections()
+        .evictIdleConnections(keepAlive.toMillis(), TimeUnit.MILLISECONDS);
+    CloseableHttpClient httpClient;
+    if (retryPolicy != null)
+      // Retries are left to the retry policy.
+      httpClient = new RetryingHttpClient(builder.disableAutomaticRetries().build(), retryPolicy);
+    else
+      httpClient = builder.build();
+
+    connectionManagers.add(connectionManager);
+    httpClients.add(httpClient);
+    return httpClient;
+  }
+
+  /**
+   * Lets all FHIR clients subsequently created from the context use a new pooled client of
+   * this transport.
+   *
+   * @param fhirContext the context used to create FHIR clients
+   */
+  public void configure(FhirContext fhirContext) {
+    IRestfulClientFactory clientFactory = fhirContext.getRestfulClientFactory();
+    clientFactory.setConnectTimeout((int) connectTimeout.toMillis());
+    clientFactory.setSocketTimeout((int) socketTimeout.toMillis());
+    clientFactory.setConnectionRequestTimeout((int) poolAcquireTimeout.toMillis());
+    clientFactory.setPoolMaxPerRoute(maxPerRoute);
+    clientFactory.setHttpClient(newHttpClient());
+  }
+
+  /**
+   * @return the number of connections currently handed out by all pools of this transport.
+   * Zero once all requests have finished, unless a response was not released
+   */
+  public int getLeasedConnections() {
+    return connectionManagers.stream()
+        .mapToInt(connectionManager -> connectionManager.getTotalStats().getLeased())
+        .sum();
+  }
+
+  @Override
+  public void close() {
+    for (CloseableHttpClient httpClient : httpClients)
+      try {
+        httpClient.close();
+      } catch (IOException e) {
+        logger.warn("close: could not close HTTP client: " + e.getMessage());
+      }
+    httpClients.clear();
+    connectionManagers.clear();
+  }
+
+  private ConnectionKeepAliveStrategy keepAliveStrategy() {
+    return (response, context) -> {
+      long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive.toMillis()) : keepAlive.toMillis();
+    };
+  }
+}
@@ -0,0 +1,252 @@
+package de.samply.directory_sync;
+
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+import javax.net.ssl.SSLException;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides whether and when a failed request to the Directory or the FHIR server is sent
+ * again, see {@link HttpTransport#setRetryPolicy(RetryPolicy)}.
+ *
+ * Only idempotent requests are retried: GET, HEAD, OPTIONS, PUT and DELETE, and other
+ * requests executed with {@link #idempotentContext()}. They are retried after network errors
+ * and after the transient status codes 408, 429, 502, 503 and 504. The delay doubles with
+ * every attempt, up to a maximum, and is randomized so that clients do not retry in step. A
+ * Retry-After header sent with 429 or 503 is honored instead.
+ *
+ * All retries of a run share a budget, so that an upstream that is down does not make a run
+ * hang in retries. The number of retries and the time spent waiting are counted.
+ */
+public class RetryPolicy {
+
+  public static final int DEFAULT_MAX_ATTEMPTS = 5;
+  public static final Duration DEFAULT_INITIAL_DELAY = Duration.ofMillis(500);
+  public static final Duration DEFAULT_MAX_DELAY = Duration.ofSeconds(30);
+  public static final Duration DEFAULT_MAX_RETRY_AFTER = Duration.ofMinutes(5);
+  public static final int DEFAULT_RETRY_BUDGET = 100;
+
+  /**
+   * The attribute of an HttpContext that marks a request as safe to retry.
+   */
+  public static final String IDEMPOTENT_ATTRIBUTE = RetryPolicy.class.getName() + ".idempotent";
+
+  private static final Logger logger = LoggerFactory.getLogger(RetryPolicy.class);
+
+  private static final Set<String> IDEMPOTENT_METHODS = Collections.unmodifiableSet(
+      new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE")));
+  private static final Set<Integer> TRANSIENT_STATUS_CODES = Collections.unmodifiableSet(
+      new HashSet<>(Arrays.asList(408, 429, 502, 503, 504)));
+
+  /**
+   * Waits before a retry. Replaced in tests.
+   */
+  interface Sleeper {
+
+    void sleep(Duration delay) throws InterruptedException;
+  }
+
+  private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+  private Duration initialDelay = DEFAULT_INITIAL_DELAY;
+  private Duration maxDelay = DEFAULT_MAX_DELAY;
+  private Duration maxRetryAfter = DEFAULT_MAX_RETRY_AFTER;
+  private int retryBudget = DEFAULT_RETRY_BUDGET;
+
+  private final DoubleSupplier random;
+  private final Sleeper sleeper;
+
+  private final AtomicInteger remainingBudget = new AtomicInteger(DEFAULT_RETRY_BUDGET);
+  private final AtomicLong retryCount = new AtomicLong();
+  private final AtomicLong retryDelayMillis = new AtomicLong();
+  private final AtomicLong giveUpCount = new AtomicLong();
+
+  public RetryPolicy() {
+    this(() -> ThreadLocalRandom.current().nextDouble(), delay -> Thread.sleep(delay.toMillis()));
+  }
+
+  RetryPolicy(DoubleSupplier random, Sleeper sleeper) {
+    this.random = random;
+    this.sleeper = sleeper;
+  }
+
+  /**
+   * @return a context that marks a request executed with it as safe to retry, e.g. a POST
+   * that creates entities with fixed IDs
+   */
+  public static HttpContext idempotentContext() {
+    HttpContext context = new BasicHttpContext();
+    context.setAttribute(IDEMPOTENT_ATTRIBUTE, Boolean.TRUE);
+    return context;
+  }
+
+  /**
+   * @param maxAttempts the maximum number of attempts per request, including the first, at least 1
+   * @return this policy
+   */
+  public RetryPolicy setMaxAttempts(int maxAttempts) {
+    if (maxAttempts < 1)
+      throw new IllegalArgumentException("maxAttempts must be at least 1, got " + maxAttempts);
+    this.maxAttempts = maxAttempts;
+    return this;
+  }
+
+  /**
+   * @param initialDelay the delay before the first retry, doubled for every further retry
+   * @param maxDelay the maximum delay between two attempts
+   * @return this policy
+   */
+  public RetryPolicy setDelays(Duration initialDelay, Duration maxDelay) {
+    this.initialDelay = initialDelay;
+    this.maxDelay = maxDelay;
+    return this;
+  }
+
+  /**
+   * @param maxRetryAfter requests are not retried if the server asks to wait longer than this
+   * @return this policy
+   */
+  public RetryPolicy setMaxRetryAfter(Duration maxRetryAfter) {
+    this.maxRetryAfter = maxRetryAfter;
+    return this;
+  }
+
+  /**
+   * @param retryBudget the maximum number of retries per run, see {@link #startRun()}
+   * @return this policy
+   */
+  public RetryPolicy setRetryBudget(int retryBudget) {
+    this.retryBudget = retryBudget;
+    remainingBudget.set(retryBudget);
+    return this;
+  }
+
+  /**
+   * Starts a run, with the full retry budget.
+   */
+  public void startRun() {
+    remainingBudget.set(retryBudget);
+  }
+
+  /**
+   * @param request the request
+   * @param context the context it is executed with, may be null
+   * @return true if the request may be sent again
+   */
+  boolean isRetryable(HttpRequest request, HttpContext context) {
+    if (request instanceof HttpEntityEnclosingRequest) {
+      HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+      if (entityRequest.getEntity() != null && !entityRequest.getEntity().isRepeatable())
+        return false;
+    }
+    return IDEMPOTENT_METHODS.contains(request.getRequestLine().getMethod())
+        || (context != null && Boolean.TRUE.equals(context.getAttribute(IDEMPOTENT_ATTRIBUTE)));
+  }
+
+  /**
+   * @return true if the exception is a network error that may go away
+   */
+  boolean isTransient(Exception e) {
+    return !(e instanceof UnknownHostException || e instanceof SSLException);
+  }
+
+  /**
+   * @return true if the status code signals an error that may go away
+   */
+  boolean isTransient(int statusCode) {
+    return TRANSIENT_STATUS_CODES.contains(statusCode);
+  }
+
+  /**
+   * @return true if the server's Retry-After header is to be honored for the status code
+   */
+  boolean honorsRetryAfter(int statusCode) {
+    return statusCode == 429 || statusCode == 503;
+  }
+
+  /**
+   * Decides whether a failed attempt is retried, and takes a retry from the budget if so.
+   *
+   * @param attempt the number of the failed attempt, starting at 1
+   * @param retryAfter the delay requested by the server, or null
+   * @param failure describes the request and its failure, for logging
+   * @return the delay before the next attempt, or empty if the request is not retried
+   */
+  Optional<Duration> nextDelay(int attempt, Duration retryAfter, String failure) {
+    if (attempt >= maxAttempts)
+      return giveUp(failure, "after " + attempt + " attempts");
+    if (retryAfter != null && retryAfter.compareTo(maxRetryAfter) > 0)
+      return giveUp(failure, "the server asks to wait " + retryAfter.getSeconds() + " s");
+    if (remainingBudget.getAndUpdate(budget -> Math.max(0, budget - 1)) <= 0)
+      return giveUp(failure, "the retry budget of " + retryBudget + " is used up");
+
+    Duration delay = retryAfter != null ? retryAfter : backoff(attempt);
+    retryCount.incrementAndGet();
+    retryDelayMillis.addAndGet(delay.toMillis());
+    logger.warn("nextDelay: " + failure + ", retrying in " + delay.toMillis() + " ms (attempt " + (attempt + 1) + " of " + maxAttempts + ")");
+    return Optional.of(delay);
+  }
+
+  /**
+   * Exponential backoff with jitter: the delay is drawn from the upper half of the
+   * exponentially growing, capped interval.
+   */
+  Duration backoff(int attempt) {
+    long cap = maxDelay.toMillis();
+    long exponential = initialDelay.toMillis() << Math.min(attempt - 1, 30);
+    long delay = exponential <= 0 || exponential > cap ? cap : exponential;
+    return Duration.ofMillis(delay / 2 + (long) (random.getAsDouble() * (delay - delay / 2)));
+  }
+
+  void sleep(Duration delay) throws InterruptedException {
+    sleeper.sleep(delay);
+  }
+
+  private Optional<Duration> giveUp(String failure, String reason) {
+    giveUpCount.incrementAndGet();
+    logger.warn("nextDelay: " + failure + ", giving up: " + reason);
+    return Optional.empty();
+  }
+
+  /**
+   * @return the number of retries since the policy was created
+   */
+  public long getRetryCount() {
+    return retryCount.get();
+  }
+
+  /**
+   * @return the total time spent waiting before retries since the policy was created
+   */
+  public Duration getRetryDelay() {
+    return Duration.ofMillis(retryDelayMillis.get());
+  }
+
+  /**
+   * @return the number of retryable failures that were not retried, because the request had
+   * run out of attempts, the server asked to wait too long, or the budget was used up
+   */
+  public long getGiveUpCount() {
+    return giveUpCount.get();
+  }
+
+  /**
+   * @return the number of retries left in the current run
+   */
+  public int getRemainingBudget() {
+    return remainingBudget.get();
+  }
+}
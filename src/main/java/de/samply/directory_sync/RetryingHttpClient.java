@@ -0,0 +1,114 @@
+package de.samply.directory_sync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Optional;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * An HTTP client that sends requests through another client and retries them according to
+ * a {@link RetryPolicy}.
+ */
+@SuppressWarnings("deprecation")
+class RetryingHttpClient extends CloseableHttpClient {
+
+  private final CloseableHttpClient delegate;
+  private final RetryPolicy policy;
+
+  RetryingHttpClient(CloseableHttpClient delegate, RetryPolicy policy) {
+    this.delegate = delegate;
+    this.policy = policy;
+  }
+
+  @Override
+  protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+      throws IOException, ClientProtocolException {
+    boolean retryable = policy.isRetryable(request, context);
+    for (int attempt = 1; ; attempt++) {
+      CloseableHttpResponse response;
+      try {
+        response = delegate.execute(target, request, context);
+      } catch (IOException e) {
+        if (!retryable || !policy.isTransient(e))
+          throw e;
+        Optional<Duration> delay = policy.nextDelay(attempt, null, describe(request) + " failed with " + e);
+        if (!delay.isPresent())
+          throw e;
+        sleep(delay.get());
+        continue;
+      }
+
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (!retryable || !policy.isTransient(statusCode))
+        return response;
+      Duration retryAfter = policy.honorsRetryAfter(statusCode) ? parseRetryAfter(response.getFirstHeader("Retry-After")) : null;
+      Optional<Duration> delay = policy.nextDelay(attempt, retryAfter, describe(request) + " returned " + statusCode);
+      if (!delay.isPresent())
+        return response;
+      // Release the connection before waiting.
+      EntityUtils.consumeQuietly(response.getEntity());
+      response.close();
+      sleep(delay.get());
+    }
+  }
+
+  /**
+   * @param header a Retry-After header, with either a number of seconds or an HTTP date
+   * @return the requested delay, or null if there is no valid header
+   */
+  static Duration parseRetryAfter(Header header) {
+    if (header == null || header.getValue() == null)
+      return null;
+    String value = header.getValue().trim();
+    try {
+      return Duration.ofSeconds(Math.max(0, Long.parseLong(value)));
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(value);
+      if (date == null)
+        return null;
+      Duration delay = Duration.between(Instant.now(), date.toInstant());
+      return delay.isNegative() ? Duration.ZERO : delay;
+    }
+  }
+
+  private void sleep(Duration delay) throws InterruptedIOException {
+    try {
+      policy.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting to retry");
+    }
+  }
+
+  private static String describe(HttpRequest request) {
+    return request.getRequestLine().getMethod() + " " + request.getRequestLine().getUri();
+  }
+
+  @Override
+  public HttpParams getParams() {
+    return delegate.getParams();
+  }
+
+  @Override
+  public ClientConnectionManager getConnectionManager() {
+    return delegate.getConnectionManager();
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+}
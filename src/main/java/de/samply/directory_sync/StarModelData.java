@@ -1,6 +1,7 @@
 package de.samply.directory_sync;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -44,13 +45,15 @@ public class StarModelData {
         this.minDonors = minDonors;
     }
 
-    public List<Map<String, String>> getInputRowsAsStringMaps(String collectionId) {
-        List<Map<String, String>> rowsAsStringMaps = new ArrayList<Map<String, String>>();
-        for (InputRow row: inputData.get(collectionId)) {
-            rowsAsStringMaps.add(row);
-        }
-
-        return rowsAsStringMaps;
+    /**
+     * Gets the aggregated input rows of a collection.
+     *
+     * @param collectionId The identifier for the collection.
+     * @return Maps each stratum, see {@link InputRow#getStratum()}, onto the number of input rows
+     *         that fell into it. Empty if there are none.
+     */
+    public Map<Map<String, String>, Long> getInputRowCounts(String collectionId) {
+        return inputData.getOrDefault(collectionId, new HashMap<Map<String, String>, Long>());
     }
 
     // *** Input data for the star model.
@@ -63,6 +66,7 @@ public class StarModelData {
      * and age at primary diagnosis.
      */
     public class InputRow extends HashMap<String, String> {
+        private static final long serialVersionUID = 1L;
 
         /**
          * Constructs a new InputRow with the specified attributes.
@@ -169,13 +173,27 @@ public class StarModelData {
             }
             put("age_at_primary_diagnosis", age);
         }
+
+        /**
+         * Gets the attributes that determine the fact a row contributes to, i.e. all
+         * attributes except the patient ID and the collection.
+         *
+         * @return A new map with the attributes of the stratum.
+         */
+        public Map<String, String> getStratum() {
+            Map<String, String> stratum = new HashMap<String, String>(this);
+            stratum.remove("id");
+            stratum.remove("collection");
+            return stratum;
+        }
     }
 
     // Data relevant for Directory sync that has been read in from the FHIR store.
-    // This comprises of one row per Patient/Specimen/Diagnosis combination.
-    // Each row is a map containing attributes relevant to the star model.
-    // A Map of a List of Maps: collectionID_1 -> [row0, row1, ...]
-    private Map<String,List<InputRow>> inputData = new HashMap<String,List<InputRow>>();
+    // Every Patient/Specimen/Diagnosis combination is an input row. The rows are counted
+    // per stratum as they arrive, so that memory grows with the number of collections
+    // and strata rather than with the number of specimens.
+    // A Map of Maps: collectionID_1 -> {stratum0 -> count0, stratum1 -> count1, ...}
+    private Map<String,Map<Map<String, String>, Long>> inputData = new HashMap<String,Map<Map<String, String>, Long>>();
 
     /**
      * Adds an input row to the specified collection in the inputData map.
@@ -187,10 +205,19 @@ public class StarModelData {
      * @throws NullPointerException if collectionId or row is null.
      */
     public void addInputRow(String collectionId, InputRow row) {
-        if (!inputData.containsKey(collectionId))
-            inputData.put(collectionId, new ArrayList<InputRow>());
-        List<InputRow> rows = inputData.get(collectionId);
-        rows.add(row);
+        addInputRowCount(collectionId, row.getStratum(), 1);
+    }
+
+    /**
+     * Adds a number of input rows with the same stratum to the specified collection.
+     *
+     * @param collectionId The identifier for the collection where the input rows will be added.
+     * @param stratum The stratum of the rows, see {@link InputRow#getStratum()}.
+     * @param count The number of rows.
+     */
+    public void addInputRowCount(String collectionId, Map<String, String> stratum, long count) {
+        inputData.computeIfAbsent(collectionId, id -> new HashMap<Map<String, String>, Long>())
+            .merge(stratum, count, Long::sum);
     }
 
     /**
@@ -226,8 +253,91 @@ public class StarModelData {
         return new InputRow(row, histLoc);
     }
 
+    /**
+     * Represents a cell of the hypercube whose donors and samples have already been counted,
+     * e.g. by the FHIR server. The attributes are converted as for an InputRow, with the age
+     * already binned into an age range.
+     */
+    public class CountedRow extends HashMap<String, String> {
+        private static final long serialVersionUID = 1L;
+
+        private final int numberOfDonors;
+        private final int numberOfSamples;
+
+        /**
+         * Constructs a new CountedRow with the specified attributes and counts.
+         *
+         * @param sex The gender information of the donors.
+         * @param histLoc The diagnosis.
+         * @param ageRange The age range of the donors at collection.
+         * @param sampleMaterial The sample material.
+         * @param numberOfDonors The number of distinct donors in the cell.
+         * @param numberOfSamples The number of samples in the cell.
+         */
+        public CountedRow(String sex, String histLoc, String ageRange, String sampleMaterial, int numberOfDonors, int numberOfSamples) {
+            if (sex != null)
+                put("sex", FhirToDirectoryAttributeConverter.convertSex(sex));
+            if (histLoc != null && FhirToDirectoryAttributeConverter.convertDiagnosis(histLoc) != null)
+                put("hist_loc", FhirToDirectoryAttributeConverter.convertDiagnosis(histLoc));
+            if (ageRange != null)
+                put("age_range", ageRange);
+            if (sampleMaterial != null)
+                put("sample_material", FhirToDirectoryAttributeConverter.convertMaterial(sampleMaterial));
+            this.numberOfDonors = numberOfDonors;
+            this.numberOfSamples = numberOfSamples;
+        }
+
+        public int getNumberOfDonors() {
+            return numberOfDonors;
+        }
+
+        public int getNumberOfSamples() {
+            return numberOfSamples;
+        }
+    }
+
+    // Cells of the hypercube that have already been counted.
+    // A Map of a List of rows: collectionID_1 -> [row0, row1, ...]
+    private Map<String,List<CountedRow>> countedData = new HashMap<String,List<CountedRow>>();
+
+    /**
+     * Adds a counted row to the specified collection.
+     *
+     * @param collectionId The identifier for the collection where the row will be added.
+     * @param row The counted row to be added to the collection.
+     */
+    public void addCountedRow(String collectionId, CountedRow row) {
+        countedData.computeIfAbsent(collectionId, id -> new ArrayList<CountedRow>()).add(row);
+    }
+
+    /**
+     * Creates and returns a new CountedRow with the specified attributes and counts.
+     *
+     * @see CountedRow
+     */
+    public CountedRow newCountedRow(String sex, String histLoc, String ageRange, String sampleMaterial, int numberOfDonors, int numberOfSamples) {
+        return new CountedRow(sex, histLoc, ageRange, sampleMaterial, numberOfDonors, numberOfSamples);
+    }
+
+    /**
+     * Gets the counted rows of a collection.
+     *
+     * @param collectionId The identifier for the collection.
+     * @return The counted rows, empty if there are none.
+     */
+    public List<CountedRow> getCountedRows(String collectionId) {
+        return countedData.getOrDefault(collectionId, new ArrayList<CountedRow>());
+    }
+
+    /**
+     * Gets the IDs of all collections that have input rows or counted rows.
+     *
+     * @return The collection IDs.
+     */
     public Set<String> getInputCollectionIds() {
-        return inputData.keySet();
+        Set<String> collectionIds = new HashSet<String>(inputData.keySet());
+        collectionIds.addAll(countedData.keySet());
+        return collectionIds;
     }
 
     // *** Output data.
@@ -24,9 +24,11 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.ERROR;
 import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.INFORMATION;
@@ -43,7 +45,10 @@ import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.INFORMATION;
  * connecting to the FHIR store and to the Directory. Your code might look something like
  * this:
  * 
- * DirectoryService directoryService = new DirectoryService(DirectoryApi.createWithLogin(HttpClients.createDefault(), directoryUrl, directoryUserName, directoryPassCode));
+ * HttpTransport transport = new HttpTransport(); // pooled connections, close when done
+ * transport.configure(ctx);
+ * FhirApi fhirApi = new FhirApi(ctx.newRestfulGenericClient(fhirUrl));
+ * DirectoryService directoryService = new DirectoryService(DirectoryApi.createWithLogin(transport.newHttpClient(), directoryUrl, directoryUserName, directoryPassCode));
  * FhirReporting fhirReporting = new FhirReporting(ctx, fhirApi);
  * Sync sync = new Sync(fhirApi, fhirReporting, directoryApi, directoryService);
  * sync.initResources()
@@ -67,18 +72,35 @@ import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.INFORMATION;
  * 
  * Get biobank information from Directory and put into local FHIR store:
  * sync.updateAllBiobanksOnFhirServerIfNecessary();
+ * 
+ * If the FHIR store is followed incrementally via its change feed
+ * (fhirApi.setChangeFeed(...)), the above calls only send the collections affected
+ * by changes since the last run. Once they have all succeeded, save the new state:
+ * sync.commitFhirChanges();
+ * 
+ * Writes to the Directory can be journaled, so that a run that dies while sending
+ * them can be completed without going back to the FHIR store. Before the first run:
+ * directoryApi.setJournal(WriteJournal.open(journalPath));
+ * sync.resumeDirectoryWrites(); // only sends writes that were not acknowledged
+ * 
+ * Scans of the FHIR store are cached, so that the above calls can share them. In a
+ * long running process, wrap each run in startRun/endRun. All calls within a run
+ * then see the same data, and cached scans older than their time to live are
+ * discarded at the start of the next run:
+ * sync.startRun();
+ * transport.getRetryPolicy().startRun(); // restores the budget for retrying failed requests
+ * ...
+ * sync.endRun();
+ *
+ * The Directory login is renewed automatically when the Directory rejects an expired
+ * token, so long runs need no special handling.
  */
 public class Sync {
   private static final Logger logger = LoggerFactory.getLogger(Sync.class);
 
-    private static final Function<BiobankTuple, BiobankTuple> UPDATE_BIOBANK_NAME = t -> {
-        t.fhirBiobank.setName(t.dirBiobank.getName());
-        return t;
-    };
-
     private final FhirApi fhirApi;
     private final FhirReporting fhirReporting;
-    private DirectoryApi directoryApi;
+    private final DirectoryApi directoryApi;
     private final DirectoryService directoryService;
 
     public Sync(FhirApi fhirApi, FhirReporting fhirReporting, DirectoryApi directoryApi,
@@ -130,10 +152,41 @@ public class Sync {
      */
     public List<OperationOutcome> updateAllBiobanksOnFhirServerIfNecessary() {
         return fhirApi.listAllBiobanks()
-                .map(orgs -> orgs.stream().map(this::updateBiobankOnFhirServerIfNecessary).collect(Collectors.toList()))
+                .map(this::updateBiobanksOnFhirServerIfNecessary)
                 .fold(Collections::singletonList, Function.identity());
     }
 
+    /**
+     * Takes biobanks from FHIR and updates them with current information from the Directory.
+     * The biobanks are looked up in the Directory with one query per country. All biobanks that
+     * have changed are sent to the FHIR server in a single batch.
+     *
+     * @param fhirBiobanks the biobanks to update.
+     * @return one {@link OperationOutcome} per biobank, in the same order
+     */
+    List<OperationOutcome> updateBiobanksOnFhirServerIfNecessary(List<Organization> fhirBiobanks) {
+        Map<String, Either<OperationOutcome, Map<BbmriEricId, Biobank>>> dirBiobanksByCountry = fhirBiobanks.stream()
+                .map(FhirApi::bbmriEricId)
+                .flatMap(id -> id.map(Stream::of).orElseGet(Stream::empty))
+                .collect(Collectors.groupingBy(BbmriEricId::getCountryCode, Collectors.toSet()))
+                .entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey,
+                        entry -> directoryApi.fetchBiobanks(entry.getKey(), entry.getValue())));
+
+        List<Either<OperationOutcome, Organization>> updates = fhirBiobanks.stream()
+                .map(fhirBiobank -> updateBiobankIfNecessary(fhirBiobank, dirBiobanksByCountry))
+                .collect(Collectors.toList());
+        List<Organization> changedBiobanks = updates.stream()
+                .filter(Either::isRight)
+                .map(Either::get)
+                .collect(Collectors.toList());
+
+        Iterator<OperationOutcome> updateOutcomes = fhirApi.updateResources(changedBiobanks).iterator();
+        return updates.stream()
+                .map(update -> update.isLeft() ? update.getLeft() : updateOutcomes.next())
+                .collect(Collectors.toList());
+    }
+
     /**
      * Takes a biobank from FHIR and updates it with current information from the Directory.
      *
@@ -141,14 +194,25 @@ public class Sync {
      * @return the {@link OperationOutcome} from the FHIR server update
      */
     OperationOutcome updateBiobankOnFhirServerIfNecessary(Organization fhirBiobank) {
+        return updateBiobanksOnFhirServerIfNecessary(Collections.singletonList(fhirBiobank)).get(0);
+    }
+
+    /**
+     * Copies the name of the biobank in the Directory into the FHIR biobank, if it differs.
+     *
+     * @param fhirBiobank the biobank to update.
+     * @param dirBiobanksByCountry the result of the Directory lookup for each country
+     * @return the changed biobank, or an {@link OperationOutcome} if there is nothing to send
+     */
+    private Either<OperationOutcome, Organization> updateBiobankIfNecessary(Organization fhirBiobank,
+            Map<String, Either<OperationOutcome, Map<BbmriEricId, Biobank>>> dirBiobanksByCountry) {
         return Option.ofOptional(FhirApi.bbmriEricId(fhirBiobank))
                 .toEither(missingIdentifierOperationOutcome())
-                .flatMap(directoryApi::fetchBiobank)
-                .map(dirBiobank -> new BiobankTuple(fhirBiobank, dirBiobank))
-                .map(UPDATE_BIOBANK_NAME)
-                .filterOrElse(BiobankTuple::hasChanged, tuple -> noUpdateNecessaryOperationOutcome())
-                .map(tuple -> fhirApi.updateResource(tuple.fhirBiobank))
-                .fold(Function.identity(), Function.identity());
+                .flatMap(id -> dirBiobanksByCountry.get(id.getCountryCode())
+                        .flatMap(dirBiobanks -> Option.of(dirBiobanks.get(id)).toEither(() -> DirectoryApi.biobankNotFound(id))))
+                .filterOrElse(dirBiobank -> !Objects.equals(fhirBiobank.getName(), dirBiobank.getName()),
+                        dirBiobank -> noUpdateNecessaryOperationOutcome())
+                .map(dirBiobank -> fhirBiobank.setName(dirBiobank.getName()));
     }
 
     /**
@@ -248,8 +312,6 @@ public class Sync {
             StarModelData starModelInputData = starModelInputDataOutcome.get();
             logger.info("__________ sendStarModelUpdatesToDirectory: number of collection IDs: " + starModelInputData.getInputCollectionIds().size());
 
-            relogin();
-
             // Hypercubes containing less than the minimum number of donors will not be
             // included in the star model output.
             starModelInputData.setMinDonors(minDonors);
@@ -266,7 +328,6 @@ public class Sync {
             logger.info("__________ sendStarModelUpdatesToDirectory: 2 starModelInputData.getFactCount(): " + starModelInputData.getFactCount());
 
             // Send fact tables to Direcory.
-            relogin();
             List<OperationOutcome> starModelUpdateOutcome = directoryService.updateStarModel(starModelInputData);
             logger.info("__________ sendStarModelUpdatesToDirectory: star model has been updated");
             // Return some kind of results count or whatever
@@ -312,7 +373,6 @@ public class Sync {
     
             List<String> collectionIds = directoryCollectionPut.getCollectionIds();
             String countryCode = directoryCollectionPut.getCountryCode();
-            relogin();
             Either<OperationOutcome, DirectoryCollectionGet> directoryCollectionGetOutcomes = directoryService.fetchDirectoryCollectionGetOutcomes(countryCode, collectionIds);
             if (directoryCollectionGetOutcomes.isLeft())
                 return createErrorOutcome("Problem getting collections from Directory, " + errorMessageFromOperationOutcome(directoryCollectionGetOutcomes.getLeft()));
@@ -329,7 +389,6 @@ public class Sync {
                 directoryCollectionPut.applyDiagnosisCorrections(correctedDiagnoses);
             logger.info("__________ sendUpdatesToDirectory: 2 directoryCollectionPut.getCollectionIds().size()): " + directoryCollectionPut.getCollectionIds().size());
 
-            relogin();
             List<OperationOutcome> outcomes = directoryService.updateEntities(directoryCollectionPut);
             logger.info("__________ sendUpdatesToDirectory: 2 outcomes: " + outcomes);
             return outcomes;
@@ -339,16 +398,50 @@ public class Sync {
     }
 
     /**
-     * Renew the Directory login.
+     * Sends the writes left unacknowledged in the Directory write journal by an earlier
+     * run, e.g. one that died while uploading the star model. The FHIR store is not
+     * touched. Does nothing if the journal holds no such writes.
      *
-     * This generates a new DirectoryApi object, which needs to be distributed to the places
-     * where it will be used.
+     * @return A list containing a single OperationOutcome indicating the number of replayed writes, or an error.
+     */
+    public List<OperationOutcome> resumeDirectoryWrites() {
+        try {
+            return directoryService.replayJournal();
+        } catch (Exception e) {
+            return createErrorOutcome("resumeDirectoryWrites - unexpected error: " + Util.traceFromException(e));
+        }
+    }
+
+    /**
+     * Starts a sync run. The operations called until {@link #endRun()} share the cached
+     * scans of the FHIR store that are still valid at the start of the run.
+     */
+    public void startRun() {
+        fhirApi.startRun();
+    }
+
+    /**
+     * Ends the current sync run.
+     */
+    public void endRun() {
+        fhirApi.endRun();
+    }
+
+    /**
+     * Persists the state of the FHIR change feed, if one is in use, so that the next run
+     * only needs to process changes made after this one. Call this once all updates for
+     * the current run have been sent to the Directory successfully.
      *
-     * Consequence: this method has significant side effects.
+     * @return A list containing a single OperationOutcome indicating the success of the commit.
      */
-    private void relogin() {
-        directoryApi = directoryApi.relogin();
-        directoryService.setApi(directoryApi);
+    public List<OperationOutcome> commitFhirChanges() {
+        Either<OperationOutcome, Void> commitOutcome = fhirApi.commitChangeFeed();
+        if (commitOutcome.isLeft())
+            return createErrorOutcome("Problem saving the FHIR change feed state, " + errorMessageFromOperationOutcome(commitOutcome.getLeft()));
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(INFORMATION).setDiagnostics("FHIR change feed state saved successfully");
+        return Collections.singletonList(outcome);
     }
 
     private String errorMessageFromOperationOutcome(OperationOutcome operationOutcome) {
@@ -364,20 +457,4 @@ public class Sync {
         return Collections.singletonList(outcome);
     }
     
-    private static class BiobankTuple {
-
-        private final Organization fhirBiobank;
-        private final Organization fhirBiobankCopy;
-        private final Biobank dirBiobank;
-
-        private BiobankTuple(Organization fhirBiobank, Biobank dirBiobank) {
-            this.fhirBiobank = Objects.requireNonNull(fhirBiobank);
-            this.fhirBiobankCopy = fhirBiobank.copy();
-            this.dirBiobank = Objects.requireNonNull(dirBiobank);
-        }
-
-        private boolean hasChanged() {
-            return !fhirBiobank.equalsDeep(fhirBiobankCopy);
-        }
-    }
 }
@@ -0,0 +1,180 @@
+package de.samply.directory_sync.directory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import de.samply.directory_sync.directory.model.BbmriEricId;
+import de.samply.directory_sync.directory.model.Biobank;
+import io.vavr.control.Either;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the biobanks returned by the Directory for a query, together with the validators
+ * (ETag and Last-Modified) of the response. Repeating the query with these validators lets the
+ * Directory answer with 304 Not Modified if nothing has changed, so that the biobanks do not
+ * need to be downloaded again.
+ *
+ * If a file is given, the cache is read from it on creation and written back after every
+ * change, so that the validators survive a restart.
+ */
+class BiobankCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(BiobankCache.class);
+
+  private static final Gson gson = new Gson();
+
+  /**
+   * A cached response.
+   */
+  static class Entry {
+
+    private final String etag;
+    private final String lastModified;
+    private final Map<BbmriEricId, Biobank> biobanks;
+
+    Entry(String etag, String lastModified, Map<BbmriEricId, Biobank> biobanks) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.biobanks = Collections.unmodifiableMap(biobanks);
+    }
+
+    String getEtag() {
+      return etag;
+    }
+
+    String getLastModified() {
+      return lastModified;
+    }
+
+    Map<BbmriEricId, Biobank> getBiobanks() {
+      return biobanks;
+    }
+  }
+
+  // The form in which an entry is stored in the file.
+  private static class StoredEntry {
+
+    String url;
+    String etag;
+    String lastModified;
+    List<Biobank> biobanks;
+  }
+
+  private final Map<String, Entry> entriesByUrl = new ConcurrentHashMap<>();
+  private final Path file;
+
+  BiobankCache() {
+    this(null);
+  }
+
+  /**
+   * @param file the file to keep the cache in, or null to keep it in memory only
+   */
+  BiobankCache(Path file) {
+    this.file = file;
+    if (file != null)
+      read();
+  }
+
+  /**
+   * Indexes biobanks by their ID.
+   *
+   * @param biobanks the biobanks
+   * @return the biobanks keyed by ID, or a message naming a biobank whose ID is not a valid
+   *         BBMRI-ERIC ID
+   */
+  static Either<String, Map<BbmriEricId, Biobank>> indexById(Collection<Biobank> biobanks) {
+    Map<BbmriEricId, Biobank> biobanksById = new HashMap<>();
+    for (Biobank biobank : biobanks) {
+      try {
+        biobanksById.put(biobank.getId(), biobank);
+      } catch (NoSuchElementException e) {
+        return Either.left("invalid BBMRI-ERIC ID in " + biobank);
+      }
+    }
+    return Either.right(biobanksById);
+  }
+
+  /**
+   * @param url the URL of the query
+   * @return the cached response, or null if there is none
+   */
+  Entry get(String url) {
+    return entriesByUrl.get(url);
+  }
+
+  /**
+   * Caches a response. Responses without validators cannot be revalidated and are not cached.
+   *
+   * @param url the URL of the query
+   * @param entry the response
+   */
+  void put(String url, Entry entry) {
+    if (entry.getEtag() == null && entry.getLastModified() == null)
+      entriesByUrl.remove(url);
+    else
+      entriesByUrl.put(url, entry);
+    if (file != null)
+      write();
+  }
+
+  private void read() {
+    if (!Files.isRegularFile(file))
+      return;
+    try (Reader reader = Files.newBufferedReader(file, UTF_8)) {
+      List<StoredEntry> storedEntries = gson.fromJson(reader, new TypeToken<List<StoredEntry>>() {
+      }.getType());
+      if (storedEntries == null)
+        return;
+      for (StoredEntry stored : storedEntries)
+        indexById(stored.biobanks == null ? Collections.emptyList() : stored.biobanks)
+            .peek(biobanks -> entriesByUrl.put(stored.url, new Entry(stored.etag, stored.lastModified, biobanks)));
+      logger.info("read: read " + entriesByUrl.size() + " cached biobank queries from " + file);
+    } catch (IOException | JsonParseException e) {
+      logger.warn("read: could not read biobank cache from " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Writes the cache to a temporary file next to the target, which then replaces the target.
+   * A failure only means that the next run downloads the biobanks again.
+   */
+  private synchronized void write() {
+    List<StoredEntry> storedEntries = new ArrayList<>();
+    for (Map.Entry<String, Entry> entry : entriesByUrl.entrySet()) {
+      StoredEntry stored = new StoredEntry();
+      stored.url = entry.getKey();
+      stored.etag = entry.getValue().getEtag();
+      stored.lastModified = entry.getValue().getLastModified();
+      stored.biobanks = new ArrayList<>(entry.getValue().getBiobanks().values());
+      storedEntries.add(stored);
+    }
+
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(tmp, UTF_8)) {
+        gson.toJson(storedEntries, writer);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.warn("write: could not write biobank cache to " + file + ": " + e.getMessage());
+    }
+  }
+}
@@ -1,6 +1,9 @@
 package de.samply.directory_sync.directory;
 
 import de.samply.directory_sync.StarModelData;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -22,6 +25,9 @@ import org.slf4j.LoggerFactory;
 public class CreateFactTablesFromStarModelInputData {
     private static final Logger logger = LoggerFactory.getLogger(CreateFactTablesFromStarModelInputData.class);
 
+    // 80 bits, enough to make collisions between the facts of a collection vanishingly unlikely.
+    private static final int FACT_ID_HASH_LENGTH = 20;
+
     /**
      * Creates fact tables for each collection in the provided Star Model input data.
      * Fact tables are generated based on input rows and specified criteria such as minimum donors.
@@ -36,7 +42,8 @@ public class CreateFactTablesFromStarModelInputData {
             List<Map<String, String>> factTableFinal = createFactTableFinal(collectionId,
                 starModelInputData.getMinDonors(),
                 maxFacts,
-                starModelInputData.getInputRowsAsStringMaps(collectionId));
+                starModelInputData.getInputRowCounts(collectionId),
+                starModelInputData.getCountedRows(collectionId));
             starModelInputData.addFactTable(collectionId, factTableFinal);
         }
     }
@@ -49,42 +56,40 @@ public class CreateFactTablesFromStarModelInputData {
      * @param collectionId The identifier for the collection for which to create the fact table.
      * @param minDonors The minimum number of donors required for a fact to be included in the table.
      * @param maxFacts
-     * @param patientSamples The list of input rows representing patient samples for the collection.
+     * @param patientSamples The input rows representing patient samples for the collection, counted per stratum.
+     * @param countedRows Cells of the hypercube that have already been counted, e.g. by the FHIR server.
      * @return The final fact table as a list of maps containing key-value pairs.
      */
-    private static List<Map<String, String>> createFactTableFinal(String collectionId, int minDonors, int maxFacts, List<Map<String, String>> patientSamples) {
-        // Select columns and create a new column "age_range"
-        List<Map<String, String>> patientSamplesFacts = patientSamples.stream()
-            .map(result -> {
-                Map<String, String> fact = new HashMap<>(result);
-                fact.remove("sample_type");
-                fact.remove("sample_year_num");
-                fact.put("age_range", cutAgeRange(result.get("age_at_primary_diagnosis")));
-                return fact;
-            })
-            .collect(Collectors.toList());
-
-        // Group by certain columns and calculate summary statistics
-        Map<String, Long> factTable = patientSamplesFacts.stream()
-            .filter(fact -> !fact.containsValue(null))
-            .collect(Collectors.groupingBy(
-                fact -> String.join("_",
-                    fact.get("sex"),
-                    fact.get("hist_loc"),
-                    fact.get("age_range"),
-                    fact.get("sample_material")),
-                Collectors.counting()));
+    private static List<Map<String, String>> createFactTableFinal(String collectionId, int minDonors, int maxFacts, Map<Map<String, String>, Long> patientSamples, List<StarModelData.CountedRow> countedRows) {
+        // Group by certain columns and calculate summary statistics, after creating a new
+        // column "age_range". Every input row counts as one donor and one sample.
+        Map<String, long[]> factTable = new HashMap<>();
+        for (Map.Entry<Map<String, String>, Long> stratum : patientSamples.entrySet()) {
+            Map<String, String> fact = new HashMap<>(stratum.getKey());
+            fact.remove("sample_type");
+            fact.remove("sample_year_num");
+            fact.put("age_range", cutAgeRange(stratum.getKey().get("age_at_primary_diagnosis")));
+            if (!fact.containsValue(null))
+                factTable.merge(factKey(fact), new long[] {stratum.getValue(), stratum.getValue()},
+                    CreateFactTablesFromStarModelInputData::sumCounts);
+        }
+
+        // Add the cells that have already been counted, skipping incomplete ones like above.
+        for (StarModelData.CountedRow row : countedRows)
+            if (row.keySet().containsAll(Arrays.asList("sex", "hist_loc", "age_range", "sample_material")))
+                factTable.merge(factKey(row), new long[] {row.getNumberOfDonors(), row.getNumberOfSamples()},
+                    CreateFactTablesFromStarModelInputData::sumCounts);
 
         // Filter out rows with fewer than a given number of donors
         if (minDonors > 0)
             factTable = factTable.entrySet().stream()
-                .filter(entry -> entry.getValue() >= minDonors)
+                .filter(entry -> entry.getValue()[0] >= minDonors)
                 .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
 
         // Perform additional data transformations on the facts table
         List<Map<String, String>> factTableFinal = new ArrayList<>();
         int factTableSize = 0;
-        for (Map.Entry<String, Long> entry : factTable.entrySet()) {
+        for (Map.Entry<String, long[]> entry : factTable.entrySet()) {
             if (maxFacts >= 0 && factTableSize >= maxFacts)
                 break;
             factTableSize++;
@@ -99,13 +104,13 @@ public class CreateFactTablesFromStarModelInputData {
             mapEntry.put("disease", keyParts.get(1));
             mapEntry.put("age_range", keyParts.get(2));
             mapEntry.put("sample_type", sampleMaterial);
-            mapEntry.put("number_of_donors", Long.toString(entry.getValue()));
-            mapEntry.put("number_of_samples", Long.toString(entry.getValue()));
+            mapEntry.put("number_of_donors", Long.toString(entry.getValue()[0]));
+            mapEntry.put("number_of_samples", Long.toString(entry.getValue()[1]));
             mapEntry.put("id", "bbmri-eric:factID:" // All fact IDs must start with this (mandatory).
                 // Snip "bbmri-eric:ID:" from collection ID and replace : with _
                 + collectionId.substring(14, collectionId.length()).replaceAll(":", "_")
                 + "_"
-                + Math.abs(entry.getKey().hashCode()) // Add a hash code to make the ID unique
+                + factIdHash(entry.getKey()) // Add a hash to make the ID unique and stable across runs
                 );
             mapEntry.put("last_update", LocalDate.now().toString());
             mapEntry.put("collection", collectionId);
@@ -116,6 +121,42 @@ public class CreateFactTablesFromStarModelInputData {
         return factTableFinal;
     }
 
+    private static String factKey(Map<String, String> fact) {
+        return String.join("_",
+            fact.get("sex"),
+            fact.get("hist_loc"),
+            fact.get("age_range"),
+            fact.get("sample_material"));
+    }
+
+    /**
+     * Hashes the attributes of a fact for use in its ID. Unlike String.hashCode, the hash
+     * does not collide for the numbers of facts seen in practice, and it stays the same
+     * from run to run, so that the Directory can be updated with the differences only.
+     *
+     * @param factKey the sex, disease, age range and material of the fact
+     * @return the first FACT_ID_HASH_LENGTH hex digits of the SHA-256 hash of the key
+     */
+    static String factIdHash(String factKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(factKey.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hash = new StringBuilder();
+            for (int i = 0; hash.length() < FACT_ID_HASH_LENGTH; i++)
+                hash.append(String.format("%02x", digest[i]));
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds two pairs of donor and sample counts.
+     */
+    private static long[] sumCounts(long[] a, long[] b) {
+        return new long[] {a[0] + b[0], a[1] + b[1]};
+    }
+
     /**
      * Cuts the age into bins and returns the corresponding age range.
      *
@@ -1,5 +1,7 @@
 package de.samply.directory_sync.directory;
 
+import de.samply.directory_sync.BoundedExecutor;
+import de.samply.directory_sync.RetryPolicy;
 import de.samply.directory_sync.StarModelData;
 import de.samply.directory_sync.Util;
 
@@ -9,7 +11,12 @@ import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.INFORMATION;
 import static org.hl7.fhir.r4.model.OperationOutcome.IssueType.NOTFOUND;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import de.samply.directory_sync.directory.model.BbmriEricId;
 import de.samply.directory_sync.directory.model.Biobank;
@@ -17,21 +24,39 @@ import de.samply.directory_sync.directory.model.DirectoryCollectionGet;
 import de.samply.directory_sync.directory.model.DirectoryCollectionPut;
 import io.vavr.control.Either;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.slf4j.Logger;
@@ -42,10 +67,31 @@ import java.net.URI;
 public class DirectoryApi {
   private static final Logger logger = LoggerFactory.getLogger(DirectoryApi.class);
 
+  // Keeps the URLs of bulk collection fetches well below the usual limit of 8 KB.
+  static final int MAX_COLLECTION_QUERY_LENGTH = 4000;
+
+  // The Directory does not return more items than this per request.
+  static final int ICD_INDEX_PAGE_SIZE = 10000;
+
+  // The maximum number of facts allowed per Directory API call.
+  static final int FACT_BLOCK_SIZE = 1000;
+
+  // The Directory does not return more facts than this per request.
+  static final int FACT_PAGE_SIZE = 10000;
+
+  public static final Duration DEFAULT_ICD_INDEX_REFRESH_INTERVAL = Duration.ofDays(7);
+
+  // The collection attributes read by MergeDirectoryCollectionGetToDirectoryCollectionPut.
+  private static final String COLLECTION_ATTRS = "id,name,description,contact(id),country(id),biobank(id),type(id),data_categories(id),network(id)";
+
   private final CloseableHttpClient httpClient;
   private final String baseUrl;
-  private final String token;
-  private final Gson gson = new Gson();
+  // The token is shared, and refreshed when the Directory rejects it.
+  private final TokenHolder tokenHolder;
+  private final Gson gson = new GsonBuilder()
+      .registerTypeAdapter(FactDto.class, new FactDto.Adapter())
+      .registerTypeAdapter(IdDto.class, new IdDto.Adapter())
+      .create();
   private String username;
   private String password;
 
@@ -53,15 +99,29 @@ public class DirectoryApi {
   // All public methods will return feasible fake results.
   private boolean mockDirectory = false;
 
+  // Biobanks from earlier queries, kept across relogins.
+  private BiobankCache biobankCache = new BiobankCache();
+
+  // Runs independent read requests in parallel.
+  private final BoundedExecutor requestExecutor = new BoundedExecutor();
+
+  private int maxConcurrentFactUploads = FactBlockUploader.DEFAULT_MAX_CONCURRENCY;
+
+  private boolean gzipRequests = false;
+
+  // Records writes before they are sent, null if writes are not journaled.
+  private WriteJournal journal;
+
+  // The diagnoses known to the Directory, kept across relogins and optionally on disk.
+  private IcdIndex icdIndex = null;
+  private Path icdIndexFile = null;
+  private Duration icdIndexRefreshInterval = DEFAULT_ICD_INDEX_REFRESH_INTERVAL;
+
   private DirectoryApi(CloseableHttpClient httpClient, String baseUrl, String token, boolean mockDirectory) {
     this.httpClient = Objects.requireNonNull(httpClient);
     this.baseUrl = Objects.requireNonNull(baseUrl);
     this.mockDirectory = mockDirectory;
-    if (mockDirectory)
-      // if we are mocking, then we don't need to check token, because it won't get used anyway.
-      this.token = token;
-    else
-      this.token = Objects.requireNonNull(token);
+    this.tokenHolder = new TokenHolder(token, this::login);
   }
 
   public static Either<OperationOutcome, DirectoryApi> createWithLogin(
@@ -82,6 +142,9 @@ public class DirectoryApi {
       return Either.right(new LoginResponse());
     HttpPost request = loginRequest(baseUrl, username, password);
     try (CloseableHttpResponse response = httpClient.execute(request)) {
+      if (response.getStatusLine().getStatusCode() >= 300)
+        // Bad credentials are reported when the API is created, not on first use.
+        return Either.left(error("login", "status code " + response.getStatusLine().getStatusCode()));
       return Either.right(decodeLoginResponse(response));
     } catch (IOException e) {
       return Either.left(error("login", e.getMessage()));
@@ -103,37 +166,82 @@ public class DirectoryApi {
   }
 
   /**
-   * Log back in to the Directory. This is typically used in situations where there has
-   * been a long pause since the last API call to the Directory. It returns a fresh
-   * DirectoryApi object, which you should use to replace the existing one.
+   * Log back in to the Directory.
    *
-   * Returns null if something goes wrong.
+   * Requests rejected because the token has expired are now retried with a fresh token
+   * automatically, so there is no need to call this any more. It refreshes the shared
+   * token and returns this object.
    *
-   * @return new DirectoryApi object.
+   * @return this DirectoryApi object, never null.
+   * @deprecated tokens are refreshed automatically
    */
+  @Deprecated
   public DirectoryApi relogin() {
-    logger.info("relogin: logging back in");
-    HttpPost request = loginRequest(baseUrl, username, password);
-
     if (mockDirectory)
-      // In a mocking situation, don't try to log back in. We can safely
-      // return the old DirectoryApi object because nothing will have changed.
+      // In a mocking situation, don't try to log back in.
       return this;
 
-    String token = null;
-    try (CloseableHttpResponse response = httpClient.execute(request)) {
-      LoginResponse loginResponse = decodeLoginResponse(response);
-      token = loginResponse.token;
-      if (token == null) {
-        logger.warn("relogin: got a null token back from the Directory, returning null.");
-        return null;
-      }
+    logger.info("relogin: logging back in");
+    try {
+      tokenHolder.refresh(tokenHolder.get());
     } catch (IOException e) {
       logger.warn("relogin: exception: " + Util.traceFromException(e));
-      return null;
     }
+    return this;
+  }
+
+  /**
+   * Logs in with the stored username and password.
+   *
+   * @return the new token.
+   * @throws IOException if there are no credentials or the login fails.
+   */
+  private String login() throws IOException {
+    if (username == null)
+      throw new IOException("the Directory rejected the token and there are no credentials to log in again");
+    logger.info("login: logging in to the Directory as " + username);
+    try (CloseableHttpResponse response = httpClient.execute(loginRequest(baseUrl, username, password))) {
+      if (response.getStatusLine().getStatusCode() >= 300)
+        throw new IOException("login failed with status code " + response.getStatusLine().getStatusCode());
+      return decodeLoginResponse(response).token;
+    }
+  }
+
+  /**
+   * Sends a request to the Directory with the current token. If the Directory rejects the
+   * token, a new one is obtained, see {@link TokenHolder}, and the request is sent once more.
+   *
+   * @param request the request, without token
+   * @return the response.
+   * @throws IOException if the request or a necessary login fails.
+   */
+  private CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+    return execute(request, null);
+  }
 
-    return new DirectoryApi(httpClient, baseUrl.replaceFirst("/*$", ""), token, mockDirectory).setUsernameAndPassword(username, password);
+  private CloseableHttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+    // In a mocking situation there is no login, and the token may be missing.
+    String usedToken = mockDirectory ? null : tokenHolder.get();
+    CloseableHttpResponse response = executeWithToken(request, context, usedToken);
+    if (mockDirectory || response.getStatusLine().getStatusCode() != 401 || !isRepeatable(request))
+      return response;
+
+    EntityUtils.consumeQuietly(response.getEntity());
+    response.close();
+    logger.info("execute: the Directory rejected the token, logging in again");
+    return executeWithToken(request, context, tokenHolder.refresh(usedToken));
+  }
+
+  private CloseableHttpResponse executeWithToken(HttpUriRequest request, HttpContext context, String token) throws IOException {
+    if (token != null)
+      request.setHeader("x-molgenis-token", token);
+    return context == null ? httpClient.execute(request) : httpClient.execute(request, context);
+  }
+
+  private static boolean isRepeatable(HttpUriRequest request) {
+    return !(request instanceof HttpEntityEnclosingRequest)
+        || ((HttpEntityEnclosingRequest) request).getEntity() == null
+        || ((HttpEntityEnclosingRequest) request).getEntity().isRepeatable();
   }
 
   private static HttpPost loginRequest(String baseUrl, String username, String password) {
@@ -164,6 +272,66 @@ public class DirectoryApi {
     return new DirectoryApi(httpClient, baseUrl.replaceFirst("/*$", ""), token, mockDirectory);
   }
 
+  /**
+   * @param maxConcurrentRequests the maximum number of read requests sent at the same time, at least 1
+   */
+  public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+    requestExecutor.setMaxConcurrency(maxConcurrentRequests);
+  }
+
+  /**
+   * @param maxConcurrentFactUploads the maximum number of blocks of facts sent at the same time, at least 1
+   */
+  public void setMaxConcurrentFactUploads(int maxConcurrentFactUploads) {
+    if (maxConcurrentFactUploads < 1)
+      throw new IllegalArgumentException("maxConcurrentFactUploads must be at least 1, got " + maxConcurrentFactUploads);
+    this.maxConcurrentFactUploads = maxConcurrentFactUploads;
+  }
+
+  /**
+   * Compresses the bodies of collection and fact updates with gzip. Only enable this if the
+   * Directory, or a proxy in front of it, accepts gzip encoded requests.
+   *
+   * @param gzipRequests whether to compress request bodies
+   */
+  public void setGzipRequests(boolean gzipRequests) {
+    this.gzipRequests = gzipRequests;
+  }
+
+  /**
+   * Records all writes to the Directory in a journal before they are sent, so that they can
+   * be replayed with {@link #replayJournal()} if the process dies. Not used in mock mode.
+   *
+   * @param journal the journal, or null to not journal writes
+   */
+  public void setJournal(WriteJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Keeps the index of diagnoses known to the Directory in a file, so that later runs do not
+   * need to download it again until it is older than the refresh interval.
+   *
+   * @param icdIndexFile the file, or null to keep the index in memory only
+   * @param refreshInterval how long the index may be used before it is downloaded again
+   */
+  public void setIcdIndexFile(Path icdIndexFile, Duration refreshInterval) {
+    this.icdIndexFile = icdIndexFile;
+    this.icdIndexRefreshInterval = Objects.requireNonNull(refreshInterval);
+  }
+
+  /**
+   * Keeps the biobanks fetched from the Directory, together with the validators of the
+   * responses, in a file, so that later runs can revalidate them instead of downloading them
+   * again.
+   *
+   * @param biobankCacheFile the file, or null to keep the biobanks in memory only
+   */
+  public void setBiobankCacheFile(Path biobankCacheFile) {
+    this.biobankCache = new BiobankCache(biobankCacheFile);
+  }
+
+
   private static OperationOutcome error(String action, String message) {
     OperationOutcome outcome = new OperationOutcome();
     outcome.addIssue().setSeverity(ERROR).setDiagnostics(errorMsg(action, message));
@@ -175,7 +343,11 @@ public class DirectoryApi {
         message);
   }
 
-  private static OperationOutcome biobankNotFound(BbmriEricId id) {
+  /**
+   * @param id the ID of a Biobank
+   * @return the outcome for a Biobank that the Directory does not know
+   */
+  public static OperationOutcome biobankNotFound(BbmriEricId id) {
     OperationOutcome outcome = new OperationOutcome();
     outcome.addIssue()
         .setSeverity(INFORMATION)
@@ -199,7 +371,7 @@ public class DirectoryApi {
    * @return either the Biobank or an error
    */
   public Either<OperationOutcome, Biobank> fetchBiobank(BbmriEricId id) {
-    try (CloseableHttpResponse response = httpClient.execute(fetchBiobankRequest(id))) {
+    try (CloseableHttpResponse response = execute(fetchBiobankRequest(id))) {
       if (response.getStatusLine().getStatusCode() == 200) {
         String payload = EntityUtils.toString(response.getEntity(), UTF_8);
         return Either.right(gson.fromJson(payload, Biobank.class));
@@ -217,11 +389,93 @@ public class DirectoryApi {
   private HttpGet fetchBiobankRequest(BbmriEricId id) {
     HttpGet request = new HttpGet(
         baseUrl + "/api/v2/eu_bbmri_eric_" + id.getCountryCode() + "_biobanks/" + id);
-    request.setHeader("x-molgenis-token", token);
     request.setHeader("Accept", "application/json");
     return request;
   }
 
+  /**
+   * Fetches the Biobanks with the given {@code ids}, which must all belong to the country with
+   * the given {@code countryCode}. The IDs are sent in as few queries as the maximum URL length
+   * allows.
+   * <p>
+   * The responses are cached, on disk if a cache file is set. When the same biobanks are
+   * fetched again, the Directory is asked whether they have changed (If-None-Match /
+   * If-Modified-Since), and the cached biobanks are used if they have not.
+   *
+   * @param countryCode the country code of the biobanks, e.g. DE
+   * @param ids the IDs of the Biobanks to fetch
+   * @return either the Biobanks found, keyed by ID, or an error. Biobanks unknown to the
+   *         Directory are missing from the result
+   */
+  public Either<OperationOutcome, Map<BbmriEricId, Biobank>> fetchBiobanks(String countryCode, Collection<BbmriEricId> ids) {
+    // Sort the IDs, so that the same set of biobanks always gives the same URLs.
+    List<String> sortedIds = ids.stream()
+        .map(BbmriEricId::toString)
+        .sorted()
+        .collect(Collectors.toList());
+
+    Map<BbmriEricId, Biobank> biobanks = new HashMap<>();
+    for (List<String> chunk : chunkCollectionIds(sortedIds)) {
+      Either<OperationOutcome, Map<BbmriEricId, Biobank>> chunkBiobanks = fetchBiobankChunk(countryCode, chunk);
+      if (chunkBiobanks.isLeft())
+        return chunkBiobanks;
+      biobanks.putAll(chunkBiobanks.get());
+    }
+
+    return Either.right(biobanks);
+  }
+
+  private Either<OperationOutcome, Map<BbmriEricId, Biobank>> fetchBiobankChunk(String countryCode, List<String> ids) {
+    HttpGet request = fetchBiobanksRequest(countryCode, ids);
+    String url = request.getURI().toString();
+    BiobankCache.Entry cached = biobankCache.get(url);
+    if (cached != null) {
+      if (cached.getEtag() != null)
+        request.setHeader("If-None-Match", cached.getEtag());
+      if (cached.getLastModified() != null)
+        request.setHeader("If-Modified-Since", cached.getLastModified());
+    }
+
+    String action = "fetch biobanks of " + countryCode;
+    try (CloseableHttpResponse response = execute(request)) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (statusCode == 304 && cached != null) {
+        EntityUtils.consume(response.getEntity());
+        logger.info("fetchBiobanks: biobanks of " + countryCode + " not modified, using cached copies");
+        return Either.right(cached.getBiobanks());
+      } else if (statusCode == 200) {
+        String payload = EntityUtils.toString(response.getEntity(), UTF_8);
+        ItemsDto<Biobank> items = gson.fromJson(payload, new TypeToken<ItemsDto<Biobank>>() {
+        }.getType());
+        Either<OperationOutcome, Map<BbmriEricId, Biobank>> biobanks =
+            BiobankCache.indexById(items == null || items.items == null ? Collections.emptyList() : items.items)
+                .mapLeft(message -> error(action, message));
+        biobanks.peek(byId -> biobankCache.put(url, new BiobankCache.Entry(headerValue(response, "ETag"),
+            headerValue(response, "Last-Modified"), byId)));
+        return biobanks;
+      } else {
+        return Either.left(error(action, EntityUtils.toString(response.getEntity(), UTF_8)));
+      }
+    } catch (IOException e) {
+      return Either.left(error(action, e.getMessage()));
+    }
+  }
+
+  private HttpGet fetchBiobanksRequest(String countryCode, List<String> ids) {
+    String idList = ids.stream()
+        .map(id -> "%22" + id + "%22")
+        .collect(Collectors.joining(","));
+    HttpGet request = new HttpGet(buildApiUrl(countryCode, "biobanks")
+        + "?start=0&num=10000&q=id=in=(" + idList + ")");
+    request.setHeader("Accept", "application/json");
+    return request;
+  }
+
+  private static String headerValue(CloseableHttpResponse response, String name) {
+    Header header = response.getFirstHeader(name);
+    return header == null ? null : header.getValue();
+  }
+
   /**
    * Send the collection sizes to the Directory.
    * <p>
@@ -238,7 +492,7 @@ public class DirectoryApi {
 
     HttpPut request = updateCollectionSizesRequest(countryCode, collectionSizeDtos);
 
-    try (CloseableHttpResponse response = httpClient.execute(request)) {
+    try (CloseableHttpResponse response = execute(request)) {
       if (response.getStatusLine().getStatusCode() < 300) {
         return updateSuccessful(collectionSizeDtos.size());
       } else {
@@ -253,7 +507,6 @@ public class DirectoryApi {
       List<CollectionSizeDto> collectionSizeDtos) {
     HttpPut request = new HttpPut(
         baseUrl + "/api/v2/eu_bbmri_eric_collections/size");
-    request.setHeader("x-molgenis-token", token);
     request.setHeader("Accept", "application/json");
     request.setHeader("Content-type", "application/json");
     request.setEntity(new StringEntity(gson.toJson(new EntitiesDto<>(collectionSizeDtos)), UTF_8));
@@ -267,13 +520,10 @@ public class DirectoryApi {
    * @return all the Collections for the national node. E.g. "DE" will return all German collections
    */
   public Either<OperationOutcome, Set<BbmriEricId>> listAllCollectionIds(String countryCode) {
-    return fetchIdItems(listAllCollectionIdsRequest(countryCode), "list collection ids")
-        .map(i -> i.items.stream()
-            .map(e -> e.id)
-            .map(BbmriEricId::valueOf)
-            .filter(Optional::isPresent)
-            .map(Optional::get)
-            .collect(Collectors.toSet()));
+    Set<BbmriEricId> collectionIds = new HashSet<BbmriEricId>();
+    return fetchIds(listAllCollectionIdsRequest(countryCode), "list collection ids",
+        id -> BbmriEricId.valueOf(id).ifPresent(collectionIds::add))
+        .map(total -> collectionIds);
   }
 
   private HttpGet listAllCollectionIdsRequest(String countryCode) {
@@ -285,7 +535,6 @@ public class DirectoryApi {
     HttpGet request = new HttpGet(
         baseUrl + "/api/v2/eu_bbmri_eric_collections?attrs=id&start=0&num=10000&q=country=="
             + countryCode);
-    request.setHeader("x-molgenis-token", token);
     request.setHeader("Accept", "application/json");
     return request;
   }
@@ -294,57 +543,93 @@ public class DirectoryApi {
    * Make API calls to the Directory to fill a DirectoryCollectionGet object containing attributes
    * for all of the collections listed in collectionIds. The countryCode is used solely for
    * constructing the URL for the API call.
+   *
+   * The collections are fetched in as few requests as possible, each asking for a chunk of
+   * IDs that keeps the URL short enough. The chunks are fetched in parallel. Only the
+   * attributes used by MergeDirectoryCollectionGetToDirectoryCollectionPut are requested.
    * 
    * @param countryCode E.g. "DE".
    * @param collectionIds IDs of the collections whose data will be harvested.
-   * @return
+   * @return the collections, or an error listing all collections missing from the Directory
    */
   public Either<OperationOutcome, DirectoryCollectionGet> fetchCollectionGetOutcomes(String countryCode, List<String> collectionIds) {
     DirectoryCollectionGet directoryCollectionGet = new DirectoryCollectionGet(); // for all collections retrieved from Directory
     directoryCollectionGet.init(); 
-    for (String collectionId: collectionIds) {
-      try {
-        HttpGet request = fetchCollectionsRequest(countryCode, collectionId);
 
-        if (mockDirectory) {
-          // Dummy return if we're in mock mode
-          directoryCollectionGet.setMockDirectory(true);
-          return Either.right(directoryCollectionGet);
-        }
+    if (mockDirectory) {
+      // Dummy return if we're in mock mode
+      directoryCollectionGet.setMockDirectory(true);
+      return Either.right(directoryCollectionGet);
+    }
 
-        CloseableHttpResponse response = httpClient.execute(request);
-        if (response.getStatusLine().getStatusCode() < 300) {
-          HttpEntity httpEntity = response.getEntity();
-          String json = EntityUtils.toString(httpEntity);
-          DirectoryCollectionGet singleDirectoryCollectionGet = gson.fromJson(json, DirectoryCollectionGet.class);
-          Map item = singleDirectoryCollectionGet.getItemZero(); // assume that only one collection matches collectionId
-          if (item == null)
-            	return Either.left(error("fetchCollectionGetOutcomes: entity get item is null, does the collection exist in the Directory: ", collectionId));
-          directoryCollectionGet.getItems().add(item);
-        } else
-          return Either.left(error("fetchCollectionGetOutcomes: entity get HTTP error", Integer.toString(response.getStatusLine().getStatusCode())));
-      } catch (IOException e) {
-          return Either.left(error("fetchCollectionGetOutcomes: entity get exception", Util.traceFromException(e)));
-      } catch (Exception e) {
-          return Either.left(error("fetchCollectionGetOutcomes: unknown exception", Util.traceFromException(e)));
+    Either<OperationOutcome, List<List<Map<String, Object>>>> chunkOutcomes = requestExecutor.mapAll(
+        chunkCollectionIds(collectionIds), chunk -> fetchCollectionChunk(countryCode, chunk));
+    if (chunkOutcomes.isLeft())
+      return Either.left(chunkOutcomes.getLeft());
+    for (List<Map<String, Object>> items : chunkOutcomes.get())
+      directoryCollectionGet.getItems().addAll(items);
+
+    Set<String> foundIds = new HashSet<String>(directoryCollectionGet.getCollectionIds());
+    List<String> missingIds = collectionIds.stream()
+        .filter(collectionId -> !foundIds.contains(collectionId))
+        .distinct()
+        .collect(Collectors.toList());
+    if (!missingIds.isEmpty())
+      return Either.left(error("fetchCollectionGetOutcomes: collections do not exist in the Directory", String.join(", ", missingIds)));
+
+    return Either.right(directoryCollectionGet);
+  }
+
+  /**
+   * Splits the collection IDs into chunks whose quoted, comma separated list stays below
+   * MAX_COLLECTION_QUERY_LENGTH characters.
+   */
+  static List<List<String>> chunkCollectionIds(List<String> collectionIds) {
+    List<List<String>> chunks = new ArrayList<List<String>>();
+    List<String> chunk = new ArrayList<String>();
+    int chunkLength = 0;
+    for (String collectionId : new LinkedHashSet<String>(collectionIds)) {
+      int length = collectionId.length() + 7; // %22 before and after, plus the comma
+      if (!chunk.isEmpty() && chunkLength + length > MAX_COLLECTION_QUERY_LENGTH) {
+        chunks.add(chunk);
+        chunk = new ArrayList<String>();
+        chunkLength = 0;
       }
+      chunk.add(collectionId);
+      chunkLength += length;
     }
+    if (!chunk.isEmpty())
+      chunks.add(chunk);
+    return chunks;
+  }
 
-    return Either.right(directoryCollectionGet);
+  private List<Map<String, Object>> fetchCollectionChunk(String countryCode, List<String> collectionIds) {
+    try (CloseableHttpResponse response = execute(fetchCollectionsRequest(countryCode, collectionIds))) {
+      if (response.getStatusLine().getStatusCode() >= 300)
+        throw new IllegalStateException(errorMsg("fetchCollectionGetOutcomes: entity get HTTP error",
+            Integer.toString(response.getStatusLine().getStatusCode())));
+      ItemsDto<Map<String, Object>> items = gson.fromJson(jsonReader(response.getEntity()),
+          new TypeToken<ItemsDto<Map<String, Object>>>() {
+          }.getType());
+      return items == null || items.items == null ? new ArrayList<Map<String, Object>>() : items.items;
+    } catch (IOException e) {
+      throw new UncheckedIOException(errorMsg("fetchCollectionGetOutcomes: entity get exception", Util.traceFromException(e)), e);
+    }
   }
 
-  private HttpGet fetchCollectionsRequest(String countryCode, String collectionId) {
-    String url = buildCollectionApiUrl(countryCode) + "?q=id==%22" + collectionId  + "%22";
+  private HttpGet fetchCollectionsRequest(String countryCode, List<String> collectionIds) {
+    String idList = collectionIds.stream()
+        .map(id -> "%22" + id + "%22")
+        .collect(Collectors.joining(","));
+    String url = buildCollectionApiUrl(countryCode) + "?start=0&num=" + collectionIds.size()
+        + "&attrs=" + COLLECTION_ATTRS + "&q=id=in=(" + idList + ")";
 
     logger.info("DirectoryApi.fetchCollectionsRequest: url=" + url);
 
     HttpGet request = new HttpGet(url);
-    request.setHeader("x-molgenis-token", token);
     request.setHeader("Accept", "application/json");
     request.setHeader("Content-type", "application/json");
 
-    logger.info("DirectoryApi.fetchCollectionsRequest: request successfully built");
-
     return request;
   }
 
@@ -361,140 +646,238 @@ public class DirectoryApi {
       // Dummy return if we're in mock mode
       return updateSuccessful(directoryCollectionPut.size());
 
-    try (CloseableHttpResponse response = httpClient.execute(request)) {
+    List<DirectoryCollectionPut.Entity> entities = directoryCollectionPut.getEntities();
+    WritePlan plan = new WritePlan(journal);
+    WritePlan.Part update;
+    try {
+      update = plan.add(request.getMethod(), request.getURI().toString(), "entities", entities, Math.max(1, entities.size()));
+    } catch (IOException e) {
+      return error("journal write exception", e.getMessage());
+    }
+
+    try (CloseableHttpResponse response = execute(request)) {
       if (response.getStatusLine().getStatusCode() < 300) {
+        update.acknowledge(0, entities.size());
         return updateSuccessful(directoryCollectionPut.size());
       } else {
+        plan.abandon();
         return error("entity update status code " + response.getStatusLine().getStatusCode(), EntityUtils.toString(response.getEntity(), UTF_8));
       }
     } catch (IOException e) {
+      plan.abandon();
       return error("entity update exception", e.getMessage());
     }
   }
 
   private HttpPut updateEntitiesRequest(DirectoryCollectionPut directoryCollectionPut) {
     HttpPut request = new HttpPut(buildCollectionApiUrl(directoryCollectionPut.getCountryCode()));
-    request.setHeader("x-molgenis-token", token);
     request.setHeader("Accept", "application/json");
     request.setHeader("Content-type", "application/json");
-    request.setEntity(new StringEntity(gson.toJson(directoryCollectionPut), UTF_8));
+    request.setEntity(new JsonStreamEntity(gson, "entities", directoryCollectionPut.getEntities(), gzipRequests));
     return request;
   }
 
   /**
    * Updates the Star Model data in the Directory service based on the provided StarModelInputData.
    * 
-   * Before sending any star model data to the Directory, the original
-   * star model data for all known collections will be deleted from the
-   * Directory.
+   * Only the differences to the facts already in the Directory are sent. The existing facts
+   * of all known collections are fetched and compared by ID with the new ones. New facts are
+   * inserted, facts whose values have changed are updated, and facts that no longer exist
+   * are deleted. Facts are identified by stable IDs, so an unchanged fact keeps its ID from
+   * run to run. The last_update attribute is ignored when comparing.
+   *
+   * Deletes are sent last, so that the Directory always shows a complete star model.
    *
    * @param starModelInputData The input data for updating the Star Model.
    * @return An OperationOutcome indicating the success or failure of the update.
    */
   public OperationOutcome updateStarModel(StarModelData starModelInputData) {
-    // Get rid of previous star models first. This is necessary, because:
-    // 1. A new star model may be decomposed into different hypercubes.
-    // 2. The new fact IDs may be different from the old ones.
-    // 3. We will be using a POST and it will return an error if we try
-    //    to overwrite an existing fact.
-    OperationOutcome deleteOutcome = deleteStarModel(starModelInputData);
-    if (deleteOutcome.getIssue().size() > 0) {
-      logger.warn("updateStarModel: Problem deleting star models");
-      return deleteOutcome;
+    String countryCode = starModelInputData.getCountryCode();
+    String apiUrl = buildApiUrl(countryCode, "facts");
+
+    Map<String, Map<String, String>> newFactsById = new LinkedHashMap<String, Map<String, String>>();
+    for (Map<String, String> fact : starModelInputData.getFactTables())
+      newFactsById.put(fact.get("id"), fact);
+
+    List<String> deletedFactIds = new ArrayList<String>();
+    List<Map<String, String>> updatedFacts = new ArrayList<Map<String, String>>();
+    Set<String> existingFactIds = new HashSet<String>();
+    // In mock mode, there are no existing facts and all facts are inserted.
+    for (String collectionId : mockDirectory ? Collections.<String>emptySet() : starModelInputData.getInputCollectionIds()) {
+      Either<OperationOutcome, Integer> existingFactCount = fetchFactsByCollection(apiUrl, collectionId, existingFact -> {
+        existingFactIds.add(existingFact.id);
+        Map<String, String> newFact = newFactsById.get(existingFact.id);
+        if (newFact == null)
+          deletedFactIds.add(existingFact.id);
+        else if (!hasSameValues(newFact, existingFact))
+          updatedFacts.add(newFact);
+      });
+      if (existingFactCount.isLeft())
+        return existingFactCount.getLeft();
+    }
+    List<Map<String, String>> insertedFacts = newFactsById.values().stream()
+        .filter(fact -> !existingFactIds.contains(fact.get("id")))
+        .collect(Collectors.toList());
+    logger.info("updateStarModel: " + insertedFacts.size() + " facts to insert, " + updatedFacts.size()
+        + " to update, " + deletedFactIds.size() + " to delete, "
+        + (newFactsById.size() - insertedFacts.size() - updatedFacts.size()) + " unchanged");
+
+    // The whole plan is journaled before the first request is sent.
+    WritePlan plan = new WritePlan(mockDirectory ? null : journal);
+    WritePlan.Part inserts, updates, deletes;
+    try {
+      inserts = plan.add("POST", apiUrl, "entities", insertedFacts, FACT_BLOCK_SIZE);
+      updates = plan.add("PUT", apiUrl, "entities", updatedFacts, FACT_BLOCK_SIZE);
+      deletes = plan.add("DELETE", apiUrl, "entityIds", deletedFactIds, FACT_BLOCK_SIZE);
+    } catch (IOException e) {
+      return error("journal write exception", e.getMessage());
     }
 
-    String countryCode = starModelInputData.getCountryCode();
-    List<Map<String, String>> factTables = starModelInputData.getFactTables();
-    int blockSize = 1000;
+    // A plan that failed is abandoned, whatever the cause: the next update computes its
+    // writes afresh, and the journal must not replay stale ones over them.
+    OperationOutcome insertOutcome = sendFacts(insertedFacts, () -> new HttpPost(apiUrl), inserts);
+    if (insertOutcome.getIssue().size() > 0) {
+      plan.abandon();
+      return insertOutcome;
+    }
+    OperationOutcome updateOutcome = sendFacts(updatedFacts, () -> new HttpPut(apiUrl), updates);
+    if (updateOutcome.getIssue().size() > 0) {
+      plan.abandon();
+      return updateOutcome;
+    }
+    if (mockDirectory)
+      return updateSuccessful(starModelInputData.getFactCount());
+    for (int i = 0; i < deletedFactIds.size(); i += FACT_BLOCK_SIZE) {
+      int end = Math.min(i + FACT_BLOCK_SIZE, deletedFactIds.size());
+      OperationOutcome deleteOutcome = deleteFactBlock(apiUrl, deletedFactIds.subList(i, end));
+      if (deleteOutcome.getIssue().size() > 0) {
+        plan.abandon();
+        return deleteOutcome;
+      }
+      deletes.acknowledge(i, end);
+    }
 
-    // Break the fact table into blocks of 1000 before sending to the Directory.
-    // This is the maximum number of facts allowed per Directory API call.
-    for (int i = 0; i < factTables.size(); i += blockSize) {
-      List<Map<String, String>> factTablesBlock = factTables.subList(i, Math.min(i + blockSize, factTables.size()));
+    return updateSuccessful(starModelInputData.getFactCount());
+  }
 
-      // Now push the new data
-      HttpPost request = updateStarModelRequestBlock(countryCode, factTablesBlock);
+  /**
+   * Sends facts to the Directory in blocks of at most FACT_BLOCK_SIZE, the maximum number of
+   * facts allowed per Directory API call. Several blocks are sent at the same time, see
+   * {@link FactBlockUploader}.
+   *
+   * @param facts the facts to send
+   * @param newRequest creates a POST request for inserts or a PUT request for updates
+   * @param part the part of the update plan holding the facts, acknowledged block by block
+   * @return An OperationOutcome, with an issue if a block failed.
+   */
+  private OperationOutcome sendFacts(List<Map<String, String>> facts, Supplier<HttpEntityEnclosingRequestBase> newRequest,
+      WritePlan.Part part) {
+    FactBlockUploader<Map<String, String>> uploader = new FactBlockUploader<Map<String, String>>(
+        block -> sendFactBlock(newRequest.get(), block))
+        .setMaxConcurrency(maxConcurrentFactUploads)
+        .setSizeEstimator(DirectoryApi::estimateFactBytes)
+        .setCommitListener(block -> part.acknowledge(block.getStart(), block.getEnd()));
+    return uploader.upload(facts);
+  }
 
-      if (mockDirectory)
-        // Dummy return if we're in mock mode
-        return updateSuccessful(starModelInputData.getFactCount());
+  /**
+   * Estimates the number of bytes a fact adds to an uncompressed payload, as a JSON object
+   * with quoted keys and values. Facts hold IDs and codes, which are ASCII and need no
+   * escaping, so the estimate is exact for them. Compression only makes the payload smaller.
+   */
+  static long estimateFactBytes(Map<String, String> fact) {
+    long bytes = 3; // braces and the comma between facts
+    for (Map.Entry<String, String> entry : fact.entrySet())
+      bytes += entry.getKey().length() + (entry.getValue() == null ? 4 : entry.getValue().length() + 2) + 4;
+    return bytes;
+  }
 
-      try (CloseableHttpResponse response = httpClient.execute(request)) {
+  /**
+   * Sends a single block of facts. In mock mode, the request is built but not sent.
+   *
+   * @return the size of the payload in bytes, or an error.
+   */
+  private Either<OperationOutcome, Long> sendFactBlock(HttpEntityEnclosingRequestBase request, List<Map<String, String>> factTablesBlock) {
+    JsonStreamEntity entity = (JsonStreamEntity) updateStarModelRequestBlock(request, factTablesBlock).getEntity();
+    try {
+      if (mockDirectory) {
+        entity.writeTo(OutputStream.nullOutputStream());
+        return Either.right(entity.getBytesWritten());
+      }
+
+      // A POST is not retried: if the Directory created the facts but the response was lost,
+      // sending it again fails as a duplicate. If the process dies before the outcome is
+      // known, the write stays in the journal, and replayJournal sends it again as a PUT.
+      // A PUT is retried as usual.
+      try (CloseableHttpResponse response = execute(request)) {
         if (response.getStatusLine().getStatusCode() >= 300)
-          return error("entity update status code " + response.getStatusLine().getStatusCode(), EntityUtils.toString(response.getEntity(), UTF_8));
-      } catch (IOException e) {
-        return error("entity update exception", e.getMessage());
+          return Either.left(error("entity update status code " + response.getStatusLine().getStatusCode(), EntityUtils.toString(response.getEntity(), UTF_8)));
       }
+    } catch (IOException e) {
+      return Either.left(error("entity update exception", e.getMessage()));
     }
 
-    return updateSuccessful(starModelInputData.getFactCount());
+    return Either.right(entity.getBytesWritten());
   }
 
   /**
-   * Constructs an HTTP POST request for updating Star Model data based on the provided StarModelInputData.
+   * Fills an HTTP POST or PUT request for sending a block of facts to the Directory.
    *
-   * @param countryCode
+   * @param request the request to fill
    * @param factTablesBlock
-   * @return An HttpPost request object.
+   * @return the request.
    */
-  private HttpPost updateStarModelRequestBlock(String countryCode, List<Map<String, String>> factTablesBlock) {
-    HttpPost request = new HttpPost(buildApiUrl(countryCode, "facts"));
-    // Directory likes to have its data wrapped in a map with key "entities".
-    Map<String,Object> body = new HashMap<String,Object>();
-    body.put("entities", factTablesBlock);
-    String jsonBody = gson.toJson(body);
-    request.setHeader("x-molgenis-token", token);
+  private HttpEntityEnclosingRequestBase updateStarModelRequestBlock(HttpEntityEnclosingRequestBase request, List<Map<String, String>> factTablesBlock) {
     request.setHeader("Accept", "application/json");
     request.setHeader("Content-type", "application/json");
-    request.setEntity(new StringEntity(jsonBody, UTF_8));
+    // Directory likes to have its data wrapped in a map with key "entities".
+    request.setEntity(new JsonStreamEntity(gson, "entities", factTablesBlock, gzipRequests));
     return request;
   }
 
   /**
-   * Deletes existing star models from the Directory service for each of the collection IDs in the supplied StarModelInputData object.
+   * Fetches all facts of a collection from the Directory, page by page. The facts are decoded
+   * one by one while the response is read and handed to the consumer.
    *
-   * @param starModelInputData The input data for deleting existing star models.
-   * @return An OperationOutcome indicating the success or failure of the deletion.
+   * @param apiUrl        The URL of the facts endpoint.
+   * @param collectionId  The ID of the collection.
+   * @param consumer      Receives the facts.
+   * @return the number of facts, or an error.
    */
-  private OperationOutcome deleteStarModel(StarModelData starModelInputData) {
-    String apiUrl = buildApiUrl(starModelInputData.getCountryCode(), "facts");
-
-    if (mockDirectory)
-      // Dummy return if we're in mock mode
-      return new OperationOutcome();
-
-    try {
-      for (String collectionId: starModelInputData.getInputCollectionIds()) {
-        List<String> factIds;
-        // Loop until no more facts are left in the Directory.
-        // We need to do things this way, because the Directory implements paging
-        // and a single pass may not get all facts.
-        do {
-          // First get a list of fact IDs for this collection
-          Map factWrapper = fetchFactWrapperByCollection(apiUrl, collectionId);
-          if (factWrapper == null)
-            return error("deleteStarModel: Problem getting facts for collection, factWrapper == null, collectionId=", collectionId);
-          if (!factWrapper.containsKey("items"))
-            return error("deleteStarModel: Problem getting facts for collection, no item key present: ", collectionId);
-          List<Map<String, String>> facts = (List<Map<String, String>>) factWrapper.get("items");
-          if (facts.size() == 0)
-            break;
-          factIds = facts.stream()
-            .map(map -> map.get("id"))
-            .collect(Collectors.toList());
-
-          // Take the list of fact IDs and delete all of the corresponding facts
-          // at the Directory.
-          OperationOutcome deleteOutcome = deleteFactsByIds(apiUrl, factIds);
-          if (deleteOutcome.getIssue().size() > 0)
-            return deleteOutcome;
-        } while (true);
+  Either<OperationOutcome, Integer> fetchFactsByCollection(String apiUrl, String collectionId, Consumer<FactDto> consumer) {
+    String action = "fetch facts of " + collectionId;
+    int factCount = 0;
+    while (true) {
+      HttpGet request = fetchFactWrapperByCollectionRequest(apiUrl + "?start=" + factCount + "&num=" + FACT_PAGE_SIZE + "&", collectionId);
+      int[] pageCount = {0};
+      int total;
+      try (CloseableHttpResponse response = execute(request)) {
+        if (response.getStatusLine().getStatusCode() >= 300)
+          return Either.left(error(action, EntityUtils.toString(response.getEntity(), UTF_8)));
+        total = readItems(response.getEntity(), FactDto.class, fact -> {
+          pageCount[0]++;
+          consumer.accept(fact);
+        });
+      } catch (IOException | JsonParseException e) {
+        return Either.left(error(action, e.getMessage()));
       }
-    } catch(Exception e) {
-      return error("deleteStarModel: Exception during delete", Util.traceFromException(e));
+      factCount += pageCount[0];
+      if (pageCount[0] == 0 || factCount >= total)
+        break;
     }
 
-    return new OperationOutcome();
+    return Either.right(factCount);
+  }
+
+  /**
+   * Compares the values of a new fact with those of a fact returned by the Directory. The
+   * last_update attribute is ignored, as are attributes that only the Directory returns.
+   */
+  private static boolean hasSameValues(Map<String, String> newFact, FactDto existingFact) {
+    for (Map.Entry<String, String> entry : newFact.entrySet())
+      if (!entry.getKey().equals("last_update") && !Objects.equals(entry.getValue(), existingFact.get(entry.getKey())))
+        return false;
+    return true;
   }
 
   /**
@@ -509,13 +892,14 @@ public class DirectoryApi {
     try {
       HttpGet request = fetchFactWrapperByCollectionRequest(apiUrl, collectionId);
 
-      CloseableHttpResponse response = httpClient.execute(request);
-      if (response.getStatusLine().getStatusCode() < 300) {
-        HttpEntity httpEntity = response.getEntity();
-        String json = EntityUtils.toString(httpEntity);
-        body = gson.fromJson(json, Map.class);
-      } else
-        logger.warn("fetchFactWrapperByCollection: entity get HTTP error: " + Integer.toString(response.getStatusLine().getStatusCode()) + ", apiUrl=" + apiUrl + ", collectionId=" + collectionId);
+      try (CloseableHttpResponse response = execute(request)) {
+        if (response.getStatusLine().getStatusCode() < 300) {
+          body = gson.fromJson(jsonReader(response.getEntity()), Map.class);
+        } else
+          logger.warn("fetchFactWrapperByCollection: entity get HTTP error: " + Integer.toString(response.getStatusLine().getStatusCode()) + ", apiUrl=" + apiUrl + ", collectionId=" + collectionId);
+        // Read the rest of the body, so that the connection goes back to the pool.
+        EntityUtils.consume(response.getEntity());
+      }
     } catch (IOException e) {
       logger.warn("fetchFactWrapperByCollection: entity get exception: " + Util.traceFromException(e));
     } catch (Exception e) {
@@ -533,10 +917,9 @@ public class DirectoryApi {
    * @return An HttpGet request object.
    */
   private HttpGet fetchFactWrapperByCollectionRequest(String apiUrl, String collectionId) {
-    String url = apiUrl + "?q=collection==%22" + collectionId + "%22";
+    String url = apiUrl + (apiUrl.endsWith("&") ? "" : "?") + "q=collection==%22" + collectionId + "%22";
     logger.info("fetchFactWrapperByCollectionRequest: url=" + url);
     HttpGet request = new HttpGet(url);
-    request.setHeader("x-molgenis-token", token);
     request.setHeader("Accept", "application/json");
     request.setHeader("Content-type", "application/json");
     return request;
@@ -547,17 +930,17 @@ public class DirectoryApi {
       String url = "https://bbmritestnn.gcc.rug.nl/api/v2/eu_bbmri_eric_DE_collections?q=id==%22bbmri-eric:ID:DE_DKFZ_TEST:collection:Test1%22";
       logger.info("runTestQuery: url=" + url);
       HttpGet request = new HttpGet(url);
-      request.setHeader("x-molgenis-token", token);
       request.setHeader("Accept", "application/json");
       request.setHeader("Content-type", "application/json");
 
-      CloseableHttpResponse response = httpClient.execute(request);
-      if (response.getStatusLine().getStatusCode() < 300) {
-        HttpEntity httpEntity = response.getEntity();
-        String json = EntityUtils.toString(httpEntity);
-        logger.info("runTestQuery: SUCCESS, json=" + json);
-      } else
-        logger.warn("runTestQuery: FAILURE, entity get HTTP error: " + Integer.toString(response.getStatusLine().getStatusCode()));
+      try (CloseableHttpResponse response = execute(request)) {
+        if (response.getStatusLine().getStatusCode() < 300) {
+          HttpEntity httpEntity = response.getEntity();
+          String json = EntityUtils.toString(httpEntity);
+          logger.info("runTestQuery: SUCCESS, json=" + json);
+        } else
+          logger.warn("runTestQuery: FAILURE, entity get HTTP error: " + Integer.toString(response.getStatusLine().getStatusCode()));
+      }
     } catch (IOException e) {
       logger.warn("runTestQuery: FAILURE, entity get exception: " + Util.traceFromException(e));
     } catch (Exception e) {
@@ -565,6 +948,85 @@ public class DirectoryApi {
     }
   }
 
+  /**
+   * Sends the writes that the journal holds from an earlier process, e.g. one that died
+   * while uploading the star model, in the order they were originally made. Nothing is
+   * read from the FHIR store. Each write is marked committed once the Directory has
+   * acknowledged it, so an interrupted replay can simply be started again.
+   *
+   * A replayed POST that the Directory rejects may have been committed before the earlier
+   * process died, without the journal noticing. It is sent again as a PUT, which updates
+   * the entities that already exist.
+   *
+   * @return An OperationOutcome indicating the number of replayed writes, or the first error.
+   */
+  public OperationOutcome replayJournal() {
+    if (journal == null)
+      return error("replay journal", "no journal configured");
+
+    int replayedCount = 0;
+    for (WriteJournal.Entry entry : journal.getPendingEntries()) {
+      logger.info("replayJournal: replaying " + entry.getMethod() + " " + entry.getUrl() + " with " + entry.getItems().size() + " items");
+      int statusCode;
+      try {
+        statusCode = replayJournalEntry(entry, entry.getMethod());
+        if (entry.getMethod().equals("POST") && (statusCode == 400 || statusCode == 409))
+          statusCode = replayJournalEntry(entry, "PUT");
+      } catch (IOException e) {
+        return error("replay journal exception", e.getMessage());
+      }
+      if (statusCode >= 300) {
+        // Replaying the write again would be rejected as well.
+        closeInJournal(entry.getSeq(), false);
+        return error("replay journal", "status code " + statusCode + " after replaying " + replayedCount + " writes");
+      }
+      closeInJournal(entry.getSeq(), true);
+      replayedCount++;
+    }
+
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue().setSeverity(INFORMATION).setDiagnostics(String.format("Replayed %d Directory writes.", replayedCount));
+    return outcome;
+  }
+
+  private int replayJournalEntry(WriteJournal.Entry entry, String method) throws IOException {
+    HttpEntityEnclosingRequestBase request;
+    switch (method) {
+      case "POST":
+        request = new HttpPost(entry.getUrl());
+        break;
+      case "PUT":
+        request = new HttpPut(entry.getUrl());
+        break;
+      case "DELETE":
+        request = new HttpDeleteWithBody(entry.getUrl());
+        break;
+      default:
+        throw new IOException("unknown method " + method + " in journal entry " + entry.getSeq());
+    }
+    request.setHeader("Accept", "application/json");
+    request.setHeader("Content-type", "application/json");
+    request.setEntity(new JsonStreamEntity(gson, entry.getKey(), entry.getItems(), gzipRequests));
+
+    // All writes to the Directory address entities by ID, so replaying them is safe.
+    try (CloseableHttpResponse response = execute(request, RetryPolicy.idempotentContext())) {
+      EntityUtils.consumeQuietly(response.getEntity());
+      return response.getStatusLine().getStatusCode();
+    }
+  }
+
+  private void closeInJournal(long seq, boolean committed) {
+    try {
+      if (committed)
+        journal.commit(seq);
+      else
+        journal.abandon(seq);
+    } catch (IOException e) {
+      // The write will merely be replayed again.
+      logger.warn("closeInJournal: could not mark write " + seq + " as " + (committed ? "committed" : "abandoned") + ": " + e.getMessage());
+    }
+  }
+
   /**
    * Deletes facts from the Directory service based on a list of fact IDs.
    *
@@ -577,10 +1039,32 @@ public class DirectoryApi {
       // Nothing to delete
       return new OperationOutcome();
 
-    HttpDeleteWithBody request = deleteFactsByIdsRequest(apiUrl, factIds);
+    WritePlan plan = new WritePlan(journal);
+    WritePlan.Part deletes;
+    try {
+      deletes = plan.add("DELETE", apiUrl, "entityIds", factIds, factIds.size());
+    } catch (IOException e) {
+      return error("journal write exception", e.getMessage());
+    }
 
-    try (CloseableHttpResponse response = httpClient.execute(request)) {
+    OperationOutcome outcome = deleteFactBlock(apiUrl, factIds);
+    if (outcome.getIssue().size() == 0)
+      deletes.acknowledge(0, factIds.size());
+    else
+      plan.abandon();
+    return outcome;
+  }
+
+  /**
+   * Sends a single delete request, already recorded in the plan of the update.
+   *
+   * @return An empty OperationOutcome, or one with an issue if the delete failed.
+   */
+  private OperationOutcome deleteFactBlock(String apiUrl, List<String> factIds) {
+    HttpDeleteWithBody request = deleteFactsByIdsRequest(apiUrl, factIds);
+    try (CloseableHttpResponse response = execute(request)) {
       if (response.getStatusLine().getStatusCode() < 300) {
+        EntityUtils.consume(response.getEntity());
         return new OperationOutcome();
       } else {
         return error("entity delete status code " + response.getStatusLine().getStatusCode(), EntityUtils.toString(response.getEntity(), UTF_8));
@@ -599,14 +1083,10 @@ public class DirectoryApi {
    */
   private HttpDeleteWithBody deleteFactsByIdsRequest(String apiUrl, List<String> factIds) {
     HttpDeleteWithBody request = new HttpDeleteWithBody(apiUrl);
-    // Directory likes to have its delete data wrapped in a map with key "entityIds".
-    Map<String,Object> body = new HashMap<String,Object>();
-    body.put("entityIds", factIds);
-    String jsonBody = gson.toJson(body);
-    request.setHeader("x-molgenis-token", token);
     request.setHeader("Accept", "application/json");
     request.setHeader("Content-type", "application/json");
-    request.setEntity(new StringEntity(jsonBody, UTF_8));
+    // Directory likes to have its delete data wrapped in a map with key "entityIds".
+    request.setEntity(new JsonStreamEntity(gson, "entityIds", factIds, gzipRequests));
     return request;
   }
 
@@ -650,6 +1130,15 @@ public class DirectoryApi {
    * @param diagnoses A string map containing diagnoses to be corrected.
    */
   public void collectDiagnosisCorrections(Map<String, String> diagnoses) {
+    Either<OperationOutcome, IcdIndex> icdIndexOutcome = loadIcdIndex();
+    if (icdIndexOutcome.isRight()) {
+      IcdIndex index = icdIndexOutcome.get();
+      diagnoses.replaceAll((diagnosis, correctedDiagnosis) -> index.contains(diagnosis) ? correctedDiagnosis : index.correct(diagnosis));
+      return;
+    }
+    logger.warn("collectDiagnosisCorrections: no ICD index, checking diagnoses one by one: "
+        + icdIndexOutcome.getLeft().getIssueFirstRep().getDiagnostics());
+
     int diagnosisCounter = 0; // for diagnostics only
     for (String diagnosis: diagnoses.keySet()) {
       if (diagnosisCounter%1000 == 0)
@@ -665,6 +1154,60 @@ public class DirectoryApi {
     }
   }
 
+  /**
+   * Returns the index of diagnoses known to the Directory. The index is taken from memory or
+   * from the index file if it is younger than the refresh interval. Otherwise it is
+   * downloaded, page by page and with IDs only, and saved to the index file.
+   *
+   * @return the index or an error
+   */
+  Either<OperationOutcome, IcdIndex> loadIcdIndex() {
+    Instant now = Instant.now();
+    if (icdIndex != null && !icdIndex.isOlderThan(icdIndexRefreshInterval, now))
+      return Either.right(icdIndex);
+
+    if (icdIndexFile != null) {
+      Optional<IcdIndex> stored = IcdIndex.read(icdIndexFile)
+          .filter(index -> !index.isOlderThan(icdIndexRefreshInterval, now));
+      if (stored.isPresent()) {
+        logger.info("loadIcdIndex: read " + stored.get().size() + " diagnoses from " + icdIndexFile);
+        icdIndex = stored.get();
+        return Either.right(icdIndex);
+      }
+    }
+
+    if (mockDirectory)
+      return Either.left(error("load ICD index", "no downloads in mock mode"));
+
+    List<String> ids = new ArrayList<String>();
+    while (true) {
+      int start = ids.size();
+      Either<OperationOutcome, Integer> total = fetchIds(icdIndexPageRequest(start), "load ICD index", ids::add);
+      if (total.isLeft())
+        return Either.left(total.getLeft());
+      if (ids.size() == start || ids.size() >= total.get())
+        break;
+    }
+
+    icdIndex = new IcdIndex(ids, now);
+    logger.info("loadIcdIndex: downloaded " + icdIndex.size() + " diagnoses");
+    if (icdIndexFile != null)
+      try {
+        icdIndex.write(icdIndexFile);
+      } catch (IOException e) {
+        logger.warn("loadIcdIndex: could not write " + icdIndexFile + ": " + e.getMessage());
+      }
+
+    return Either.right(icdIndex);
+  }
+
+  private HttpGet icdIndexPageRequest(int start) {
+    HttpGet request = new HttpGet(baseUrl + "/api/v2/eu_bbmri_eric_disease_types?attrs=id&start=" + start
+        + "&num=" + ICD_INDEX_PAGE_SIZE);
+    request.setHeader("Accept", "application/json");
+    return request;
+  }
+
   /**
    * Checks if a given diagnosis code is a valid ICD value by querying the Directory service.
    *
@@ -675,21 +1218,13 @@ public class DirectoryApi {
     String url = baseUrl + "/api/v2/eu_bbmri_eric_disease_types?q=id=='" + diagnosis + "'";
     try {
       HttpGet request = isValidIcdValueRequest(url);
-      CloseableHttpResponse response = httpClient.execute(request);
-      if (response.getStatusLine().getStatusCode() < 300) {
-        HttpEntity httpEntity = response.getEntity();
-        String json = EntityUtils.toString(httpEntity);
-        Map body = gson.fromJson(json, Map.class);
-        if (body.containsKey("total")) {
-          Object total = body.get("total");
-          if (total instanceof Double) {
-            Integer intTotal = ((Double) total).intValue();
-            if (intTotal > 0)
-              return true;
-          }
-        }
-      } else
-        logger.warn("ICD validation get HTTP error; " + Integer.toString(response.getStatusLine().getStatusCode()));
+      try (CloseableHttpResponse response = execute(request)) {
+        if (response.getStatusLine().getStatusCode() < 300) {
+          if (readItems(response.getEntity(), IdDto.class, item -> {}) > 0)
+            return true;
+        } else
+          logger.warn("ICD validation get HTTP error; " + Integer.toString(response.getStatusLine().getStatusCode()));
+      }
     } catch (IOException e) {
         logger.warn("ICD validation get exception: " + Util.traceFromException(e));
     } catch (Exception e) {
@@ -707,7 +1242,6 @@ public class DirectoryApi {
    */
   private HttpGet isValidIcdValueRequest(String url) {
     HttpGet request = new HttpGet(url);
-    request.setHeader("x-molgenis-token", token);
     request.setHeader("Accept", "application/json");
     request.setHeader("Content-type", "application/json");
     return request;
@@ -733,22 +1267,63 @@ public class DirectoryApi {
     return collectionApiUrl;
   }
 
-  private Either<OperationOutcome, ItemsDto<IdDto>> fetchIdItems(HttpGet request, String action) {
-    try (CloseableHttpResponse response = httpClient.execute(request)) {
+  /**
+   * Fetches a list of IDs, handing each ID to the consumer as it is read.
+   *
+   * @return the total number of items reported by the Directory, or an error
+   */
+  private Either<OperationOutcome, Integer> fetchIds(HttpGet request, String action, Consumer<String> consumer) {
+    try (CloseableHttpResponse response = execute(request)) {
       if (response.getStatusLine().getStatusCode() == 200) {
-        return Either.right(decodeIdItems(response));
+        return Either.right(readItems(response.getEntity(), IdDto.class, item -> consumer.accept(item.id)));
       } else {
         return Either.left(error(action, EntityUtils.toString(response.getEntity(), UTF_8)));
       }
-    } catch (IOException e) {
+    } catch (IOException | JsonParseException e) {
       return Either.left(error(action, e.getMessage()));
     }
   }
 
-  private ItemsDto<IdDto> decodeIdItems(CloseableHttpResponse response) throws IOException {
-    String payload = EntityUtils.toString(response.getEntity(), UTF_8);
-    return gson.fromJson(payload, new TypeToken<ItemsDto<IdDto>>() {
-    }.getType());
+  /**
+   * Reads a response of the form {"total": ..., "items": [...]} directly from the entity's
+   * stream. The items are decoded one at a time and handed to the consumer, so that neither
+   * the body nor the list of items is held in memory.
+   *
+   * @param entity the entity of the response
+   * @param itemType the type of the items, decoded with the type adapters registered with gson
+   * @param consumer receives the items
+   * @return the value of "total", or -1 if the response has none
+   * @throws JsonParseException if the body is not of the expected form
+   */
+  private <T> int readItems(HttpEntity entity, Class<T> itemType, Consumer<T> consumer) throws IOException {
+    try (JsonReader reader = jsonReader(entity)) {
+      int total = -1;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "total":
+            total = reader.nextInt();
+            break;
+          case "items":
+            reader.beginArray();
+            while (reader.hasNext())
+              consumer.accept(gson.fromJson(reader, itemType));
+            reader.endArray();
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      return total;
+    } catch (IllegalStateException e) {
+      // Thrown by JsonReader if the structure is not as expected.
+      throw new JsonParseException(e.getMessage(), e);
+    }
+  }
+
+  private JsonReader jsonReader(HttpEntity entity) throws IOException {
+    return gson.newJsonReader(new InputStreamReader(entity.getContent(), UTF_8));
   }
 
   static class LoginCredentials {
@@ -808,11 +1383,37 @@ public class DirectoryApi {
 
   private static class ItemsDto<T> {
 
+    int total;
     List<T> items;
   }
 
   private static class IdDto {
 
     String id;
+
+    /**
+     * Reads the "id" of an item and skips everything else.
+     */
+    static class Adapter extends TypeAdapter<IdDto> {
+
+      @Override
+      public void write(JsonWriter out, IdDto item) throws IOException {
+        out.beginObject().name("id").value(item.id).endObject();
+      }
+
+      @Override
+      public IdDto read(JsonReader in) throws IOException {
+        IdDto item = new IdDto();
+        in.beginObject();
+        while (in.hasNext()) {
+          if (in.nextName().equals("id"))
+            item.id = in.nextString();
+          else
+            in.skipValue();
+        }
+        in.endObject();
+        return item;
+      }
+    }
   }
 }
@@ -72,4 +72,9 @@ public class DirectoryService {
     OperationOutcome operationOutcome = api.updateStarModel(starModelInputData);
     return Collections.singletonList(operationOutcome);
   }
+
+  public List<OperationOutcome> replayJournal() {
+    OperationOutcome operationOutcome = api.replayJournal();
+    return Collections.singletonList(operationOutcome);
+  }
 }
@@ -0,0 +1,337 @@
+package de.samply.directory_sync.directory;
+
+import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.ERROR;
+import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.INFORMATION;
+
+import io.vavr.control.Either;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads a list of facts to the Directory in blocks, with several blocks in flight at the
+ * same time.
+ *
+ * The size of the blocks adapts to the Directory: it is doubled while blocks are answered
+ * quickly and halved when they take longer than the target latency. Blocks are never larger
+ * than the Directory allows, nor so large that their payload exceeds the payload limit. If a
+ * size estimator is set, blocks are cut before they are sent, so that even the first block
+ * stays below the limit. Otherwise the limit applies from the payload sizes of earlier blocks.
+ *
+ * No further blocks are started after the first failed block. Blocks already in flight are
+ * allowed to finish, and every block that the Directory accepted is recorded, so that the
+ * caller knows exactly which facts were committed.
+ *
+ * @param <T> the type of the facts
+ */
+class FactBlockUploader<T> {
+
+  public static final int DEFAULT_MAX_CONCURRENCY = 4;
+  public static final int DEFAULT_MIN_BLOCK_SIZE = 50;
+  public static final Duration DEFAULT_TARGET_LATENCY = Duration.ofSeconds(5);
+  public static final long DEFAULT_MAX_PAYLOAD_BYTES = 4 * 1024 * 1024;
+
+  private static final Logger logger = LoggerFactory.getLogger(FactBlockUploader.class);
+
+  /**
+   * Sends one block of facts to the Directory.
+   */
+  interface BlockSender<T> {
+
+    /**
+     * @param block the facts to send
+     * @return the size of the payload in bytes, or an error if the Directory rejected the block
+     */
+    Either<OperationOutcome, Long> send(List<T> block);
+  }
+
+  /**
+   * The range of facts, from start inclusive to end exclusive, sent in one block.
+   */
+  static class Block {
+
+    private final int start;
+    private final int end;
+
+    Block(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    int getStart() {
+      return start;
+    }
+
+    int getEnd() {
+      return end;
+    }
+
+    int size() {
+      return end - start;
+    }
+  }
+
+  private final BlockSender<T> sender;
+  private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+  private int minBlockSize = DEFAULT_MIN_BLOCK_SIZE;
+  private int maxBlockSize = DirectoryApi.FACT_BLOCK_SIZE;
+  private long targetLatencyNanos = DEFAULT_TARGET_LATENCY.toNanos();
+  private long maxPayloadBytes = DEFAULT_MAX_PAYLOAD_BYTES;
+  private ToLongFunction<T> sizeEstimator = null;
+  private LongSupplier nanoClock = System::nanoTime;
+  private Consumer<Block> commitListener = block -> {
+  };
+
+  // The state of the current upload, guarded by this.
+  private List<T> facts;
+  private int nextStart;
+  private int blockSize;
+  private OperationOutcome failure;
+  private final List<Block> committedBlocks = new ArrayList<>();
+
+  /**
+   * @param sender sends a single block, may be called from several threads at once
+   */
+  FactBlockUploader(BlockSender<T> sender) {
+    this.sender = sender;
+  }
+
+  /**
+   * @param maxConcurrency the maximum number of blocks in flight at the same time, at least 1
+   * @return this uploader
+   */
+  FactBlockUploader<T> setMaxConcurrency(int maxConcurrency) {
+    if (maxConcurrency < 1)
+      throw new IllegalArgumentException("maxConcurrency must be at least 1, got " + maxConcurrency);
+    this.maxConcurrency = maxConcurrency;
+    return this;
+  }
+
+  /**
+   * @param minBlockSize the smallest block size the uploader shrinks to, at least 1
+   * @param maxBlockSize the largest block size, e.g. the maximum accepted by the Directory
+   * @return this uploader
+   */
+  FactBlockUploader<T> setBlockSizeRange(int minBlockSize, int maxBlockSize) {
+    if (minBlockSize < 1 || maxBlockSize < minBlockSize)
+      throw new IllegalArgumentException("invalid block size range " + minBlockSize + " to " + maxBlockSize);
+    this.minBlockSize = minBlockSize;
+    this.maxBlockSize = maxBlockSize;
+    return this;
+  }
+
+  /**
+   * @param targetLatency blocks taking longer than this are halved
+   * @return this uploader
+   */
+  FactBlockUploader<T> setTargetLatency(Duration targetLatency) {
+    this.targetLatencyNanos = targetLatency.toNanos();
+    return this;
+  }
+
+  /**
+   * @param maxPayloadBytes the block size is limited so that payloads stay below this size
+   * @return this uploader
+   */
+  FactBlockUploader<T> setMaxPayloadBytes(long maxPayloadBytes) {
+    this.maxPayloadBytes = maxPayloadBytes;
+    return this;
+  }
+
+  /**
+   * @param sizeEstimator estimates the number of bytes a fact adds to the payload, or null to
+   *                      only limit the payload size by the sizes of earlier blocks
+   * @return this uploader
+   */
+  FactBlockUploader<T> setSizeEstimator(ToLongFunction<T> sizeEstimator) {
+    this.sizeEstimator = sizeEstimator;
+    return this;
+  }
+
+  /**
+   * @param nanoClock the clock used to measure the latency of blocks, in nanoseconds
+   * @return this uploader
+   */
+  FactBlockUploader<T> setNanoClock(LongSupplier nanoClock) {
+    this.nanoClock = nanoClock;
+    return this;
+  }
+
+  /**
+   * @param commitListener called with every block that the Directory accepted, as soon as it
+   *                       is accepted, may be called from several threads at once
+   * @return this uploader
+   */
+  FactBlockUploader<T> setCommitListener(Consumer<Block> commitListener) {
+    this.commitListener = commitListener;
+    return this;
+  }
+
+  /**
+   * Uploads the facts. The first blocks are as large as allowed, but small enough that every
+   * worker gets one.
+   *
+   * @param facts the facts to upload
+   * @return an empty OperationOutcome if all facts were committed, otherwise the error of the
+   * first failed block, together with the number of facts committed
+   */
+  OperationOutcome upload(List<T> facts) {
+    synchronized (this) {
+      this.facts = facts;
+      nextStart = 0;
+      blockSize = Math.max(minBlockSize, Math.min(maxBlockSize, (facts.size() + maxConcurrency - 1) / maxConcurrency));
+      failure = null;
+      committedBlocks.clear();
+    }
+
+    int workerCount = Math.min(maxConcurrency, (facts.size() + minBlockSize - 1) / minBlockSize);
+    if (workerCount <= 1)
+      uploadBlocks();
+    else
+      runWorkers(workerCount);
+
+    synchronized (this) {
+      if (failure == null)
+        return new OperationOutcome();
+      int committedFacts = getCommittedFactCount();
+      logger.warn("upload: stopped after an error, " + committedFacts + " of " + facts.size() + " facts were committed");
+      OperationOutcome outcome = failure.copy();
+      outcome.addIssue().setSeverity(INFORMATION).setDiagnostics(committedFacts + " of " + facts.size() + " facts were committed");
+      return outcome;
+    }
+  }
+
+  /**
+   * @return the blocks committed by the last upload, ordered by their start
+   */
+  synchronized List<Block> getCommittedBlocks() {
+    List<Block> blocks = new ArrayList<>(committedBlocks);
+    blocks.sort(Comparator.comparingInt(Block::getStart));
+    return blocks;
+  }
+
+  /**
+   * @return the number of facts committed by the last upload
+   */
+  synchronized int getCommittedFactCount() {
+    return committedBlocks.stream().mapToInt(Block::size).sum();
+  }
+
+  /**
+   * @return the block size that the next block would have
+   */
+  synchronized int getBlockSize() {
+    return blockSize;
+  }
+
+  private void runWorkers(int workerCount) {
+    ExecutorService executor = Executors.newFixedThreadPool(workerCount, runnable -> {
+      Thread thread = new Thread(runnable, "fact-block-uploader");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<?>> workers = new ArrayList<>(workerCount);
+      for (int i = 0; i < workerCount; i++)
+        workers.add(executor.submit(this::uploadBlocks));
+      for (Future<?> worker : workers)
+        worker.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      fail(createOutcomeWithError("interrupted while uploading facts"));
+    } catch (ExecutionException e) {
+      // uploadBlocks() does not throw, so this should not happen.
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Takes blocks and sends them until there are no facts left or a block has failed.
+   */
+  private void uploadBlocks() {
+    while (true) {
+      Block block;
+      synchronized (this) {
+        if (failure != null || nextStart >= facts.size())
+          return;
+        block = new Block(nextStart, limitByEstimatedPayload(nextStart, Math.min(nextStart + blockSize, facts.size())));
+        nextStart = block.getEnd();
+      }
+
+      long startNanos = nanoClock.getAsLong();
+      Either<OperationOutcome, Long> result;
+      try {
+        result = sender.send(facts.subList(block.getStart(), block.getEnd()));
+      } catch (RuntimeException e) {
+        result = Either.left(createOutcomeWithError(e.getMessage()));
+      }
+      long latencyNanos = nanoClock.getAsLong() - startNanos;
+
+      if (result.isLeft()) {
+        fail(result.getLeft());
+        return;
+      }
+      commit(block, latencyNanos, result.get());
+      commitListener.accept(block);
+    }
+  }
+
+  /**
+   * Moves the end of a block forward so that the estimated payload stays below the payload
+   * limit. A block always keeps at least one fact.
+   */
+  private int limitByEstimatedPayload(int start, int end) {
+    if (sizeEstimator == null)
+      return end;
+    long payloadBytes = sizeEstimator.applyAsLong(facts.get(start));
+    for (int i = start + 1; i < end; i++) {
+      payloadBytes += sizeEstimator.applyAsLong(facts.get(i));
+      if (payloadBytes > maxPayloadBytes)
+        return i;
+    }
+    return end;
+  }
+
+  private synchronized void fail(OperationOutcome outcome) {
+    if (failure == null)
+      failure = outcome;
+  }
+
+  private synchronized void commit(Block block, long latencyNanos, long payloadBytes) {
+    committedBlocks.add(block);
+
+    int newBlockSize = blockSize;
+    if (latencyNanos > targetLatencyNanos)
+      newBlockSize = blockSize / 2;
+    else if (latencyNanos < targetLatencyNanos / 2 && block.size() >= blockSize)
+      newBlockSize = blockSize * 2;
+    if (payloadBytes > 0) {
+      long maxByPayload = maxPayloadBytes * block.size() / payloadBytes;
+      newBlockSize = (int) Math.min(newBlockSize, maxByPayload);
+    }
+    newBlockSize = Math.max(minBlockSize, Math.min(maxBlockSize, newBlockSize));
+    if (newBlockSize != blockSize)
+      logger.debug("commit: block of " + block.size() + " facts took " + latencyNanos / 1_000_000 + " ms and "
+          + payloadBytes + " bytes, block size is now " + newBlockSize);
+    blockSize = newBlockSize;
+  }
+
+  private static OperationOutcome createOutcomeWithError(String message) {
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue().setSeverity(ERROR).setDiagnostics(message);
+    return outcome;
+  }
+}
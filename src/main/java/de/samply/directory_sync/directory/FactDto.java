@@ -0,0 +1,175 @@
+package de.samply.directory_sync.directory;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/**
+ * A fact as returned by the Directory's facts endpoint.
+ *
+ * The Directory returns references, e.g. to the collection or the sex, as objects with an ID,
+ * and counts as JSON numbers. The {@link Adapter} reads references as their ID and counts as
+ * plain longs, so that no intermediate maps or Doubles are created.
+ */
+class FactDto {
+
+  String id;
+  String collection;
+  String sex;
+  String disease;
+  String ageRange;
+  String sampleType;
+  String lastUpdate;
+  long numberOfDonors = -1;
+  long numberOfSamples = -1;
+
+  /**
+   * @param attribute the name of an attribute of new facts, e.g. "age_range"
+   * @return the value of the attribute in the form used by new facts, or null if it is missing or unknown
+   */
+  String get(String attribute) {
+    switch (attribute) {
+      case "id":
+        return id;
+      case "collection":
+        return collection;
+      case "sex":
+        return sex;
+      case "disease":
+        return disease;
+      case "age_range":
+        return ageRange;
+      case "sample_type":
+        return sampleType;
+      case "last_update":
+        return lastUpdate;
+      case "number_of_donors":
+        return numberOfDonors < 0 ? null : Long.toString(numberOfDonors);
+      case "number_of_samples":
+        return numberOfSamples < 0 ? null : Long.toString(numberOfSamples);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Reads facts. Attributes that are not needed, such as "_href", are skipped. Facts are
+   * written in the form of new facts, with references as plain IDs, so that what is written
+   * can be read back.
+   */
+  static class Adapter extends TypeAdapter<FactDto> {
+
+    @Override
+    public void write(JsonWriter out, FactDto fact) throws IOException {
+      if (fact == null) {
+        out.nullValue();
+        return;
+      }
+
+      out.beginObject();
+      writeString(out, "id", fact.id);
+      writeString(out, "collection", fact.collection);
+      writeString(out, "sex", fact.sex);
+      writeString(out, "disease", fact.disease);
+      writeString(out, "age_range", fact.ageRange);
+      writeString(out, "sample_type", fact.sampleType);
+      writeString(out, "last_update", fact.lastUpdate);
+      writeCount(out, "number_of_donors", fact.numberOfDonors);
+      writeCount(out, "number_of_samples", fact.numberOfSamples);
+      out.endObject();
+    }
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+      if (value != null)
+        out.name(name).value(value);
+    }
+
+    private static void writeCount(JsonWriter out, String name, long count) throws IOException {
+      if (count >= 0)
+        out.name(name).value(count);
+    }
+
+    @Override
+    public FactDto read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+
+      FactDto fact = new FactDto();
+      in.beginObject();
+      while (in.hasNext()) {
+        switch (in.nextName()) {
+          case "id":
+            fact.id = readString(in);
+            break;
+          case "collection":
+            fact.collection = readReference(in);
+            break;
+          case "sex":
+            fact.sex = readReference(in);
+            break;
+          case "disease":
+            fact.disease = readReference(in);
+            break;
+          case "age_range":
+            fact.ageRange = readReference(in);
+            break;
+          case "sample_type":
+            fact.sampleType = readReference(in);
+            break;
+          case "last_update":
+            fact.lastUpdate = readString(in);
+            break;
+          case "number_of_donors":
+            fact.numberOfDonors = readCount(in);
+            break;
+          case "number_of_samples":
+            fact.numberOfSamples = readCount(in);
+            break;
+          default:
+            in.skipValue();
+        }
+      }
+      in.endObject();
+      return fact;
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+      return in.nextString();
+    }
+
+    /**
+     * Reads a reference, either an object with an "id" or the ID itself.
+     */
+    private static String readReference(JsonReader in) throws IOException {
+      if (in.peek() != JsonToken.BEGIN_OBJECT)
+        return readString(in);
+
+      String id = null;
+      in.beginObject();
+      while (in.hasNext()) {
+        if (in.nextName().equals("id"))
+          id = readString(in);
+        else
+          in.skipValue();
+      }
+      in.endObject();
+      return id;
+    }
+
+    private static long readCount(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return -1;
+      }
+      return in.nextLong();
+    }
+  }
+}
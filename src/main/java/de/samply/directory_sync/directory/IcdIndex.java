@@ -0,0 +1,122 @@
+package de.samply.directory_sync.directory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The IDs of all diagnoses known to the Directory (eu_bbmri_eric_disease_types), e.g.
+ * "urn:miriam:icd:C18.0", so that diagnoses can be validated without asking the Directory
+ * about each of them.
+ *
+ * The index can be saved to a file, one ID per line, and read back by later runs for as long
+ * as the file is younger than a given age.
+ */
+public class IcdIndex {
+
+  private static final Logger logger = LoggerFactory.getLogger(IcdIndex.class);
+
+  private final Set<String> ids;
+  private final Instant loadedAt;
+
+  /**
+   * @param ids the IDs of the diagnoses known to the Directory
+   * @param loadedAt when the IDs were fetched from the Directory
+   */
+  public IcdIndex(Collection<String> ids, Instant loadedAt) {
+    this.ids = new HashSet<>(ids);
+    this.loadedAt = loadedAt;
+  }
+
+  /**
+   * @param diagnosis a diagnosis, e.g. "urn:miriam:icd:C18.0", may be null
+   * @return true if the Directory knows the diagnosis
+   */
+  public boolean contains(String diagnosis) {
+    return diagnosis != null && ids.contains(diagnosis);
+  }
+
+  /**
+   * Corrects a diagnosis in the same way as DirectoryApi.collectDiagnosisCorrections: a
+   * known diagnosis is kept, otherwise its category (the part before the period) is used if
+   * the Directory knows that.
+   *
+   * @param diagnosis a diagnosis, e.g. "urn:miriam:icd:C18.9", may be null
+   * @return the diagnosis, its category, or null if neither is known
+   */
+  public String correct(String diagnosis) {
+    if (diagnosis == null)
+      return null;
+    if (contains(diagnosis))
+      return diagnosis;
+    String diagnosisCategory = diagnosis.split("\\.")[0];
+    return contains(diagnosisCategory) ? diagnosisCategory : null;
+  }
+
+  public int size() {
+    return ids.size();
+  }
+
+  /**
+   * @param maxAge the refresh interval
+   * @param now the current time
+   * @return true if the index is older than maxAge and should be fetched again
+   */
+  public boolean isOlderThan(Duration maxAge, Instant now) {
+    return !loadedAt.plus(maxAge).isAfter(now);
+  }
+
+  /**
+   * Writes the index to a temporary file next to the target, which then replaces the target.
+   * Readers therefore never see a partly written index.
+   *
+   * @param file the file to write
+   * @throws IOException if the file cannot be written
+   */
+  public void write(Path file) throws IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp, UTF_8)) {
+      for (String id : ids) {
+        writer.write(id);
+        writer.newLine();
+      }
+    }
+    Files.setLastModifiedTime(tmp, FileTime.from(loadedAt));
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads an index written by {@link #write(Path)}. The time of last modification of the file
+   * is taken as the time the index was fetched.
+   *
+   * @param file the file to read
+   * @return the index, or empty if there is no file or it cannot be read
+   */
+  public static Optional<IcdIndex> read(Path file) {
+    if (!Files.isRegularFile(file))
+      return Optional.empty();
+    try (Stream<String> lines = Files.lines(file, UTF_8)) {
+      Instant loadedAt = Files.getLastModifiedTime(file).toInstant();
+      Set<String> ids = new HashSet<>();
+      lines.filter(line -> !line.isEmpty()).forEach(ids::add);
+      return Optional.of(new IcdIndex(ids, loadedAt));
+    } catch (IOException e) {
+      logger.warn("read: could not read ICD index from " + file + ": " + e.getMessage());
+      return Optional.empty();
+    }
+  }
+}
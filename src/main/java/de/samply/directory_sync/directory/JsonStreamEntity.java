@@ -0,0 +1,130 @@
+package de.samply.directory_sync.directory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * A request body of the form {"entities": [...]}, as expected by the Directory, that is
+ * written to the connection item by item instead of being serialized to a String first.
+ *
+ * The length of the body is not known in advance, so it is sent with chunked transfer
+ * encoding. Optionally, the body is gzip compressed. The entity can be written more than
+ * once, e.g. when a request is retried.
+ */
+class JsonStreamEntity extends AbstractHttpEntity {
+
+  private final Gson gson;
+  private final String key;
+  private final List<?> items;
+  private final boolean gzip;
+  private volatile long bytesWritten = -1;
+
+  /**
+   * @param gson serializes the items
+   * @param key the key of the list, e.g. "entities" or "entityIds"
+   * @param items the items of the list
+   * @param gzip whether to compress the body
+   */
+  JsonStreamEntity(Gson gson, String key, List<?> items, boolean gzip) {
+    this.gson = gson;
+    this.key = key;
+    this.items = items;
+    this.gzip = gzip;
+    setContentType(ContentType.APPLICATION_JSON.toString());
+    if (gzip)
+      setContentEncoding("gzip");
+    setChunked(true);
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    return -1;
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+
+  /**
+   * Writes the body to a buffer. Only meant for logging and tests, requests use
+   * {@link #writeTo(OutputStream)}.
+   */
+  @Override
+  public InputStream getContent() throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    writeTo(buffer);
+    return new ByteArrayInputStream(buffer.toByteArray());
+  }
+
+  @Override
+  public void writeTo(OutputStream outStream) throws IOException {
+    CountingOutputStream countingStream = new CountingOutputStream(outStream);
+    GZIPOutputStream gzipStream = gzip ? new GZIPOutputStream(countingStream) : null;
+    // The writer is not closed, as that would close the connection's stream.
+    JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(gzip ? gzipStream : countingStream, UTF_8));
+    writer.beginObject();
+    writer.name(key);
+    writer.beginArray();
+    for (Object item : items) {
+      if (item == null)
+        writer.nullValue();
+      else
+        gson.toJson(item, item.getClass(), writer);
+    }
+    writer.endArray();
+    writer.endObject();
+    writer.flush();
+    if (gzipStream != null)
+      gzipStream.finish();
+    countingStream.flush();
+    bytesWritten = countingStream.count;
+  }
+
+  /**
+   * @return the number of bytes, after compression, written by the last call of
+   * {@link #writeTo(OutputStream)}, or -1 if the entity has not been written yet
+   */
+  long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+
+    private long count = 0;
+
+    private CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package de.samply.directory_sync.directory;
+
+import java.io.IOException;
+
+/**
+ * Holds the token used to authenticate requests to the Directory, shared by all threads
+ * sending requests through the same DirectoryApi.
+ *
+ * The token is obtained by logging in when it is first needed. When the Directory rejects a
+ * token, the caller asks for a fresh one with {@link #refresh(String)}. Only one login is in
+ * flight at any time: callers that ask for a refresh while another caller is logging in wait
+ * for that login and then use its token, instead of logging in again.
+ */
+class TokenHolder {
+
+  /**
+   * Logs in to the Directory.
+   */
+  interface Login {
+
+    /**
+     * @return a new token, not null
+     * @throws IOException if the login fails
+     */
+    String login() throws IOException;
+  }
+
+  private final Login login;
+  private final Object loginLock = new Object();
+  private volatile String token;
+
+  /**
+   * @param token the current token, or null to log in on first use
+   * @param login logs in to get a new token
+   */
+  TokenHolder(String token, Login login) {
+    this.token = token;
+    this.login = login;
+  }
+
+  /**
+   * @return the current token, logging in first if there is none
+   * @throws IOException if the login fails
+   */
+  String get() throws IOException {
+    String currentToken = token;
+    return currentToken != null ? currentToken : refresh(null);
+  }
+
+  /**
+   * Replaces a token that the Directory rejected. If another caller has already replaced it,
+   * its token is returned without logging in again.
+   *
+   * @param rejectedToken the token that the Directory rejected, or null
+   * @return the new token
+   * @throws IOException if the login fails
+   */
+  String refresh(String rejectedToken) throws IOException {
+    synchronized (loginLock) {
+      String currentToken = token;
+      if (currentToken != null && !currentToken.equals(rejectedToken))
+        return currentToken;
+      String newToken = login.login();
+      if (newToken == null)
+        throw new IOException("the Directory returned no token");
+      token = newToken;
+      return newToken;
+    }
+  }
+}
@@ -0,0 +1,315 @@
+package de.samply.directory_sync.directory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A write-ahead journal of the requests that change the Directory, kept in a local file.
+ *
+ * Every request body is appended to the journal and synced to disk before the request is
+ * sent, and marked as committed once the Directory has acknowledged it. If the process dies
+ * in between, the next process finds the uncommitted entries in the journal and can send
+ * them again (see {@link DirectoryApi#replayJournal()}) instead of recomputing everything
+ * from the FHIR store.
+ *
+ * The journal is a file with one JSON object per line:
+ * {"type":"write","seq":1,"method":"POST","url":"...","key":"entities","items":[...]}
+ * {"type":"commit","seq":1}
+ * {"type":"abandon","seq":2}
+ *
+ * Once all entries are committed or abandoned, the file is truncated, so it only ever holds
+ * the requests of the operation in progress.
+ */
+public class WriteJournal implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(WriteJournal.class);
+
+  /**
+   * A request recorded in the journal.
+   */
+  public static class Entry {
+
+    private final long seq;
+    private final String method;
+    private final String url;
+    private final String key;
+    private final List<JsonElement> items;
+
+    Entry(long seq, String method, String url, String key, List<JsonElement> items) {
+      this.seq = seq;
+      this.method = method;
+      this.url = url;
+      this.key = key;
+      this.items = items;
+    }
+
+    public long getSeq() {
+      return seq;
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    /**
+     * @return the key under which the items are sent, e.g. "entities"
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * @return the items as they were sent, numbers keep their original form
+     */
+    public List<JsonElement> getItems() {
+      return items;
+    }
+  }
+
+  private final Path file;
+  private final Gson gson = new Gson();
+  private FileOutputStream out;
+  private Writer writer;
+  private long nextSeq;
+  // The entries that are neither committed nor abandoned.
+  private final Set<Long> openSeqs = new HashSet<>();
+  // The open entries left by an earlier process, in the order they were written.
+  private final List<Entry> pendingEntries = new ArrayList<>();
+
+  private WriteJournal(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Opens the journal, creating the file if necessary. Entries that an earlier process left
+   * uncommitted become the pending entries.
+   *
+   * @param file the journal file
+   * @return the journal
+   * @throws IOException if the file cannot be read or opened for writing
+   */
+  public static WriteJournal open(Path file) throws IOException {
+    WriteJournal journal = new WriteJournal(file);
+    journal.read();
+    journal.openWriter(true);
+    if (!journal.pendingEntries.isEmpty())
+      logger.warn("open: " + file + " holds " + journal.pendingEntries.size() + " uncommitted Directory writes");
+    return journal;
+  }
+
+  /**
+   * @return the entries that an earlier process left uncommitted, in the order they were written
+   */
+  public synchronized List<Entry> getPendingEntries() {
+    return Collections.unmodifiableList(new ArrayList<>(pendingEntries));
+  }
+
+  /**
+   * Records a request before it is sent. Pending entries of an earlier process that have not
+   * been replayed are abandoned, as the new requests supersede them.
+   *
+   * @param method the HTTP method
+   * @param url the URL of the request
+   * @param key the key under which the items are sent, e.g. "entities"
+   * @param items the items
+   * @return the sequence number of the entry, to be passed to {@link #commit(long)}
+   * @throws IOException if the entry cannot be written
+   */
+  public synchronized long append(String method, String url, String key, List<?> items) throws IOException {
+    return appendAll(method, url, key, Collections.singletonList(items)).get(0);
+  }
+
+  /**
+   * Records several requests with the same method and URL before the first of them is sent,
+   * with a single sync to disk. Pending entries of an earlier process that have not been
+   * replayed are abandoned, as the new requests supersede them.
+   *
+   * @param method the HTTP method
+   * @param url the URL of the requests
+   * @param key the key under which the items are sent, e.g. "entities"
+   * @param itemLists the items of each request
+   * @return the sequence numbers of the entries, in the order of the item lists
+   * @throws IOException if the entries cannot be written
+   */
+  public synchronized List<Long> appendAll(String method, String url, String key, List<? extends List<?>> itemLists)
+      throws IOException {
+    if (!pendingEntries.isEmpty()) {
+      logger.warn("appendAll: abandoning " + pendingEntries.size() + " uncommitted writes of an earlier run");
+      abandonPending();
+    }
+
+    List<Long> seqs = new ArrayList<>(itemLists.size());
+    for (List<?> items : itemLists) {
+      long seq = nextSeq++;
+      JsonWriter jsonWriter = gson.newJsonWriter(writer);
+      jsonWriter.beginObject();
+      jsonWriter.name("type").value("write");
+      jsonWriter.name("seq").value(seq);
+      jsonWriter.name("method").value(method);
+      jsonWriter.name("url").value(url);
+      jsonWriter.name("key").value(key);
+      jsonWriter.name("items");
+      jsonWriter.beginArray();
+      for (Object item : items) {
+        if (item == null)
+          jsonWriter.nullValue();
+        else
+          gson.toJson(item, item.getClass(), jsonWriter);
+      }
+      jsonWriter.endArray();
+      jsonWriter.endObject();
+      writer.write('\n');
+      seqs.add(seq);
+    }
+    writer.flush();
+    // The entries must be on disk before the first request is sent.
+    out.getFD().sync();
+    openSeqs.addAll(seqs);
+    return seqs;
+  }
+
+  /**
+   * Marks an entry as acknowledged by the Directory. The marker is not synced to disk: if it
+   * gets lost, the request is merely sent again on replay.
+   *
+   * @param seq the sequence number returned by {@link #append}
+   * @throws IOException if the marker cannot be written
+   */
+  public synchronized void commit(long seq) throws IOException {
+    writeMarker("commit", seq);
+    openSeqs.remove(seq);
+    pendingEntries.removeIf(entry -> entry.getSeq() == seq);
+    truncateIfDone();
+  }
+
+  /**
+   * Marks an entry as rejected by the Directory, so that it is never replayed. Like a commit
+   * marker, the abandon marker is not synced to disk.
+   *
+   * @param seq the sequence number returned by {@link #append}
+   * @throws IOException if the marker cannot be written
+   */
+  public synchronized void abandon(long seq) throws IOException {
+    writeMarker("abandon", seq);
+    openSeqs.remove(seq);
+    pendingEntries.removeIf(entry -> entry.getSeq() == seq);
+    truncateIfDone();
+  }
+
+  /**
+   * Abandons the pending entries of an earlier process, so that they are never replayed.
+   *
+   * @throws IOException if the markers cannot be written
+   */
+  public synchronized void abandonPending() throws IOException {
+    for (Entry entry : pendingEntries) {
+      writeMarker("abandon", entry.getSeq());
+      openSeqs.remove(entry.getSeq());
+    }
+    pendingEntries.clear();
+    truncateIfDone();
+  }
+
+  /**
+   * Abandons all entries that are neither committed nor abandoned: the pending entries of an
+   * earlier process, and the entries of writes of this process whose outcome was never
+   * recorded. Called before a new set of writes, which supersedes them.
+   *
+   * @throws IOException if the markers cannot be written
+   */
+  public synchronized void abandonOpen() throws IOException {
+    if (!openSeqs.isEmpty())
+      logger.warn("abandonOpen: abandoning " + openSeqs.size() + " uncommitted writes");
+    for (long seq : openSeqs)
+      writeMarker("abandon", seq);
+    openSeqs.clear();
+    pendingEntries.clear();
+    truncateIfDone();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    writer.close();
+  }
+
+  private void writeMarker(String type, long seq) throws IOException {
+    writer.write("{\"type\":\"" + type + "\",\"seq\":" + seq + "}\n");
+    writer.flush();
+  }
+
+  private void truncateIfDone() throws IOException {
+    if (!openSeqs.isEmpty())
+      return;
+    writer.close();
+    openWriter(false);
+  }
+
+  private void openWriter(boolean append) throws IOException {
+    out = new FileOutputStream(file.toFile(), append);
+    writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+  }
+
+  private void read() throws IOException {
+    if (!Files.exists(file))
+      return;
+
+    Map<Long, Entry> entries = new LinkedHashMap<>();
+    long maxSeq = -1;
+    try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty())
+          continue;
+        JsonObject object;
+        try {
+          object = JsonParser.parseString(line).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+          // A line cut short by a crash. Its request was never sent.
+          logger.warn("read: skipping incomplete entry in " + file);
+          continue;
+        }
+        long seq = object.get("seq").getAsLong();
+        maxSeq = Math.max(maxSeq, seq);
+        if (object.get("type").getAsString().equals("write")) {
+          List<JsonElement> items = new ArrayList<>();
+          object.getAsJsonArray("items").forEach(items::add);
+          entries.put(seq, new Entry(seq, object.get("method").getAsString(), object.get("url").getAsString(),
+              object.get("key").getAsString(), items));
+        } else
+          entries.remove(seq);
+      }
+    }
+
+    nextSeq = maxSeq + 1;
+    pendingEntries.addAll(entries.values());
+    entries.keySet().forEach(openSeqs::add);
+  }
+}
@@ -0,0 +1,129 @@
+package de.samply.directory_sync.directory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The writes of one update of the Directory, recorded in the {@link WriteJournal} before the
+ * first of them is sent. If the process dies at any point of the update, the journal holds
+ * every write that has not been acknowledged, including those that were never sent.
+ *
+ * The items of a write are split into journal entries of a fixed size. An entry is committed
+ * once the Directory has acknowledged all of its items, in whatever blocks they were sent.
+ * When a write fails, whether the Directory rejected it or its outcome is unknown, the whole
+ * plan is abandoned: the next update recomputes the writes anyway, and replaying stale ones
+ * would overwrite newer data. Only a process that dies leaves its plan open for replay. As a
+ * safety net, a new plan abandons whatever entries earlier plans left open.
+ *
+ * Without a journal, a plan records nothing.
+ */
+class WritePlan {
+
+  private static final Logger logger = LoggerFactory.getLogger(WritePlan.class);
+
+  /**
+   * The journal entries of one write, e.g. the inserts of the star model.
+   */
+  class Part {
+
+    private final int entrySize;
+    private final long[] seqs;
+    private final int[] remaining;
+
+    private Part(int entrySize, List<Long> seqs, int itemCount) {
+      this.entrySize = entrySize;
+      this.seqs = new long[seqs.size()];
+      this.remaining = new int[seqs.size()];
+      for (int i = 0; i < seqs.size(); i++) {
+        this.seqs[i] = seqs.get(i);
+        this.remaining[i] = Math.min(entrySize, itemCount - i * entrySize);
+      }
+    }
+
+    /**
+     * Records that the Directory has acknowledged a range of items, and commits the entries
+     * whose items have all been acknowledged.
+     *
+     * @param start the index of the first acknowledged item
+     * @param end the index after the last acknowledged item
+     */
+    void acknowledge(int start, int end) {
+      synchronized (WritePlan.this) {
+        for (int i = start / entrySize; i < seqs.length && i * entrySize < end; i++) {
+          remaining[i] -= Math.min(end, (i + 1) * entrySize) - Math.max(start, i * entrySize);
+          if (remaining[i] == 0 && openSeqs.remove(seqs[i]))
+            close(seqs[i], true);
+        }
+      }
+    }
+  }
+
+  private final WriteJournal journal;
+  private boolean started = false;
+  // The entries that are neither committed nor abandoned.
+  private final Set<Long> openSeqs = new LinkedHashSet<>();
+
+  /**
+   * @param journal the journal to record the writes in, or null to record nothing
+   */
+  WritePlan(WriteJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Records a write in the journal. All writes of the plan must be added before the first
+   * request is sent.
+   *
+   * @param method the HTTP method
+   * @param url the URL of the write
+   * @param key the key under which the items are sent, e.g. "entities"
+   * @param items the items of the write
+   * @param entrySize the maximum number of items in one journal entry
+   * @return the part of the plan that tracks the write
+   * @throws IOException if the journal cannot be written
+   */
+  synchronized Part add(String method, String url, String key, List<?> items, int entrySize) throws IOException {
+    if (journal == null || items.isEmpty())
+      return new Part(Math.max(1, entrySize), new ArrayList<>(), 0);
+
+    if (!started) {
+      journal.abandonOpen();
+      started = true;
+    }
+    List<List<?>> entries = new ArrayList<>();
+    for (int i = 0; i < items.size(); i += entrySize)
+      entries.add(items.subList(i, Math.min(i + entrySize, items.size())));
+    List<Long> seqs = journal.appendAll(method, url, key, entries);
+    openSeqs.addAll(seqs);
+    return new Part(entrySize, seqs, items.size());
+  }
+
+  /**
+   * Abandons all entries of the plan that have not been committed, after one of its writes
+   * failed.
+   */
+  synchronized void abandon() {
+    if (!openSeqs.isEmpty())
+      logger.warn("abandon: abandoning " + openSeqs.size() + " journaled writes after a failed write");
+    for (long seq : openSeqs)
+      close(seq, false);
+    openSeqs.clear();
+  }
+
+  private void close(long seq, boolean committed) {
+    try {
+      if (committed)
+        journal.commit(seq);
+      else
+        journal.abandon(seq);
+    } catch (IOException e) {
+      // The write will merely be replayed again.
+      logger.warn("close: could not mark write " + seq + " as " + (committed ? "committed" : "abandoned") + ": " + e.getMessage());
+    }
+  }
+}
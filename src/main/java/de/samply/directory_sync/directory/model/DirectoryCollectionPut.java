@@ -136,7 +136,10 @@ public class DirectoryCollectionPut extends HashMap {
         return countryCode;
     }
 
-    private List<Entity> getEntities() {
+    /**
+     * @return The collections to be updated, the value of the "entities" key.
+     */
+    public List<Entity> getEntities() {
         return (List<Entity>) get("entities");
     }
 
@@ -4,32 +4,48 @@ import static ca.uhn.fhir.rest.api.PreferReturnEnum.OPERATION_OUTCOME;
 import static ca.uhn.fhir.rest.api.SummaryEnum.COUNT;
 import static java.util.Collections.emptyList;
 import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.ERROR;
+import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.INFORMATION;
 
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.SummaryEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.gclient.DateClientParam;
 import ca.uhn.fhir.rest.gclient.ICreateTyped;
 import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.gclient.IReadExecutable;
 import ca.uhn.fhir.rest.gclient.IUpdateExecutable;
 import ca.uhn.fhir.rest.gclient.UriClientParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import de.samply.directory_sync.BoundedExecutor;
 import de.samply.directory_sync.Util;
 import de.samply.directory_sync.directory.model.BbmriEricId;
 import io.vavr.control.Either;
 
 import java.util.AbstractMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.function.BinaryOperator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.HashSet;
 
 import org.hl7.fhir.instance.model.api.IBaseBundle;
@@ -66,11 +82,61 @@ public class FhirApi {
   private static final String COLLECTION_PROFILE_URI = "https://fhir.bbmri.de/StructureDefinition/Collection";
   private static final String SAMPLE_DIAGNOSIS_URI = "https://fhir.bbmri.de/StructureDefinition/SampleDiagnosis";
   private static final String DEFAULT_COLLECTION_ID = "DEFAULT";
+  private static final String ICD_10_SYSTEM = "http://hl7.org/fhir/sid/icd-10";
+  private static final int DEFAULT_PAGE_SIZE = 500;
+  private static final int DEFAULT_PAGE_LOOK_AHEAD = 2;
+  // Number of logical IDs per search when loading Organizations by ID, keeping the URL short.
+  private static final int COLLECTION_CHUNK_SIZE = 100;
+  private static final String SUBSETTED_SYSTEM = "http://terminology.hl7.org/CodeSystem/v3-ObservationValue";
+  private static final String SUBSETTED_CODE = "SUBSETTED";
+
+  // Elements read from Specimens (type, extensions, subject, collection date) and from
+  // their included donors (gender, birthDate). Servers differ in whether _elements also
+  // applies to included resources, so the Patient elements are requested here as well.
+  private static final String[] SPECIMEN_ELEMENTS = {"type", "extension", "subject", "collection", "gender", "birthDate"};
+  private static final String[] PATIENT_ELEMENTS = {"gender", "birthDate"};
+  private static final String[] CONDITION_ELEMENTS = {"code", "subject"};
 
   private static final Logger logger = LoggerFactory.getLogger(FhirApi.class);
 
-  Map<String, List<Specimen>> specimensByCollection = null;
-  Map<String, List<Patient>> patientsByCollection = null;
+  // Keys of the results of expensive scans in the resource cache.
+  static final String SPECIMEN_SCAN_KEY = "specimensByCollection";
+  static final String PATIENTS_BY_COLLECTION_KEY = "patientsByCollection";
+  static final String CONDITIONS_PRESENT_KEY = "conditionsPresentInFhirStore";
+  static final String CONDITION_CODE_INDEX_KEY = "conditionCodesByPatientId";
+  static final String CONDITION_CODE_INDEX_FAILED_KEY = "conditionCodeIndexFailed";
+
+  // Holds the results of expensive scans, so that they can be shared by several sync operations.
+  FhirResourceCache cache = new FhirResourceCache();
+
+  // If true, specimens are streamed page by page to consumers instead of being cached.
+  private boolean streamingMode = false;
+
+  // If set, specimens, donors, conditions and collections are ingested via a Bulk Data
+  // export instead of paged searches.
+  private FhirBulkExport bulkExport = null;
+
+  // If set, only the specimens of the collections affected by the changes seen via the
+  // FHIR change feed are scanned.
+  private FhirChangeFeed changeFeed = null;
+
+  // Collections affected by the changes pulled from the change feed, null if not pulled yet.
+  // If empty and replayAllCollections is set, all collections are affected.
+  private Set<String> changedCollectionIds = null;
+  private boolean replayAllCollections = false;
+
+  // If set, full specimen scans are saved here and reused by later runs, as long as the
+  // FHIR store has not changed in the meantime.
+  private SpecimenSnapshot snapshot = null;
+
+  // Maps the logical IDs of collection Organizations onto their Directory collection IDs.
+  // Filled once per specimen scan, so that the Custodian of each Specimen can be resolved
+  // without a round trip to the FHIR server.
+  Map<String, String> collectionIdsByLocalId = null;
+
+  // Patients that donated the scanned specimens, keyed by logical ID. These are
+  // delivered in the same bundles as the specimens, via _include=Specimen:subject.
+  final Map<String, Patient> patientsById = new ConcurrentHashMap<String, Patient>();
   
   /**
    * Returns the BBMRI-ERIC identifier of {@code collection} if some valid one could be found.
@@ -86,10 +152,166 @@ public class FhirApi {
 
   private final IGenericClient fhirClient;
 
+  // Number of resources requested per page (_count) in paged searches.
+  private int pageSize = DEFAULT_PAGE_SIZE;
+
+  // Number of pages fetched ahead of the page currently being processed.
+  private int pageLookAhead = DEFAULT_PAGE_LOOK_AHEAD;
+
+  // If true, searches and reads only request the elements that are actually used (_elements).
+  // Switched off automatically if the FHIR server rejects or ignores the parameter.
+  private volatile boolean projectionEnabled = true;
+
+  // Runs independent reads, such as donor reads, in parallel.
+  private final BoundedExecutor readExecutor = new BoundedExecutor();
+
   public FhirApi(IGenericClient fhirClient) {
     this.fhirClient = Objects.requireNonNull(fhirClient);
   }
 
+  /**
+   * Sets the number of resources requested per page in paged searches.
+   *
+   * @param pageSize the value of the _count search parameter, must be positive
+   */
+  public void setPageSize(int pageSize) {
+    if (pageSize < 1)
+      throw new IllegalArgumentException("pageSize must be positive, but was " + pageSize);
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Replaces the cache that holds the results of expensive scans, e.g. to change its time to
+   * live or size limit.
+   *
+   * @param cache the new cache
+   */
+  public void setCache(FhirResourceCache cache) {
+    this.cache = Objects.requireNonNull(cache);
+  }
+
+  /**
+   * Starts a sync run. All operations until {@link #endRun()} share the cached scans that were
+   * valid at the start of the run, so they all see the same data. In change feed mode, the
+   * changes are pulled again by the first scan of the run.
+   */
+  public void startRun() {
+    cache.startRun();
+    changedCollectionIds = null;
+  }
+
+  /**
+   * Ends the current sync run. Cached scans expire according to their time to live again.
+   */
+  public void endRun() {
+    cache.endRun();
+  }
+
+  /**
+   * Discards all cached scans and indexes, so that the next operation reads the FHIR store again.
+   * In change feed mode, the changes are also pulled again.
+   */
+  public void invalidateCache() {
+    cache.invalidate();
+    patientsById.clear();
+    collectionIdsByLocalId = null;
+    changedCollectionIds = null;
+  }
+
+  /**
+   * Sets the maximum number of reads sent to the FHIR server at the same time when
+   * resources are looked up one by one, e.g. donors that were not included in a page.
+   *
+   * @param maxConcurrentReads the maximum number of parallel reads, at least 1
+   */
+  public void setMaxConcurrentReads(int maxConcurrentReads) {
+    readExecutor.setMaxConcurrency(maxConcurrentReads);
+  }
+
+  /**
+   * Switches the use of the _elements search parameter on or off. If on, only the
+   * elements needed for the sync are requested from the FHIR server.
+   *
+   * @param projectionEnabled true to request only the needed elements
+   */
+  public void setProjectionEnabled(boolean projectionEnabled) {
+    this.projectionEnabled = projectionEnabled;
+  }
+
+  /**
+   * Switches to ingestion via FHIR Bulk Data export. Specimen scans will then export
+   * Specimen, Patient, Condition and (for system level exports) Organization resources
+   * and read them from the NDJSON output files, rather than paging through searches.
+   * This scales better for stores with millions of resources.
+   *
+   * Each export is deleted on the FHIR server once its files have been read. The
+   * caller remains responsible for closing the export.
+   *
+   * @param bulkExport the export to use, or null to go back to paged searches
+   */
+  public void setBulkExport(FhirBulkExport bulkExport) {
+    this.bulkExport = bulkExport;
+  }
+
+  /**
+   * Switches to incremental operation via the FHIR change feed. On the first specimen scan,
+   * the changes since the last committed run are pulled from the change feed. This and all
+   * further scans then only deliver the specimens of the collections affected by these
+   * changes, which are searched by ID.
+   *
+   * Once the affected collections have been sent to the Directory, call
+   * {@link #commitChangeFeed()} to persist the new state.
+   *
+   * @param changeFeed the change feed to use, or null to scan the whole FHIR store
+   */
+  public void setChangeFeed(FhirChangeFeed changeFeed) {
+    this.changeFeed = changeFeed;
+    this.changedCollectionIds = null;
+  }
+
+  /**
+   * @return true if specimens are read incrementally from a change feed
+   */
+  boolean hasChangeFeed() {
+    return changeFeed != null;
+  }
+
+  /**
+   * Keeps a snapshot of the specimens found by a full scan on disk, so that later runs,
+   * e.g. after a restart, can reuse it instead of scanning the FHIR store again. Before
+   * reuse, the snapshot is checked against the FHIR store with a few count queries.
+   *
+   * @param snapshot the snapshot to use, or null to always scan the FHIR store
+   */
+  public void setSnapshot(SpecimenSnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * Persists the state of the change feed, so that the next run only sees later changes.
+   * The next scan pulls these from the change feed. Does nothing if no change feed is in use.
+   *
+   * @return either nothing, or an OperationOutcome describing the problem
+   */
+  public Either<OperationOutcome, Void> commitChangeFeed() {
+    if (changeFeed == null)
+      return Either.right(null);
+    // Changes after the commit belong to the next run, which has to pull them.
+    return changeFeed.commit().peek(committed -> changedCollectionIds = null);
+  }
+
+  /**
+   * Sets the number of pages that are fetched in the background, ahead of the page
+   * currently being processed.
+   *
+   * @param pageLookAhead the maximum number of prefetched pages, must be positive
+   */
+  public void setPageLookAhead(int pageLookAhead) {
+    if (pageLookAhead < 1)
+      throw new IllegalArgumentException("pageLookAhead must be positive, but was " + pageLookAhead);
+    this.pageLookAhead = pageLookAhead;
+  }
+
   public OperationOutcome updateResource(IBaseResource theResource) {
     try {
       return (OperationOutcome) resourceUpdate(theResource).execute().getOperationOutcome();
@@ -100,6 +322,68 @@ public class FhirApi {
     }
   }
 
+  /**
+   * Updates several resources with a single batch Bundle. The server is asked not to send
+   * the updated resources back (Prefer: return=minimal), only the status of each entry.
+   *
+   * @param resources the resources to update, each with a logical ID
+   * @return one OperationOutcome per resource, in the same order. Failed updates have an
+   *         issue with severity error. If the whole batch fails, every resource gets the error.
+   */
+  public List<OperationOutcome> updateResources(List<? extends Resource> resources) {
+    if (resources.isEmpty())
+      return emptyList();
+
+    Bundle batch = new Bundle().setType(Bundle.BundleType.BATCH);
+    for (Resource resource : resources)
+      batch.addEntry()
+          .setResource(resource)
+          .getRequest()
+          .setMethod(Bundle.HTTPVerb.PUT)
+          .setUrl(resource.getIdElement().toUnqualifiedVersionless().getValue());
+
+    List<OperationOutcome> outcomes = new ArrayList<OperationOutcome>();
+    try {
+      Bundle response = fhirClient.transaction()
+          .withBundle(batch)
+          .withAdditionalHeader("Prefer", "return=minimal")
+          .execute();
+      if (response.getEntry().size() != resources.size())
+        throw new IllegalStateException("batch response has " + response.getEntry().size()
+            + " entries for " + resources.size() + " updates");
+
+      for (int i = 0; i < resources.size(); i++)
+        outcomes.add(entryOutcome(batch.getEntry().get(i).getRequest().getUrl(), response.getEntry().get(i).getResponse()));
+    } catch (Exception e) {
+      for (Resource resource : resources) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(ERROR).setDiagnostics(e.getMessage());
+        outcomes.add(outcome);
+      }
+    }
+
+    return outcomes;
+  }
+
+  /**
+   * Turns the response part of a batch response entry into an OperationOutcome.
+   *
+   * @param url the URL of the corresponding request entry
+   * @param response the response part of the entry
+   * @return the outcome sent by the server, or an outcome built from the status
+   */
+  private static OperationOutcome entryOutcome(String url, Bundle.BundleEntryResponseComponent response) {
+    if (response.getOutcome() instanceof OperationOutcome)
+      return (OperationOutcome) response.getOutcome();
+
+    String status = response.getStatus();
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue()
+        .setSeverity(status != null && status.startsWith("2") ? INFORMATION : ERROR)
+        .setDiagnostics("update of " + url + ": " + status);
+    return outcome;
+  }
+
   private IUpdateExecutable resourceUpdate(IBaseResource theResource) {
     return fhirClient.update().resource(theResource).prefer(OPERATION_OUTCOME);
   }
@@ -225,6 +509,8 @@ public class FhirApi {
   /**
    * Loads the Organization resource for each of the FHIR ids given.
    *
+   * Large sets of ids are split into chunks, which are searched in parallel.
+   *
    * @param ids logical ids of the Organization resources to load
    * @return List of Organization Resources or OperationOutcome in case of failure.
    */
@@ -232,20 +518,20 @@ public class FhirApi {
     if (ids.isEmpty()) {
       return Either.right(emptyList());
     }
-    try {
+    List<String> idList = new ArrayList<String>(ids);
+    List<List<String>> chunks = new ArrayList<List<String>>();
+    for (int i = 0; i < idList.size(); i += COLLECTION_CHUNK_SIZE)
+      chunks.add(idList.subList(i, Math.min(i + COLLECTION_CHUNK_SIZE, idList.size())));
+
+    return readExecutor.mapAll(chunks, chunk -> {
       Bundle response = (Bundle) fhirClient.search().forResource(Organization.class)
-          .where(Organization.RES_ID.exactly().codes(ids)).execute();
+          .where(Organization.RES_ID.exactly().codes(chunk)).execute();
 
-      return Either.right(response.getEntry().stream()
+      return response.getEntry().stream()
           .filter(e -> ResourceType.Organization == e.getResource().getResourceType())
           .map(e -> (Organization) e.getResource())
-          .collect(Collectors.toList()));
-    } catch (Exception e) {
-      OperationOutcome outcome = new OperationOutcome();
-      outcome.addIssue().setSeverity(ERROR)
-          .setDiagnostics(e.getMessage());
-      return Either.left(outcome);
-    }
+          .collect(Collectors.toList());
+    }).map(lists -> lists.stream().flatMap(List::stream).collect(Collectors.toList()));
   }
 
   /**
@@ -259,42 +545,79 @@ public class FhirApi {
   public Either<OperationOutcome, Map<String,List<Specimen>>> fetchSpecimensByCollection(BbmriEricId defaultBbmriEricCollectionId) {
     logger.info("__________ fetchSpecimensByCollection: entered");
 
-    // This method is slow, so use cached value if available.
-    if (specimensByCollection != null)
-      return Either.right(specimensByCollection);
-
-    logger.info("__________ fetchSpecimensByCollection: get specimens from FHIR store");
-
     try {
-      specimensByCollection = getAllSpecimensAsMap();
+      // This method is slow, so use cached value if available. The default collection ID is
+      // applied afterwards, so that the same scan can be used with different defaults.
+      Map<String, List<Specimen>> scan = cache.get(SPECIMEN_SCAN_KEY, () -> {
+        logger.info("__________ fetchSpecimensByCollection: get specimens from FHIR store");
+        return getAllSpecimensAsMap();
+      }, FhirApi::countValues);
+
+      logger.info("__________ fetchSpecimensByCollection: specimensByCollection size: " + scan.size());
+
+      Map<String, List<Specimen>> specimensByCollection = applyDefaultCollectionId(new HashMap<String, List<Specimen>>(scan), defaultBbmriEricCollectionId, (a, b) -> {
+        List<Specimen> merged = new ArrayList<Specimen>(a);
+        merged.addAll(b);
+        return merged;
+      });
 
       logger.info("__________ fetchSpecimensByCollection: specimensByCollection size: " + specimensByCollection.size());
 
-      defaultBbmriEricCollectionId = determineDefaultCollectionId(defaultBbmriEricCollectionId, specimensByCollection);
-
-      logger.info("__________ fetchSpecimensByCollection: defaultBbmriEricCollectionId: " + defaultBbmriEricCollectionId);
-
-      // Remove specimens without a collection from specimensByCollection, but keep
-      // the relevant specimen list, just in case we have a valid default ID to
-      // associate with them.
-      List<Specimen> defaultCollection = specimensByCollection.remove(DEFAULT_COLLECTION_ID);
-
-      if (defaultCollection == null)
-        logger.info("__________ fetchSpecimensByCollection: defaultCollection is null");
-      else
-        logger.info("__________ fetchSpecimensByCollection: defaultCollection size: " + defaultCollection.size());
+      return Either.right(specimensByCollection);
+    } catch (Exception e) {
+      OperationOutcome outcome = new OperationOutcome();
+      outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR).setDiagnostics(Util.traceFromException(e));
+      return Either.left(outcome);
+    }
+  }
 
-      // Replace the DEFAULT_COLLECTION_ID key in specimensByCollection by a sensible collection ID,
-      // assuming, of course, that there were any specemins caregorized by DEFAULT_COLLECTION_ID.
-      if (defaultCollection != null && defaultCollection.size() != 0 && defaultBbmriEricCollectionId != null) {
-        logger.info("__________ fetchSpecimensByCollection: Replace the DEFAULT_COLLECTION_ID key");
+  private static <T> long countValues(Map<String, List<T>> map) {
+    return map.values().stream().mapToLong(List::size).sum();
+  }
 
-        specimensByCollection.put(defaultBbmriEricCollectionId.toString(), defaultCollection);
-      }
+  /**
+   * Switches streaming mode on or off.
+   *
+   * In streaming mode, {@link #streamSpecimensByCollection} hands the specimens of each
+   * page to the consumer as the page arrives, and does not keep them afterwards. Every call
+   * performs a fresh scan of the FHIR store, but peak memory no longer grows with the
+   * number of specimens.
+   *
+   * Otherwise, the specimens are fetched once via {@link #fetchSpecimensByCollection},
+   * kept in memory and replayed to each consumer.
+   *
+   * @param streamingMode true to stream specimens instead of caching them
+   */
+  public void setStreamingMode(boolean streamingMode) {
+    this.streamingMode = streamingMode;
+  }
 
-      logger.info("__________ fetchSpecimensByCollection: specimensByCollection size: " + specimensByCollection.size());
+  /**
+   * Passes every specimen in the FHIR store, together with its collection id and donor,
+   * to the supplied consumer.
+   *
+   * The collection id is either a valid Directory collection id or, for specimens that
+   * cannot be assigned to a collection, a placeholder key. Consumers that aggregate by
+   * collection should pass their result through {@link #applyDefaultCollectionId}, which
+   * resolves the placeholder in the same way as {@link #fetchSpecimensByCollection}.
+   *
+   * @param defaultBbmriEricCollectionId the default collection id supplied by the site. May be null
+   * @param consumer receives each specimen
+   * @return an Either object containing nothing, or an OperationOutcome object in case of an error
+   */
+  public Either<OperationOutcome, Void> streamSpecimensByCollection(BbmriEricId defaultBbmriEricCollectionId, SpecimenConsumer consumer) {
+    if (!streamingMode)
+      return fetchSpecimensByCollection(defaultBbmriEricCollectionId).map(specimensByCollection -> {
+        specimensByCollection.forEach((collectionId, specimens) -> {
+          for (Specimen specimen : specimens)
+            consumer.accept(collectionId, specimen, resolvePatient(specimen, Collections.emptyMap()));
+        });
+        return null;
+      });
 
-      return Either.right(specimensByCollection);
+    try {
+      scanSpecimens(consumer);
+      return Either.right(null);
     } catch (Exception e) {
       OperationOutcome outcome = new OperationOutcome();
       outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR).setDiagnostics(Util.traceFromException(e));
@@ -302,6 +625,41 @@ public class FhirApi {
     }
   }
 
+  /**
+   * Resolves the entry for specimens without a collection in a map keyed by collection id.
+   *
+   * If the site has supplied a default collection id, or if one can be derived from the
+   * available collections, the entry is moved to that id, merging it with any entry
+   * already present. Otherwise the entry is removed.
+   *
+   * @param byCollection values keyed by collection id, as produced from {@link #streamSpecimensByCollection}
+   * @param defaultBbmriEricCollectionId the default collection id supplied by the site. May be null
+   * @param merge combines two values for the same collection id
+   * @return byCollection, modified in place
+   * @param <T> the type of the values
+   */
+  public <T> Map<String, T> applyDefaultCollectionId(Map<String, T> byCollection, BbmriEricId defaultBbmriEricCollectionId, BinaryOperator<T> merge) {
+    if (!byCollection.containsKey(DEFAULT_COLLECTION_ID))
+      return byCollection;
+
+    defaultBbmriEricCollectionId = determineDefaultCollectionId(defaultBbmriEricCollectionId, byCollection.keySet());
+
+    logger.info("__________ applyDefaultCollectionId: defaultBbmriEricCollectionId: " + defaultBbmriEricCollectionId);
+
+    // Remove values without a collection, but keep them, just in case we have a
+    // valid default ID to associate with them.
+    T defaultCollection = byCollection.remove(DEFAULT_COLLECTION_ID);
+
+    // Replace the DEFAULT_COLLECTION_ID key by a sensible collection ID.
+    if (defaultBbmriEricCollectionId != null) {
+      logger.info("__________ applyDefaultCollectionId: Replace the DEFAULT_COLLECTION_ID key");
+
+      byCollection.merge(defaultBbmriEricCollectionId.toString(), defaultCollection, merge);
+    }
+
+    return byCollection;
+  }
+
   /**
    * Retrieves all Specimens from the FHIR server and organizes them into a Map based on their Collection ID.
    *
@@ -312,34 +670,388 @@ public class FhirApi {
    */
   private Map<String, List<Specimen>> getAllSpecimensAsMap() {
     Map<String, List<Specimen>> result = new HashMap<String, List<Specimen>>();
+    patientsById.clear();
+
+    scanSpecimens((collectionId, specimen, patient) -> {
+      result.computeIfAbsent(collectionId, id -> new ArrayList<>()).add(specimen);
+      if (patient != null)
+        patientsById.put(patient.getIdElement().getIdPart(), patient);
+    });
+
+    return result;
+  }
 
-    // Use ITransactionTyped instead of returnBundle(Bundle.class)
-    IQuery<IBaseBundle> bundleTransaction = fhirClient.search().forResource(Specimen.class);
-    Bundle bundle = (Bundle) bundleTransaction.execute();
-
-    // Keep looping until the store has no more specimens.
-    // This gets around the page size limit of 50 that is imposed by the current implementation of Blaze.
-    do {
-        // Add entries to the result map
-        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-            Specimen specimen = (Specimen) entry.getResource();
-            String collectionId = extractCollectionIdFromSpecimen(specimen);
-            if (!result.containsKey(collectionId))
-                result.put(collectionId, new ArrayList<>());
-            result.get(collectionId).add(specimen);
+  /**
+   * Pages through all Specimens in the FHIR server and passes each of them, together
+   * with its collection ID and donor, to the consumer. Nothing is retained once a page
+   * has been processed.
+   *
+   * @param consumer receives each specimen
+   */
+  private void scanSpecimens(SpecimenConsumer consumer) {
+    if (changeFeed != null) {
+      scanSpecimensFromChangeFeed(consumer);
+      return;
+    }
+    if (snapshot != null) {
+      scanSpecimensWithSnapshot(consumer);
+      return;
+    }
+
+    scanSpecimensFromFhirStore(consumer);
+  }
+
+  /**
+   * Scans the FHIR store, either via a Bulk Data export or via paged searches.
+   *
+   * @param consumer receives each specimen
+   */
+  private void scanSpecimensFromFhirStore(SpecimenConsumer consumer) {
+    if (bulkExport != null) {
+      scanSpecimensFromBulkExport(consumer);
+      return;
+    }
+
+    collectionIdsByLocalId = fetchCollectionIdIndex();
+
+    withProjectedScan(projected -> {
+      // The donors are requested in the same bundles as the specimens, so that they
+      // do not need to be read one by one later on.
+      IQuery<IBaseBundle> search = fhirClient.search().forResource(Specimen.class)
+          .include(Specimen.INCLUDE_SUBJECT);
+      return projected ? search.elementsSubset(SPECIMEN_ELEMENTS) : search;
+    }, query -> scanSpecimenPages(consumer, query));
+  }
+
+  private void scanSpecimenPages(SpecimenConsumer consumer, IQuery<Bundle> query) {
+    // Keep looping until the store has no more specimens. The next page is already
+    // being fetched while the current one is processed.
+    int specimenCount = 0;
+    try (FhirPageIterator pages = new FhirPageIterator(fhirClient, query, pageLookAhead)) {
+      while (pages.hasNext()) {
+        Bundle bundle = pages.next();
+
+        // Included patients always arrive in the same page as the specimens referring to them.
+        Map<String, Patient> pagePatients = new HashMap<String, Patient>();
+        for (BundleEntryComponent entry : bundle.getEntry())
+          if (entry.getResource() instanceof Patient)
+            pagePatients.put(entry.getResource().getIdElement().getIdPart(), (Patient) entry.getResource());
+
+        // Donors that were not included, e.g. because the server ignores _include, are read in parallel.
+        List<Specimen> pageSpecimens = bundle.getEntry().stream()
+            .filter(entry -> entry.getResource() instanceof Specimen)
+            .map(entry -> (Specimen) entry.getResource())
+            .collect(Collectors.toList());
+        Either<OperationOutcome, Void> prefetched = prefetchPatients(pageSpecimens, pagePatients);
+        if (prefetched.isLeft())
+          logger.warn("scanSpecimens: could not read all donors: " + prefetched.getLeft().getIssueFirstRep().getDiagnostics());
+
+        for (BundleEntryComponent entry : bundle.getEntry()) {
+          if (!(entry.getResource() instanceof Specimen))
+            continue;
+          Specimen specimen = (Specimen) entry.getResource();
+          checkProjection(specimen);
+          consumer.accept(extractCollectionIdFromSpecimen(specimen), specimen, resolvePatient(specimen, pagePatients));
+          specimenCount++;
         }
 
-        logger.info("__________ getAllSpecimensAsMap: Added " + bundle.getEntry().size() + " entries to result, result size: " + result.size());
+        logger.info("__________ scanSpecimens: Processed " + bundle.getEntry().size() + " entries, specimen count: " + specimenCount);
+      }
+    }
+  }
+
+  /**
+   * Replays the specimens from the snapshot if it is still up to date. Otherwise scans the
+   * FHIR store and writes a new snapshot along the way.
+   *
+   * @param consumer receives each specimen
+   */
+  private void scanSpecimensWithSnapshot(SpecimenConsumer consumer) {
+    if (isSnapshotCurrent()) {
+      logger.info("scanSpecimensWithSnapshot: replaying specimens from snapshot");
+      Map<String, Set<String>> conditionIndex = new HashMap<String, Set<String>>();
+      snapshot.replay(conditionIndex, consumer)
+          .getOrElseThrow(outcome -> new IllegalStateException(outcome.getIssueFirstRep().getDiagnostics()));
+      cacheConditionCodeIndex(conditionIndex);
+      return;
+    }
 
-        // Check if there are more pages
-        if (bundle.getLink(Bundle.LINK_NEXT) != null)
-            // Use ITransactionTyped to load the next page
-            bundle = fhirClient.loadPage().next(bundle).execute();
-        else
-            bundle = null;
-    } while (bundle != null);
+    // Resources updated during the scan must make the snapshot stale, so take the time first.
+    // It is compared with the last updated times set by the FHIR server, so allow for clock
+    // skew. At worst, a resource updated shortly before the scan causes another full scan.
+    long snapshotTime = System.currentTimeMillis() - FhirChangeFeed.SAFETY_MARGIN.toMillis();
+    Map<String, Integer> resourceCounts = countSnapshotResources(null);
+    try (SpecimenSnapshot.Writer writer = snapshot.newWriter(snapshotTime, resourceCounts)) {
+      scanSpecimensFromFhirStore((collectionId, specimen, patient) -> {
+        try {
+          writer.add(collectionId, specimen, patient, this::extractConditionCodesFromPatient);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        consumer.accept(collectionId, specimen, patient);
+      });
+      writer.commit();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
 
-    return result;
+    logger.info("scanSpecimensWithSnapshot: new snapshot written, resource counts: " + resourceCounts);
+  }
+
+  /**
+   * Checks whether the snapshot still reflects the FHIR store. This is the case if the number
+   * of resources of each type is unchanged, and no resource has been updated since the snapshot
+   * was taken. A deletion changes the counts, and any other change, including a new version of
+   * an existing resource, changes its last updated time.
+   */
+  private boolean isSnapshotCurrent() {
+    if (!snapshot.exists())
+      return false;
+    Either<OperationOutcome, SpecimenSnapshot.Metadata> metadata = snapshot.readMetadata();
+    if (metadata.isLeft()) {
+      logger.warn("isSnapshotCurrent: snapshot unreadable: " + metadata.getLeft().getIssueFirstRep().getDiagnostics());
+      return false;
+    }
+
+    try {
+      if (!countSnapshotResources(null).equals(metadata.get().getResourceCounts())) {
+        logger.info("isSnapshotCurrent: resource counts have changed");
+        return false;
+      }
+      Map<String, Integer> updatedCounts = countSnapshotResources(new Date(metadata.get().getSnapshotTime()));
+      if (updatedCounts.values().stream().anyMatch(count -> count > 0)) {
+        logger.info("isSnapshotCurrent: resources have been updated: " + updatedCounts);
+        return false;
+      }
+    } catch (Exception e) {
+      logger.warn("isSnapshotCurrent: could not check snapshot: " + e.getMessage());
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Counts the resources of the types that contribute to a snapshot.
+   *
+   * @param updatedAfter if not null, only count resources updated after this time
+   */
+  private Map<String, Integer> countSnapshotResources(Date updatedAfter) {
+    Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+    for (Class<? extends Resource> type : Arrays.asList(Specimen.class, Patient.class, Condition.class, Organization.class)) {
+      IQuery<IBaseBundle> search = fhirClient.search().forResource(type);
+      if (updatedAfter != null)
+        search = search.where(new DateClientParam("_lastUpdated").after().millis(updatedAfter));
+      counts.put(type.getSimpleName(), search
+          .returnBundle(Bundle.class)
+          .summaryMode(SummaryEnum.COUNT)
+          .execute()
+          .getTotal());
+    }
+    return counts;
+  }
+
+  /**
+   * Passes the Specimens of the collections affected by changes in the FHIR store, together
+   * with their collection IDs and donors, to the consumer. The changes are pulled from the
+   * change feed on the first call. The Specimens of the affected collections, found via the
+   * keys kept by the change feed, are then searched by ID, together with their donors, and
+   * the diagnoses are searched for these donors only.
+   *
+   * Aggregates such as the number of distinct donors or the age range cannot be corrected
+   * by applying the changes to them, so every affected collection is replayed in full. If
+   * specimens without a collection are involved, all collections are replayed, because these
+   * specimens may end up in any collection via the default collection ID. The same goes for
+   * the first run, which has no previous state.
+   *
+   * @param consumer receives each specimen
+   */
+  private void scanSpecimensFromChangeFeed(SpecimenConsumer consumer) {
+    collectionIdsByLocalId = fetchCollectionIdIndex();
+
+    if (changedCollectionIds == null) {
+      FhirChangeFeed.ChangeSet changes = changeFeed.pull()
+          .getOrElseThrow(outcome -> new IllegalStateException(outcome.getIssueFirstRep().getDiagnostics()));
+
+      Set<String> collectionIds = new HashSet<String>();
+      for (FhirChangeFeed.SpecimenKey key : changes.getChangedSpecimens())
+        collectionIds.add(resolveCollectionReference(key.getCustodian()));
+      for (String patientId : changes.getChangedPatientIds())
+        for (FhirChangeFeed.SpecimenKey key : changeFeed.getSpecimensOfPatient(patientId))
+          collectionIds.add(resolveCollectionReference(key.getCustodian()));
+
+      replayAllCollections = changes.isFullLoad() || collectionIds.contains(DEFAULT_COLLECTION_ID)
+          || (!collectionIds.isEmpty() && changeFeed.getSpecimens().stream()
+              .anyMatch(key -> DEFAULT_COLLECTION_ID.equals(resolveCollectionReference(key.getCustodian()))));
+      changedCollectionIds = collectionIds;
+
+      logger.info("scanSpecimensFromChangeFeed: affected collections: " + (replayAllCollections ? "all" : changedCollectionIds));
+    }
+
+    if (replayAllCollections) {
+      scanSpecimensFromFhirStore(consumer);
+      return;
+    }
+
+    List<String> specimenIds = new ArrayList<String>();
+    Set<String> patientIds = new HashSet<String>();
+    for (FhirChangeFeed.SpecimenKey key : changeFeed.getSpecimens())
+      if (changedCollectionIds.contains(resolveCollectionReference(key.getCustodian()))) {
+        specimenIds.add(key.getId());
+        if (key.getPatientId() != null)
+          patientIds.add(key.getPatientId());
+      }
+    if (specimenIds.isEmpty())
+      return;
+
+    cacheConditionCodeIndex(fetchConditionCodeIndex(patientIds));
+
+    for (List<String> chunk : chunk(specimenIds))
+      withProjectedScan(projected -> {
+        IQuery<IBaseBundle> search = fhirClient.search().forResource(Specimen.class)
+            .where(Specimen.RES_ID.exactly().codes(chunk))
+            .include(Specimen.INCLUDE_SUBJECT);
+        return projected ? search.elementsSubset(SPECIMEN_ELEMENTS) : search;
+      }, query -> scanSpecimenPages(consumer, query));
+  }
+
+  /**
+   * Splits a list of logical IDs into chunks that can be searched with a single request.
+   */
+  private static List<List<String>> chunk(List<String> ids) {
+    List<List<String>> chunks = new ArrayList<List<String>>();
+    for (int i = 0; i < ids.size(); i += COLLECTION_CHUNK_SIZE)
+      chunks.add(ids.subList(i, Math.min(i + COLLECTION_CHUNK_SIZE, ids.size())));
+    return chunks;
+  }
+
+  /**
+   * Ingests Specimens and the resources needed to interpret them from a Bulk Data export,
+   * and passes each Specimen, together with its collection ID and donor, to the consumer.
+   *
+   * The output files are read in dependency order. Collections go into the collection index
+   * and Conditions into the patient-keyed diagnosis index. Donors are held in memory until
+   * the Specimens have been read. The Specimens themselves are passed on as they are parsed.
+   *
+   * @param consumer receives each specimen
+   */
+  private void scanSpecimensFromBulkExport(SpecimenConsumer consumer) {
+    List<String> types = new ArrayList<String>(Arrays.asList("Specimen", "Patient", "Condition"));
+    if (!bulkExport.isGroupExport())
+      types.add("Organization");
+    Map<String, List<String>> files = bulkExport.export(types)
+        .getOrElseThrow(outcome -> new IllegalStateException(outcome.getIssueFirstRep().getDiagnostics()));
+
+    try {
+      if (files.containsKey("Organization")) {
+        Map<String, String> index = new HashMap<String, String>();
+        bulkExport.readResources(files.get("Organization"), Organization.class, organization -> {
+          if (organization.getMeta().hasProfile(COLLECTION_PROFILE_URI))
+            index.put(organization.getIdElement().getIdPart(), extractValidDirectoryIdentifierFromCollection(organization));
+        }).getOrElseThrow(outcome -> new IllegalStateException(outcome.getIssueFirstRep().getDiagnostics()));
+        collectionIdsByLocalId = index;
+      } else
+        collectionIdsByLocalId = fetchCollectionIdIndex();
+
+      Map<String, Set<String>> conditionIndex = new HashMap<String, Set<String>>();
+      bulkExport.readResources(files.getOrDefault("Condition", Collections.emptyList()), Condition.class,
+          condition -> indexConditionCodes(conditionIndex, condition))
+          .getOrElseThrow(outcome -> new IllegalStateException(outcome.getIssueFirstRep().getDiagnostics()));
+      cacheConditionCodeIndex(conditionIndex);
+
+      Map<String, Patient> patients = new HashMap<String, Patient>();
+      bulkExport.readResources(files.getOrDefault("Patient", Collections.emptyList()), Patient.class,
+          patient -> patients.put(patient.getIdElement().getIdPart(), patient))
+          .getOrElseThrow(outcome -> new IllegalStateException(outcome.getIssueFirstRep().getDiagnostics()));
+
+      bulkExport.readResources(files.getOrDefault("Specimen", Collections.emptyList()), Specimen.class,
+          specimen -> consumer.accept(extractCollectionIdFromSpecimen(specimen), specimen, resolvePatient(specimen, patients)))
+          .getOrElseThrow(outcome -> new IllegalStateException(outcome.getIssueFirstRep().getDiagnostics()));
+    } finally {
+      // The output files are no longer needed, whether or not they could all be read.
+      bulkExport.deleteExport()
+          .peekLeft(outcome -> logger.warn("scanSpecimensFromBulkExport: " + outcome.getIssueFirstRep().getDiagnostics()));
+    }
+  }
+
+  /**
+   * Runs a FHIR request with or without _elements, depending on whether projection is
+   * enabled. If the FHIR server rejects the request with projection, projection is
+   * switched off and the request is repeated without it. Paged scans use
+   * {@link #withProjectedScan} instead.
+   *
+   * @param request performs the request, taking a flag saying whether to use _elements
+   * @return the result of the request
+   * @param <T> the type of the result
+   */
+  private <T> T withProjection(Function<Boolean, T> request) {
+    boolean projected = projectionEnabled;
+    try {
+      return request.apply(projected);
+    } catch (InvalidRequestException e) {
+      if (!projected)
+        throw e;
+      logger.warn("withProjection: FHIR server rejected _elements, requesting full resources from now on: " + e.getMessage());
+      projectionEnabled = false;
+      return request.apply(false);
+    }
+  }
+
+  /**
+   * Runs a paged scan with or without _elements. Unlike {@link #withProjection}, a scan is
+   * never repeated, because its first pages have already been handed to the consumers
+   * when a later page fails. Instead, if projection is enabled, a single resource is
+   * requested with _elements before the first page, and projection is switched off if the
+   * FHIR server rejects that.
+   *
+   * @param search builds the search, taking a flag saying whether to use _elements
+   * @param scan pages through the search
+   */
+  private void withProjectedScan(Function<Boolean, IQuery<IBaseBundle>> search, Consumer<IQuery<Bundle>> scan) {
+    if (projectionEnabled)
+      withProjection(projected -> projected ? search.apply(true).count(1).returnBundle(Bundle.class).execute() : null);
+    scan.accept(search.apply(projectionEnabled).count(pageSize).returnBundle(Bundle.class));
+  }
+
+  /**
+   * Checks that a resource returned for a request with _elements has been marked as
+   * SUBSETTED by the FHIR server. If not, the server ignores _elements, and projection
+   * is switched off, so that the parameter is no longer sent.
+   *
+   * @param resource a resource returned by the FHIR server
+   */
+  private void checkProjection(Resource resource) {
+    if (!projectionEnabled || resource.getMeta().getTag(SUBSETTED_SYSTEM, SUBSETTED_CODE) != null)
+      return;
+    logger.warn("checkProjection: FHIR server ignores _elements, requesting full resources from now on");
+    projectionEnabled = false;
+  }
+
+  /**
+   * Finds the donor of a specimen, preferring the supplied patients over the patient index
+   * and the FHIR server. In streaming mode, a donor read from the FHIR server is not added to
+   * the patient index, so that memory does not grow with the number of donors.
+   *
+   * @param specimen the specimen
+   * @param patients patients known to the caller, keyed by logical ID
+   * @return the donor, or null if the specimen has no subject or the donor cannot be read
+   */
+  private Patient resolvePatient(Specimen specimen, Map<String, Patient> patients) {
+    if (!specimen.hasSubject())
+      return null;
+    String patientId = specimen.getSubject().getReferenceElement().getIdPart();
+    Patient patient = patients.get(patientId);
+    if (patient != null)
+      return patient;
+    try {
+      if (!streamingMode)
+        return extractPatientFromSpecimen(specimen);
+      patient = patientsById.get(patientId);
+      return patient != null ? patient : readPatient(patientId);
+    } catch (Exception e) {
+      logger.warn("resolvePatient: could not read donor " + specimen.getSubject().getReference() + ": " + e.getMessage());
+      return null;
+    }
   }
 
   /**
@@ -351,13 +1063,24 @@ public class FhirApi {
    * @return
    */
   Either<OperationOutcome, Map<String,List<Patient>>> fetchPatientsByCollection(Map<String,List<Specimen>> specimensByCollection) {
-    // This method is slow, so use cached value if available.
-    if (patientsByCollection != null)
-      return Either.right(patientsByCollection);
-
-    patientsByCollection = specimensByCollection.entrySet().stream()
+    // This method is slow, so use cached value if available. It is only valid for the
+    // specimens it was derived from.
+    Map.Entry<Map<String,List<Specimen>>, Map<String,List<Patient>>> cached = cache.getIfPresent(PATIENTS_BY_COLLECTION_KEY);
+    if (cached != null && cached.getKey().equals(specimensByCollection))
+      return Either.right(cached.getValue());
+
+    List<Specimen> specimens = specimensByCollection.values().stream()
+              .flatMap(List::stream)
+              .collect(Collectors.toList());
+    Either<OperationOutcome, Void> prefetched = prefetchPatients(specimens, patientsById);
+    if (prefetched.isLeft())
+      return Either.left(prefetched.getLeft());
+
+    Map<String,List<Patient>> patientsByCollection = specimensByCollection.entrySet().stream()
               .map(entry -> new AbstractMap.SimpleEntry<>(entry.getKey(), extractPatientListFromSpecimenList(entry.getValue())))
               .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)) ;
+    cache.put(PATIENTS_BY_COLLECTION_KEY, new AbstractMap.SimpleImmutableEntry<>(specimensByCollection, patientsByCollection),
+        countValues(patientsByCollection));
 
     return Either.right(patientsByCollection);
   }
@@ -399,26 +1122,93 @@ public class FhirApi {
 
   /**
    * Extracts a Patient resource from a Specimen resource.
+   *
+   * Patients that were delivered together with the specimens during the specimen scan
+   * are taken from the local patient index. Only patients missing from the index are
+   * read from the FHIR server, and they are added to the index afterwards.
    * 
    * @param specimen a Specimen resource that contains a reference to a Patient resource
    * @return a Patient resource that matches the reference in the Specimen resource, or null if not found
    * @throws ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException if the FHIR server cannot find the Patient resource
    */
   public Patient extractPatientFromSpecimen(Specimen specimen) {
-    return fhirClient
+    String patientId = specimen.getSubject()
+            .getReference()
+            .replaceFirst("Patient/", "");
+
+    return patientsById.computeIfAbsent(patientId, this::readPatient);
+  }
+
+  /**
+   * Reads the donors of the given specimens that are neither supplied by the caller nor in
+   * the patient index, in parallel, and adds them to the caller's patients. These may be the
+   * patient index itself, or e.g. the patients of a single page of specimens.
+   *
+   * @param specimens the specimens whose donors are needed
+   * @param patients patients known to the caller, keyed by logical ID, to which the read donors are added
+   * @return nothing, or an OperationOutcome with one issue per donor that could not be read
+   */
+  private Either<OperationOutcome, Void> prefetchPatients(List<Specimen> specimens, Map<String, Patient> patients) {
+    List<String> missingIds = specimens.stream()
+        .filter(Specimen::hasSubject)
+        .map(specimen -> specimen.getSubject().getReferenceElement().getIdPart())
+        .filter(id -> id != null && !patients.containsKey(id) && !patientsById.containsKey(id))
+        .distinct()
+        .collect(Collectors.toList());
+    if (missingIds.isEmpty())
+      return Either.right(null);
+
+    List<Either<OperationOutcome, Patient>> results = readExecutor.map(missingIds, this::readPatient);
+    OperationOutcome outcome = new OperationOutcome();
+    for (int i = 0; i < missingIds.size(); i++) {
+      if (results.get(i).isLeft())
+        outcome.getIssue().addAll(results.get(i).getLeft().getIssue());
+      else
+        patients.put(missingIds.get(i), results.get(i).get());
+    }
+
+    return outcome.hasIssue() ? Either.left(outcome) : Either.right(null);
+  }
+
+  /**
+   * Reads a single Patient from the FHIR server. Safe to call from several threads at once.
+   *
+   * @param id the logical ID of the patient
+   * @return the patient
+   */
+  private Patient readPatient(String id) {
+    return withProjection(projected -> {
+      IReadExecutable<Patient> read = fhirClient
               .read()
               .resource(Patient.class)
-              .withId(specimen.getSubject()
-                      .getReference()
-                      .replaceFirst("Patient/", ""))
-              .execute();
+              .withId(id);
+      if (projected)
+        read = read.elementsSubset(PATIENT_ELEMENTS);
+      Patient patient = read.execute();
+      checkProjection(patient);
+      return patient;
+    });
   }
 
-  Boolean conditionsPresentInFhirStore = null;
+  /**
+   * Caches the ICD-10 codes of all Conditions in the FHIR store, keyed by the logical ID of
+   * the Patient they refer to.
+   *
+   * @param conditionIndex the patient-keyed diagnosis index
+   */
+  private void cacheConditionCodeIndex(Map<String, Set<String>> conditionIndex) {
+    cache.put(CONDITIONS_PRESENT_KEY, !conditionIndex.isEmpty(), 0);
+    cache.put(CONDITION_CODE_INDEX_KEY, conditionIndex, conditionIndex.size());
+  }
 
   /**
-   * Extracts a list of condition codes from a Patient resource using a FHIR client.
+   * Extracts a list of condition codes from a Patient resource.
    * The condition codes are based on the system "http://hl7.org/fhir/sid/icd-10".
+   *
+   * The codes are taken from the patient-keyed diagnosis index, which is built on first
+   * use. Should the index scan fail, the Conditions of the patient are searched directly,
+   * and so are those of all other patients until the cache is invalidated.
+   *
    * @param patient a Patient resource that has an ID element
    * @return a list of strings that represent the condition codes of the patient, or an empty list if none are found
    */
@@ -427,53 +1217,188 @@ public class FhirApi {
     try {
       // If there are no conditions in the FHIR store, then we don't
       // need to bother checking the patient for conditions.
-      if (conditionsPresentInFhirStore == null) {
-        int conditionCount = fhirClient
+      boolean conditionsPresentInFhirStore = cache.get(CONDITIONS_PRESENT_KEY, () -> fhirClient
           .search()
           .forResource(Condition.class)
           .returnBundle(Bundle.class)
           .summaryMode(SummaryEnum.COUNT)
           .execute()
-          .getTotal();
-        conditionsPresentInFhirStore = conditionCount > 0;
-      }
+          .getTotal() > 0, present -> 0);
       if (!conditionsPresentInFhirStore)
         return conditionCodes;
 
-      // Search for Condition resources by patient ID
-      Bundle bundle = fhirClient
+      // Should the index scan fail, this is remembered, so that the Conditions of each
+      // patient are searched directly instead of scanning them all again.
+      Map<String, Set<String>> conditionCodesByPatientId = cache.getIfPresent(CONDITION_CODE_INDEX_KEY);
+      if (conditionCodesByPatientId == null && !Boolean.TRUE.equals(cache.getIfPresent(CONDITION_CODE_INDEX_FAILED_KEY)))
+        conditionCodesByPatientId = cache.get(CONDITION_CODE_INDEX_KEY, this::fetchConditionCodeIndex, Map::size);
+      if (conditionCodesByPatientId != null) {
+        conditionCodes.addAll(conditionCodesByPatientId.getOrDefault(patient.getIdElement().getIdPart(), Collections.emptySet()));
+        return conditionCodes;
+      }
+
+      conditionCodes.addAll(searchConditionCodesForPatient(patient));
+    } catch (ResourceNotFoundException e) {
+      logger.error("extractConditionCodesFromPatient: could not find Condition, stack trace:\n" + Util.traceFromException(e));
+    }
+
+    return conditionCodes;
+  }
+
+  /**
+   * Extracts the condition codes of several patients, see {@link #extractConditionCodesFromPatient(Patient)}.
+   * If the patient-keyed diagnosis index is not available, the Conditions of the patients are
+   * searched in parallel.
+   *
+   * @param patients Patient resources that have an ID element
+   * @return the condition codes of each patient, keyed by logical ID, or an OperationOutcome
+   *         with one issue per patient whose conditions could not be searched
+   */
+  public Either<OperationOutcome, Map<String, List<String>>> extractConditionCodesFromPatients(List<Patient> patients) {
+    Map<String, List<String>> conditionCodes = new LinkedHashMap<String, List<String>>();
+    if (patients.isEmpty())
+      return Either.right(conditionCodes);
+
+    // The first lookup builds the index, if possible, so do it on the calling thread.
+    conditionCodes.put(patients.get(0).getIdElement().getIdPart(), extractConditionCodesFromPatient(patients.get(0)));
+    List<Patient> remaining = patients.subList(1, patients.size());
+    if (!Boolean.TRUE.equals(cache.getIfPresent(CONDITIONS_PRESENT_KEY)) || cache.getIfPresent(CONDITION_CODE_INDEX_KEY) != null) {
+      for (Patient patient : remaining)
+        conditionCodes.put(patient.getIdElement().getIdPart(), extractConditionCodesFromPatient(patient));
+      return Either.right(conditionCodes);
+    }
+
+    return readExecutor.mapAll(remaining, this::searchConditionCodesForPatient).map(codeLists -> {
+      for (int i = 0; i < remaining.size(); i++)
+        conditionCodes.put(remaining.get(i).getIdElement().getIdPart(), codeLists.get(i));
+      return conditionCodes;
+    });
+  }
+
+  /**
+   * Pages through all Condition resources with an ICD-10 code and builds an index
+   * from the logical ID of each Patient to the set of ICD-10 codes of its Conditions.
+   * If projection is enabled, only the code and subject elements are requested from the FHIR server.
+   *
+   * @return the patient-keyed diagnosis index, or null if the Conditions could not be scanned
+   */
+  private Map<String, Set<String>> fetchConditionCodeIndex() {
+    Map<String, Set<String>> index = new HashMap<String, Set<String>>();
+    try {
+      scanConditionCodes(() -> fhirClient
+          .search()
+          .forResource(Condition.class)
+          .where(Condition.CODE.hasSystemWithAnyCode(ICD_10_SYSTEM)), index);
+    } catch (Exception e) {
+      logger.error("fetchConditionCodeIndex: could not scan Conditions, falling back to searches per patient, stack trace:\n" + Util.traceFromException(e));
+      cache.put(CONDITION_CODE_INDEX_FAILED_KEY, true, 0);
+      return null;
+    }
+
+    logger.info("fetchConditionCodeIndex: indexed conditions of " + index.size() + " patients");
+
+    return index;
+  }
+
+  /**
+   * Builds the patient-keyed diagnosis index for the given patients only. Patients without
+   * Conditions are missing from the index, just as in the index of all patients.
+   *
+   * @param patientIds the logical IDs of the patients
+   * @return the diagnosis index of these patients
+   */
+  private Map<String, Set<String>> fetchConditionCodeIndex(Collection<String> patientIds) {
+    Map<String, Set<String>> index = new HashMap<String, Set<String>>();
+    List<String> references = patientIds.stream().map(id -> "Patient/" + id).collect(Collectors.toList());
+    for (List<String> chunk : chunk(references))
+      scanConditionCodes(() -> fhirClient
+          .search()
+          .forResource(Condition.class)
+          .where(Condition.SUBJECT.hasAnyOfIds(chunk))
+          .and(Condition.CODE.hasSystemWithAnyCode(ICD_10_SYSTEM)), index);
+
+    logger.info("fetchConditionCodeIndex: indexed conditions of " + index.size() + " of " + patientIds.size() + " patients");
+
+    return index;
+  }
+
+  /**
+   * Pages through a Condition search and adds the ICD-10 codes to the diagnosis index.
+   * If projection is enabled, only the code and subject elements are requested.
+   *
+   * @param search builds the search
+   * @param index the index to add to
+   */
+  private void scanConditionCodes(Supplier<IQuery<IBaseBundle>> search, Map<String, Set<String>> index) {
+    withProjectedScan(projected -> projected ? search.get().elementsSubset(CONDITION_ELEMENTS) : search.get(), query -> {
+      try (FhirPageIterator pages = new FhirPageIterator(fhirClient, query, pageLookAhead)) {
+        while (pages.hasNext()) {
+          for (BundleEntryComponent entry : pages.next().getEntry()) {
+            if (!(entry.getResource() instanceof Condition))
+              continue;
+            Condition condition = (Condition) entry.getResource();
+            checkProjection(condition);
+            indexConditionCodes(index, condition);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Adds the ICD-10 codes of a Condition to the patient-keyed diagnosis index.
+   *
+   * @param index the index to add to
+   * @param condition a Condition resource
+   */
+  private static void indexConditionCodes(Map<String, Set<String>> index, Condition condition) {
+    if (!condition.hasSubject())
+      return;
+    Set<String> codes = index.computeIfAbsent(condition.getSubject().getReferenceElement().getIdPart(), id -> new HashSet<String>());
+    codes.addAll(extractIcd10Codes(condition));
+  }
+
+  /**
+   * Searches the Condition resources of a single patient and returns their ICD-10 codes.
+   *
+   * @param patient a Patient resource that has an ID element
+   * @return the ICD-10 codes of the patient's conditions
+   */
+  private List<String> searchConditionCodesForPatient(Patient patient) {
+    // Search for Condition resources by patient ID
+    Bundle bundle = withProjection(projected -> {
+      IQuery<IBaseBundle> search = fhirClient
         .search()
         .forResource(Condition.class)
-        .where(Condition.SUBJECT.hasId(patient.getIdElement()))
+        .where(Condition.SUBJECT.hasId(patient.getIdElement()));
+      if (projected)
+        search = search.elementsSubset(CONDITION_ELEMENTS);
+      return search
         .returnBundle(Bundle.class)
         .execute();
-      if (!bundle.hasEntry())
-        return conditionCodes;
+    });
 
-      // Create a stream of Condition resources from the Bundle
-      Stream<Condition> conditionStream = bundle.getEntry().stream()
-        // Map the bundle entries to Condition resources
-        .map(entry -> (Condition) entry.getResource());
-
-      // Loop over the Condition resources
-      conditionStream.forEach(condition -> {
-        // Get the code element of the Condition resource
-        CodeableConcept code = condition.getCode();
-        // Get the list of coding elements from the code element
-        List<Coding> codings = code.getCoding();
-        // Loop over the coding elements
-        for (Coding coding : codings) {
-          // Check if the coding element has the system "http://hl7.org/fhir/sid/icd-10"
-          if (coding.getSystem().equals("http://hl7.org/fhir/sid/icd-10")) {
-            // Get the code value and the display value from the coding element
-            String codeValue = coding.getCode();
-            //String displayValue = coding.getDisplay();
-            conditionCodes.add(codeValue);
-          }
-        }
-      });
-    } catch (ResourceNotFoundException e) {
-      logger.error("extractConditionCodesFromPatient: could not find Condition, stack trace:\n" + Util.traceFromException(e));
+    return bundle.getEntry().stream()
+      // Map the bundle entries to Condition resources
+      .map(entry -> (Condition) entry.getResource())
+      .flatMap(condition -> extractIcd10Codes(condition).stream())
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Gets the code values of all codings of a Condition with the system
+   * "http://hl7.org/fhir/sid/icd-10".
+   *
+   * @param condition the Condition resource
+   * @return the ICD-10 codes of the condition
+   */
+  private static List<String> extractIcd10Codes(Condition condition) {
+    List<String> conditionCodes = new ArrayList<String>();
+    // Loop over the coding elements of the code element
+    for (Coding coding : condition.getCode().getCoding()) {
+      // Check if the coding element has the system "http://hl7.org/fhir/sid/icd-10"
+      if (ICD_10_SYSTEM.equals(coding.getSystem()))
+        conditionCodes.add(coding.getCode());
     }
 
     return conditionCodes;
@@ -486,17 +1411,17 @@ public class FhirApi {
      * If no valid collection id can be found, returns null.
      *
      * @param defaultBbmriEricCollectionId the default collection id supplied by the site
-     * @param specimensByCollection a map of collection id to list of specimens
+     * @param collectionIds the collection ids found amongst the specimens
      * @return the default collection id, or null if none is found
      */
-  private BbmriEricId determineDefaultCollectionId(BbmriEricId defaultBbmriEricCollectionId, Map<String,List<Specimen>> specimensByCollection) {
+  private BbmriEricId determineDefaultCollectionId(BbmriEricId defaultBbmriEricCollectionId, Set<String> collectionIds) {
     logger.info("determineDefaultCollectionId: entered");
     logger.info("determineDefaultCollectionId: initial defaultBbmriEricCollectionId: " + defaultBbmriEricCollectionId);
 
     // If no default collection ID has been provided by the site, see if we can find a plausible value.
     // If there are no specimens with a collection ID, but there is a single collection,
     // then we can reasonably assume that the collection can be used as a default.
-    if (defaultBbmriEricCollectionId == null && specimensByCollection.size() == 1 && specimensByCollection.containsKey(DEFAULT_COLLECTION_ID)) {
+    if (defaultBbmriEricCollectionId == null && collectionIds.size() == 1 && collectionIds.contains(DEFAULT_COLLECTION_ID)) {
       logger.info("determineDefaultCollectionId: first conditional succeeded");
 
       Either<OperationOutcome, List<Organization>> collectionsOutcome = listAllCollections();
@@ -544,17 +1469,71 @@ public class FhirApi {
       return DEFAULT_COLLECTION_ID;
 
     // Pull the locally-used collection ID from the specimen extension.
-    String reference = ((Reference) extension.getValue()).getReference();
+    return resolveCollectionReference(((Reference) extension.getValue()).getReference());
+  }
+
+  /**
+   * Maps Custodian references, such as the collection strata of a MeasureReport, onto
+   * Directory collection IDs. The index of known collections is rebuilt first.
+   *
+   * References that are missing or that do not lead to a valid Directory collection ID
+   * are mapped onto DEFAULT_COLLECTION_ID.
+   *
+   * @param references references of the form "Organization/{id}", may contain null
+   * @return map of reference to Directory collection ID
+   */
+  Map<String, String> resolveCollectionReferences(Collection<String> references) {
+    collectionIdsByLocalId = fetchCollectionIdIndex();
+    Map<String, String> collectionIds = new HashMap<String, String>();
+    for (String reference : references)
+      collectionIds.put(reference, resolveCollectionReference(reference));
+    return collectionIds;
+  }
+
+  private String resolveCollectionReference(String reference) {
+    if (reference == null || !reference.startsWith("Organization/"))
+      return DEFAULT_COLLECTION_ID;
     String localCollectionId = reference.replaceFirst("Organization/", "");
 
-    String collectionId = extractValidDirectoryIdentifierFromCollection(
+    if (collectionIdsByLocalId == null)
+      collectionIdsByLocalId = new HashMap<String, String>();
+
+    // Only go to the FHIR server if the Organization was not amongst the known collections.
+    // The result is remembered, so that every unknown reference is read at most once.
+    return collectionIdsByLocalId.computeIfAbsent(localCollectionId, id ->
+        extractValidDirectoryIdentifierFromCollection(
             fhirClient
                     .read()
                     .resource(Organization.class)
-                    .withId(localCollectionId)
-                    .execute());
+                    .withId(id)
+                    .execute()));
+  }
 
-    return collectionId;
+  /**
+   * Builds an index of all Organizations with the collection profile, mapping the
+   * logical ID of each Organization onto its Directory collection ID. Collections
+   * without a valid Directory ID are mapped onto DEFAULT_COLLECTION_ID.
+   *
+   * If the collections cannot be listed, an empty index is returned and specimens
+   * will be resolved by reading their Custodian Organizations individually.
+   *
+   * @return map of local Organization ID to Directory collection ID
+   */
+  private Map<String, String> fetchCollectionIdIndex() {
+    Map<String, String> index = new HashMap<String, String>();
+
+    Either<OperationOutcome, List<Organization>> collectionsOutcome = listAllCollections();
+    if (collectionsOutcome.isLeft()) {
+      logger.warn("fetchCollectionIdIndex: could not list collections, falling back to individual reads");
+      return index;
+    }
+
+    for (Organization collection : collectionsOutcome.get())
+      index.put(collection.getIdElement().getIdPart(), extractValidDirectoryIdentifierFromCollection(collection));
+
+    logger.info("fetchCollectionIdIndex: indexed " + index.size() + " collections");
+
+    return index;
   }
 
   /**
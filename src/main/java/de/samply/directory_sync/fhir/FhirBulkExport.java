@@ -0,0 +1,323 @@
+package de.samply.directory_sync.fhir;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.ERROR;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import de.samply.directory_sync.Util;
+import io.vavr.control.Either;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retrieves resources from a FHIR server by means of a
+ * <a href="https://hl7.org/fhir/uv/bulkdata/export.html">Bulk Data export</a>.
+ * <p>
+ * The export is kicked off asynchronously, its status endpoint is polled until the
+ * server has finished, and the resulting NDJSON files are parsed line by line, so
+ * that no file ever needs to be held in memory as a whole. Once the files have been read,
+ * the export should be deleted on the server with {@link #deleteExport()}.
+ * <p>
+ * An export created with its own HTTP client should be closed when it is no longer needed.
+ */
+public class FhirBulkExport implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(FhirBulkExport.class);
+
+  private static final String FHIR_JSON = "application/fhir+json";
+  private static final String FHIR_NDJSON = "application/fhir+ndjson";
+  private static final long DEFAULT_RETRY_AFTER_MILLIS = 5000;
+  private static final long DEFAULT_MAX_WAIT_MILLIS = 6 * 60 * 60 * 1000;
+
+  private final FhirContext fhirContext;
+  private final CloseableHttpClient httpClient;
+  // True if the HTTP client was created by this object, which then has to close it.
+  private final boolean ownsHttpClient;
+  private final String exportUrl;
+
+  // Access token sent with the export requests, or null if the server needs none.
+  private String accessToken = null;
+
+  // The status URL of the current export, used to delete it.
+  private volatile String statusUrl = null;
+
+  // True if the manifest of the current export says that the output files can only be
+  // downloaded with the access token.
+  private volatile boolean requiresAccessToken = false;
+
+  // Maximum time to wait for the FHIR server to complete an export.
+  private long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+
+  /**
+   * Creates a system level export for the FHIR server at {@code serverBase}.
+   *
+   * @param fhirContext the context used for parsing the exported resources
+   * @param serverBase  the base URL of the FHIR server
+   */
+  public FhirBulkExport(FhirContext fhirContext, String serverBase) {
+    this(fhirContext, HttpClients.createDefault(), true, serverBase, null);
+  }
+
+  /**
+   * Creates an export for the FHIR server at {@code serverBase}.
+   *
+   * @param fhirContext the context used for parsing the exported resources
+   * @param httpClient  the client used to talk to the FHIR server
+   * @param serverBase  the base URL of the FHIR server
+   * @param groupId     the logical ID of the Group to export, or null for a system level export
+   */
+  public FhirBulkExport(FhirContext fhirContext, CloseableHttpClient httpClient, String serverBase, String groupId) {
+    this(fhirContext, httpClient, false, serverBase, groupId);
+  }
+
+  private FhirBulkExport(FhirContext fhirContext, CloseableHttpClient httpClient, boolean ownsHttpClient,
+      String serverBase, String groupId) {
+    this.fhirContext = Objects.requireNonNull(fhirContext);
+    this.httpClient = Objects.requireNonNull(httpClient);
+    this.ownsHttpClient = ownsHttpClient;
+    String base = serverBase.replaceFirst("/*$", "");
+    this.exportUrl = groupId == null ? base + "/$export" : base + "/Group/" + groupId + "/$export";
+  }
+
+  /**
+   * Returns true if this is a Group level export. Such exports only contain resources
+   * from the Patient compartment, so e.g. Organizations cannot be exported.
+   */
+  public boolean isGroupExport() {
+    return exportUrl.contains("/Group/");
+  }
+
+  /**
+   * Sets the maximum time to wait for the FHIR server to complete an export.
+   *
+   * @param maxWaitMillis the maximum time in milliseconds
+   */
+  public void setMaxWaitMillis(long maxWaitMillis) {
+    this.maxWaitMillis = maxWaitMillis;
+  }
+
+  /**
+   * Sets the access token sent as a bearer token with the export requests. It is only
+   * sent with the downloads of the output files if the export manifest requires it.
+   *
+   * @param accessToken the access token, or null if the FHIR server needs none
+   */
+  public void setAccessToken(String accessToken) {
+    this.accessToken = accessToken;
+  }
+
+  /**
+   * Exports the resources of the given types and waits until the export is complete.
+   *
+   * @param types the resource types to export, e.g. "Specimen"
+   * @return either the URLs of the NDJSON output files, keyed by resource type, or an
+   * OperationOutcome describing the problem
+   */
+  public Either<OperationOutcome, Map<String, List<String>>> export(List<String> types) {
+    try {
+      Either<OperationOutcome, String> statusUrl = kickOff(types);
+      if (statusUrl.isLeft())
+        return Either.left(statusUrl.getLeft());
+      return pollStatus(statusUrl.get());
+    } catch (IOException e) {
+      return Either.left(error("export", Util.traceFromException(e)));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Either.left(error("export", "interrupted while waiting for the export"));
+    }
+  }
+
+  private Either<OperationOutcome, String> kickOff(List<String> types) throws IOException {
+    HttpGet request = new HttpGet(exportUrl + "?_type=" + String.join(",", types));
+    request.setHeader("Accept", FHIR_JSON);
+    request.setHeader("Prefer", "respond-async");
+    authorize(request);
+
+    logger.info("kickOff: starting export: " + request.getURI());
+
+    try (CloseableHttpResponse response = httpClient.execute(request)) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), UTF_8);
+      Header contentLocation = response.getFirstHeader("Content-Location");
+      if (statusCode != 202 || contentLocation == null)
+        return Either.left(error("kick-off", "status code " + statusCode + ", " + body));
+      statusUrl = contentLocation.getValue();
+      return Either.right(statusUrl);
+    }
+  }
+
+  private Either<OperationOutcome, Map<String, List<String>>> pollStatus(String statusUrl)
+      throws IOException, InterruptedException {
+    long deadline = System.currentTimeMillis() + maxWaitMillis;
+    while (true) {
+      HttpGet request = new HttpGet(statusUrl);
+      request.setHeader("Accept", "application/json");
+      authorize(request);
+
+      long retryAfterMillis;
+      try (CloseableHttpResponse response = httpClient.execute(request)) {
+        int statusCode = response.getStatusLine().getStatusCode();
+        String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), UTF_8);
+        if (statusCode == 200) {
+          JsonObject manifest = JsonParser.parseString(body).getAsJsonObject();
+          requiresAccessToken = manifest.has("requiresAccessToken") && manifest.get("requiresAccessToken").getAsBoolean();
+          if (requiresAccessToken && accessToken == null)
+            logger.warn("pollStatus: the output files require an access token, but none has been set");
+          return Either.right(parseManifest(manifest));
+        }
+        if (statusCode != 202)
+          return Either.left(error("status", "status code " + statusCode + ", " + body));
+
+        Header progress = response.getFirstHeader("X-Progress");
+        logger.info("pollStatus: export in progress" + (progress == null ? "" : ": " + progress.getValue()));
+        retryAfterMillis = parseRetryAfter(response.getFirstHeader("Retry-After"));
+      }
+
+      if (System.currentTimeMillis() + retryAfterMillis > deadline) {
+        // Cancel the export, so that the server does not keep working on it.
+        deleteExport();
+        return Either.left(error("status", "export not complete after " + maxWaitMillis + " ms"));
+      }
+      Thread.sleep(retryAfterMillis);
+    }
+  }
+
+  /**
+   * Parses the Retry-After header, which contains either a number of seconds or an HTTP date.
+   */
+  private static long parseRetryAfter(Header retryAfter) {
+    if (retryAfter == null)
+      return DEFAULT_RETRY_AFTER_MILLIS;
+    String value = retryAfter.getValue().trim();
+    try {
+      return Math.max(0, Long.parseLong(value) * 1000);
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(value);
+      if (date == null)
+        return DEFAULT_RETRY_AFTER_MILLIS;
+      return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+  }
+
+  private static Map<String, List<String>> parseManifest(JsonObject manifest) {
+    Map<String, List<String>> files = new LinkedHashMap<String, List<String>>();
+    if (manifest.has("output"))
+      for (JsonElement output : manifest.getAsJsonArray("output")) {
+        String type = output.getAsJsonObject().get("type").getAsString();
+        String url = output.getAsJsonObject().get("url").getAsString();
+        files.computeIfAbsent(type, t -> new ArrayList<String>()).add(url);
+      }
+
+    logger.info("parseManifest: export complete, files per type: " + files);
+
+    return files;
+  }
+
+  /**
+   * Streams the resources in the given NDJSON output files to the consumer, one line at a time.
+   *
+   * @param urls     the URLs of the output files, as returned by the last call of {@link #export}
+   * @param type     the type of the resources in the files
+   * @param consumer receives each resource
+   * @return either nothing, or an OperationOutcome describing the problem
+   */
+  public <T extends IBaseResource> Either<OperationOutcome, Void> readResources(List<String> urls, Class<T> type,
+      Consumer<T> consumer) {
+    IParser parser = fhirContext.newJsonParser();
+    for (String url : urls) {
+      HttpGet request = new HttpGet(url);
+      request.setHeader("Accept", FHIR_NDJSON);
+      // The token must not be sent if it is not required, the files may be on another host.
+      if (requiresAccessToken)
+        authorize(request);
+
+      try (CloseableHttpResponse response = httpClient.execute(request)) {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode != 200)
+          return Either.left(error("output file " + url, "status code " + statusCode));
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), UTF_8))) {
+          String line;
+          while ((line = reader.readLine()) != null)
+            if (!line.trim().isEmpty())
+              consumer.accept(parser.parseResource(type, line));
+        }
+      } catch (Exception e) {
+        return Either.left(error("output file " + url, Util.traceFromException(e)));
+      }
+    }
+
+    return Either.right(null);
+  }
+
+  /**
+   * Deletes the current export on the FHIR server, i.e. its output files, or cancels it
+   * if it has not completed yet. Does nothing if there is no current export.
+   *
+   * @return either nothing, or an OperationOutcome describing the problem
+   */
+  public Either<OperationOutcome, Void> deleteExport() {
+    String url = statusUrl;
+    if (url == null)
+      return Either.right(null);
+    statusUrl = null;
+
+    HttpDelete request = new HttpDelete(url);
+    authorize(request);
+    try (CloseableHttpResponse response = httpClient.execute(request)) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      EntityUtils.consumeQuietly(response.getEntity());
+      if (statusCode >= 300)
+        return Either.left(error("delete", "status code " + statusCode));
+      return Either.right(null);
+    } catch (IOException e) {
+      return Either.left(error("delete", Util.traceFromException(e)));
+    }
+  }
+
+  /**
+   * Closes the HTTP client, if it was created by this object.
+   */
+  @Override
+  public void close() throws IOException {
+    if (ownsHttpClient)
+      httpClient.close();
+  }
+
+  private void authorize(HttpRequestBase request) {
+    if (accessToken != null)
+      request.setHeader("Authorization", "Bearer " + accessToken);
+  }
+
+  private static OperationOutcome error(String action, String message) {
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue().setSeverity(ERROR).setDiagnostics(String.format("Error in FHIR bulk export for %s, cause: %s", action, message));
+    return outcome;
+  }
+}
@@ -0,0 +1,421 @@
+package de.samply.directory_sync.fhir;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.ERROR;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IClientExecutable;
+import de.samply.directory_sync.Util;
+import io.vavr.control.Either;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Specimen;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Follows the Specimen, Patient and Condition resources of a FHIR store by means of the
+ * FHIR {@code _history} change feed, so that a run can tell which collections are affected
+ * by the changes since the last committed run.
+ * <p>
+ * Only the keys needed to map a change onto collections are kept: the Custodian and donor
+ * of each Specimen, and the Patient each Condition refers to. The resources themselves
+ * stay on the FHIR server, from where the affected collections are read again. On the
+ * first run, the keys are filled by searching all Specimens and Conditions. Later runs
+ * only fetch the changes (including deletions) since the watermark of the last committed
+ * run.
+ * <p>
+ * The state lives in a directory with three files: {@code specimens.tsv} and
+ * {@code conditions.tsv} hold the keys, one resource per line, and {@code watermark} the
+ * instant from which the next run reads the history. Changes pulled by {@link #pull()}
+ * are only written there by {@link #commit()}, so a run that fails later on will be
+ * repeated in full the next time. Every pull starts again from the committed state, so a
+ * run repeated in the same process sees the same changes, e.g. the previous collection of
+ * a moved specimen.
+ */
+public class FhirChangeFeed {
+
+  private static final Logger logger = LoggerFactory.getLogger(FhirChangeFeed.class);
+
+  private static final String SPECIMENS_FILE = "specimens.tsv";
+  private static final String CONDITIONS_FILE = "conditions.tsv";
+  private static final String WATERMARK_FILE = "watermark";
+  private static final String CUSTODIAN_URI = "https://fhir.bbmri.de/StructureDefinition/Custodian";
+  private static final int PAGE_SIZE = 500;
+  private static final int PAGE_LOOK_AHEAD = 2;
+
+  // The watermark is moved back by this amount, to allow for clock skew between this
+  // machine and the FHIR server. Changes seen twice are simply applied twice.
+  static final Duration SAFETY_MARGIN = Duration.ofMinutes(5);
+
+  private final IGenericClient fhirClient;
+  private final Path stateDirectory;
+
+  private Map<String, SpecimenKey> specimens = null;
+  // Maps the logical ID of each Condition onto the logical ID of its Patient.
+  private Map<String, String> conditionPatientIds = null;
+  private Instant watermark = null;
+  private Instant pendingWatermark = null;
+
+  // Logical IDs of the specimens of each patient, built on demand.
+  private Map<String, List<String>> specimenIdsByPatientId = null;
+
+  /**
+   * @param fhirClient     the client for the FHIR store to follow
+   * @param stateDirectory the directory holding the persisted state
+   */
+  public FhirChangeFeed(IGenericClient fhirClient, Path stateDirectory) {
+    this.fhirClient = Objects.requireNonNull(fhirClient);
+    this.stateDirectory = Objects.requireNonNull(stateDirectory);
+  }
+
+  /**
+   * The keys of a Specimen that determine which collection it counts towards.
+   */
+  public static class SpecimenKey {
+    private final String id;
+    private final String custodian;
+    private final String patientId;
+
+    SpecimenKey(String id, String custodian, String patientId) {
+      this.id = id;
+      this.custodian = custodian;
+      this.patientId = patientId;
+    }
+
+    /**
+     * Returns the logical ID of the Specimen.
+     */
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * Returns the reference to the Custodian collection, e.g. "Organization/col-a", or null.
+     */
+    public String getCustodian() {
+      return custodian;
+    }
+
+    /**
+     * Returns the logical ID of the donor, or null.
+     */
+    public String getPatientId() {
+      return patientId;
+    }
+  }
+
+  /**
+   * The changes pulled by a single run.
+   */
+  public static class ChangeSet {
+    private final boolean fullLoad;
+    private final List<SpecimenKey> changedSpecimens;
+    private final Set<String> changedPatientIds;
+
+    private ChangeSet(boolean fullLoad, List<SpecimenKey> changedSpecimens, Set<String> changedPatientIds) {
+      this.fullLoad = fullLoad;
+      this.changedSpecimens = changedSpecimens;
+      this.changedPatientIds = changedPatientIds;
+    }
+
+    /**
+     * Returns true if there was no previous state, so that everything has been loaded.
+     */
+    public boolean isFullLoad() {
+      return fullLoad;
+    }
+
+    /**
+     * Returns the keys of the previous and the current version of every specimen that has
+     * been created, updated or deleted.
+     */
+    public List<SpecimenKey> getChangedSpecimens() {
+      return changedSpecimens;
+    }
+
+    /**
+     * Returns the logical IDs of patients that have changed, or whose conditions have changed.
+     */
+    public Set<String> getChangedPatientIds() {
+      return changedPatientIds;
+    }
+  }
+
+  /**
+   * Brings the keys up to date with the FHIR store, starting from the committed state.
+   * Changes pulled earlier but not committed are pulled again.
+   *
+   * @return either the changes since the last committed run, or an OperationOutcome describing the problem
+   */
+  public Either<OperationOutcome, ChangeSet> pull() {
+    try {
+      loadState();
+
+      // Everything changed after this instant will be picked up by the next run.
+      pendingWatermark = Instant.now().minus(SAFETY_MARGIN);
+
+      ChangeSet changeSet = watermark == null ? loadAll() : loadChanges();
+      specimenIdsByPatientId = null;
+
+      logger.info("pull: " + changeSet.getChangedSpecimens().size() + " changed specimen versions, "
+          + changeSet.getChangedPatientIds().size() + " changed patients");
+
+      return Either.right(changeSet);
+    } catch (Exception e) {
+      return Either.left(error("pull", Util.traceFromException(e)));
+    }
+  }
+
+  /**
+   * Persists the keys together with the new watermark. Call this once the changes
+   * returned by {@link #pull()} have been successfully processed.
+   *
+   * @return either nothing, or an OperationOutcome describing the problem
+   */
+  public Either<OperationOutcome, Void> commit() {
+    if (pendingWatermark == null)
+      return Either.right(null);
+    try {
+      Files.createDirectories(stateDirectory);
+
+      // Write to temporary files first, so that an interrupted commit leaves the old state intact.
+      Path specimensTmp = stateDirectory.resolve(SPECIMENS_FILE + ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(specimensTmp, UTF_8)) {
+        for (SpecimenKey key : specimens.values())
+          writeLine(writer, key.getId(), key.getCustodian(), key.getPatientId());
+      }
+      Path conditionsTmp = stateDirectory.resolve(CONDITIONS_FILE + ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(conditionsTmp, UTF_8)) {
+        for (Map.Entry<String, String> condition : conditionPatientIds.entrySet())
+          writeLine(writer, condition.getKey(), condition.getValue());
+      }
+      Path watermarkTmp = stateDirectory.resolve(WATERMARK_FILE + ".tmp");
+      Files.write(watermarkTmp, pendingWatermark.toString().getBytes(UTF_8));
+
+      Files.move(specimensTmp, stateDirectory.resolve(SPECIMENS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      Files.move(conditionsTmp, stateDirectory.resolve(CONDITIONS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      Files.move(watermarkTmp, stateDirectory.resolve(WATERMARK_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+      watermark = pendingWatermark;
+      pendingWatermark = null;
+
+      logger.info("commit: state saved, watermark: " + watermark);
+
+      return Either.right(null);
+    } catch (IOException e) {
+      return Either.left(error("commit", Util.traceFromException(e)));
+    }
+  }
+
+  /**
+   * Returns the keys of all specimens in the FHIR store.
+   */
+  public Collection<SpecimenKey> getSpecimens() {
+    return specimens == null ? Collections.emptyList() : specimens.values();
+  }
+
+  /**
+   * Returns the keys of the specimens donated by the given patient.
+   *
+   * @param patientId the logical ID of the patient
+   */
+  public List<SpecimenKey> getSpecimensOfPatient(String patientId) {
+    if (specimenIdsByPatientId == null) {
+      specimenIdsByPatientId = new HashMap<String, List<String>>();
+      for (SpecimenKey key : getSpecimens())
+        if (key.getPatientId() != null)
+          specimenIdsByPatientId.computeIfAbsent(key.getPatientId(), id -> new ArrayList<String>()).add(key.getId());
+    }
+
+    List<SpecimenKey> result = new ArrayList<SpecimenKey>();
+    for (String specimenId : specimenIdsByPatientId.getOrDefault(patientId, Collections.emptyList()))
+      result.add(specimens.get(specimenId));
+    return result;
+  }
+
+  private void loadState() throws IOException {
+    specimens = new HashMap<String, SpecimenKey>();
+    conditionPatientIds = new HashMap<String, String>();
+    watermark = null;
+
+    Path specimensFile = stateDirectory.resolve(SPECIMENS_FILE);
+    Path conditionsFile = stateDirectory.resolve(CONDITIONS_FILE);
+    Path watermarkFile = stateDirectory.resolve(WATERMARK_FILE);
+    if (!Files.exists(specimensFile) || !Files.exists(conditionsFile) || !Files.exists(watermarkFile)) {
+      logger.info("loadState: no previous state in " + stateDirectory);
+      return;
+    }
+
+    try (BufferedReader reader = Files.newBufferedReader(specimensFile, UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null)
+        if (!line.isEmpty()) {
+          String[] fields = readLine(line, 3);
+          specimens.put(fields[0], new SpecimenKey(fields[0], fields[1], fields[2]));
+        }
+    }
+    try (BufferedReader reader = Files.newBufferedReader(conditionsFile, UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null)
+        if (!line.isEmpty()) {
+          String[] fields = readLine(line, 2);
+          conditionPatientIds.put(fields[0], fields[1]);
+        }
+    }
+    watermark = Instant.parse(new String(Files.readAllBytes(watermarkFile), UTF_8).trim());
+
+    logger.info("loadState: loaded keys of " + specimens.size() + " specimens and " + conditionPatientIds.size()
+        + " conditions, watermark: " + watermark);
+  }
+
+  private ChangeSet loadAll() {
+    logger.info("loadAll: loading the keys of all resources from the FHIR store");
+
+    readPages(fhirClient.search().forResource(Specimen.class).count(PAGE_SIZE).returnBundle(Bundle.class), (id, resource) -> put(resource));
+    readPages(fhirClient.search().forResource(Condition.class).count(PAGE_SIZE).returnBundle(Bundle.class), (id, resource) -> put(resource));
+
+    return new ChangeSet(true, new ArrayList<SpecimenKey>(specimens.values()), new HashSet<String>());
+  }
+
+  private ChangeSet loadChanges() {
+    logger.info("loadChanges: loading changes since " + watermark);
+
+    List<SpecimenKey> changedSpecimens = new ArrayList<SpecimenKey>();
+    Set<String> changedPatientIds = new HashSet<String>();
+
+    for (Map.Entry<String, Resource> change : readHistory(Specimen.class).entrySet()) {
+      SpecimenKey previous = specimens.remove(change.getKey());
+      if (previous != null)
+        changedSpecimens.add(previous);
+      if (change.getValue() != null)
+        changedSpecimens.add(put(change.getValue()));
+    }
+
+    changedPatientIds.addAll(readHistory(Patient.class).keySet());
+
+    for (Map.Entry<String, Resource> change : readHistory(Condition.class).entrySet()) {
+      String previousPatientId = conditionPatientIds.remove(change.getKey());
+      if (previousPatientId != null)
+        changedPatientIds.add(previousPatientId);
+      if (change.getValue() != null) {
+        put(change.getValue());
+        String patientId = conditionPatientIds.get(change.getKey());
+        if (patientId != null)
+          changedPatientIds.add(patientId);
+      }
+    }
+
+    return new ChangeSet(false, changedSpecimens, changedPatientIds);
+  }
+
+  /**
+   * Reads the history of a resource type since the watermark.
+   *
+   * @return the latest version of each changed resource, keyed by logical ID, or null for deleted resources
+   */
+  private Map<String, Resource> readHistory(Class<? extends Resource> type) {
+    Map<String, Resource> changes = new LinkedHashMap<String, Resource>();
+    readPages(fhirClient.history().onType(type).returnBundle(Bundle.class).since(Date.from(watermark)).count(PAGE_SIZE),
+        (id, resource) -> {
+          // History bundles list the newest version of a resource first.
+          if (!changes.containsKey(id))
+            changes.put(id, resource);
+        });
+
+    logger.info("readHistory: " + changes.size() + " changed " + type.getSimpleName() + " resources");
+
+    return changes;
+  }
+
+  private interface EntryConsumer {
+    void accept(String id, Resource resource);
+  }
+
+  private void readPages(IClientExecutable<?, Bundle> query, EntryConsumer consumer) {
+    try (FhirPageIterator pages = new FhirPageIterator(fhirClient, query, PAGE_LOOK_AHEAD)) {
+      while (pages.hasNext())
+        for (BundleEntryComponent entry : pages.next().getEntry()) {
+          if (entry.hasRequest() && entry.getRequest().getMethod() == HTTPVerb.DELETE) {
+            String url = entry.getRequest().hasUrl() ? entry.getRequest().getUrl() : entry.getFullUrl();
+            consumer.accept(new IdType(url).getIdPart(), null);
+          } else if (entry.getResource() != null)
+            consumer.accept(entry.getResource().getIdElement().getIdPart(), entry.getResource());
+        }
+    }
+  }
+
+  /**
+   * Stores the keys of a Specimen or Condition.
+   *
+   * @return the keys of a Specimen, otherwise null
+   */
+  private SpecimenKey put(Resource resource) {
+    String id = resource.getIdElement().getIdPart();
+    if (resource instanceof Specimen) {
+      Specimen specimen = (Specimen) resource;
+      Extension custodian = specimen.getExtensionByUrl(CUSTODIAN_URI);
+      SpecimenKey key = new SpecimenKey(id,
+          custodian != null && custodian.getValue() instanceof Reference ? ((Reference) custodian.getValue()).getReference() : null,
+          specimen.hasSubject() ? specimen.getSubject().getReferenceElement().getIdPart() : null);
+      specimens.put(id, key);
+      return key;
+    }
+    if (resource instanceof Condition && ((Condition) resource).hasSubject())
+      conditionPatientIds.put(id, ((Condition) resource).getSubject().getReferenceElement().getIdPart());
+    return null;
+  }
+
+  // Logical IDs and references cannot contain tabs, missing values are written as empty fields.
+
+  private static void writeLine(BufferedWriter writer, String... fields) throws IOException {
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0)
+        writer.write('\t');
+      if (fields[i] != null)
+        writer.write(fields[i]);
+    }
+    writer.newLine();
+  }
+
+  private static String[] readLine(String line, int fieldCount) {
+    String[] fields = line.split("\t", -1);
+    String[] result = new String[fieldCount];
+    for (int i = 0; i < fieldCount; i++)
+      result[i] = i < fields.length && !fields[i].isEmpty() ? fields[i] : null;
+    return result;
+  }
+
+  private static OperationOutcome error(String action, String message) {
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue().setSeverity(ERROR).setDiagnostics(String.format("Error in FHIR change feed for %s, cause: %s", action, message));
+    return outcome;
+  }
+}
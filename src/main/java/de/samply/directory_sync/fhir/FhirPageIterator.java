@@ -0,0 +1,142 @@
+package de.samply.directory_sync.fhir;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IClientExecutable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterates over the pages of a FHIR search or history result.
+ * <p>
+ * The pages are fetched on a background thread, which runs ahead of the consumer by at
+ * most {@code lookAhead} pages. This lets network latency and parsing of the next page
+ * overlap with the processing of the current one, while keeping the number of pages held
+ * in memory bounded.
+ * <p>
+ * Exceptions and errors raised while fetching a page are rethrown to the consumer by {@link #hasNext()}
+ * or {@link #next()}. The iterator should be closed if it is abandoned before the last
+ * page has been consumed, so that the background thread stops fetching.
+ */
+public class FhirPageIterator implements Iterator<Bundle>, AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(FhirPageIterator.class);
+
+  // Marks the end of the search result in the page queue.
+  private static final Object END = new Object();
+
+  private final BlockingQueue<Object> pages;
+  private final ExecutorService executor;
+  private Object nextPage = null;
+  private boolean finished = false;
+
+  /**
+   * Starts fetching the pages of {@code query} in the background.
+   *
+   * @param fhirClient the client used to load the follow-up pages
+   * @param query      the search or history query producing the first page
+   * @param lookAhead  the maximum number of pages fetched ahead of the consumer, at least 1
+   */
+  public FhirPageIterator(IGenericClient fhirClient, IClientExecutable<?, Bundle> query, int lookAhead) {
+    if (lookAhead < 1)
+      throw new IllegalArgumentException("lookAhead must be at least 1, but was " + lookAhead);
+    this.pages = new ArrayBlockingQueue<Object>(lookAhead);
+    this.executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "fhir-page-prefetch");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.executor.execute(() -> fetchPages(fhirClient, query));
+  }
+
+  private void fetchPages(IGenericClient fhirClient, IClientExecutable<?, Bundle> query) {
+    try {
+      Bundle bundle = query.execute();
+      while (bundle != null) {
+        pages.put(bundle);
+        if (bundle.getLink(Bundle.LINK_NEXT) != null)
+          bundle = fhirClient.loadPage().next(bundle).execute();
+        else
+          bundle = null;
+      }
+      pages.put(END);
+    } catch (InterruptedException e) {
+      // The iterator has been closed, stop fetching.
+      Thread.currentThread().interrupt();
+    } catch (Throwable e) {
+      // Errors are passed on as well, otherwise the consumer would wait forever.
+      logger.warn("fetchPages: problem fetching page: " + e);
+      try {
+        pages.put(new Failure(e));
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Ends the page queue when fetching a page failed.
+   */
+  private static class Failure {
+
+    private final Throwable cause;
+
+    Failure(Throwable cause) {
+      this.cause = cause;
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (finished)
+      return false;
+    if (nextPage == null) {
+      try {
+        nextPage = pages.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        close();
+        throw new IllegalStateException("interrupted while waiting for the next page", e);
+      }
+    }
+    if (nextPage == END) {
+      close();
+      return false;
+    }
+    if (nextPage instanceof Failure) {
+      Throwable cause = ((Failure) nextPage).cause;
+      close();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IllegalStateException("problem fetching page", cause);
+    }
+    return true;
+  }
+
+  @Override
+  public Bundle next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    Bundle bundle = (Bundle) nextPage;
+    nextPage = null;
+    return bundle;
+  }
+
+  /**
+   * Stops the background thread. Pages that have not been consumed yet are discarded.
+   */
+  @Override
+  public void close() {
+    finished = true;
+    executor.shutdownNow();
+    pages.clear();
+  }
+}
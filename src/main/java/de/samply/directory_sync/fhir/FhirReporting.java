@@ -23,9 +23,12 @@ import java.io.InputStream;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
@@ -40,7 +43,9 @@ import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupComponent;
 import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupComponent;
+import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupComponentComponent;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Organization;
 import org.hl7.fhir.r4.model.Patient;
@@ -60,8 +65,19 @@ public class FhirReporting {
 
   private static final String LIBRARY_URI = "https://fhir.bbmri.de/Library/collection-size";
   private static final String MEASURE_URI = "https://fhir.bbmri.de/Measure/collection-size";
+  private static final String ATTRIBUTES_LIBRARY_URI = "https://fhir.bbmri.de/Library/collection-attributes";
+  private static final String ATTRIBUTES_MEASURE_URI = "https://fhir.bbmri.de/Measure/collection-attributes";
+  private static final String DONORS_LIBRARY_URI = "https://fhir.bbmri.de/Library/collection-donors";
+  private static final String DONORS_MEASURE_URI = "https://fhir.bbmri.de/Measure/collection-donors";
+  private static final String STAR_MODEL_LIBRARY_URI = "https://fhir.bbmri.de/Library/star-model";
+  private static final String STAR_MODEL_MEASURE_URI = "https://fhir.bbmri.de/Measure/star-model";
+  private static final List<String> ATTRIBUTE_GROUPS = Arrays.asList("materials", "storage-temperatures", "diagnoses");
+  // Separates the values of a multi-valued stratifier, which CQL joins into a single value.
+  private static final String VALUE_SEPARATOR = "\\|";
   private static final String STORAGE_TEMPERATURE_URI = "https://fhir.bbmri.de/StructureDefinition/StorageTemperature";
   private static final String SAMPLE_DIAGNOSIS_URI = "https://fhir.bbmri.de/StructureDefinition/SampleDiagnosis";
+  // Number of donors whose condition codes are looked up together in fetchDiagnoses.
+  private static final int DONOR_BATCH_SIZE = 500;
 
   private final FhirContext fhirContext;
   private final FhirApi fhirApi;
@@ -105,27 +121,48 @@ public class FhirReporting {
   }
 
   /**
-   * Tries to create Library and Measure resources if not present on the FHIR server.
+   * Tries to create the collection-size, collection-attributes, collection-donors and
+   * star-model Library resources if not present on the FHIR server.
    *
    * @return either an error or nothing
    */
   public Either<String, Void> initLibrary() {
     logger.info("initLibrary: entered");
-    return fhirApi.resourceExists(Library.class, LIBRARY_URI)
+    return initLibrary(LIBRARY_URI, "CollectionSize")
+        .flatMap(_void -> initLibrary(ATTRIBUTES_LIBRARY_URI, "CollectionAttributes"))
+        .flatMap(_void -> initLibrary(DONORS_LIBRARY_URI, "CollectionDonors"))
+        .flatMap(_void -> initLibrary(STAR_MODEL_LIBRARY_URI, "StarModel"));
+  }
+
+  private Either<String, Void> initLibrary(String uri, String name) {
+    return fhirApi.resourceExists(Library.class, uri)
         .flatMap(exists -> exists
             ? Either.right(null)
-            : slurp("CollectionSize.Library.json")
+            : slurp(name + ".Library.json")
                 .flatMap(s -> parseResource(Library.class, s))
-                .flatMap(this::appendCql)
+                .flatMap(library -> appendCql(library, name + ".cql"))
                 .flatMap(fhirApi::createResource));
   }
 
+  /**
+   * Tries to create the collection-size, collection-attributes and star-model Measure
+   * resources if not present on the FHIR server.
+   *
+   * @return either an error or nothing
+   */
   public Either<String, Void> initMeasure() {
     logger.info("initMeasure: entered");
-    return fhirApi.resourceExists(Measure.class, MEASURE_URI)
+    return initMeasure(MEASURE_URI, "CollectionSize")
+        .flatMap(_void -> initMeasure(ATTRIBUTES_MEASURE_URI, "CollectionAttributes"))
+        .flatMap(_void -> initMeasure(DONORS_MEASURE_URI, "CollectionDonors"))
+        .flatMap(_void -> initMeasure(STAR_MODEL_MEASURE_URI, "StarModel"));
+  }
+
+  private Either<String, Void> initMeasure(String uri, String name) {
+    return fhirApi.resourceExists(Measure.class, uri)
         .flatMap(exists -> exists
             ? Either.right(null)
-            : slurp("CollectionSize.Measure.json")
+            : slurp(name + ".Measure.json")
                 .flatMap(s -> parseResource(Measure.class, s))
                 .flatMap(fhirApi::createResource));
   }
@@ -157,8 +194,8 @@ public class FhirReporting {
     }
   }
 
-  private Either<String, Library> appendCql(Library library) {
-    return slurp("CollectionSize.cql").map(cql -> {
+  private Either<String, Library> appendCql(Library library, String name) {
+    return slurp(name).map(cql -> {
       library.getContentFirstRep().setContentType("text/cql");
       library.getContentFirstRep().setData(cql.getBytes(UTF_8));
       return library;
@@ -203,62 +240,322 @@ public class FhirReporting {
    * Pulls information relevant to collections from the FHIR store.
    * 
    * Returns a list of FhirCollection objects, one per collection.
+   *
+   * The counting is left to the FHIR server, by evaluating the
+   * <a href="https://fhir.bbmri.de/Measure/collection-attributes">collection-attributes</a>
+   * and <a href="https://fhir.bbmri.de/Measure/collection-donors">collection-donors</a>
+   * measures. If that fails, or if only the changes since the last run should be read, the
+   * specimens are streamed and aggregated locally instead.
    * 
    * @param defaultBbmriEricCollectionId
    * @return
    */
   public Either<OperationOutcome, List<FhirCollection>> fetchFhirCollections(BbmriEricId defaultBbmriEricCollectionId) {
-    Map<String,FhirCollection> fhirCollectionMap = new HashMap<String,FhirCollection>();
+    if (!fhirApi.hasChangeFeed()) {
+      Either<OperationOutcome, List<FhirCollection>> measured = fetchFhirCollectionsFromMeasure(defaultBbmriEricCollectionId);
+      if (measured.isRight())
+        return measured;
+      logger.warn("fetchFhirCollections: collection-attributes measure not usable, aggregating specimens locally: "
+          + measured.getLeft().getIssueFirstRep().getDiagnostics());
+    }
 
-    // Group specimens according to collection, extract aggregated information
-    // from each group, and put this information into FhirCollection objects.
-    Either<OperationOutcome, Map<String, List<Specimen>>> specimensByCollectionOutcome = fhirApi.fetchSpecimensByCollection(defaultBbmriEricCollectionId);
-    if (specimensByCollectionOutcome.isLeft())
+    // Aggregate the specimens and their donors per collection as they arrive, so
+    // that only one summary per collection needs to be kept in memory.
+    Map<String,CollectionAggregate> aggregates = new HashMap<String,CollectionAggregate>();
+    Either<OperationOutcome, Void> streamOutcome = fhirApi.streamSpecimensByCollection(defaultBbmriEricCollectionId,
+        (collectionId, specimen, patient) -> aggregates
+            .computeIfAbsent(collectionId, id -> new CollectionAggregate())
+            .add(specimen, patient));
+    if (streamOutcome.isLeft())
       return Either.left(createOutcomeWithError("fetchFhirCollections: Problem finding specimens"));
-    updateFhirCollectionsWithSpecimenData(fhirCollectionMap, specimensByCollectionOutcome.get());
 
-    // Group patients according to collection, extract aggregated information
-    // from each group, and put this information into FhirCollection objects.
-    Either<OperationOutcome, Map<String, List<Patient>>> patientsByCollectionOutcome = fhirApi.fetchPatientsByCollection(specimensByCollectionOutcome.get());
-    if (patientsByCollectionOutcome.isLeft()) 
-      return Either.left(createOutcomeWithError("Problem finding patients"));
-    updateFhirCollectionsWithPatientData(fhirCollectionMap, patientsByCollectionOutcome.get());
+    fhirApi.applyDefaultCollectionId(aggregates, defaultBbmriEricCollectionId, CollectionAggregate::merge);
+
+    List<FhirCollection> fhirCollections = new ArrayList<FhirCollection>();
+    for (String key: aggregates.keySet())
+      fhirCollections.add(aggregates.get(key).toFhirCollection(key));
 
-    return Either.right(new ArrayList<FhirCollection>(fhirCollectionMap.values()));
+    return Either.right(fhirCollections);
   }
 
-  private void updateFhirCollectionsWithSpecimenData(Map<String,FhirCollection> entities, Map<String, List<Specimen>> specimensByCollection) {
-      for (String key: specimensByCollection.keySet()) {
-          List<Specimen> specimenList = specimensByCollection.get(key);
-          FhirCollection fhirCollection = entities.getOrDefault(key, new FhirCollection());
-          fhirCollection.setId(key);
-          fhirCollection.setSize(specimenList.size());
-          fhirCollection.setMaterials(extractMaterialsFromSpecimenList(specimenList));
-          fhirCollection.setStorageTemperatures(extractStorageTemperaturesFromSpecimenList(specimenList));
-          fhirCollection.setDiagnosisAvailable(extractDiagnosesFromSpecimenList(specimenList));
-          entities.put(key, fhirCollection);
+  /**
+   * Builds the collections from the strata of the collection-attributes and
+   * collection-donors MeasureReports.
+   *
+   * Every Specimen, with or without a donor, is stratified by collection and one of material,
+   * storage temperatures or diagnoses. The latter two hold all codes of a specimen, joined
+   * into one value. Donors are stratified by collection, sex and age, where a donor counts in
+   * every collection they have specimens in. This gives the same collections as the local
+   * aggregation.
+   *
+   * @param defaultBbmriEricCollectionId
+   * @return
+   */
+  private Either<OperationOutcome, List<FhirCollection>> fetchFhirCollectionsFromMeasure(BbmriEricId defaultBbmriEricCollectionId) {
+    Either<OperationOutcome, MeasureReport> reportOutcome = fhirApi.evaluateMeasure(ATTRIBUTES_MEASURE_URI);
+    if (reportOutcome.isLeft())
+      return Either.left(reportOutcome.getLeft());
+
+    Either<OperationOutcome, MeasureReport> donorsOutcome = fhirApi.evaluateMeasure(DONORS_MEASURE_URI);
+    if (donorsOutcome.isLeft())
+      return Either.left(donorsOutcome.getLeft());
+
+    Map<String, List<StratifierGroupComponent>> strataByGroup = new HashMap<String, List<StratifierGroupComponent>>();
+    for (MeasureReport report : Arrays.asList(reportOutcome.get(), donorsOutcome.get()))
+      for (MeasureReportGroupComponent group : report.getGroup())
+        strataByGroup.computeIfAbsent(group.getCode().getText(), code -> new ArrayList<>())
+            .addAll(group.getStratifierFirstRep().getStratum());
+    if (!strataByGroup.keySet().containsAll(ATTRIBUTE_GROUPS) || !strataByGroup.containsKey("donors"))
+      return Either.left(createOutcomeWithError("fetchFhirCollectionsFromMeasure: MeasureReports lack some of the groups "
+          + ATTRIBUTE_GROUPS + " or donors"));
+
+    Set<String> references = strataByGroup.values().stream()
+        .flatMap(List::stream)
+        .map(stratum -> extractComponentValues(stratum).get("collection"))
+        .collect(Collectors.toCollection(HashSet::new));
+    Map<String, String> collectionIds = fhirApi.resolveCollectionReferences(references);
+
+    Map<String,CollectionAggregate> aggregates = new HashMap<String,CollectionAggregate>();
+    for (String groupCode : strataByGroup.keySet())
+      for (StratifierGroupComponent stratum : strataByGroup.get(groupCode)) {
+        int count = stratum.getPopulationFirstRep().getCount();
+        if (count == 0)
+          continue;
+        Map<String, String> values = extractComponentValues(stratum);
+        aggregates
+            .computeIfAbsent(collectionIds.get(values.get("collection")), id -> new CollectionAggregate())
+            .add(groupCode, values, count);
       }
+
+    fhirApi.applyDefaultCollectionId(aggregates, defaultBbmriEricCollectionId, CollectionAggregate::merge);
+
+    List<FhirCollection> fhirCollections = new ArrayList<FhirCollection>();
+    for (String key: aggregates.keySet())
+      fhirCollections.add(aggregates.get(key).toFhirCollection(key));
+
+    return Either.right(fhirCollections);
+  }
+
+  /**
+   * Splits the value of a multi-valued stratifier into the values that CQL joined.
+   *
+   * @return the values, empty if there are none
+   */
+  private static List<String> splitValues(String joinedValues) {
+    List<String> values = new ArrayList<String>();
+    if (joinedValues != null)
+      for (String value : joinedValues.split(VALUE_SEPARATOR))
+        if (!value.isEmpty())
+          values.add(value);
+    return values;
+  }
+
+  /**
+   * Maps the code text of each component of a stratum onto its value. Values that CQL
+   * evaluated to null are left out.
+   */
+  private static Map<String, String> extractComponentValues(StratifierGroupComponent stratum) {
+    Map<String, String> values = new HashMap<String, String>();
+    for (StratifierGroupComponentComponent component : stratum.getComponent()) {
+      String value = component.getValue().getText();
+      if (value != null && !value.equals("null"))
+        values.put(component.getCode().getText(), value);
+    }
+    return values;
   }
 
-  private void updateFhirCollectionsWithPatientData(Map<String,FhirCollection> entities, Map<String, List<Patient>> patientsByCollection) {
-      for (String key: patientsByCollection.keySet()) {
-          List<Patient> patientList = patientsByCollection.get(key);
-          FhirCollection fhirCollection = entities.getOrDefault(key, new FhirCollection());
-          fhirCollection.setNumberOfDonors(patientList.size());
-          fhirCollection.setSex(extractSexFromPatientList(patientList));
-          fhirCollection.setAgeLow(extractAgeLowFromPatientList(patientList));
-          fhirCollection.setAgeHigh(extractAgeHighFromPatientList(patientList));
-          entities.put(key, fhirCollection);
+  /**
+   * Running summary of the specimens and donors belonging to a single collection.
+   */
+  private class CollectionAggregate {
+    private int size = 0;
+    private final Set<String> materials = new LinkedHashSet<String>();
+    private final Set<String> storageTemperatures = new LinkedHashSet<String>();
+    private final Set<String> diagnoses = new LinkedHashSet<String>();
+    private final Set<String> patientIds = new HashSet<String>();
+    private int countedDonors = 0;
+    private final Set<String> sex = new LinkedHashSet<String>();
+    private int ageLow = Integer.MAX_VALUE;
+    private int ageHigh = Integer.MIN_VALUE;
+
+    private CollectionAggregate add(Specimen specimen, Patient patient) {
+      size++;
+      if (specimen.getType().hasCoding())
+        materials.add(specimen.getType().getCodingFirstRep().getCode());
+      storageTemperatures.addAll(fhirApi.extractExtensionElementValuesFromSpecimen(specimen, STORAGE_TEMPERATURE_URI));
+      diagnoses.addAll(fhirApi.extractExtensionElementValuesFromSpecimen(specimen, SAMPLE_DIAGNOSIS_URI));
+
+      if (patient != null && patientIds.add(patient.getIdElement().getIdPart())) {
+        sex.add(patient.getGenderElement().getValueAsString());
+        Integer age = determinePatientAge(patient);
+        if (age != null) {
+          ageLow = Math.min(ageLow, age);
+          ageHigh = Math.max(ageHigh, age);
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Adds a stratum of the collection-attributes MeasureReport.
+     */
+    private CollectionAggregate add(String groupCode, Map<String, String> values, int count) {
+      switch (groupCode) {
+        case "materials":
+          size += count;
+          addIfPresent(materials, values.get("material"));
+          break;
+        case "storage-temperatures":
+          addAllIfPresent(storageTemperatures, values.get("storage-temperature"));
+          break;
+        case "diagnoses":
+          addAllIfPresent(diagnoses, values.get("diagnosis"));
+          break;
+        case "donors":
+          countedDonors += count;
+          addIfPresent(sex, values.get("sex"));
+          if (values.containsKey("age")) {
+            int age = Integer.parseInt(values.get("age"));
+            ageLow = Math.min(ageLow, age);
+            ageHigh = Math.max(ageHigh, age);
+          }
+          break;
+        default:
+          break;
       }
+      return this;
+    }
+
+    private void addIfPresent(Set<String> set, String value) {
+      if (value != null)
+        set.add(value);
+    }
+
+    private void addAllIfPresent(Set<String> set, String joinedValues) {
+      set.addAll(splitValues(joinedValues));
+    }
+
+    private CollectionAggregate merge(CollectionAggregate other) {
+      size += other.size;
+      materials.addAll(other.materials);
+      storageTemperatures.addAll(other.storageTemperatures);
+      diagnoses.addAll(other.diagnoses);
+      patientIds.addAll(other.patientIds);
+      countedDonors += other.countedDonors;
+      sex.addAll(other.sex);
+      ageLow = Math.min(ageLow, other.ageLow);
+      ageHigh = Math.max(ageHigh, other.ageHigh);
+      return this;
+    }
+
+    private FhirCollection toFhirCollection(String id) {
+      FhirCollection fhirCollection = new FhirCollection();
+      fhirCollection.setId(id);
+      fhirCollection.setSize(size);
+      fhirCollection.setMaterials(new ArrayList<String>(materials));
+      fhirCollection.setStorageTemperatures(new ArrayList<String>(storageTemperatures));
+      fhirCollection.setDiagnosisAvailable(new ArrayList<String>(diagnoses));
+      fhirCollection.setNumberOfDonors(patientIds.size() + countedDonors);
+      fhirCollection.setSex(new ArrayList<String>(sex));
+      fhirCollection.setAgeLow(ageLow == Integer.MAX_VALUE ? -1 : ageLow);
+      fhirCollection.setAgeHigh(ageHigh == Integer.MIN_VALUE ? -1 : ageHigh);
+      return fhirCollection;
+    }
   }
 
+  /**
+   * Pulls the data needed for the star model from the FHIR store.
+   *
+   * The hypercube is counted by the FHIR server, by evaluating the
+   * <a href="https://fhir.bbmri.de/Measure/star-model">star-model</a> measure. If that fails,
+   * or if only the changes since the last run should be read, the specimens, donors and
+   * diagnoses are streamed and turned into input rows locally instead.
+   *
+   * @param defaultBbmriEricCollectionId
+   * @return
+   */
   public Either<OperationOutcome, StarModelData> fetchStarModelInputData(BbmriEricId defaultBbmriEricCollectionId) {
+      if (!fhirApi.hasChangeFeed()) {
+        Either<OperationOutcome, StarModelData> measured = fetchStarModelInputDataFromMeasure(defaultBbmriEricCollectionId);
+        if (measured.isRight())
+          return measured;
+        logger.warn("fetchStarModelInputData: star-model measure not usable, building input rows locally: "
+            + measured.getLeft().getIssueFirstRep().getDiagnostics());
+      }
+
       PopulateStarModelInputData populateStarModelInputData = new PopulateStarModelInputData(fhirApi);
       StarModelData starModelInputData = populateStarModelInputData.populate(defaultBbmriEricCollectionId);
 
       return Either.right(starModelInputData);
   }
   
+  /**
+   * Builds the star model from the strata of the star-model MeasureReport. The specimens of
+   * a cell of the hypercube are counted by the "specimens" group and its distinct donors by
+   * the "donors" group.
+   *
+   * As in the local path, a specimen counts for every diagnosis of itself and its donor. The
+   * diagnosis of a stratum holds all of these, joined into one value, so its count is added
+   * to the cell of each of them. Specimens without any diagnosis are left out.
+   *
+   * @param defaultBbmriEricCollectionId
+   * @return
+   */
+  private Either<OperationOutcome, StarModelData> fetchStarModelInputDataFromMeasure(BbmriEricId defaultBbmriEricCollectionId) {
+    Either<OperationOutcome, MeasureReport> reportOutcome = fhirApi.evaluateMeasure(STAR_MODEL_MEASURE_URI);
+    if (reportOutcome.isLeft())
+      return Either.left(reportOutcome.getLeft());
+
+    // Cell -> {number of donors, number of samples}
+    Map<Map<String, String>, int[]> counts = new HashMap<Map<String, String>, int[]>();
+    Set<String> groupCodes = new HashSet<String>();
+    for (MeasureReportGroupComponent group : reportOutcome.get().getGroup()) {
+      String groupCode = group.getCode().getText();
+      groupCodes.add(groupCode);
+      for (StratifierGroupComponent stratum : group.getStratifierFirstRep().getStratum()) {
+        Map<String, String> values = extractComponentValues(stratum);
+        for (String diagnosis : splitValues(values.get("diagnosis"))) {
+          Map<String, String> cell = new HashMap<String, String>(values);
+          cell.put("diagnosis", diagnosis);
+          int[] cellCounts = counts.computeIfAbsent(cell, c -> new int[2]);
+          if ("donors".equals(groupCode))
+            cellCounts[0] += stratum.getPopulationFirstRep().getCount();
+          else if ("specimens".equals(groupCode))
+            cellCounts[1] += stratum.getPopulationFirstRep().getCount();
+        }
+      }
+    }
+    if (!groupCodes.containsAll(Arrays.asList("specimens", "donors")))
+      return Either.left(createOutcomeWithError("fetchStarModelInputDataFromMeasure: MeasureReport lacks the specimens or donors group"));
+
+    Set<String> references = counts.keySet().stream()
+        .map(values -> values.get("collection"))
+        .collect(Collectors.toCollection(HashSet::new));
+    Map<String, String> collectionIds = fhirApi.resolveCollectionReferences(references);
+
+    StarModelData starModelInputData = new StarModelData();
+    Map<String, List<StarModelData.CountedRow>> rowsByCollection = new HashMap<String, List<StarModelData.CountedRow>>();
+    counts.forEach((values, cellCounts) -> {
+      if (cellCounts[1] == 0)
+        return;
+      rowsByCollection
+          .computeIfAbsent(collectionIds.get(values.get("collection")), id -> new ArrayList<StarModelData.CountedRow>())
+          .add(starModelInputData.newCountedRow(values.get("sex"), values.get("diagnosis"), values.get("age-range"),
+              values.get("material"), cellCounts[0], cellCounts[1]));
+    });
+
+    fhirApi.applyDefaultCollectionId(rowsByCollection, defaultBbmriEricCollectionId, (a, b) -> {
+      a.addAll(b);
+      return a;
+    });
+
+    for (String collectionId: rowsByCollection.keySet())
+      for (StarModelData.CountedRow row: rowsByCollection.get(collectionId))
+        starModelInputData.addCountedRow(collectionId, row);
+
+    return Either.right(starModelInputData);
+  }
+
   /**
    * Fetches diagnoses from Specimens and Patients to which collections can be assigned.
    *
@@ -274,94 +571,81 @@ public class FhirReporting {
    */
   public Either<OperationOutcome, List<String>> fetchDiagnoses(BbmriEricId defaultBbmriEricCollectionId) {
     logger.info("fetchDiagnoses: defaultBbmriEricCollectionId: " + defaultBbmriEricCollectionId);
-    // Group specimens according to collection.
-    Either<OperationOutcome, Map<String, List<Specimen>>> specimensByCollectionOutcome = fhirApi.fetchSpecimensByCollection(defaultBbmriEricCollectionId);
-    if (specimensByCollectionOutcome.isLeft())
+    // Collect diagnoses from Specimen extensions and Patient condition codes,
+    // grouped according to collection.
+    Map<String, Set<String>> diagnosesByCollection = new HashMap<String, Set<String>>();
+    // The condition codes of the donors are looked up in batches as the specimens arrive, so
+    // that they can be fetched in parallel without holding all donors in memory.
+    Set<String> seenPatientIds = new HashSet<String>();
+    Map<String, List<Patient>> pendingDonorsByCollection = new HashMap<String, List<Patient>>();
+    List<OperationOutcome> donorFailures = new ArrayList<OperationOutcome>();
+    Either<OperationOutcome, Void> streamOutcome = fhirApi.streamSpecimensByCollection(defaultBbmriEricCollectionId,
+        (collectionId, specimen, patient) -> {
+          diagnosesByCollection.computeIfAbsent(collectionId, id -> new LinkedHashSet<String>())
+              .addAll(fhirApi.extractDiagnosesFromSpecimen(specimen));
+          if (patient != null && seenPatientIds.add(collectionId + "/" + patient.getIdElement().getIdPart())) {
+            pendingDonorsByCollection.computeIfAbsent(collectionId, id -> new ArrayList<Patient>()).add(patient);
+            if (pendingDonorsByCollection.values().stream().mapToInt(List::size).sum() >= DONOR_BATCH_SIZE)
+              addDonorConditionCodes(diagnosesByCollection, pendingDonorsByCollection).peekLeft(donorFailures::add);
+          }
+        });
+    if (streamOutcome.isLeft())
       return Either.left(createOutcomeWithError("fetchDiagnoses: Problem finding specimens"));
-    Map<String, List<Specimen>> specimensByCollection = specimensByCollectionOutcome.get();
-
-    // Get diagnoses from Specimen extensions
-    List<String> diagnoses = specimensByCollection.values().stream()
-      .flatMap(List::stream)
-      .map(s -> fhirApi.extractDiagnosesFromSpecimen(s))
-      .flatMap(List::stream)
-      .distinct()
-      .collect(Collectors.toList());
+    addDonorConditionCodes(diagnosesByCollection, pendingDonorsByCollection).peekLeft(donorFailures::add);
+    if (!donorFailures.isEmpty()) {
+      OperationOutcome outcome = new OperationOutcome();
+      donorFailures.forEach(failure -> outcome.getIssue().addAll(failure.getIssue()));
+      return Either.left(outcome);
+    }
 
-    // Get diagnoses from Patients
-    Either<OperationOutcome, Map<String, List<Patient>>> patientsByCollectionOutcome = fhirApi.fetchPatientsByCollection(specimensByCollection);
-    Map<String, List<Patient>> patientsByCollection = patientsByCollectionOutcome.get();
-    List<String> patientDiagnoses = patientsByCollection.values().stream()
-      .flatMap(List::stream)
-      .map(s -> fhirApi.extractConditionCodesFromPatient(s))
-      .flatMap(List::stream)
-      .distinct()
-      .collect(Collectors.toList());
+    // Only keep diagnoses from specimens to which a collection can be assigned.
+    fhirApi.applyDefaultCollectionId(diagnosesByCollection, defaultBbmriEricCollectionId, (a, b) -> {
+      a.addAll(b);
+      return a;
+    });
 
-    // Combine diagnoses from specimens and patients, ensuring that there
+    // Combine diagnoses from all collections, ensuring that there
     // are no duplicates.
-    diagnoses = Stream.concat(diagnoses.stream(), patientDiagnoses.stream())
+    List<String> diagnoses = diagnosesByCollection.values().stream()
+      .flatMap(Set::stream)
       .distinct()
       .collect(Collectors.toList());
 
     return Either.right(diagnoses);
   }
 
+  /**
+   * Looks up the condition codes of a batch of donors and adds them to the diagnoses of the
+   * collections the donors were seen in. The batch is emptied afterwards.
+   *
+   * @param diagnosesByCollection the diagnoses to add to
+   * @param donorsByCollection the donors of the batch, by collection ID
+   * @return nothing, or an OperationOutcome for the donors whose conditions could not be searched
+   */
+  private Either<OperationOutcome, Void> addDonorConditionCodes(Map<String, Set<String>> diagnosesByCollection,
+                                                                Map<String, List<Patient>> donorsByCollection) {
+    Map<String, Patient> patientsById = new HashMap<String, Patient>();
+    for (List<Patient> donors : donorsByCollection.values())
+      for (Patient donor : donors)
+        patientsById.putIfAbsent(donor.getIdElement().getIdPart(), donor);
+
+    Either<OperationOutcome, Map<String, List<String>>> conditionCodes =
+        fhirApi.extractConditionCodesFromPatients(new ArrayList<Patient>(patientsById.values()));
+    if (conditionCodes.isRight())
+      for (Map.Entry<String, List<Patient>> entry : donorsByCollection.entrySet())
+        for (Patient donor : entry.getValue())
+          diagnosesByCollection.get(entry.getKey()).addAll(conditionCodes.get().get(donor.getIdElement().getIdPart()));
+    donorsByCollection.clear();
+
+    return conditionCodes.map(codes -> null);
+  }
+
   private OperationOutcome createOutcomeWithError(String message) {
       OperationOutcome outcome = new OperationOutcome();
       outcome.addIssue().setSeverity(ERROR).setDiagnostics(message);
       return outcome;
   }
 
-  private List<String> extractMaterialsFromSpecimenList(List<Specimen> specimens) {
-    return specimens.stream()
-            // Map each specimen to its type
-            .map(Specimen::getType)
-            // Map each CodeableConcept to its display name
-            .map(c -> c.getCoding().get(0).getCode())
-            // Collect the results into a non-duplicating list
-            .collect(Collectors.toSet()).stream().collect(Collectors.toList());
-  }
-
-  private List<String> extractStorageTemperaturesFromSpecimenList(List<Specimen> specimens) {
-    return fhirApi.extractExtensionElementValuesFromSpecimens(specimens, STORAGE_TEMPERATURE_URI);
-  }
-
-  private List<String> extractDiagnosesFromSpecimenList(List<Specimen> specimens) {
-    return fhirApi.extractExtensionElementValuesFromSpecimens(specimens, SAMPLE_DIAGNOSIS_URI);
-  }
-
-  private List<String> extractSexFromPatientList(List<Patient> patients) {
-    return patients.stream()
-            .filter(patient -> Objects.nonNull(patient.getGenderElement())) // Filter out patients with null gender
-            .map(patient -> patient.getGenderElement().getValueAsString()) // Map each patient to their gender
-            .collect(Collectors.toSet()).stream().collect(Collectors.toList()); // Collect the results into a new list
-  }
-
-  private Integer extractAgeLowFromPatientList(List<Patient> patients) {
-    return patients.stream()
-            // Filter out patients with null age
-            .filter(p -> Objects.nonNull(determinePatientAge(p)))
-            // Map each patient to their age
-            .mapToInt(p -> determinePatientAge(p))
-            // Find the minimum age
-            .min()
-            // Get the result as an int or a default value
-            .orElse(-1);
-  }
-
-  private Integer extractAgeHighFromPatientList(List<Patient> patients) {
-    return patients.stream()
-            // Filter out patients with null age
-            .filter(p -> Objects.nonNull(determinePatientAge(p)))
-            // Map each patient to their age
-            .mapToInt(p -> determinePatientAge(p))
-            // Find the maximum age
-            .max()
-            // Get the result as an int or a default value
-            .orElse(-1);
-  }
-
   private Integer determinePatientAge(Patient patient) {
     if (!patient.hasBirthDate())
       return null;
@@ -0,0 +1,184 @@
+package de.samply.directory_sync.fhir;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the results of expensive FHIR scans, such as all specimens grouped by collection, so
+ * that several sync operations can share them.
+ *
+ * Entries expire after a time to live. While a run is in progress (see {@link #startRun()}),
+ * expiry is judged against the start of the run rather than the current time, so that all
+ * operations of a run see the same data. Each entry has a weight, normally the number of
+ * resources it holds. If the total weight exceeds the limit, the least recently used entries
+ * are evicted.
+ *
+ * All methods may be called from several threads. Concurrent loads of the same key are
+ * serialized, so that an expensive scan is only run once.
+ */
+public class FhirResourceCache {
+
+  public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofHours(1);
+  public static final long DEFAULT_MAX_WEIGHT = 2_000_000;
+
+  private static final Logger logger = LoggerFactory.getLogger(FhirResourceCache.class);
+
+  private static class Entry {
+
+    private final Object value;
+    private final long weight;
+    private final long loadedAt;
+
+    private Entry(Object value, long weight, long loadedAt) {
+      this.value = value;
+      this.weight = weight;
+      this.loadedAt = loadedAt;
+    }
+  }
+
+  private final long timeToLiveMillis;
+  private final long maxWeight;
+  private final LongSupplier clock;
+
+  // In access order, so that iteration starts with the least recently used entry.
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, Object> loadLocks = new ConcurrentHashMap<>();
+  private long totalWeight = 0;
+  private Long runStartedAt = null;
+
+  public FhirResourceCache() {
+    this(DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_WEIGHT);
+  }
+
+  /**
+   * @param timeToLive how long an entry may be used after it has been loaded
+   * @param maxWeight the maximum total weight of all entries
+   */
+  public FhirResourceCache(Duration timeToLive, long maxWeight) {
+    this(timeToLive, maxWeight, System::currentTimeMillis);
+  }
+
+  FhirResourceCache(Duration timeToLive, long maxWeight, LongSupplier clock) {
+    this.timeToLiveMillis = timeToLive.toMillis();
+    this.maxWeight = maxWeight;
+    this.clock = clock;
+  }
+
+  /**
+   * Starts a run. Until {@link #endRun()} is called, entries that were still valid at the
+   * start of the run are not expired, and entries loaded during the run stay valid.
+   */
+  public synchronized void startRun() {
+    runStartedAt = clock.getAsLong();
+    entries.values().removeIf(this::isExpired);
+    totalWeight = entries.values().stream().mapToLong(entry -> entry.weight).sum();
+  }
+
+  /**
+   * Ends the current run, if any. Expiry is judged against the current time again.
+   */
+  public synchronized void endRun() {
+    runStartedAt = null;
+  }
+
+  /**
+   * Returns the value cached for the key, loading it if it is missing or expired.
+   * Null values and exceptions thrown by the loader are not cached.
+   *
+   * @param key the key of the entry
+   * @param loader loads the value
+   * @param weigher gives the weight of a value, normally the number of resources it holds
+   * @return the cached or freshly loaded value
+   * @param <T> the type of the value
+   */
+  public <T> T get(String key, Supplier<T> loader, ToLongFunction<T> weigher) {
+    synchronized (loadLocks.computeIfAbsent(key, k -> new Object())) {
+      T value = getIfPresent(key);
+      if (value != null)
+        return value;
+      value = loader.get();
+      if (value != null)
+        put(key, value, weigher.applyAsLong(value));
+      return value;
+    }
+  }
+
+  /**
+   * @param key the key of the entry
+   * @return the value cached for the key, or null if there is none or it has expired
+   * @param <T> the type of the value
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized <T> T getIfPresent(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null)
+      return null;
+    if (isExpired(entry)) {
+      remove(key);
+      return null;
+    }
+    return (T) entry.value;
+  }
+
+  /**
+   * Caches a value, replacing any earlier value for the key. A value that is heavier than the
+   * limit on its own is not cached.
+   *
+   * @param key the key of the entry
+   * @param value the value, not null
+   * @param weight the weight of the value
+   */
+  public synchronized void put(String key, Object value, long weight) {
+    remove(key);
+    if (weight > maxWeight) {
+      logger.warn("put: " + key + " has weight " + weight + ", more than the cache limit " + maxWeight + ", not caching it");
+      return;
+    }
+    entries.put(key, new Entry(value, weight, clock.getAsLong()));
+    totalWeight += weight;
+
+    Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = entries.entrySet().iterator();
+    while (totalWeight > maxWeight && leastRecentlyUsed.hasNext()) {
+      Map.Entry<String, Entry> evicted = leastRecentlyUsed.next();
+      logger.info("put: evicting " + evicted.getKey() + " to make room for " + key);
+      totalWeight -= evicted.getValue().weight;
+      leastRecentlyUsed.remove();
+    }
+  }
+
+  /**
+   * Removes the entry for the key, so that it is loaded again on next use.
+   *
+   * @param key the key of the entry
+   */
+  public synchronized void invalidate(String key) {
+    remove(key);
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public synchronized void invalidate() {
+    entries.clear();
+    totalWeight = 0;
+  }
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null)
+      totalWeight -= entry.weight;
+  }
+
+  private boolean isExpired(Entry entry) {
+    long now = runStartedAt != null ? runStartedAt : clock.getAsLong();
+    return entry.loadedAt + timeToLiveMillis <= now;
+  }
+}
@@ -4,6 +4,7 @@ import java.time.LocalDate;
 import java.time.Period;
 import java.time.ZoneId;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -43,48 +44,46 @@ public class PopulateStarModelInputData {
    * @return A StarModelData object populated with data extracted from the fetched specimens.
    */
   public StarModelData populate(BbmriEricId defaultBbmriEricCollectionId) {
-    // Group specimens according to collection.
-    Either<OperationOutcome, Map<String, List<Specimen>>> specimensByCollectionOutcome = fhirApi.fetchSpecimensByCollection(defaultBbmriEricCollectionId);
-    if (specimensByCollectionOutcome.isLeft()) {
+    // Convert each specimen into input rows as it arrives and count them per stratum,
+    // grouped according to collection. The rows themselves are not kept.
+    Map<String, Map<Map<String, String>, Long>> countsByCollection = new HashMap<String, Map<Map<String, String>, Long>>();
+    StarModelData starModelInputData = new StarModelData();
+    Either<OperationOutcome, Void> streamOutcome = fhirApi.streamSpecimensByCollection(defaultBbmriEricCollectionId,
+        (collectionId, specimen, patient) -> populateSpecimen(starModelInputData,
+            countsByCollection.computeIfAbsent(collectionId, id -> new HashMap<Map<String, String>, Long>()),
+            collectionId, specimen, patient));
+    if (streamOutcome.isLeft()) {
       logger.error("Problem finding specimens");
       return null;
     }
-    Map<String, List<Specimen>> specimensByCollection = specimensByCollectionOutcome.get();
 
-    StarModelData starModelInputData = new StarModelData();
-    for (String collectionId: specimensByCollection.keySet())
-      populateCollection(starModelInputData, collectionId, specimensByCollection.get(collectionId));
+    fhirApi.applyDefaultCollectionId(countsByCollection, defaultBbmriEricCollectionId, (a, b) -> {
+      b.forEach((stratum, count) -> a.merge(stratum, count, Long::sum));
+      return a;
+    });
 
-    return starModelInputData;
-  }
+    // Add all of the collected information to the input data table.
+    for (String collectionId: countsByCollection.keySet())
+      countsByCollection.get(collectionId).forEach((stratum, count) ->
+          starModelInputData.addInputRowCount(collectionId, stratum, count));
 
-  /**
-   * Populates the Star Model input data with information extracted from a list of specimens
-   * associated with a specific collection.
-   *
-   * @param starModelInputData The Star Model input data to be populated.
-   * @param collectionId The identifier for the collection to which the specimens belong.
-   * @param specimens The list of specimens from which to extract data and populate the input data.
-   *
-   * @throws NullPointerException if starModelInputData, collectionId, or specimens is null.
-   */
-  private void populateCollection(StarModelData starModelInputData, String collectionId, List<Specimen> specimens) {
-    for (Specimen specimen: specimens)
-      populateSpecimen(starModelInputData, collectionId, specimen);
+    return starModelInputData;
   }
 
   /**
-   * Populates the Star Model input data with information extracted from a single specimen.
+   * Extracts input rows from a single specimen, one per diagnosis, and counts them.
    *
-   * @param starModelInputData The Star Model input data to be populated.
+   * @param starModelInputData The Star Model input data used to create the rows.
+   * @param counts The row counts per stratum, to which the rows are added.
    * @param collectionId The identifier for the collection to which the specimen belongs.
-   * @param specimen The specimen from which to extract data and populate the input data.
-   *
-   * @throws NullPointerException if starModelInputData, collectionId, or specimen is null.
+   * @param specimen The specimen from which to extract data.
+   * @param patient The Patient who donated the specimen. If null, the specimen is skipped.
    */
-  private void populateSpecimen(StarModelData starModelInputData, String collectionId, Specimen specimen) {
-    // Get the Patient who donated the sample
-    Patient patient = fhirApi.extractPatientFromSpecimen(specimen);
+  private void populateSpecimen(StarModelData starModelInputData, Map<Map<String, String>, Long> counts, String collectionId, Specimen specimen, Patient patient) {
+    if (patient == null) {
+      logger.warn("populateSpecimen: no donor found for specimen " + specimen.getIdElement().getIdPart() + ", skipping");
+      return;
+    }
 
     String material = extractMaterialFromSpecimen(specimen);
     String patientId = patient.getIdElement().getIdPart();
@@ -96,9 +95,8 @@ public class PopulateStarModelInputData {
 
     List<String> diagnoses = extractDiagnosesFromPatientAndSpecimen(patient, specimen);
 
-    // Add all of the collected information to the input data table.
     for (String diagnosis: diagnoses)
-      starModelInputData.addInputRow(collectionId, starModelInputData.newInputRow(row, diagnosis));
+      counts.merge(starModelInputData.newInputRow(row, diagnosis).getStratum(), 1L, Long::sum);
   }
 
   /**
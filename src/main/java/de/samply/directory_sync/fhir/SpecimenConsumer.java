@@ -0,0 +1,20 @@
+package de.samply.directory_sync.fhir;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Specimen;
+
+/**
+ * Receives specimens one at a time from {@link FhirApi#streamSpecimensByCollection}.
+ */
+@FunctionalInterface
+public interface SpecimenConsumer {
+
+  /**
+   * Processes a single specimen.
+   *
+   * @param collectionId the ID of the collection the specimen belongs to
+   * @param specimen the specimen
+   * @param patient the donor of the specimen, or null if it is unknown
+   */
+  void accept(String collectionId, Specimen specimen, Patient patient);
+}
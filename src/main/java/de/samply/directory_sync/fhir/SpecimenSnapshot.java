@@ -0,0 +1,376 @@
+package de.samply.directory_sync.fhir;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.ERROR;
+
+import de.samply.directory_sync.Util;
+import io.vavr.control.Either;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Specimen;
+
+/**
+ * A compact binary snapshot of the specimens in a FHIR store, reduced to the elements
+ * needed for the sync, which can be reused by the next run.
+ * <p>
+ * All strings are dictionary encoded, so that the many repetitions of e.g. collection IDs,
+ * material codes or diagnoses are stored only once. Records refer to strings by their
+ * position in the dictionary. The file is laid out as follows:
+ * <pre>
+ * header:     magic, version, snapshot time, resource counts, section offsets
+ * specimens:  id, collection ID, type text, type code, storage temperatures, diagnoses,
+ *             collection date, patient ID
+ * patients:   id, gender, birth date, ICD-10 codes of conditions
+ * dictionary: the strings
+ * </pre>
+ * The file is memory mapped for reading, so that only the dictionary and the patients
+ * need to be held on the heap, while specimens are decoded one at a time.
+ */
+public class SpecimenSnapshot {
+
+  private static final int MAGIC = 0x44535331; // "DSS1"
+  private static final int VERSION = 1;
+  private static final int NONE = -1;
+  private static final String STORAGE_TEMPERATURE_URI = "https://fhir.bbmri.de/StructureDefinition/StorageTemperature";
+  private static final String SAMPLE_DIAGNOSIS_URI = "https://fhir.bbmri.de/StructureDefinition/SampleDiagnosis";
+
+  private final Path file;
+
+  /**
+   * @param file the file holding the snapshot
+   */
+  public SpecimenSnapshot(Path file) {
+    this.file = Objects.requireNonNull(file);
+  }
+
+  /**
+   * The header of a snapshot.
+   */
+  public static class Metadata {
+    private final long snapshotTime;
+    private final Map<String, Integer> resourceCounts;
+
+    private Metadata(long snapshotTime, Map<String, Integer> resourceCounts) {
+      this.snapshotTime = snapshotTime;
+      this.resourceCounts = resourceCounts;
+    }
+
+    /**
+     * Returns the time in milliseconds since the epoch before which all resources in the
+     * snapshot were last updated.
+     */
+    public long getSnapshotTime() {
+      return snapshotTime;
+    }
+
+    /**
+     * Returns the number of resources of each type in the FHIR store when the snapshot was taken.
+     */
+    public Map<String, Integer> getResourceCounts() {
+      return resourceCounts;
+    }
+  }
+
+  /**
+   * Returns true if a snapshot has been written.
+   */
+  public boolean exists() {
+    return Files.exists(file);
+  }
+
+  /**
+   * Reads the header of the snapshot.
+   *
+   * @return either the header, or an OperationOutcome describing the problem
+   */
+  public Either<OperationOutcome, Metadata> readMetadata() {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = map(channel);
+      return Either.right(readHeader(buffer));
+    } catch (Exception e) {
+      return Either.left(error("read metadata", Util.traceFromException(e)));
+    }
+  }
+
+  /**
+   * Passes every specimen in the snapshot, together with its collection ID and donor, to
+   * the consumer, and fills the supplied map with the ICD-10 codes of the donors.
+   *
+   * @param conditionCodesByPatientId receives the condition codes, keyed by the logical ID of the patient
+   * @param consumer receives each specimen
+   * @return either nothing, or an OperationOutcome describing the problem
+   */
+  public Either<OperationOutcome, Void> replay(Map<String, Set<String>> conditionCodesByPatientId, SpecimenConsumer consumer) {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = map(channel);
+      readHeader(buffer);
+      int specimenCount = buffer.getInt();
+      long patientsOffset = buffer.getLong();
+      long dictionaryOffset = buffer.getLong();
+      int specimensOffset = buffer.position();
+
+      buffer.position((int) dictionaryOffset);
+      String[] dictionary = new String[buffer.getInt()];
+      for (int i = 0; i < dictionary.length; i++) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        dictionary[i] = new String(bytes, UTF_8);
+      }
+
+      buffer.position((int) patientsOffset);
+      Map<String, Patient> patients = new HashMap<String, Patient>();
+      int patientCount = buffer.getInt();
+      for (int i = 0; i < patientCount; i++) {
+        Patient patient = new Patient();
+        String patientId = string(dictionary, buffer.getInt());
+        patient.setId(patientId);
+        String gender = string(dictionary, buffer.getInt());
+        if (gender != null)
+          patient.setGender(AdministrativeGender.fromCode(gender));
+        String birthDate = string(dictionary, buffer.getInt());
+        if (birthDate != null)
+          patient.setBirthDateElement(new DateType(birthDate));
+        Set<String> codes = new HashSet<String>();
+        int codeCount = buffer.getInt();
+        for (int j = 0; j < codeCount; j++)
+          codes.add(string(dictionary, buffer.getInt()));
+        if (!codes.isEmpty())
+          conditionCodesByPatientId.put(patientId, codes);
+        patients.put(patientId, patient);
+      }
+
+      buffer.position(specimensOffset);
+      for (int i = 0; i < specimenCount; i++) {
+        Specimen specimen = new Specimen();
+        specimen.setId(string(dictionary, buffer.getInt()));
+        String collectionId = string(dictionary, buffer.getInt());
+        String typeText = string(dictionary, buffer.getInt());
+        String typeCode = string(dictionary, buffer.getInt());
+        if (typeText != null)
+          specimen.getType().setText(typeText);
+        if (typeCode != null)
+          specimen.getType().addCoding().setCode(typeCode);
+        int temperatureCount = buffer.getInt();
+        for (int j = 0; j < temperatureCount; j++)
+          specimen.addExtension(codedExtension(STORAGE_TEMPERATURE_URI, string(dictionary, buffer.getInt())));
+        int diagnosisCount = buffer.getInt();
+        for (int j = 0; j < diagnosisCount; j++)
+          specimen.addExtension(codedExtension(SAMPLE_DIAGNOSIS_URI, string(dictionary, buffer.getInt())));
+        String collected = string(dictionary, buffer.getInt());
+        if (collected != null)
+          specimen.getCollection().setCollected(new DateTimeType(collected));
+        String patientId = string(dictionary, buffer.getInt());
+        if (patientId != null)
+          specimen.setSubject(new Reference("Patient/" + patientId));
+
+        consumer.accept(collectionId, specimen, patientId == null ? null : patients.get(patientId));
+      }
+
+      return Either.right(null);
+    } catch (Exception e) {
+      return Either.left(error("replay", Util.traceFromException(e)));
+    }
+  }
+
+  /**
+   * Starts writing a new snapshot. The previous snapshot stays in place until
+   * {@link Writer#commit()} is called.
+   *
+   * @param snapshotTime   the time before which all resources to be added were last updated
+   * @param resourceCounts the number of resources of each type in the FHIR store
+   * @return a writer for the new snapshot
+   */
+  public Writer newWriter(long snapshotTime, Map<String, Integer> resourceCounts) throws IOException {
+    return new Writer(snapshotTime, resourceCounts);
+  }
+
+  /**
+   * Writes a snapshot, one specimen at a time.
+   */
+  public class Writer implements AutoCloseable {
+    private final Path tmpFile;
+    private final DataOutputStream out;
+    private final Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+    private final Map<String, int[]> patients = new LinkedHashMap<String, int[]>();
+    private final int headerSize;
+    private int specimenCount = 0;
+    private boolean committed = false;
+
+    private Writer(long snapshotTime, Map<String, Integer> resourceCounts) throws IOException {
+      tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+      if (file.getParent() != null)
+        Files.createDirectories(file.getParent());
+      out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(snapshotTime);
+      out.writeInt(resourceCounts.size());
+      for (Map.Entry<String, Integer> count : resourceCounts.entrySet()) {
+        out.writeUTF(count.getKey());
+        out.writeInt(count.getValue());
+      }
+      // Specimen count and section offsets, filled in by commit().
+      out.writeInt(0);
+      out.writeLong(0);
+      out.writeLong(0);
+      headerSize = out.size();
+    }
+
+    /**
+     * Adds a specimen to the snapshot.
+     *
+     * @param collectionId   the ID of the collection the specimen belongs to
+     * @param specimen       the specimen
+     * @param patient        the donor of the specimen, or null if it is unknown
+     * @param conditionCodes looks up the ICD-10 codes of the donor, called once per donor
+     */
+    public void add(String collectionId, Specimen specimen, Patient patient, Function<Patient, List<String>> conditionCodes) throws IOException {
+      out.writeInt(index(specimen.getIdElement().getIdPart()));
+      out.writeInt(index(collectionId));
+      out.writeInt(index(specimen.getType().hasText() ? specimen.getType().getText() : null));
+      out.writeInt(index(specimen.getType().hasCoding() ? specimen.getType().getCodingFirstRep().getCode() : null));
+      writeCodes(extensionCodes(specimen, STORAGE_TEMPERATURE_URI));
+      writeCodes(extensionCodes(specimen, SAMPLE_DIAGNOSIS_URI));
+      Specimen.SpecimenCollectionComponent collection = specimen.getCollection();
+      out.writeInt(index(collection.hasCollectedDateTimeType() ? collection.getCollectedDateTimeType().getValueAsString() : null));
+      String patientId = patient == null ? null : patient.getIdElement().getIdPart();
+      out.writeInt(index(patientId));
+      specimenCount++;
+
+      if (patient != null && !patients.containsKey(patientId)) {
+        List<Integer> record = new ArrayList<Integer>();
+        record.add(index(patientId));
+        record.add(index(patient.getGenderElement().getValueAsString()));
+        record.add(index(patient.hasBirthDateElement() ? patient.getBirthDateElement().getValueAsString() : null));
+        List<String> codes = conditionCodes.apply(patient);
+        record.add(codes.size());
+        for (String code : codes)
+          record.add(index(code));
+        patients.put(patientId, record.stream().mapToInt(Integer::intValue).toArray());
+      }
+    }
+
+    /**
+     * Completes the snapshot and replaces the previous one.
+     */
+    public void commit() throws IOException {
+      long patientsOffset = out.size();
+      out.writeInt(patients.size());
+      for (int[] record : patients.values())
+        for (int value : record)
+          out.writeInt(value);
+
+      long dictionaryOffset = out.size();
+      out.writeInt(dictionary.size());
+      for (String string : dictionary.keySet()) {
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      out.close();
+
+      try (RandomAccessFile raf = new RandomAccessFile(tmpFile.toFile(), "rw")) {
+        raf.seek(headerSize - 20);
+        raf.writeInt(specimenCount);
+        raf.writeLong(patientsOffset);
+        raf.writeLong(dictionaryOffset);
+      }
+
+      Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      committed = true;
+    }
+
+    /**
+     * Discards the snapshot, unless it has been committed.
+     */
+    @Override
+    public void close() throws IOException {
+      if (committed)
+        return;
+      out.close();
+      Files.deleteIfExists(tmpFile);
+    }
+
+    private void writeCodes(List<String> codes) throws IOException {
+      out.writeInt(codes.size());
+      for (String code : codes)
+        out.writeInt(index(code));
+    }
+
+    private int index(String string) {
+      if (string == null)
+        return NONE;
+      return dictionary.computeIfAbsent(string, s -> dictionary.size());
+    }
+  }
+
+  private static MappedByteBuffer map(FileChannel channel) throws IOException {
+    if (channel.size() > Integer.MAX_VALUE)
+      throw new IOException("snapshot larger than 2 GB");
+    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+  }
+
+  private static Metadata readHeader(MappedByteBuffer buffer) throws IOException {
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+      throw new IOException("not a specimen snapshot, or unsupported version");
+    long snapshotTime = buffer.getLong();
+    Map<String, Integer> resourceCounts = new LinkedHashMap<String, Integer>();
+    int typeCount = buffer.getInt();
+    for (int i = 0; i < typeCount; i++) {
+      byte[] bytes = new byte[buffer.getShort() & 0xffff];
+      buffer.get(bytes);
+      resourceCounts.put(new String(bytes, UTF_8), buffer.getInt());
+    }
+    return new Metadata(snapshotTime, Collections.unmodifiableMap(resourceCounts));
+  }
+
+  private static List<String> extensionCodes(Specimen specimen, String url) {
+    List<String> codes = new ArrayList<String>();
+    for (Extension extension : specimen.getExtensionsByUrl(url))
+      if (extension.getValue() instanceof CodeableConcept)
+        codes.add(((CodeableConcept) extension.getValue()).getCodingFirstRep().getCode());
+    return codes;
+  }
+
+  private static Extension codedExtension(String url, String code) {
+    CodeableConcept value = new CodeableConcept();
+    value.addCoding().setCode(code);
+    return new Extension(url, value);
+  }
+
+  private static String string(String[] dictionary, int index) {
+    return index == NONE ? null : dictionary[index];
+  }
+
+  private static OperationOutcome error(String action, String message) {
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue().setSeverity(ERROR).setDiagnostics(String.format("Error in specimen snapshot for %s, cause: %s", action, message));
+    return outcome;
+  }
+}
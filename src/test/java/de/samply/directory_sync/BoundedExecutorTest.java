@@ -0,0 +1,171 @@
+package de.samply.directory_sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.vavr.control.Either;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.junit.jupiter.api.Test;
+
+public class BoundedExecutorTest {
+
+  @Test
+  void testMapAll_keepsInputOrder() {
+    List<Integer> inputs = new ArrayList<>();
+    for (int i = 0; i < 40; i++)
+      inputs.add(i);
+    BoundedExecutor executor = new BoundedExecutor(8);
+
+    // Later inputs finish first.
+    Either<OperationOutcome, List<Integer>> result = executor.mapAll(inputs, i -> {
+      sleep(40 - i);
+      return i * 2;
+    });
+
+    assertTrue(result.isRight(), "the result is right");
+    for (int i = 0; i < 40; i++)
+      assertEquals(i * 2, result.get().get(i));
+  }
+
+  @Test
+  void testMap_neverExceedsMaxConcurrency() {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    List<Integer> inputs = new ArrayList<>();
+    for (int i = 0; i < 30; i++)
+      inputs.add(i);
+
+    new BoundedExecutor(4).map(inputs, i -> {
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      sleep(5);
+      running.decrementAndGet();
+      return i;
+    });
+
+    assertTrue(maxRunning.get() <= 4, "at most 4 requests ran at once, but " + maxRunning.get() + " did");
+    assertTrue(maxRunning.get() > 1, "requests ran in parallel");
+  }
+
+  @Test
+  void testMap_limitIsSharedByConcurrentCalls() throws InterruptedException {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    List<Integer> inputs = new ArrayList<>();
+    for (int i = 0; i < 20; i++)
+      inputs.add(i);
+    BoundedExecutor executor = new BoundedExecutor(3);
+    Runnable call = () -> executor.map(inputs, i -> {
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      sleep(5);
+      running.decrementAndGet();
+      return i;
+    });
+
+    Thread other = new Thread(call);
+    other.start();
+    call.run();
+    other.join();
+
+    assertTrue(maxRunning.get() <= 3, "at most 3 requests ran at once, but " + maxRunning.get() + " did");
+  }
+
+  @Test
+  void testSetMaxConcurrency_changesLimitOfExistingExecutor() {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    List<Integer> inputs = new ArrayList<>();
+    for (int i = 0; i < 20; i++)
+      inputs.add(i);
+    BoundedExecutor executor = new BoundedExecutor(8);
+    executor.map(inputs, i -> i);
+
+    executor.setMaxConcurrency(2);
+    executor.map(inputs, i -> {
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      sleep(5);
+      running.decrementAndGet();
+      return i;
+    });
+
+    assertEquals(2, executor.getMaxConcurrency());
+    assertTrue(maxRunning.get() <= 2, "at most 2 requests ran at once, but " + maxRunning.get() + " did");
+  }
+
+  @Test
+  void testSetMaxConcurrency_callsAlreadyRunningComplete() throws InterruptedException {
+    BoundedExecutor executor = new BoundedExecutor(4);
+    List<Either<OperationOutcome, Integer>> results = new ArrayList<>();
+    Thread call = new Thread(() -> results.addAll(executor.map(Arrays.asList(1, 2, 3, 4, 5, 6), i -> {
+      sleep(10);
+      return i;
+    })));
+    call.start();
+    sleep(5);
+
+    executor.setMaxConcurrency(2);
+    call.join();
+
+    assertEquals(6, results.size());
+    for (int i = 0; i < 6; i++)
+      assertEquals(Either.right(i + 1), results.get(i));
+  }
+
+  @Test
+  void testSetMaxConcurrency_rejectsZero() {
+    BoundedExecutor executor = new BoundedExecutor(2);
+
+    assertThrows(IllegalArgumentException.class, () -> executor.setMaxConcurrency(0));
+    assertEquals(2, executor.getMaxConcurrency());
+  }
+
+  @Test
+  void testMap_nestedCallsDoNotDeadlock() {
+    BoundedExecutor executor = new BoundedExecutor(2);
+
+    Either<OperationOutcome, List<Integer>> result = executor.mapAll(Arrays.asList(1, 2, 3),
+        i -> executor.mapAll(Arrays.asList(i, i), j -> j).get().stream().mapToInt(Integer::intValue).sum());
+
+    assertEquals(Either.right(Arrays.asList(2, 4, 6)), result);
+  }
+
+  @Test
+  void testMapAll_reportsEveryFailure() {
+    Either<OperationOutcome, List<String>> result = new BoundedExecutor().mapAll(Arrays.asList("a", "b", "c"), s -> {
+      if (!s.equals("b"))
+        throw new IllegalStateException("failed " + s);
+      return s;
+    });
+
+    assertTrue(result.isLeft(), "the result is left");
+    assertEquals(2, result.getLeft().getIssue().size());
+    assertEquals("failed a", result.getLeft().getIssue().get(0).getDiagnostics());
+    assertEquals("failed c", result.getLeft().getIssue().get(1).getDiagnostics());
+  }
+
+  @Test
+  void testMap_failureDoesNotStopOthers() {
+    List<Either<OperationOutcome, Integer>> result = new BoundedExecutor(2).map(Arrays.asList(1, 0, 2), i -> 2 / i);
+
+    assertEquals(Either.right(2), result.get(0));
+    assertTrue(result.get(1).isLeft(), "the division by zero is left");
+    assertEquals(Either.right(1), result.get(2));
+  }
+
+  @Test
+  void testConstructor_rejectsZero() {
+    assertThrows(IllegalArgumentException.class, () -> new BoundedExecutor(0));
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package de.samply.directory_sync;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpServer;
+import de.samply.directory_sync.directory.DirectoryApi;
+import io.vavr.control.Either;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class HttpTransportTest {
+
+  private static final int REQUEST_COUNT = 64;
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private final AtomicInteger requestCount = new AtomicInteger();
+  // The client ports seen by the server, one per connection.
+  private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+  private HttpTransport transport;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    // Stands in for the Directory: every other collection has no facts and yields an error.
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/v2/facts", exchange -> {
+      requestCount.incrementAndGet();
+      clientPorts.add(exchange.getRemoteAddress().getPort());
+      boolean found = exchange.getRequestURI().getRawQuery().matches(".*collection-\\d*[02468]%22$");
+      byte[] body = (found ? "{\"items\":[]}" : "{\"errors\":[{\"message\":\"not found\"}]}").getBytes(UTF_8);
+      exchange.sendResponseHeaders(found ? 200 : 404, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    serverExecutor = Executors.newFixedThreadPool(8);
+    server.setExecutor(serverExecutor);
+    server.start();
+
+    transport = new HttpTransport()
+        .setMaxPerRoute(2)
+        .setPoolAcquireTimeout(Duration.ofSeconds(2));
+  }
+
+  @AfterEach
+  void tearDown() {
+    transport.close();
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  void testConcurrentRequestsDoNotExhaustPool() {
+    String baseUrl = "http://localhost:" + server.getAddress().getPort();
+    DirectoryApi directoryApi = DirectoryApi.createWithToken(transport.newHttpClient(), baseUrl, "token");
+    List<Integer> collections = IntStream.range(0, REQUEST_COUNT).boxed().collect(Collectors.toList());
+
+    Either<OperationOutcome, List<Boolean>> results = new BoundedExecutor(8).mapAll(collections,
+        i -> directoryApi.fetchFactWrapperByCollection(baseUrl + "/api/v2/facts", "collection-" + i) != null);
+
+    // Failed responses must be released as well, otherwise the two pooled connections
+    // run out and the remaining requests time out waiting for them. Released connections
+    // are reused, so the server sees no more connections than the pool holds.
+    assertTrue(results.isRight(), "the result is right");
+    assertEquals(REQUEST_COUNT, requestCount.get());
+    for (int i = 0; i < REQUEST_COUNT; i++)
+      assertEquals(i % 2 == 0, results.get().get(i));
+    assertEquals(0, transport.getLeasedConnections());
+    assertTrue(clientPorts.size() <= 2, "at most 2 connections were opened, but " + clientPorts.size() + " were");
+  }
+
+  @Test
+  void testConfigure() {
+    FhirContext fhirContext = FhirContext.forR4();
+
+    transport.setSocketTimeout(Duration.ofSeconds(42)).configure(fhirContext);
+
+    assertEquals(2, fhirContext.getRestfulClientFactory().getPoolMaxPerRoute());
+    assertEquals(42_000, fhirContext.getRestfulClientFactory().getSocketTimeout());
+    assertEquals(2_000, fhirContext.getRestfulClientFactory().getConnectionRequestTimeout());
+  }
+}
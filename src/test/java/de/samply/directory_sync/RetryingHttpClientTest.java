@@ -0,0 +1,154 @@
+package de.samply.directory_sync;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RetryingHttpClientTest {
+
+  private HttpServer server;
+  private String baseUrl;
+  // The status codes the server answers with, one per request; 200 once they are used up.
+  private final List<Integer> statusCodes = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final List<Duration> delays = Collections.synchronizedList(new ArrayList<>());
+  private RetryPolicy policy;
+  private HttpTransport transport;
+  private CloseableHttpClient httpClient;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      requestCount.incrementAndGet();
+      int statusCode = statusCodes.isEmpty() ? 200 : statusCodes.remove(0);
+      if (statusCode == 429)
+        exchange.getResponseHeaders().add("Retry-After", "7");
+      byte[] body = ("status " + statusCode).getBytes(UTF_8);
+      exchange.sendResponseHeaders(statusCode, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+    baseUrl = "http://localhost:" + server.getAddress().getPort();
+
+    // No jitter, so that the delays are predictable, and no actual waiting.
+    policy = new RetryPolicy(() -> 1.0, delays::add)
+        .setDelays(Duration.ofMillis(100), Duration.ofMillis(300));
+    transport = new HttpTransport().setMaxPerRoute(1).setRetryPolicy(policy);
+    httpClient = transport.newHttpClient();
+  }
+
+  @AfterEach
+  void tearDown() {
+    transport.close();
+    server.stop(0);
+  }
+
+  @Test
+  void testTransientErrorsAreRetriedWithBackoff() throws IOException {
+    statusCodes.addAll(Arrays.asList(503, 502, 504, 503));
+
+    try (CloseableHttpResponse response = httpClient.execute(new HttpGet(baseUrl + "/facts"))) {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      assertEquals("status 200", EntityUtils.toString(response.getEntity(), UTF_8));
+    }
+
+    assertEquals(5, requestCount.get());
+    assertEquals(Arrays.asList(Duration.ofMillis(100), Duration.ofMillis(200), Duration.ofMillis(300), Duration.ofMillis(300)), delays);
+    assertEquals(4, policy.getRetryCount());
+    assertEquals(Duration.ofMillis(900), policy.getRetryDelay());
+    // All connections were released, although the pool has only one.
+    assertEquals(0, transport.getLeasedConnections());
+  }
+
+  @Test
+  void testRetryAfterIsHonored() throws IOException {
+    statusCodes.add(429);
+
+    try (CloseableHttpResponse response = httpClient.execute(new HttpGet(baseUrl + "/facts"))) {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+    }
+
+    assertEquals(Collections.singletonList(Duration.ofSeconds(7)), delays);
+  }
+
+  @Test
+  void testGivesUpAfterMaxAttempts() throws IOException {
+    statusCodes.addAll(Collections.nCopies(10, 503));
+
+    try (CloseableHttpResponse response = httpClient.execute(new HttpGet(baseUrl + "/facts"))) {
+      assertEquals(503, response.getStatusLine().getStatusCode());
+    }
+
+    assertEquals(RetryPolicy.DEFAULT_MAX_ATTEMPTS, requestCount.get());
+    assertEquals(1, policy.getGiveUpCount());
+  }
+
+  @Test
+  void testPostIsOnlyRetriedIfMarkedIdempotent() throws IOException {
+    statusCodes.addAll(Arrays.asList(503, 503));
+    HttpPost post = new HttpPost(baseUrl + "/facts");
+    post.setEntity(new StringEntity("{}", UTF_8));
+
+    try (CloseableHttpResponse response = httpClient.execute(post)) {
+      assertEquals(503, response.getStatusLine().getStatusCode());
+    }
+    try (CloseableHttpResponse response = httpClient.execute(post, RetryPolicy.idempotentContext())) {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+    }
+
+    assertEquals(3, requestCount.get());
+    assertEquals(1, policy.getRetryCount());
+  }
+
+  @Test
+  void testRetryBudgetIsSharedWithinRun() throws IOException {
+    policy.setRetryBudget(2);
+    statusCodes.addAll(Arrays.asList(503, 503, 503, 503));
+
+    try (CloseableHttpResponse response = httpClient.execute(new HttpGet(baseUrl + "/facts"))) {
+      assertEquals(503, response.getStatusLine().getStatusCode());
+    }
+    assertEquals(3, requestCount.get());
+    assertEquals(0, policy.getRemainingBudget());
+
+    policy.startRun();
+    try (CloseableHttpResponse response = httpClient.execute(new HttpGet(baseUrl + "/facts"))) {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+    }
+    assertEquals(5, requestCount.get());
+  }
+
+  @Test
+  void testParseRetryAfter() {
+    assertEquals(Duration.ofSeconds(120), RetryingHttpClient.parseRetryAfter(new BasicHeader("Retry-After", "120")));
+    assertEquals(Duration.ZERO, RetryingHttpClient.parseRetryAfter(new BasicHeader("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT")));
+    assertTrue(RetryingHttpClient.parseRetryAfter(new BasicHeader("Retry-After", "Wed, 21 Oct 2099 07:28:00 GMT")).toDays() > 1);
+    assertNull(RetryingHttpClient.parseRetryAfter(new BasicHeader("Retry-After", "soon")));
+    assertNull(RetryingHttpClient.parseRetryAfter(null));
+  }
+}
@@ -2,7 +2,6 @@ package de.samply.directory_sync;
 
 import static de.samply.directory_sync.TestUtil.createBbmriIdentifier;
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.when;
 
 import de.samply.directory_sync.directory.DirectoryApi;
@@ -12,6 +11,7 @@ import de.samply.directory_sync.directory.model.Biobank;
 import de.samply.directory_sync.fhir.FhirApi;
 import de.samply.directory_sync.fhir.FhirReporting;
 import io.vavr.control.Either;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -58,15 +58,22 @@ public class SyncTest {
 
   @Test
   void testUpdateBiobanksIfIfNecessary() {
-    Organization biobank = new Organization();
-    when(fhirApi.listAllBiobanks()).thenReturn(Either.right(Collections.singletonList(biobank)));
+    Organization unidentified = new Organization();
+    Organization biobank = new Organization().addIdentifier(createBbmriIdentifier(BBMRI_ERIC_ID));
+    Biobank dirBiobank = new Biobank();
+    dirBiobank.setName("target");
+    when(fhirApi.listAllBiobanks()).thenReturn(Either.right(Arrays.asList(unidentified, biobank)));
+    when(directoryApi.fetchBiobanks("AT", Collections.singleton(BBMRI_ERIC_ID)))
+        .thenReturn(Either.right(Collections.singletonMap(BBMRI_ERIC_ID, dirBiobank)));
     OperationOutcome expected = new OperationOutcome();
-    Sync localSync = spy(sync);
-    when(localSync.updateBiobankOnFhirServerIfNecessary(biobank)).thenReturn(expected);
+    when(fhirApi.updateResources(Collections.singletonList(biobank))).thenReturn(Collections.singletonList(expected));
 
-    List<OperationOutcome> actual = localSync.updateAllBiobanksOnFhirServerIfNecessary();
+    List<OperationOutcome> actual = sync.updateAllBiobanksOnFhirServerIfNecessary();
 
-    assertEquals(Collections.singletonList(expected), actual);
+    assertEquals(2, actual.size());
+    assertEquals("No BBMRI Identifier for Organization", actual.get(0).getIssueFirstRep().getDiagnostics());
+    assertEquals(expected, actual.get(1));
+    assertEquals("target", biobank.getName());
   }
 
   @Test
@@ -83,18 +90,29 @@ public class SyncTest {
   void testUpdateBiobankIfNecessary_noDirectoryResponse() {
     Organization biobank = new Organization().addIdentifier(createBbmriIdentifier(BBMRI_ERIC_ID));
     OperationOutcome expected = new OperationOutcome();
-    when(directoryApi.fetchBiobank(BBMRI_ERIC_ID)).thenReturn(Either.left(expected));
+    when(directoryApi.fetchBiobanks("AT", Collections.singleton(BBMRI_ERIC_ID))).thenReturn(Either.left(expected));
 
     OperationOutcome actual = sync.updateBiobankOnFhirServerIfNecessary(biobank);
 
     assertEquals(expected, actual);
   }
 
+  @Test
+  void testUpdateBiobankIfNecessary_notInDirectory() {
+    Organization org = new Organization().addIdentifier(createBbmriIdentifier(BBMRI_ERIC_ID));
+    when(directoryApi.fetchBiobanks("AT", Collections.singleton(BBMRI_ERIC_ID))).thenReturn(Either.right(Collections.emptyMap()));
+
+    OperationOutcome actual = sync.updateBiobankOnFhirServerIfNecessary(org);
+
+    assertEquals("No Biobank in Directory with id `bbmri-eric:ID:AT_MUG`.", actual.getIssueFirstRep().getDiagnostics());
+  }
+
   @Test
   void testUpdateBiobankIfNecessary_noUpdateNecessary() {
     Organization org = new Organization().addIdentifier(createBbmriIdentifier(BBMRI_ERIC_ID));
     Biobank biobank = new Biobank();
-    when(directoryApi.fetchBiobank(BBMRI_ERIC_ID)).thenReturn(Either.right(biobank));
+    when(directoryApi.fetchBiobanks("AT", Collections.singleton(BBMRI_ERIC_ID)))
+        .thenReturn(Either.right(Collections.singletonMap(BBMRI_ERIC_ID, biobank)));
 
     OperationOutcome actual = sync.updateBiobankOnFhirServerIfNecessary(org);
 
@@ -106,9 +124,10 @@ public class SyncTest {
     Organization org = new Organization().addIdentifier(createBbmriIdentifier(BBMRI_ERIC_ID));
     Biobank biobank = new Biobank();
     biobank.setName("target");
-    when(directoryApi.fetchBiobank(BBMRI_ERIC_ID)).thenReturn(Either.right(biobank));
+    when(directoryApi.fetchBiobanks("AT", Collections.singleton(BBMRI_ERIC_ID)))
+        .thenReturn(Either.right(Collections.singletonMap(BBMRI_ERIC_ID, biobank)));
     OperationOutcome expected = new OperationOutcome();
-    when(fhirApi.updateResource(org)).thenReturn(expected);
+    when(fhirApi.updateResources(Collections.singletonList(org))).thenReturn(Collections.singletonList(expected));
 
     OperationOutcome actual = sync.updateBiobankOnFhirServerIfNecessary(org);
 
@@ -6,39 +6,65 @@ import static java.util.Collections.singletonList;
 import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.INFORMATION;
 import static org.hl7.fhir.r4.model.OperationOutcome.IssueType.NOTFOUND;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.gson.Gson;
+import de.samply.directory_sync.StarModelData;
 import de.samply.directory_sync.directory.DirectoryApi.CollectionSizeDto;
 import de.samply.directory_sync.directory.model.BbmriEricId;
 import de.samply.directory_sync.directory.model.Biobank;
+import de.samply.directory_sync.directory.model.DirectoryCollectionGet;
+import de.samply.directory_sync.directory.model.DirectoryCollectionPut;
 import io.vavr.control.Either;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
+import org.mockito.stubbing.Answer;
 
 @ExtendWith(MockitoExtension.class)
 @MockitoSettings(strictness = Strictness.LENIENT)
@@ -90,6 +116,117 @@ class DirectoryApiTest {
     String uri = "/api/v2/eu_bbmri_eric_biobanks/" + AT_BIOBANK_ID;
   }
 
+  @Test
+  void fetchBiobanks_revalidatesCachedBiobanks() throws IOException {
+    String uri = "/api/v2/eu_bbmri_eric_AT_biobanks?start=0&num=10000&q=id=in=(%22" + AT_BIOBANK_ID + "%22)";
+    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+    when(response.getStatusLine()).thenReturn(statusLine(200));
+    when(response.getEntity()).thenReturn(
+        httpEntity("{\"items\":[{\"id\":\"" + AT_BIOBANK_ID + "\",\"name\":\"name-1\"}]}"));
+    when(response.getFirstHeader("ETag")).thenReturn(new BasicHeader("ETag", "\"v1\""));
+    CloseableHttpResponse notModified = mock(CloseableHttpResponse.class);
+    when(notModified.getStatusLine()).thenReturn(statusLine(304));
+    when(httpClient.execute(argThat((HttpGet httpGet) -> httpGet != null && httpGetMatcher(uri).matches(httpGet)
+        && httpGet.getFirstHeader("If-None-Match") == null))).thenReturn(response);
+    when(httpClient.execute(argThat((HttpGet httpGet) -> httpGet != null && httpGetMatcher(uri).matches(httpGet)
+        && httpGet.getFirstHeader("If-None-Match") != null
+        && "\"v1\"".equals(httpGet.getFirstHeader("If-None-Match").getValue())))).thenReturn(notModified);
+
+    Either<OperationOutcome, Map<BbmriEricId, Biobank>> first = api.fetchBiobanks("AT", singletonList(AT_BIOBANK_ID));
+    Either<OperationOutcome, Map<BbmriEricId, Biobank>> second = api.fetchBiobanks("AT", singletonList(AT_BIOBANK_ID));
+
+    assertTrue(first.isRight(), "the first result is right");
+    assertTrue(second.isRight(), "the second result is right");
+    assertEquals("name-1", second.get().get(AT_BIOBANK_ID).getName());
+  }
+
+  @Test
+  void fetchBiobanks_revalidatesBiobanksCachedByEarlierRun(@TempDir Path directory) throws IOException {
+    String uri = "/api/v2/eu_bbmri_eric_AT_biobanks?start=0&num=10000&q=id=in=(%22" + AT_BIOBANK_ID + "%22)";
+    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+    when(response.getStatusLine()).thenReturn(statusLine(200));
+    when(response.getEntity()).thenReturn(
+        httpEntity("{\"items\":[{\"id\":\"" + AT_BIOBANK_ID + "\",\"name\":\"name-1\"}]}"));
+    when(response.getFirstHeader("ETag")).thenReturn(new BasicHeader("ETag", "\"v1\""));
+    CloseableHttpResponse notModified = mock(CloseableHttpResponse.class);
+    when(notModified.getStatusLine()).thenReturn(statusLine(304));
+    when(httpClient.execute(argThat((HttpGet httpGet) -> httpGet != null && httpGetMatcher(uri).matches(httpGet)
+        && httpGet.getFirstHeader("If-None-Match") == null))).thenReturn(response);
+    when(httpClient.execute(argThat((HttpGet httpGet) -> httpGet != null && httpGetMatcher(uri).matches(httpGet)
+        && httpGet.getFirstHeader("If-None-Match") != null))).thenReturn(notModified);
+    Path file = directory.resolve("biobanks.json");
+    api.setBiobankCacheFile(file);
+    api.fetchBiobanks("AT", singletonList(AT_BIOBANK_ID));
+
+    DirectoryApi restarted = DirectoryApi.createWithToken(httpClient, BASE_URL, TOKEN);
+    restarted.setBiobankCacheFile(file);
+    Either<OperationOutcome, Map<BbmriEricId, Biobank>> result = restarted.fetchBiobanks("AT", singletonList(AT_BIOBANK_ID));
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals("name-1", result.get().get(AT_BIOBANK_ID).getName());
+    verify(httpClient, times(1)).execute(argThat((HttpGet httpGet) -> httpGet != null
+        && httpGet.getFirstHeader("If-None-Match") != null));
+  }
+
+  @Test
+  void fetchBiobanks_invalidId() throws IOException {
+    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+    when(httpClient.execute(argThat((HttpGet httpGet) -> httpGet.getURI().toString().contains("_AT_biobanks")))).thenReturn(response);
+    when(response.getStatusLine()).thenReturn(statusLine(200));
+    when(response.getEntity()).thenReturn(httpEntity("{\"items\":[{\"id\":\"invalid\",\"name\":\"name-1\"}]}"));
+
+    Either<OperationOutcome, Map<BbmriEricId, Biobank>> result = api.fetchBiobanks("AT", singletonList(AT_BIOBANK_ID));
+
+    assertTrue(result.isLeft(), "the result is left");
+    assertTrue(result.getLeft().getIssueFirstRep().getDiagnostics().contains("invalid BBMRI-ERIC ID"));
+  }
+
+  @Test
+  void fetchBiobanks_ServerError() throws IOException {
+    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+    when(httpClient.execute(argThat((HttpGet httpGet) -> httpGet.getURI().toString().contains("_AT_biobanks")))).thenReturn(response);
+    when(response.getStatusLine()).thenReturn(statusLine(500));
+    when(response.getEntity()).thenReturn(httpEntity(ERROR_MESSAGE));
+
+    Either<OperationOutcome, Map<BbmriEricId, Biobank>> result = api.fetchBiobanks("AT", singletonList(AT_BIOBANK_ID));
+
+    assertTrue(result.isLeft(), "the result is left");
+    assertEquals("Error in BBMRI Directory response for fetch biobanks of AT, cause: " +
+        ERROR_MESSAGE, result.getLeft().getIssueFirstRep().getDiagnostics());
+  }
+
+  @Test
+  void fetchCollectionGetOutcomes_reportsAllMissingIds() throws IOException {
+    String found = "bbmri-eric:ID:AT_MUG:collection:1";
+    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+    when(httpClient.execute(argThat((HttpGet httpGet) -> httpGet != null
+        && httpGet.getURI().toString().contains("_AT_collections?start=0&num=3&attrs=id,name,")))).thenReturn(response);
+    when(response.getStatusLine()).thenReturn(statusLine(200));
+    when(response.getEntity()).thenReturn(httpEntity("{\"items\":[{\"id\":\"" + found + "\"}]}"));
+
+    Either<OperationOutcome, DirectoryCollectionGet> result = api.fetchCollectionGetOutcomes("AT",
+        Arrays.asList(found, "bbmri-eric:ID:AT_MUG:collection:2", "bbmri-eric:ID:AT_MUG:collection:3"));
+
+    assertTrue(result.isLeft(), "the result is left");
+    assertEquals("Error in BBMRI Directory response for fetchCollectionGetOutcomes: collections do not exist "
+        + "in the Directory, cause: bbmri-eric:ID:AT_MUG:collection:2, bbmri-eric:ID:AT_MUG:collection:3",
+        result.getLeft().getIssueFirstRep().getDiagnostics());
+  }
+
+  @Test
+  void chunkCollectionIds_staysBelowQueryLimit() {
+    List<String> collectionIds = IntStream.range(0, 500)
+        .mapToObj(i -> "bbmri-eric:ID:DE_BIOBANK:collection:" + i)
+        .collect(Collectors.toList());
+
+    List<List<String>> chunks = DirectoryApi.chunkCollectionIds(collectionIds);
+
+    assertTrue(chunks.size() > 1, "the IDs are split");
+    for (List<String> chunk : chunks)
+      assertTrue(chunk.stream().mapToInt(id -> id.length() + 7).sum() <= DirectoryApi.MAX_COLLECTION_QUERY_LENGTH);
+    assertEquals(collectionIds, chunks.stream().flatMap(List::stream).collect(Collectors.toList()));
+  }
+
   @Test
   void updateCollectionSizes_Successful() throws IOException {
     String uri = "/api/v2/eu_bbmri_eric_collections/size";
@@ -181,6 +318,257 @@ class DirectoryApiTest {
         ERROR_MESSAGE, ids.getLeft().getIssueFirstRep().getDiagnostics());
   }
 
+  @Test
+  void collectDiagnosisCorrections_usesPagedIcdIndex(@TempDir Path directory) throws IOException {
+    CloseableHttpResponse firstPage = mock(CloseableHttpResponse.class);
+    when(firstPage.getStatusLine()).thenReturn(statusLine(200));
+    when(firstPage.getEntity()).thenReturn(httpEntity("{\"total\":3,\"items\":["
+        + "{\"id\":\"urn:miriam:icd:C18.0\"},{\"id\":\"urn:miriam:icd:C61\"}]}"));
+    CloseableHttpResponse secondPage = mock(CloseableHttpResponse.class);
+    when(secondPage.getStatusLine()).thenReturn(statusLine(200));
+    when(secondPage.getEntity()).thenReturn(httpEntity("{\"total\":3,\"items\":[{\"id\":\"urn:miriam:icd:E11\"}]}"));
+    when(httpClient.execute(argThat((HttpGet httpGet) -> httpGet != null && icdPageMatches(httpGet, 0)))).thenReturn(firstPage);
+    when(httpClient.execute(argThat((HttpGet httpGet) -> httpGet != null && icdPageMatches(httpGet, 2)))).thenReturn(secondPage);
+    Path file = directory.resolve("icd.index");
+    api.setIcdIndexFile(file, Duration.ofDays(1));
+    Map<String, String> diagnoses = new HashMap<>();
+    for (String diagnosis : Arrays.asList("urn:miriam:icd:C18.0", "urn:miriam:icd:C61.9", "urn:miriam:icd:E11.9", "urn:miriam:icd:X99"))
+      diagnoses.put(diagnosis, diagnosis);
+
+    api.collectDiagnosisCorrections(diagnoses);
+    // The second call uses the index from memory.
+    api.collectDiagnosisCorrections(new HashMap<>());
+
+    assertEquals("urn:miriam:icd:C18.0", diagnoses.get("urn:miriam:icd:C18.0"));
+    assertEquals("urn:miriam:icd:C61", diagnoses.get("urn:miriam:icd:C61.9"));
+    assertEquals("urn:miriam:icd:E11", diagnoses.get("urn:miriam:icd:E11.9"));
+    assertNull(diagnoses.get("urn:miriam:icd:X99"));
+    assertTrue(diagnoses.containsKey("urn:miriam:icd:X99"));
+    verify(httpClient, times(2)).execute(any(HttpGet.class));
+    assertEquals(3, IcdIndex.read(file).get().size());
+  }
+
+  @Test
+  void updateStarModel_sendsOnlyDifferences() throws IOException {
+    String collectionId = COLLECTION_ID.toString();
+    StarModelData starModelData = new StarModelData();
+    starModelData.addCountedRow(collectionId, starModelData.newCountedRow("FEMALE", "urn:miriam:icd:C61", "Adult", "SERUM", 12, 30));
+    starModelData.addFactTable(collectionId, Arrays.asList(
+        fact("fact-unchanged", "12"), fact("fact-changed", "13"), fact("fact-new", "12")));
+    // References come back as objects and numbers as doubles, last_update is older.
+    String existingFacts = "{\"total\":3,\"items\":["
+        + existingFact("fact-unchanged", 12) + "," + existingFact("fact-changed", 12) + "," + existingFact("fact-stale", 12) + "]}";
+    List<HttpUriRequest> requests = new ArrayList<>();
+    Answer<CloseableHttpResponse> answer = invocation -> {
+      HttpUriRequest request = invocation.getArgument(0);
+      requests.add(request);
+      CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+      when(response.getStatusLine()).thenReturn(statusLine(200));
+      when(response.getEntity()).thenReturn(httpEntity(request instanceof HttpGet ? existingFacts : "{}"));
+      return response;
+    };
+    when(httpClient.execute(any())).thenAnswer(answer);
+    when(httpClient.execute(any(), any(HttpContext.class))).thenAnswer(answer);
+
+    OperationOutcome outcome = api.updateStarModel(starModelData);
+
+    assertEquals(INFORMATION, outcome.getIssueFirstRep().getSeverity());
+    assertEquals(4, requests.size());
+    assertTrue(requests.get(0).getURI().toString().contains("q=collection==%22" + collectionId + "%22"));
+    assertEquals("POST", requests.get(1).getMethod());
+    assertEquals(Collections.singletonList("fact-new"), sentIds((HttpEntityEnclosingRequest) requests.get(1), "entities"));
+    assertEquals("PUT", requests.get(2).getMethod());
+    assertEquals(Collections.singletonList("fact-changed"), sentIds((HttpEntityEnclosingRequest) requests.get(2), "entities"));
+    assertEquals("DELETE", requests.get(3).getMethod());
+    assertEquals(Collections.singletonList("fact-stale"), sentIds((HttpEntityEnclosingRequest) requests.get(3), "entityIds"));
+    // Inserts are not marked as safe to retry.
+    verify(httpClient, never()).execute(argThat((HttpUriRequest request) -> request != null && request.getMethod().equals("POST")),
+        any(HttpContext.class));
+  }
+
+  @Test
+  void updateStarModel_journalsWholePlanAndAbandonsItWhenRejected(@TempDir Path directory) throws IOException {
+    String collectionId = COLLECTION_ID.toString();
+    StarModelData starModelData = new StarModelData();
+    starModelData.addCountedRow(collectionId, starModelData.newCountedRow("FEMALE", "urn:miriam:icd:C61", "Adult", "SERUM", 12, 30));
+    starModelData.addFactTable(collectionId, Arrays.asList(fact("fact-changed", "13"), fact("fact-new", "12")));
+    String existingFacts = "{\"total\":2,\"items\":["
+        + existingFact("fact-changed", 12) + "," + existingFact("fact-stale", 12) + "]}";
+    Path file = directory.resolve("directory.journal");
+    WriteJournal journal = WriteJournal.open(file);
+    api.setJournal(journal);
+    List<String> journaledMethods = new ArrayList<>();
+    List<String> sentMethods = new ArrayList<>();
+    // The Directory accepts the inserts and rejects the updates.
+    Answer<CloseableHttpResponse> answer = invocation -> {
+      HttpUriRequest request = invocation.getArgument(0);
+      if (journaledMethods.isEmpty() && !(request instanceof HttpGet))
+        for (String line : Files.readAllLines(file, UTF_8))
+          journaledMethods.add(new Gson().fromJson(line, Map.class).get("method").toString());
+      sentMethods.add(request.getMethod());
+      CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+      when(response.getStatusLine()).thenReturn(statusLine(request.getMethod().equals("PUT") ? 400 : 200));
+      when(response.getEntity()).thenReturn(httpEntity(request instanceof HttpGet ? existingFacts : "{}"));
+      return response;
+    };
+    when(httpClient.execute(any())).thenAnswer(answer);
+    when(httpClient.execute(any(), any(HttpContext.class))).thenAnswer(answer);
+
+    OperationOutcome outcome = api.updateStarModel(starModelData);
+
+    assertTrue(outcome.getIssueFirstRep().getDiagnostics().contains("entity update status code 400"));
+    assertEquals(Arrays.asList("POST", "PUT", "DELETE"), journaledMethods);
+    assertEquals(Arrays.asList("GET", "POST", "PUT"), sentMethods);
+    // The rejected plan is abandoned, so nothing is left to replay.
+    assertTrue(journal.getPendingEntries().isEmpty());
+    journal.close();
+    assertEquals(0, Files.size(file));
+  }
+
+  @Test
+  void updateEntities_failedWriteIsNotReplayedAfterLaterSuccess(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("directory.journal");
+    WriteJournal journal = WriteJournal.open(file);
+    api.setJournal(journal);
+    DirectoryCollectionPut collections = new DirectoryCollectionPut();
+    collections.setSize(COLLECTION_ID.toString(), COLLECTION_SIZE);
+    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+    when(response.getStatusLine()).thenReturn(statusLine(200));
+    when(response.getEntity()).thenReturn(httpEntity("{}"));
+    when(httpClient.execute(any())).thenThrow(new IOException(ERROR_MESSAGE)).thenReturn(response);
+
+    OperationOutcome failed = api.updateEntities(collections);
+    OperationOutcome succeeded = api.updateEntities(collections);
+    journal.close();
+
+    assertTrue(failed.getIssueFirstRep().getDiagnostics().contains(ERROR_MESSAGE));
+    assertEquals(INFORMATION, succeeded.getIssueFirstRep().getSeverity());
+    assertEquals(0, Files.size(file));
+    try (WriteJournal reopened = WriteJournal.open(file)) {
+      assertTrue(reopened.getPendingEntries().isEmpty());
+    }
+  }
+
+  @Test
+  void replayJournal_sendsPendingWritesOnly(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("directory.journal");
+    String url = BASE_URL + "/api/v2/eu_bbmri_eric_AT_facts";
+    try (WriteJournal journal = WriteJournal.open(file)) {
+      long committed = journal.append("POST", url, "entities", Collections.singletonList(fact("fact-0", "12")));
+      journal.append("POST", url, "entities", Collections.singletonList(fact("fact-1", "12")));
+      journal.append("DELETE", url, "entityIds", Collections.singletonList("fact-2"));
+      journal.commit(committed);
+    }
+    WriteJournal journal = WriteJournal.open(file);
+    api.setJournal(journal);
+    // The POST was committed before the crash, so the Directory rejects it as a duplicate.
+    List<HttpUriRequest> requests = new ArrayList<>();
+    when(httpClient.execute(any(), any(HttpContext.class))).thenAnswer(invocation -> {
+      HttpUriRequest request = invocation.getArgument(0);
+      requests.add(request);
+      CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+      when(response.getStatusLine()).thenReturn(statusLine(request.getMethod().equals("POST") ? 400 : 200));
+      when(response.getEntity()).thenReturn(httpEntity("{}"));
+      return response;
+    });
+
+    OperationOutcome outcome = api.replayJournal();
+
+    assertEquals("Replayed 2 Directory writes.", outcome.getIssueFirstRep().getDiagnostics());
+    assertEquals(Arrays.asList("POST", "PUT", "DELETE"), requests.stream().map(HttpUriRequest::getMethod).collect(Collectors.toList()));
+    assertEquals(Collections.singletonList("fact-1"), sentIds((HttpEntityEnclosingRequest) requests.get(1), "entities"));
+    assertEquals(Collections.singletonList("fact-2"), sentIds((HttpEntityEnclosingRequest) requests.get(2), "entityIds"));
+    assertTrue(journal.getPendingEntries().isEmpty());
+    journal.close();
+    assertEquals(0, Files.size(file));
+  }
+
+  @Test
+  void fetchBiobank_logsInAgainWhenTokenExpired() throws IOException {
+    List<String> tokens = new ArrayList<>();
+    List<String> sentTokens = new ArrayList<>();
+    when(httpClient.execute(any())).thenAnswer(invocation -> {
+      HttpUriRequest request = invocation.getArgument(0);
+      CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+      if (request.getURI().toString().equals(BASE_URL + "/api/v1/login")) {
+        tokens.add("token-" + tokens.size());
+        when(response.getStatusLine()).thenReturn(statusLine(200));
+        when(response.getEntity()).thenReturn(httpEntity("{\"username\":\"user\",\"token\":\"" + tokens.get(tokens.size() - 1) + "\"}"));
+        return response;
+      }
+      String token = request.getFirstHeader("x-molgenis-token").getValue();
+      sentTokens.add(token);
+      // Only the latest token is accepted.
+      boolean accepted = token.equals(tokens.get(tokens.size() - 1)) && sentTokens.size() > 1;
+      when(response.getStatusLine()).thenReturn(statusLine(accepted ? 200 : 401));
+      when(response.getEntity()).thenReturn(httpEntity(accepted ? "{\"id\":\"" + AT_BIOBANK_ID + "\"}" : "{}"));
+      return response;
+    });
+    api = DirectoryApi.createWithLogin(httpClient, BASE_URL, "user", "password", false).get();
+    // The token obtained at creation expires before the first request.
+    tokens.add("token-expired-elsewhere");
+
+    Either<OperationOutcome, Biobank> biobank = api.fetchBiobank(AT_BIOBANK_ID);
+
+    assertTrue(biobank.isRight());
+    assertEquals(Arrays.asList("token-0", "token-2"), sentTokens);
+  }
+
+  @Test
+  void createWithLogin_failsOnBadCredentials() throws IOException {
+    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+    when(response.getStatusLine()).thenReturn(statusLine(401));
+    when(response.getEntity()).thenReturn(httpEntity("{\"errors\":[{\"message\":\"Login failed.\"}]}"));
+    when(httpClient.execute(any())).thenReturn(response);
+
+    Either<OperationOutcome, DirectoryApi> created = DirectoryApi.createWithLogin(httpClient, BASE_URL, "user", "wrong", false);
+
+    assertTrue(created.isLeft(), "the result is left");
+    assertEquals("Error in BBMRI Directory response for login, cause: status code 401",
+        created.getLeft().getIssueFirstRep().getDiagnostics());
+  }
+
+  @Test
+  void estimateFactBytes_coversSerializedFact() {
+    Map<String, String> fact = fact("fact-1", "12");
+
+    long serializedBytes = new Gson().toJson(fact).getBytes(UTF_8).length;
+
+    assertTrue(DirectoryApi.estimateFactBytes(fact) >= serializedBytes);
+    assertTrue(DirectoryApi.estimateFactBytes(fact) <= serializedBytes + 3);
+  }
+
+  private Map<String, String> fact(String id, String numberOfDonors) {
+    Map<String, String> fact = new HashMap<>();
+    fact.put("id", id);
+    fact.put("collection", COLLECTION_ID.toString());
+    fact.put("sex", "FEMALE");
+    fact.put("disease", "urn:miriam:icd:C61");
+    fact.put("number_of_donors", numberOfDonors);
+    fact.put("last_update", "2026-10-16");
+    return fact;
+  }
+
+  private String existingFact(String id, int numberOfDonors) {
+    return "{\"_href\":\"/api/v2/facts/" + id + "\",\"id\":\"" + id + "\","
+        + "\"collection\":{\"id\":\"" + COLLECTION_ID + "\"},\"sex\":{\"id\":\"FEMALE\"},"
+        + "\"disease\":{\"id\":\"urn:miriam:icd:C61\"},\"number_of_donors\":" + numberOfDonors + ".0,"
+        + "\"last_update\":\"2026-01-01\"}";
+  }
+
+  private static List<Object> sentIds(HttpEntityEnclosingRequest request, String key) throws IOException {
+    Map<?, ?> body = new Gson().fromJson(EntityUtils.toString(request.getEntity(), UTF_8), Map.class);
+    return ((List<?>) body.get(key)).stream()
+        .map(item -> item instanceof Map ? ((Map<?, ?>) item).get("id") : item)
+        .collect(Collectors.toList());
+  }
+
+  private static boolean icdPageMatches(HttpGet httpGet, int start) {
+    String uri = httpGet.getURI().toString();
+    return uri.startsWith(BASE_URL + "/api/v2/eu_bbmri_eric_disease_types?attrs=id&")
+        && uri.contains("start=" + start + "&");
+  }
+
   private static ArgumentMatcher<HttpGet> httpGetMatcher(String uri) {
     return httpGet -> URI.create(BASE_URL + uri).equals(httpGet.getURI()) &&
         TOKEN.equals(httpGet.getFirstHeader("x-molgenis-token").getValue());
@@ -0,0 +1,127 @@
+package de.samply.directory_sync.directory;
+
+import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.ERROR;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.samply.directory_sync.directory.FactBlockUploader.Block;
+import io.vavr.control.Either;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.junit.jupiter.api.Test;
+
+class FactBlockUploaderTest {
+
+  private static final List<Integer> FACTS = IntStream.range(0, 5000).boxed().collect(Collectors.toList());
+
+  @Test
+  void testUpload_sendsBlocksConcurrently() {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    // The first blocks wait for each other, so that four of them are in flight at once.
+    CountDownLatch firstBlocks = new CountDownLatch(4);
+    FactBlockUploader<Integer> uploader = new FactBlockUploader<Integer>(block -> {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      firstBlocks.countDown();
+      await(firstBlocks);
+      inFlight.decrementAndGet();
+      return Either.right(10L * block.size());
+    }).setMaxConcurrency(4);
+
+    OperationOutcome outcome = uploader.upload(FACTS);
+
+    assertFalse(outcome.hasIssue());
+    assertEquals(FACTS.size(), uploader.getCommittedFactCount());
+    assertContiguous(uploader.getCommittedBlocks(), FACTS.size());
+    assertTrue(uploader.getCommittedBlocks().stream().allMatch(block -> block.size() <= DirectoryApi.FACT_BLOCK_SIZE));
+    assertEquals(4, maxInFlight.get());
+  }
+
+  @Test
+  void testUpload_stopsOnFirstError() {
+    AtomicInteger sentBlocks = new AtomicInteger();
+    FactBlockUploader<Integer> uploader = new FactBlockUploader<Integer>(block -> {
+      sentBlocks.incrementAndGet();
+      if (block.contains(1200)) {
+        OperationOutcome error = new OperationOutcome();
+        error.addIssue().setSeverity(ERROR).setDiagnostics("rejected");
+        return Either.left(error);
+      }
+      return Either.right(10L * block.size());
+    }).setMaxConcurrency(1).setBlockSizeRange(100, 100);
+
+    OperationOutcome outcome = uploader.upload(FACTS);
+
+    assertEquals(ERROR, outcome.getIssueFirstRep().getSeverity());
+    assertEquals("rejected", outcome.getIssueFirstRep().getDiagnostics());
+    assertEquals("1200 of 5000 facts were committed", outcome.getIssue().get(1).getDiagnostics());
+    assertEquals(13, sentBlocks.get());
+    assertContiguous(uploader.getCommittedBlocks(), 1200);
+  }
+
+  @Test
+  void testUpload_adaptsBlockSize() {
+    // The first five blocks are slow, the rest are fast.
+    AtomicInteger slowBlocks = new AtomicInteger(5);
+    AtomicLong nanoTime = new AtomicLong();
+    FactBlockUploader<Integer> uploader = new FactBlockUploader<Integer>(block -> {
+      nanoTime.addAndGet(Duration.ofMillis(slowBlocks.getAndDecrement() > 0 ? 20 : 1).toNanos());
+      return Either.right(10L * block.size());
+    }).setMaxConcurrency(1).setBlockSizeRange(50, 800).setTargetLatency(Duration.ofMillis(10))
+        .setNanoClock(nanoTime::get);
+
+    uploader.upload(FACTS);
+
+    List<Integer> blockSizes = uploader.getCommittedBlocks().stream().map(Block::size).collect(Collectors.toList());
+    assertEquals(Arrays.asList(800, 400, 200, 100, 50, 50, 100, 200, 400, 800, 800), blockSizes.subList(0, 11));
+    assertContiguous(uploader.getCommittedBlocks(), FACTS.size());
+
+    // Large payloads limit the block size.
+    FactBlockUploader<Integer> large = new FactBlockUploader<Integer>(block -> Either.right(1000L * block.size()))
+        .setMaxConcurrency(1).setBlockSizeRange(50, 800).setMaxPayloadBytes(200_000);
+    large.upload(FACTS);
+    assertEquals(200, large.getBlockSize());
+    assertContiguous(large.getCommittedBlocks(), FACTS.size());
+  }
+
+  @Test
+  void testUpload_estimatedPayloadLimitsFirstBlocks() {
+    AtomicLong largestPayload = new AtomicLong();
+    FactBlockUploader<Integer> uploader = new FactBlockUploader<Integer>(block -> {
+      largestPayload.accumulateAndGet(1000L * block.size(), Math::max);
+      return Either.right(1000L * block.size());
+    }).setMaxConcurrency(1).setBlockSizeRange(50, 800).setMaxPayloadBytes(200_000).setSizeEstimator(fact -> 1000L);
+
+    uploader.upload(FACTS);
+
+    assertEquals(200_000, largestPayload.get());
+    assertEquals(200, uploader.getCommittedBlocks().get(0).size());
+    assertContiguous(uploader.getCommittedBlocks(), FACTS.size());
+  }
+
+  private static void assertContiguous(List<Block> blocks, int end) {
+    int start = 0;
+    for (Block block : blocks) {
+      assertEquals(start, block.getStart());
+      start = block.getEnd();
+    }
+    assertEquals(end, start);
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      assertTrue(latch.await(10, TimeUnit.SECONDS), "the latch was released");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package de.samply.directory_sync.directory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.jupiter.api.Test;
+
+class FactDtoTest {
+
+  private static final Gson GSON = new GsonBuilder()
+      .registerTypeAdapter(FactDto.class, new FactDto.Adapter())
+      .create();
+
+  @Test
+  void testRead() {
+    String json = "{\"_href\":\"/api/v2/eu_bbmri_eric_AT_facts/fact-0\",\"id\":\"fact-0\","
+        + "\"collection\":{\"_href\":\"/api/v2/eu_bbmri_eric_collections/c-0\",\"id\":\"c-0\",\"name\":\"Collection 0\"},"
+        + "\"sex\":{\"id\":\"FEMALE\",\"label\":\"Female\"},\"disease\":null,\"age_range\":\"Adult\","
+        + "\"number_of_donors\":12,\"number_of_samples\":30.0,\"last_update\":\"2026-10-16\"}";
+
+    FactDto fact = GSON.fromJson(json, FactDto.class);
+
+    assertEquals("fact-0", fact.get("id"));
+    assertEquals("c-0", fact.get("collection"));
+    assertEquals("FEMALE", fact.get("sex"));
+    assertNull(fact.get("disease"));
+    assertEquals("Adult", fact.get("age_range"));
+    assertNull(fact.get("sample_type"));
+    assertEquals("12", fact.get("number_of_donors"));
+    assertEquals("30", fact.get("number_of_samples"));
+    assertEquals("2026-10-16", fact.get("last_update"));
+    assertNull(fact.get("_href"));
+  }
+
+  @Test
+  void testWrite_canBeReadBack() {
+    FactDto fact = new FactDto();
+    fact.id = "fact-0";
+    fact.collection = "c-0";
+    fact.sex = "FEMALE";
+    fact.numberOfDonors = 12;
+
+    String json = GSON.toJson(fact);
+    FactDto readBack = GSON.fromJson(json, FactDto.class);
+
+    assertEquals("{\"id\":\"fact-0\",\"collection\":\"c-0\",\"sex\":\"FEMALE\",\"number_of_donors\":12}", json);
+    assertEquals("c-0", readBack.get("collection"));
+    assertEquals("12", readBack.get("number_of_donors"));
+    assertNull(readBack.get("number_of_samples"));
+  }
+}
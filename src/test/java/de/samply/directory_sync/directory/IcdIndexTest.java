@@ -0,0 +1,50 @@
+package de.samply.directory_sync.directory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IcdIndexTest {
+
+  private static final Instant LOADED_AT = Instant.parse("2024-03-01T12:00:00Z");
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void testCorrect() {
+    IcdIndex index = new IcdIndex(Arrays.asList("urn:miriam:icd:C18.0", "urn:miriam:icd:C61"), LOADED_AT);
+
+    assertEquals("urn:miriam:icd:C18.0", index.correct("urn:miriam:icd:C18.0"));
+    assertEquals("urn:miriam:icd:C61", index.correct("urn:miriam:icd:C61.9"));
+    assertNull(index.correct("urn:miriam:icd:C18.9"));
+    assertNull(index.correct(null));
+  }
+
+  @Test
+  void testWriteAndRead() throws IOException {
+    Path file = directory.resolve("icd.index");
+    new IcdIndex(Arrays.asList("urn:miriam:icd:C18.0", "urn:miriam:icd:C61"), LOADED_AT).write(file);
+
+    IcdIndex index = IcdIndex.read(file).get();
+
+    assertEquals(2, index.size());
+    assertTrue(index.contains("urn:miriam:icd:C61"));
+    assertFalse(index.isOlderThan(Duration.ofDays(1), LOADED_AT.plus(Duration.ofHours(23))));
+    assertTrue(index.isOlderThan(Duration.ofDays(1), LOADED_AT.plus(Duration.ofDays(1))));
+  }
+
+  @Test
+  void testRead_noFile() {
+    assertFalse(IcdIndex.read(directory.resolve("missing.index")).isPresent());
+  }
+}
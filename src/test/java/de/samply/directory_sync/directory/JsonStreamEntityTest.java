@@ -0,0 +1,61 @@
+package de.samply.directory_sync.directory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.Gson;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+
+class JsonStreamEntityTest {
+
+  private static final Gson GSON = new Gson();
+
+  @Test
+  void testWriteTo() throws IOException {
+    Map<String, String> fact = new TreeMap<>();
+    fact.put("id", "bbmri-eric:factID:AT_MUG_0123");
+    fact.put("number_of_donors", "12");
+    List<Map<String, String>> facts = Arrays.asList(fact, null, fact);
+    JsonStreamEntity entity = new JsonStreamEntity(GSON, "entities", facts, false);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+
+    String expected = GSON.toJson(Collections.singletonMap("entities", facts));
+    assertEquals(expected, out.toString(UTF_8));
+    assertEquals(expected.length(), entity.getBytesWritten());
+    assertTrue(entity.isChunked());
+    assertEquals(-1, entity.getContentLength());
+    assertNull(entity.getContentEncoding());
+    // The entity can be written again, e.g. for a retry.
+    assertTrue(entity.isRepeatable());
+    assertEquals(expected, new String(entity.getContent().readAllBytes(), UTF_8));
+  }
+
+  @Test
+  void testWriteTo_gzip() throws IOException {
+    List<String> factIds = Collections.nCopies(1000, "bbmri-eric:factID:AT_MUG_0123456789abcdef0123");
+    JsonStreamEntity entity = new JsonStreamEntity(GSON, "entityIds", factIds, true);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+
+    String expected = GSON.toJson(Collections.singletonMap("entityIds", factIds));
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(expected, new String(in.readAllBytes(), UTF_8));
+    assertEquals("gzip", entity.getContentEncoding().getValue());
+    assertEquals(out.size(), entity.getBytesWritten());
+    assertTrue(out.size() < expected.length() / 10);
+  }
+}
@@ -0,0 +1,55 @@
+package de.samply.directory_sync.directory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class TokenHolderTest {
+
+  @Test
+  void testLogsInLazily() throws IOException {
+    AtomicInteger logins = new AtomicInteger();
+    TokenHolder holder = new TokenHolder(null, () -> "token-" + logins.incrementAndGet());
+
+    assertEquals(0, logins.get());
+    assertEquals("token-1", holder.get());
+    assertEquals("token-1", holder.get());
+    assertEquals(1, logins.get());
+  }
+
+  @Test
+  void testConcurrentRefreshesShareOneLogin() throws Exception {
+    AtomicInteger logins = new AtomicInteger();
+    CountDownLatch rejected = new CountDownLatch(8);
+    TokenHolder holder = new TokenHolder("token-0", () -> "token-" + logins.incrementAndGet());
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> tokens = new ArrayList<>();
+      for (int i = 0; i < 8; i++)
+        tokens.add(executor.submit(() -> {
+          // All callers saw the Directory reject the same token.
+          String rejectedToken = holder.get();
+          rejected.countDown();
+          rejected.await();
+          return holder.refresh(rejectedToken);
+        }));
+      for (Future<String> token : tokens)
+        assertEquals("token-1", token.get());
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(1, logins.get());
+    // A later rejection of the new token leads to a new login.
+    assertEquals("token-2", holder.refresh("token-1"));
+  }
+}
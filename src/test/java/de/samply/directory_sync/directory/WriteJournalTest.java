@@ -0,0 +1,130 @@
+package de.samply.directory_sync.directory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WriteJournalTest {
+
+  private static final String URL = "https://directory.example.org/api/v2/eu_bbmri_eric_AT_facts";
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void testUncommittedEntriesArePendingAfterReopen() throws IOException {
+    Path file = directory.resolve("directory.journal");
+    try (WriteJournal journal = WriteJournal.open(file)) {
+      long committed = journal.append("POST", URL, "entities", Collections.singletonList(fact("fact-0")));
+      long uncommitted = journal.append("POST", URL, "entities", Arrays.asList(fact("fact-1"), fact("fact-2")));
+      journal.append("DELETE", URL, "entityIds", Arrays.asList("fact-3", "fact-4"));
+      journal.commit(committed);
+      assertEquals(1, uncommitted);
+    }
+    // A crash in the middle of writing an entry leaves an incomplete line.
+    Files.write(file, "{\"type\":\"write\",\"seq\":3,\"meth".getBytes(UTF_8), StandardOpenOption.APPEND);
+
+    try (WriteJournal journal = WriteJournal.open(file)) {
+      List<WriteJournal.Entry> pending = journal.getPendingEntries();
+      assertEquals(2, pending.size());
+      assertEquals("POST", pending.get(0).getMethod());
+      assertEquals(URL, pending.get(0).getUrl());
+      assertEquals("entities", pending.get(0).getKey());
+      assertEquals("{\"id\":\"fact-1\",\"number_of_donors\":12}", pending.get(0).getItems().get(0).toString());
+      assertEquals("DELETE", pending.get(1).getMethod());
+      assertEquals("\"fact-4\"", pending.get(1).getItems().get(1).toString());
+
+      journal.commit(pending.get(0).getSeq());
+      journal.commit(pending.get(1).getSeq());
+      assertTrue(journal.getPendingEntries().isEmpty());
+    }
+
+    // Once everything is committed, the journal is truncated.
+    assertEquals(0, Files.size(file));
+  }
+
+  @Test
+  void testNewWritesAbandonPendingEntries() throws IOException {
+    Path file = directory.resolve("directory.journal");
+    try (WriteJournal journal = WriteJournal.open(file)) {
+      journal.append("PUT", URL, "entities", Collections.singletonList(fact("fact-0")));
+    }
+
+    try (WriteJournal journal = WriteJournal.open(file)) {
+      assertEquals(1, journal.getPendingEntries().size());
+      long seq = journal.append("PUT", URL, "entities", Collections.singletonList(fact("fact-1")));
+      assertEquals(1, seq);
+      assertTrue(journal.getPendingEntries().isEmpty());
+    }
+
+    try (WriteJournal journal = WriteJournal.open(file)) {
+      List<WriteJournal.Entry> pending = journal.getPendingEntries();
+      assertEquals(1, pending.size());
+      assertEquals(1, pending.get(0).getSeq());
+    }
+  }
+
+  @Test
+  void testAbandonedEntriesAreNotPending() throws IOException {
+    Path file = directory.resolve("directory.journal");
+    try (WriteJournal journal = WriteJournal.open(file)) {
+      List<Long> seqs = journal.appendAll("POST", URL, "entities",
+          Arrays.asList(Collections.singletonList(fact("fact-0")), Collections.singletonList(fact("fact-1"))));
+      long delete = journal.append("DELETE", URL, "entityIds", Collections.singletonList("fact-2"));
+      assertEquals(Arrays.asList(0L, 1L), seqs);
+      journal.commit(seqs.get(0));
+      journal.abandon(seqs.get(1));
+      assertEquals(2, delete);
+    }
+
+    try (WriteJournal journal = WriteJournal.open(file)) {
+      List<WriteJournal.Entry> pending = journal.getPendingEntries();
+      assertEquals(1, pending.size());
+      assertEquals("DELETE", pending.get(0).getMethod());
+
+      journal.abandon(pending.get(0).getSeq());
+      assertTrue(journal.getPendingEntries().isEmpty());
+    }
+
+    // Abandoned entries do not keep the journal from being truncated.
+    assertEquals(0, Files.size(file));
+  }
+
+  @Test
+  void testWritesLeftOpenByFailedPlanAreNotReplayedAfterLaterSuccess() throws IOException {
+    Path file = directory.resolve("directory.journal");
+    try (WriteJournal journal = WriteJournal.open(file)) {
+      // The first plan fails without an outcome being recorded for its write.
+      journal.append("PUT", URL, "entities", Collections.singletonList(fact("fact-0")));
+
+      // A later plan of the same process succeeds.
+      journal.abandonOpen();
+      long seq = journal.append("PUT", URL, "entities", Collections.singletonList(fact("fact-0")));
+      journal.commit(seq);
+    }
+
+    try (WriteJournal journal = WriteJournal.open(file)) {
+      assertTrue(journal.getPendingEntries().isEmpty());
+    }
+    assertEquals(0, Files.size(file));
+  }
+
+  private static Map<String, Object> fact(String id) {
+    Map<String, Object> fact = new LinkedHashMap<>();
+    fact.put("id", id);
+    fact.put("number_of_donors", 12);
+    return fact;
+  }
+}
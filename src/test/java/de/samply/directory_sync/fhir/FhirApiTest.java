@@ -3,38 +3,57 @@ package de.samply.directory_sync.fhir;
 import static ca.uhn.fhir.rest.api.PreferReturnEnum.OPERATION_OUTCOME;
 import static ca.uhn.fhir.rest.api.SummaryEnum.COUNT;
 import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.ERROR;
+import static org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity.INFORMATION;
+import static de.samply.directory_sync.TestUtil.createBbmriEricId;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import ca.uhn.fhir.rest.gclient.ICreateTyped;
 import ca.uhn.fhir.rest.gclient.ICriterion;
 import ca.uhn.fhir.rest.gclient.ICriterionInternal;
 import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.gclient.IReadExecutable;
+import ca.uhn.fhir.rest.gclient.ITransactionTyped;
 import ca.uhn.fhir.rest.gclient.IUpdateExecutable;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import com.google.common.collect.ImmutableSet;
 import io.vavr.control.Either;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseParameters;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Base;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.DateType;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Specimen;
 import org.hl7.fhir.r4.model.StringType;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -51,6 +70,8 @@ public class FhirApiTest {
   private static final String ERROR_MESSAGE = "msg-172631";
   private static final String BIOBANK_PROFILE_URI = "https://fhir.bbmri.de/StructureDefinition/Biobank";
   private static final String COLLECTION_PROFILE_URI = "https://fhir.bbmri.de/StructureDefinition/Collection";
+  private static final String CUSTODIAN_URI = "https://fhir.bbmri.de/StructureDefinition/Custodian";
+  private static final String COLLECTION_ID = "bbmri-eric:ID:DE_ABC:collection:XYZ";
 
   @Mock(answer = Answers.RETURNS_DEEP_STUBS)
   private IGenericClient fhirClient;
@@ -292,6 +313,41 @@ public class FhirApiTest {
     assertEquals("msg-171726", result.getLeft().getIssueFirstRep().getDiagnostics());
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  void testUpdateResources() {
+    Organization a = new Organization();
+    a.setId("Organization/org-a/_history/1");
+    Organization b = new Organization();
+    b.setId("org-b");
+    ITransactionTyped<Bundle> transaction = mock(ITransactionTyped.class);
+    when(fhirClient.transaction().withBundle(argThat((Bundle batch) -> batch.getType() == Bundle.BundleType.BATCH
+        && batch.getEntry().size() == 2
+        && "Organization/org-a".equals(batch.getEntry().get(0).getRequest().getUrl()))))
+        .thenReturn(transaction);
+    when(transaction.withAdditionalHeader("Prefer", "return=minimal")).thenReturn(transaction);
+    Bundle response = new Bundle();
+    response.addEntry().getResponse().setStatus("200 OK");
+    response.addEntry().getResponse().setStatus("412 Precondition Failed");
+    when(transaction.execute()).thenReturn(response);
+
+    List<OperationOutcome> result = fhirApi.updateResources(Arrays.asList(a, b));
+
+    assertEquals(2, result.size());
+    assertEquals(INFORMATION, result.get(0).getIssueFirstRep().getSeverity());
+    assertEquals(ERROR, result.get(1).getIssueFirstRep().getSeverity());
+  }
+
+  @Test
+  void testUpdateResources_batchFailure() {
+    when(fhirClient.transaction().withBundle(any(Bundle.class))).thenThrow(new RuntimeException(ERROR_MESSAGE));
+
+    List<OperationOutcome> result = fhirApi.updateResources(Arrays.asList(new Organization().setId("a"), new Organization().setId("b")));
+
+    assertEquals(2, result.size());
+    assertEquals(ERROR_MESSAGE, result.get(1).getIssueFirstRep().getDiagnostics());
+  }
+
   @Test
   void testFetchCollections() {
     Organization a = new Organization();
@@ -324,6 +380,31 @@ public class FhirApiTest {
     assertEquals("orgId-152540", result.get().get(0).getId());
   }
 
+  @Test
+  void testFetchCollections_searchesInChunks() {
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 150; i++)
+      ids.add("orgId-" + i);
+    Organization a = new Organization();
+    a.setId("orgId-0");
+    Organization b = new Organization();
+    b.setId("orgId-149");
+    when(fhirClient.search().forResource(Organization.class)
+        .where(argThat((ICriterion<?> criterion) -> idCount(criterion) == 100)).execute())
+        .thenReturn(singletonBundle(a));
+    when(fhirClient.search().forResource(Organization.class)
+        .where(argThat((ICriterion<?> criterion) -> idCount(criterion) == 50)).execute())
+        .thenReturn(singletonBundle(b));
+
+    Either<OperationOutcome, List<Organization>> result = fhirApi.fetchCollections(
+        new LinkedHashSet<>(ids));
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals(2, result.get().size());
+    assertEquals("orgId-0", result.get().get(0).getId());
+    assertEquals("orgId-149", result.get().get(1).getId());
+  }
+
   @Test
   void testFetchCollections_searchForNone() {
     Either<OperationOutcome, List<Organization>> result = fhirApi.fetchCollections(
@@ -348,6 +429,262 @@ public class FhirApiTest {
     assertEquals(ERROR_MESSAGE, result.getLeft().getIssueFirstRep().getDiagnostics());
   }
 
+  @Test
+  void testFetchSpecimensByCollection_resolvesCustodianFromCollectionIndex() {
+    Organization collection = new Organization();
+    collection.setId("collection-153012");
+    collection.getMeta().addProfile(COLLECTION_PROFILE_URI);
+    collection.addIdentifier(new Identifier().setValue(COLLECTION_ID));
+    when(organizationQuery(COLLECTION_PROFILE_URI).execute()).thenReturn(singletonBundle(collection));
+    Bundle specimens = new Bundle();
+    specimens.addEntry().setResource(specimen("collection-153012"));
+    specimens.addEntry().setResource(specimen("collection-153012"));
+    when(specimenQuery().execute()).thenReturn(specimens);
+
+    Either<OperationOutcome, Map<String, List<Specimen>>> result = fhirApi.fetchSpecimensByCollection(null);
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals(2, result.get().get(COLLECTION_ID).size());
+    verify(fhirClient, never()).read();
+  }
+
+  @Test
+  void testExtractPatientFromSpecimen_usesIncludedPatients() {
+    when(organizationQuery(COLLECTION_PROFILE_URI).execute()).thenReturn(new Bundle());
+    Patient patient = new Patient();
+    patient.setId("patient-104211");
+    Specimen specimen = specimen("collection-104211");
+    specimen.setSubject(new Reference("Patient/patient-104211"));
+    Bundle specimens = new Bundle();
+    specimens.addEntry().setResource(specimen);
+    specimens.addEntry().setResource(patient);
+    when(specimenQuery().execute()).thenReturn(specimens);
+    when(fhirClient.read().resource(Organization.class).withId("collection-104211").execute())
+        .thenReturn(new Organization());
+    fhirApi.fetchSpecimensByCollection(null);
+
+    Patient result = fhirApi.extractPatientFromSpecimen(specimen);
+
+    assertEquals(patient, result);
+    verify(fhirClient.read(), never()).resource(Patient.class);
+  }
+
+  @Test
+  void testFetchSpecimensByCollection_reusesScanForEachDefaultCollection() {
+    when(organizationQuery(COLLECTION_PROFILE_URI).execute()).thenReturn(new Bundle());
+    IQuery<Bundle> query = specimenQuery();
+    Specimen specimen = new Specimen();
+    specimen.getMeta().addTag("http://terminology.hl7.org/CodeSystem/v3-ObservationValue", "SUBSETTED", null);
+    when(query.execute()).thenReturn(singletonBundle(specimen));
+    String otherCollectionId = "bbmri-eric:ID:DE_ABC:collection:OTHER";
+
+    Either<OperationOutcome, Map<String, List<Specimen>>> first = fhirApi.fetchSpecimensByCollection(createBbmriEricId(COLLECTION_ID));
+    Either<OperationOutcome, Map<String, List<Specimen>>> second = fhirApi.fetchSpecimensByCollection(createBbmriEricId(otherCollectionId));
+    fhirApi.invalidateCache();
+    fhirApi.fetchSpecimensByCollection(null);
+
+    assertEquals(Collections.singleton(COLLECTION_ID), first.get().keySet());
+    assertEquals(Collections.singleton(otherCollectionId), second.get().keySet());
+    verify(query, times(2)).execute();
+  }
+
+  @Test
+  void testStreamSpecimensByCollection_streamingMode() {
+    Organization collection = new Organization();
+    collection.setId("collection-091533");
+    collection.getMeta().addProfile(COLLECTION_PROFILE_URI);
+    collection.addIdentifier(new Identifier().setValue(COLLECTION_ID));
+    when(organizationQuery(COLLECTION_PROFILE_URI).execute()).thenReturn(singletonBundle(collection));
+    Patient patient = new Patient();
+    patient.setId("patient-091533");
+    Specimen specimen = specimen("collection-091533");
+    specimen.setSubject(new Reference("Patient/patient-091533"));
+    Bundle specimens = new Bundle();
+    specimens.addEntry().setResource(specimen);
+    specimens.addEntry().setResource(patient);
+    when(specimenQuery().execute()).thenReturn(specimens);
+    fhirApi.setStreamingMode(true);
+    List<String> received = new ArrayList<>();
+
+    Either<OperationOutcome, Void> result = fhirApi.streamSpecimensByCollection(null,
+        (collectionId, s, p) -> received.add(collectionId + "|" + p.getIdElement().getIdPart()));
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals(Collections.singletonList(COLLECTION_ID + "|patient-091533"), received);
+    assertNull(fhirApi.cache.getIfPresent(FhirApi.SPECIMEN_SCAN_KEY));
+  }
+
+  @Test
+  void testStreamSpecimensByCollection_streamingModeDoesNotIndexReadDonors() {
+    when(organizationQuery(COLLECTION_PROFILE_URI).execute()).thenReturn(new Bundle());
+    when(fhirClient.read().resource(Organization.class).withId("collection-143012").execute())
+        .thenReturn(new Organization());
+    Patient patient = new Patient();
+    patient.setId("patient-143012");
+    IReadExecutable<Patient> patientRead = mock(IReadExecutable.class);
+    when(fhirClient.read().resource(Patient.class).withId("patient-143012")).thenReturn(patientRead);
+    when(patientRead.elementsSubset("gender", "birthDate")).thenReturn(patientRead);
+    when(patientRead.execute()).thenReturn(patient);
+    // The donor is not included in the bundle, so it has to be read.
+    Specimen specimen = specimen("collection-143012");
+    specimen.setSubject(new Reference("Patient/patient-143012"));
+    Bundle specimens = new Bundle();
+    specimens.addEntry().setResource(specimen);
+    when(specimenQuery().execute()).thenReturn(specimens);
+    fhirApi.setStreamingMode(true);
+    List<String> received = new ArrayList<>();
+
+    Either<OperationOutcome, Void> result = fhirApi.streamSpecimensByCollection(null,
+        (collectionId, s, p) -> received.add(p.getIdElement().getIdPart()));
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals(Collections.singletonList("patient-143012"), received);
+    assertTrue(fhirApi.patientsById.isEmpty(), "the donor is not kept in the patient index");
+  }
+
+  @Test
+  void testStreamSpecimensByCollection_serverIgnoresElements() {
+    when(organizationQuery(COLLECTION_PROFILE_URI).execute()).thenReturn(new Bundle());
+    when(fhirClient.read().resource(Organization.class).withId("collection-101844").execute())
+        .thenReturn(new Organization());
+    Bundle specimens = new Bundle();
+    specimens.addEntry().setResource(specimen("collection-101844"));
+    IQuery<Bundle> projectedQuery = specimenQuery();
+    when(projectedQuery.execute()).thenReturn(specimens);
+    IQuery<Bundle> fullQuery = fhirClient.search().forResource(Specimen.class).include(Specimen.INCLUDE_SUBJECT)
+        .count(500).returnBundle(Bundle.class);
+    when(fullQuery.execute()).thenReturn(specimens);
+    fhirApi.setStreamingMode(true);
+
+    fhirApi.streamSpecimensByCollection(null, (collectionId, s, p) -> {});
+    fhirApi.streamSpecimensByCollection(null, (collectionId, s, p) -> {});
+
+    verify(projectedQuery).execute();
+    verify(fullQuery).execute();
+  }
+
+  @Test
+  void testStreamSpecimensByCollection_serverRejectsElements() {
+    when(organizationQuery(COLLECTION_PROFILE_URI).execute()).thenReturn(new Bundle());
+    when(fhirClient.read().resource(Organization.class).withId("collection-102217").execute())
+        .thenReturn(new Organization());
+    when(projectedSpecimenSearch().count(1).returnBundle(Bundle.class).execute())
+        .thenThrow(new InvalidRequestException(ERROR_MESSAGE));
+    Bundle specimens = new Bundle();
+    specimens.addEntry().setResource(specimen("collection-102217"));
+    IQuery<Bundle> fullQuery = fhirClient.search().forResource(Specimen.class).include(Specimen.INCLUDE_SUBJECT)
+        .count(500).returnBundle(Bundle.class);
+    when(fullQuery.execute()).thenReturn(specimens);
+    fhirApi.setStreamingMode(true);
+    List<Specimen> received = new ArrayList<>();
+
+    Either<OperationOutcome, Void> result = fhirApi.streamSpecimensByCollection(null,
+        (collectionId, s, p) -> received.add(s));
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals(1, received.size());
+  }
+
+  @Test
+  void testApplyDefaultCollectionId_mergesIntoDefault() {
+    Map<String, Integer> counts = new HashMap<>();
+    counts.put("DEFAULT", 2);
+    counts.put(COLLECTION_ID, 3);
+
+    fhirApi.applyDefaultCollectionId(counts, createBbmriEricId(COLLECTION_ID), Integer::sum);
+
+    assertEquals(Collections.singletonMap(COLLECTION_ID, 5), counts);
+  }
+
+  @Test
+  void testExtractConditionCodesFromPatient_usesConditionIndex() {
+    Bundle count = new Bundle();
+    count.setTotal(2);
+    IQuery<IBaseBundle> query = fhirClient.search().forResource(Condition.class);
+    IQuery<Bundle> countQuery = mock(IQuery.class);
+    when(query.returnBundle(Bundle.class)).thenReturn(countQuery);
+    when(countQuery.summaryMode(COUNT)).thenReturn(countQuery);
+    when(countQuery.execute()).thenReturn(count);
+    Bundle conditions = new Bundle();
+    conditions.addEntry().setResource(condition("patient-112731", "C18.0"));
+    conditions.addEntry().setResource(condition("patient-112731", "C18.0"));
+    conditions.addEntry().setResource(condition("patient-112731", "C34.1"));
+    conditions.addEntry().setResource(condition("patient-112840", "E11.9"));
+    IQuery<IBaseBundle> scanQuery = mock(IQuery.class);
+    when(query.where(any(ICriterion.class))).thenReturn(scanQuery);
+    when(scanQuery.elementsSubset("code", "subject")).thenReturn(scanQuery);
+    when(scanQuery.count(500)).thenReturn(scanQuery);
+    // Support for _elements is probed with a single Condition first.
+    IQuery<IBaseBundle> probeQuery = mock(IQuery.class, Answers.RETURNS_DEEP_STUBS);
+    when(scanQuery.count(1)).thenReturn(probeQuery);
+    IQuery<Bundle> scanBundleQuery = mock(IQuery.class);
+    when(scanQuery.returnBundle(Bundle.class)).thenReturn(scanBundleQuery);
+    when(scanBundleQuery.execute()).thenReturn(conditions);
+    Patient patient = new Patient();
+    patient.setId("patient-112731");
+
+    List<String> result = fhirApi.extractConditionCodesFromPatient(patient);
+
+    assertEquals(ImmutableSet.of("C18.0", "C34.1"), ImmutableSet.copyOf(result));
+    assertEquals(2, result.size());
+  }
+
+  @Test
+  void testExtractConditionCodesFromPatient_failedIndexScanIsNotRepeated() {
+    Bundle count = new Bundle();
+    count.setTotal(2);
+    IQuery<IBaseBundle> query = fhirClient.search().forResource(Condition.class);
+    IQuery<Bundle> countQuery = mock(IQuery.class);
+    when(query.returnBundle(Bundle.class)).thenReturn(countQuery);
+    when(countQuery.summaryMode(COUNT)).thenReturn(countQuery);
+    when(countQuery.execute()).thenReturn(count);
+    when(query.where(argThat((ICriterion<?> criterion) -> criterion != null
+        && "code".equals(((ICriterionInternal) criterion).getParameterName()))))
+        .thenThrow(new FhirClientConnectionException("scan failed"));
+    IQuery<IBaseBundle> patientQuery = mock(IQuery.class);
+    when(query.where(argThat((ICriterion<?> criterion) -> criterion != null
+        && "subject".equals(((ICriterionInternal) criterion).getParameterName())))).thenReturn(patientQuery);
+    when(patientQuery.elementsSubset("code", "subject")).thenReturn(patientQuery);
+    IQuery<Bundle> patientBundleQuery = mock(IQuery.class);
+    when(patientQuery.returnBundle(Bundle.class)).thenReturn(patientBundleQuery);
+    Bundle conditions = new Bundle();
+    conditions.addEntry().setResource(condition("patient-112731", "C18.0"));
+    when(patientBundleQuery.execute()).thenReturn(conditions);
+    Patient patient = new Patient();
+    patient.setId("patient-112731");
+
+    assertEquals(List.of("C18.0"), fhirApi.extractConditionCodesFromPatient(patient));
+    assertEquals(List.of("C18.0"), fhirApi.extractConditionCodesFromPatient(patient));
+
+    verify(query, times(1)).where(argThat((ICriterion<?> criterion) -> criterion != null
+        && "code".equals(((ICriterionInternal) criterion).getParameterName())));
+  }
+
+  private static Condition condition(String patientId, String icd10Code) {
+    Condition condition = new Condition();
+    condition.setSubject(new Reference("Patient/" + patientId));
+    condition.getCode().addCoding().setSystem("http://hl7.org/fhir/sid/icd-10").setCode(icd10Code);
+    return condition;
+  }
+
+  private static Specimen specimen(String collectionId) {
+    Specimen specimen = new Specimen();
+    specimen.addExtension(CUSTODIAN_URI, new Reference("Organization/" + collectionId));
+    return specimen;
+  }
+
+  private IQuery<Bundle> specimenQuery() {
+    return projectedSpecimenSearch().count(500).returnBundle(Bundle.class);
+  }
+
+  private IQuery<IBaseBundle> projectedSpecimenSearch() {
+    IQuery<IBaseBundle> query = fhirClient.search().forResource(Specimen.class).include(Specimen.INCLUDE_SUBJECT);
+    IQuery<IBaseBundle> projectedQuery = mock(IQuery.class, Answers.RETURNS_DEEP_STUBS);
+    when(query.elementsSubset("type", "extension", "subject", "collection", "gender", "birthDate"))
+        .thenReturn(projectedQuery);
+    return projectedQuery;
+  }
+
   private IUpdateExecutable resourceUpdate(IBaseResource resource) {
     return fhirClient.update().resource(resource).prefer(OPERATION_OUTCOME);
   }
@@ -374,6 +711,11 @@ public class FhirApiTest {
     }
   }
 
+  private static int idCount(ICriterion<?> criterion) {
+    return criterion == null ? 0
+        : ((ICriterionInternal) criterion).getParameterValue(FhirContext.forR4()).split(",").length;
+  }
+
   private static class CriterionArgumentMatcher implements ArgumentMatcher<ICriterion<?>> {
 
     private final String name;
@@ -0,0 +1,187 @@
+package de.samply.directory_sync.fhir;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.vavr.control.Either;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs bulk exports against a stand-in FHIR server, which serves the resources from the
+ * test data bundles as canned NDJSON files.
+ */
+public class FhirBulkExportTest {
+
+  private static final List<String> TYPES = Arrays.asList("Specimen", "Patient", "Condition", "Organization");
+
+  private final FhirContext fhirContext = FhirContext.forR4();
+  private final Map<String, StringBuilder> ndjsonByType = new HashMap<>();
+  private final AtomicInteger statusPolls = new AtomicInteger();
+  private final AtomicInteger deletes = new AtomicInteger();
+  private final List<String> fileAuthorizations = new ArrayList<>();
+  private boolean requiresAccessToken = false;
+  private HttpServer server;
+  private String serverBase;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    addNdjson("test-data/transaction-0.json");
+    addNdjson("test-data/biobank.json");
+
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    serverBase = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+    server.createContext("/fhir/$export", exchange -> {
+      exchange.getResponseHeaders().add("Content-Location", serverBase + "/status/1");
+      respond(exchange, 202, "");
+    });
+    server.createContext("/fhir/status/1", exchange -> {
+      if (exchange.getRequestMethod().equals("DELETE")) {
+        deletes.incrementAndGet();
+        respond(exchange, 202, "");
+        return;
+      }
+      // Report the export as in progress on the first poll.
+      if (statusPolls.getAndIncrement() == 0) {
+        exchange.getResponseHeaders().add("Retry-After", "0");
+        respond(exchange, 202, "");
+        return;
+      }
+      StringBuilder output = new StringBuilder();
+      for (String type : ndjsonByType.keySet())
+        output.append(output.length() == 0 ? "" : ",")
+            .append("{\"type\":\"").append(type).append("\",\"url\":\"")
+            .append(serverBase).append("/files/").append(type).append(".ndjson\"}");
+      respond(exchange, 200, "{\"transactionTime\":\"2024-01-01T00:00:00Z\",\"request\":\""
+          + serverBase + "/$export\",\"requiresAccessToken\":" + requiresAccessToken + ",\"output\":[" + output + "],\"error\":[]}");
+    });
+    server.createContext("/fhir/files/", exchange -> {
+      fileAuthorizations.add(String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")));
+      String name = exchange.getRequestURI().getPath().replaceFirst(".*/", "").replace(".ndjson", "");
+      StringBuilder ndjson = ndjsonByType.get(name);
+      respond(exchange, ndjson == null ? 404 : 200, ndjson == null ? "" : ndjson.toString());
+    });
+    server.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  void testExport() {
+    FhirBulkExport bulkExport = new FhirBulkExport(fhirContext, serverBase);
+
+    Either<OperationOutcome, Map<String, List<String>>> result = bulkExport.export(TYPES);
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals(ndjsonByType.keySet(), result.get().keySet());
+    assertEquals(2, statusPolls.get());
+  }
+
+  @Test
+  void testReadResources() {
+    FhirBulkExport bulkExport = new FhirBulkExport(fhirContext, serverBase);
+    List<String> urls = bulkExport.export(TYPES).get().get("Patient");
+    AtomicInteger patients = new AtomicInteger();
+
+    Either<OperationOutcome, Void> result = bulkExport.readResources(urls, Patient.class,
+        patient -> patients.incrementAndGet());
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals(100, patients.get());
+  }
+
+  @Test
+  void testReadResources_sendsAccessTokenOnlyIfRequired() throws IOException {
+    try (FhirBulkExport bulkExport = new FhirBulkExport(fhirContext, serverBase)) {
+      bulkExport.setAccessToken("token-093512");
+      bulkExport.readResources(bulkExport.export(TYPES).get().get("Patient"), Patient.class, patient -> {});
+      requiresAccessToken = true;
+      bulkExport.readResources(bulkExport.export(TYPES).get().get("Patient"), Patient.class, patient -> {});
+    }
+
+    assertEquals(Arrays.asList("null", "Bearer token-093512"), fileAuthorizations);
+  }
+
+  @Test
+  void testDeleteExport() throws IOException {
+    try (FhirBulkExport bulkExport = new FhirBulkExport(fhirContext, serverBase)) {
+      bulkExport.export(TYPES);
+
+      assertTrue(bulkExport.deleteExport().isRight(), "the result is right");
+      assertTrue(bulkExport.deleteExport().isRight(), "the result is right");
+    }
+
+    // The second call has no export left to delete.
+    assertEquals(1, deletes.get());
+  }
+
+  @Test
+  void testExport_kickOffFailure() {
+    FhirBulkExport bulkExport = new FhirBulkExport(fhirContext, serverBase + "/unknown");
+
+    Either<OperationOutcome, Map<String, List<String>>> result = bulkExport.export(TYPES);
+
+    assertTrue(result.isLeft(), "the result is left");
+  }
+
+  @Test
+  void testFetchSpecimensByCollection_fromBulkExport() {
+    FhirApi fhirApi = new FhirApi(fhirContext.newRestfulGenericClient(serverBase));
+    fhirApi.setBulkExport(new FhirBulkExport(fhirContext, serverBase));
+
+    Either<OperationOutcome, Map<String, List<Specimen>>> result = fhirApi.fetchSpecimensByCollection(null);
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals(10, result.get().size());
+    assertEquals(113, result.get().get("bbmri-eric:ID:DE_12345:collection:8").size());
+    assertFalse(result.get().containsKey("DEFAULT"));
+    Patient patient = new Patient();
+    patient.setId("bbmri-0");
+    assertEquals(6, fhirApi.extractConditionCodesFromPatient(patient).size());
+    assertEquals(1, deletes.get());
+  }
+
+  private void addNdjson(String bundleFile) throws IOException {
+    IParser parser = fhirContext.newJsonParser();
+    try (Reader reader = Files.newBufferedReader(Paths.get(bundleFile), UTF_8)) {
+      Bundle bundle = parser.parseResource(Bundle.class, reader);
+      for (Bundle.BundleEntryComponent entry : bundle.getEntry())
+        ndjsonByType.computeIfAbsent(entry.getResource().fhirType(), type -> new StringBuilder())
+            .append(parser.encodeResourceToString(entry.getResource())).append('\n');
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+    byte[] bytes = body.getBytes(UTF_8);
+    exchange.sendResponseHeaders(statusCode, bytes.length == 0 ? -1 : bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package de.samply.directory_sync.fhir;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.vavr.control.Either;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Follows a stand-in FHIR server, which serves canned search and history bundles.
+ */
+public class FhirChangeFeedTest {
+
+  private static final String CUSTODIAN_URI = "https://fhir.bbmri.de/StructureDefinition/Custodian";
+  private static final String COLLECTION_PROFILE_URI = "https://fhir.bbmri.de/StructureDefinition/Collection";
+  private static final String COLLECTION_ID_A = "bbmri-eric:ID:DE_ABC:collection:A";
+  private static final String COLLECTION_ID_B = "bbmri-eric:ID:DE_ABC:collection:B";
+
+  private final FhirContext fhirContext = FhirContext.forR4();
+  private final Map<String, Bundle> bundlesByPath = new HashMap<>();
+  private final List<String> requests = new ArrayList<>();
+  private HttpServer server;
+  private IGenericClient fhirClient;
+
+  @TempDir
+  Path stateDirectory;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/fhir/", this::handle);
+    server.start();
+    fhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    fhirClient = fhirContext.newRestfulGenericClient("http://localhost:" + server.getAddress().getPort() + "/fhir");
+
+    bundlesByPath.put("/fhir/Organization", searchset(collection("col-a", COLLECTION_ID_A), collection("col-b", COLLECTION_ID_B)));
+    bundlesByPath.put("/fhir/Specimen", searchset(specimen("s1", "col-a", "p1"), specimen("s2", "col-b", "p2")));
+    bundlesByPath.put("/fhir/Patient", searchset(patient("p1"), patient("p2")));
+    bundlesByPath.put("/fhir/Condition", searchset(condition("c1", "p1", "C18.0")));
+    bundlesByPath.put("/fhir/Specimen/_history", history());
+    bundlesByPath.put("/fhir/Patient/_history", history());
+    bundlesByPath.put("/fhir/Condition/_history", history());
+  }
+
+  @AfterEach
+  void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  void testPull_firstRunLoadsEverything() {
+    FhirChangeFeed changeFeed = new FhirChangeFeed(fhirClient, stateDirectory);
+
+    Either<OperationOutcome, FhirChangeFeed.ChangeSet> result = changeFeed.pull();
+
+    assertTrue(result.isRight(), "the result is right");
+    assertTrue(result.get().isFullLoad());
+    assertEquals(2, changeFeed.getSpecimens().size());
+    assertEquals(1, changeFeed.getSpecimensOfPatient("p1").size());
+    assertEquals(1, changeFeed.getSpecimensOfPatient("p2").size());
+  }
+
+  @Test
+  void testPull_laterRunAppliesChangesSinceWatermark() {
+    FhirChangeFeed firstRun = new FhirChangeFeed(fhirClient, stateDirectory);
+    firstRun.pull();
+    assertTrue(firstRun.commit().isRight(), "the commit is right");
+    bundlesByPath.get("/fhir/Specimen/_history").addEntry()
+        .setResource(specimen("s3", "col-a", "p1")).getRequest().setMethod(HTTPVerb.PUT).setUrl("Specimen/s3");
+    bundlesByPath.get("/fhir/Specimen/_history").addEntry()
+        .getRequest().setMethod(HTTPVerb.DELETE).setUrl("Specimen/s2/_history/2");
+    requests.clear();
+
+    FhirChangeFeed changeFeed = new FhirChangeFeed(fhirClient, stateDirectory);
+    Either<OperationOutcome, FhirChangeFeed.ChangeSet> result = changeFeed.pull();
+
+    assertTrue(result.isRight(), "the result is right");
+    assertFalse(result.get().isFullLoad());
+    assertEquals(2, result.get().getChangedSpecimens().size());
+    assertEquals(2, changeFeed.getSpecimens().size());
+    assertEquals(2, changeFeed.getSpecimensOfPatient("p1").size());
+    assertTrue(requests.stream().allMatch(r -> r.contains("/_history?") && r.contains("_since=")), "only history is read");
+  }
+
+  @Test
+  void testPull_repeatedWithoutCommitSeesSameChanges() {
+    FhirChangeFeed changeFeed = new FhirChangeFeed(fhirClient, stateDirectory);
+    changeFeed.pull();
+    changeFeed.commit();
+    // s1 moves from collection A to collection B.
+    bundlesByPath.get("/fhir/Specimen/_history").addEntry()
+        .setResource(specimen("s1", "col-b", "p1")).getRequest().setMethod(HTTPVerb.PUT).setUrl("Specimen/s1");
+
+    changeFeed.pull();
+    // The run fails and is repeated without a commit.
+    Either<OperationOutcome, FhirChangeFeed.ChangeSet> result = changeFeed.pull();
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals(List.of("Organization/col-a", "Organization/col-b"), result.get().getChangedSpecimens().stream()
+        .map(FhirChangeFeed.SpecimenKey::getCustodian).collect(Collectors.toList()));
+  }
+
+  @Test
+  void testPull_keepsOnlyKeys() throws IOException {
+    FhirChangeFeed changeFeed = new FhirChangeFeed(fhirClient, stateDirectory);
+    changeFeed.pull();
+    changeFeed.commit();
+
+    FhirChangeFeed.SpecimenKey key = changeFeed.getSpecimensOfPatient("p2").get(0);
+    String specimens = Files.readString(stateDirectory.resolve("specimens.tsv"));
+
+    assertEquals("s2", key.getId());
+    assertEquals("Organization/col-b", key.getCustodian());
+    assertTrue(specimens.contains("Organization/col-b"), "the keys are stored");
+    assertFalse(specimens.contains("blood-plasma"), "no resource content is stored");
+  }
+
+  @Test
+  void testStreamSpecimensByCollection_onlyAffectedCollections() {
+    FhirChangeFeed firstRun = new FhirChangeFeed(fhirClient, stateDirectory);
+    firstRun.pull();
+    firstRun.commit();
+    Condition condition = condition("c2", "p2", "E11.9");
+    bundlesByPath.get("/fhir/Condition").addEntry().setResource(condition);
+    bundlesByPath.get("/fhir/Condition/_history").addEntry()
+        .setResource(condition).getRequest().setMethod(HTTPVerb.POST).setUrl("Condition");
+    requests.clear();
+
+    FhirApi fhirApi = new FhirApi(fhirClient);
+    fhirApi.setStreamingMode(true);
+    fhirApi.setChangeFeed(new FhirChangeFeed(fhirClient, stateDirectory));
+    List<String> received = new ArrayList<>();
+    Either<OperationOutcome, Void> result = fhirApi.streamSpecimensByCollection(null,
+        (collectionId, specimen, patient) -> received.add(collectionId));
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals(List.of(COLLECTION_ID_B), received);
+    Patient patient = new Patient();
+    patient.setId("p2");
+    assertEquals(List.of("E11.9"), fhirApi.extractConditionCodesFromPatient(patient));
+    assertTrue(requests.stream().anyMatch(r -> r.startsWith("/fhir/Specimen?") && r.contains("_id=s2")), "specimens are searched by ID");
+    assertTrue(requests.stream().noneMatch(r -> r.startsWith("/fhir/Specimen?") && !r.contains("_id=")), "no specimen scan");
+  }
+
+  @Test
+  void testStreamSpecimensByCollection_laterRunPullsNewChanges() {
+    FhirApi fhirApi = new FhirApi(fhirClient);
+    fhirApi.setStreamingMode(true);
+    fhirApi.setChangeFeed(new FhirChangeFeed(fhirClient, stateDirectory));
+    List<String> received = new ArrayList<>();
+    fhirApi.startRun();
+    fhirApi.streamSpecimensByCollection(null, (collectionId, specimen, patient) -> received.add(collectionId));
+    assertTrue(fhirApi.commitChangeFeed().isRight(), "the commit is right");
+    fhirApi.endRun();
+    assertEquals(List.of(COLLECTION_ID_A, COLLECTION_ID_B), received);
+    Condition condition = condition("c2", "p2", "E11.9");
+    bundlesByPath.get("/fhir/Condition").addEntry().setResource(condition);
+    bundlesByPath.get("/fhir/Condition/_history").addEntry()
+        .setResource(condition).getRequest().setMethod(HTTPVerb.POST).setUrl("Condition");
+    received.clear();
+
+    fhirApi.startRun();
+    Either<OperationOutcome, Void> result = fhirApi.streamSpecimensByCollection(null,
+        (collectionId, specimen, patient) -> received.add(collectionId));
+    fhirApi.endRun();
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals(List.of(COLLECTION_ID_B), received);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.add(exchange.getRequestURI().toString());
+    Bundle bundle = filter(bundlesByPath.get(exchange.getRequestURI().getPath()), exchange.getRequestURI().getQuery());
+    byte[] body = bundle == null ? new byte[0] : fhirContext.newJsonParser().encodeResourceToString(bundle).getBytes(UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+    exchange.sendResponseHeaders(bundle == null ? 404 : 200, body.length == 0 ? -1 : body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  /**
+   * Applies the _id and subject search parameters, which are the only ones used to narrow
+   * down searches in incremental runs, to a canned searchset.
+   */
+  private static Bundle filter(Bundle bundle, String query) {
+    if (bundle == null || query == null || bundle.getType() != BundleType.SEARCHSET)
+      return bundle;
+    Map<String, List<String>> parameters = new HashMap<>();
+    for (String parameter : query.split("&")) {
+      String[] pair = parameter.split("=", 2);
+      if (pair.length == 2)
+        parameters.put(pair[0], List.of(pair[1].split(",")));
+    }
+    Bundle filtered = new Bundle().setType(BundleType.SEARCHSET);
+    for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+      Resource resource = entry.getResource();
+      if (parameters.containsKey("_id") && !parameters.get("_id").contains(resource.getIdElement().getIdPart()))
+        continue;
+      if (parameters.containsKey("subject") && !(resource instanceof Condition
+          && parameters.get("subject").contains(((Condition) resource).getSubject().getReference())))
+        continue;
+      filtered.addEntry().setResource(resource);
+    }
+    return filtered;
+  }
+
+  private static Bundle searchset(Resource... resources) {
+    Bundle bundle = new Bundle().setType(BundleType.SEARCHSET);
+    for (Resource resource : resources)
+      bundle.addEntry().setResource(resource);
+    return bundle;
+  }
+
+  private static Bundle history() {
+    return new Bundle().setType(BundleType.HISTORY);
+  }
+
+  private static Organization collection(String id, String collectionId) {
+    Organization organization = new Organization();
+    organization.setId(id);
+    organization.getMeta().addProfile(COLLECTION_PROFILE_URI);
+    organization.addIdentifier(new Identifier().setSystem("http://www.bbmri-eric.eu/").setValue(collectionId));
+    return organization;
+  }
+
+  private static Specimen specimen(String id, String collection, String patientId) {
+    Specimen specimen = new Specimen();
+    specimen.setId(id);
+    specimen.addExtension(CUSTODIAN_URI, new Reference("Organization/" + collection));
+    specimen.setSubject(new Reference("Patient/" + patientId));
+    specimen.getType().addCoding().setCode("blood-plasma");
+    return specimen;
+  }
+
+  private static Patient patient(String id) {
+    Patient patient = new Patient();
+    patient.setId(id);
+    return patient;
+  }
+
+  private static Condition condition(String id, String patientId, String icd10Code) {
+    Condition condition = new Condition();
+    condition.setId(id);
+    condition.setSubject(new Reference("Patient/" + patientId));
+    condition.getCode().addCoding().setSystem("http://hl7.org/fhir/sid/icd-10").setCode(icd10Code);
+    return condition;
+  }
+}
@@ -0,0 +1,91 @@
+package de.samply.directory_sync.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class FhirPageIteratorTest {
+
+  private static final String ERROR_MESSAGE = "msg-094512";
+
+  @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+  private IGenericClient fhirClient;
+
+  @Mock
+  private IQuery<Bundle> query;
+
+  @Test
+  void testIteratesAllPages() {
+    Bundle first = page(true);
+    Bundle second = page(true);
+    Bundle third = page(false);
+    when(query.execute()).thenReturn(first);
+    when(fhirClient.loadPage().next(first).execute()).thenReturn(second);
+    when(fhirClient.loadPage().next(second).execute()).thenReturn(third);
+
+    try (FhirPageIterator pages = new FhirPageIterator(fhirClient, query, 1)) {
+      assertSame(first, pages.next());
+      assertSame(second, pages.next());
+      assertSame(third, pages.next());
+      assertFalse(pages.hasNext());
+    }
+  }
+
+  @Test
+  void testSinglePage() {
+    Bundle first = page(false);
+    when(query.execute()).thenReturn(first);
+
+    try (FhirPageIterator pages = new FhirPageIterator(fhirClient, query, 2)) {
+      assertTrue(pages.hasNext());
+      assertSame(first, pages.next());
+      assertFalse(pages.hasNext());
+    }
+  }
+
+  @Test
+  void testServerFailure() {
+    Bundle first = page(true);
+    when(query.execute()).thenReturn(first);
+    when(fhirClient.loadPage().next(first).execute()).thenThrow(new RuntimeException(ERROR_MESSAGE));
+
+    try (FhirPageIterator pages = new FhirPageIterator(fhirClient, query, 2)) {
+      assertSame(first, pages.next());
+      RuntimeException e = assertThrows(RuntimeException.class, pages::hasNext);
+      assertEquals(ERROR_MESSAGE, e.getMessage());
+    }
+  }
+
+  @Test
+  void testErrorIsForwarded() {
+    Bundle first = page(true);
+    when(query.execute()).thenReturn(first);
+    when(fhirClient.loadPage().next(first).execute()).thenThrow(new OutOfMemoryError(ERROR_MESSAGE));
+
+    try (FhirPageIterator pages = new FhirPageIterator(fhirClient, query, 2)) {
+      assertSame(first, pages.next());
+      OutOfMemoryError e = assertThrows(OutOfMemoryError.class, pages::hasNext);
+      assertEquals(ERROR_MESSAGE, e.getMessage());
+    }
+  }
+
+  private static Bundle page(boolean hasNext) {
+    Bundle bundle = new Bundle();
+    if (hasNext)
+      bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("next");
+    return bundle;
+  }
+}
@@ -13,11 +13,17 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import com.google.common.io.ByteStreams;
+import de.samply.directory_sync.StarModelData;
+import de.samply.directory_sync.directory.CreateFactTablesFromStarModelInputData;
 import de.samply.directory_sync.directory.model.BbmriEricId;
+import de.samply.directory_sync.fhir.model.FhirCollection;
 import io.vavr.control.Either;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Measure;
@@ -131,6 +137,59 @@ public class FhirReportingIntegrationTest {
     assertEquals(right(mapOf(createBbmriEricId("bbmri-eric:ID:DE_185943"), 1)), result);
   }
 
+  @Test
+  void testFetchFhirCollections_measureMatchesLocalAggregation() throws IOException {
+    fhirClient.transaction().withBundle(parse(slurp("CollectionsBundle.json"), Bundle.class)).execute();
+    // Without the measures, the collections are aggregated locally.
+    List<FhirCollection> local = reporting.fetchFhirCollections(null).get();
+    reporting.initLibrary();
+    reporting.initMeasure();
+
+    List<FhirCollection> measured = reporting.fetchFhirCollections(null).get();
+
+    assertEquals(1, local.size());
+    assertEquals(1, measured.size());
+    FhirCollection expected = local.get(0);
+    FhirCollection actual = measured.get(0);
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getSize(), actual.getSize());
+    assertEquals(expected.getNumberOfDonors(), actual.getNumberOfDonors());
+    assertEquals(new HashSet<>(expected.getSex()), new HashSet<>(actual.getSex()));
+    assertEquals(expected.getAgeLow(), actual.getAgeLow());
+    assertEquals(expected.getAgeHigh(), actual.getAgeHigh());
+    assertEquals(new HashSet<>(expected.getMaterials()), new HashSet<>(actual.getMaterials()));
+    assertEquals(new HashSet<>(expected.getStorageTemperatures()), new HashSet<>(actual.getStorageTemperatures()));
+    assertEquals(new HashSet<>(expected.getDiagnosisAvailable()), new HashSet<>(actual.getDiagnosisAvailable()));
+  }
+
+  @Test
+  void testFetchStarModelInputData_measureMatchesLocalPath() throws IOException {
+    fhirClient.transaction().withBundle(parse(slurp("CollectionsBundle.json"), Bundle.class)).execute();
+    // Without the measures, the input rows are built locally.
+    Map<String, String> local = factSamples(reporting.fetchStarModelInputData(null).get());
+    reporting.initLibrary();
+    reporting.initMeasure();
+
+    Map<String, String> measured = factSamples(reporting.fetchStarModelInputData(null).get());
+
+    // Every diagnosis of a specimen or its donor gets a fact, e.g. both C34.0 and C50.9.
+    assertEquals(4, local.size());
+    assertEquals(local, measured);
+  }
+
+  /**
+   * Maps the attributes of each fact onto its number of samples. The number of donors is
+   * left out, as the local path counts every specimen as a donor.
+   */
+  private static Map<String, String> factSamples(StarModelData starModelData) {
+    starModelData.setMinDonors(0);
+    CreateFactTablesFromStarModelInputData.createFactTables(starModelData, -1);
+    return starModelData.getFactTables().stream().collect(Collectors.toMap(
+        fact -> String.join("/", fact.get("collection"), fact.get("sex"), fact.get("disease"),
+            fact.get("age_range"), fact.get("sample_type")),
+        fact -> fact.get("number_of_samples")));
+  }
+
   private <T> T parse(String s, Class<T> type) {
     IParser parser = fhirContext.newJsonParser();
     return type.cast(parser.parseResource(s));
@@ -10,18 +10,29 @@ import static java.util.Collections.emptySet;
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ca.uhn.fhir.context.FhirContext;
+import de.samply.directory_sync.StarModelData;
+import de.samply.directory_sync.directory.CreateFactTablesFromStarModelInputData;
 import de.samply.directory_sync.directory.model.BbmriEricId;
+import de.samply.directory_sync.fhir.model.FhirCollection;
 import io.vavr.control.Either;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupComponent;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupStratifierComponent;
 import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupComponent;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Organization;
@@ -38,6 +49,12 @@ public class FhirReportingTest {
   private static final BbmriEricId BBMRI_ERIC_ID = createBbmriEricId("bbmri-eric:ID:AT_MUG");
   private static final String LIBRARY_URI = "https://fhir.bbmri.de/Library/collection-size";
   private static final String MEASURE_URI = "https://fhir.bbmri.de/Measure/collection-size";
+  private static final String ATTRIBUTES_LIBRARY_URI = "https://fhir.bbmri.de/Library/collection-attributes";
+  private static final String ATTRIBUTES_MEASURE_URI = "https://fhir.bbmri.de/Measure/collection-attributes";
+  private static final String DONORS_LIBRARY_URI = "https://fhir.bbmri.de/Library/collection-donors";
+  private static final String DONORS_MEASURE_URI = "https://fhir.bbmri.de/Measure/collection-donors";
+  private static final String STAR_MODEL_LIBRARY_URI = "https://fhir.bbmri.de/Library/star-model";
+  private static final String STAR_MODEL_MEASURE_URI = "https://fhir.bbmri.de/Measure/star-model";
   private static final String COLLECTION_ID = "collection-id-102302";
   private static final String ERROR_MSG = "error-msg-140825";
 
@@ -54,7 +71,13 @@ public class FhirReportingTest {
   @Test
   void testInitLibrary_createNonExisting() {
     when(fhirApi.resourceExists(Library.class, LIBRARY_URI)).thenReturn(right(false));
+    when(fhirApi.resourceExists(Library.class, ATTRIBUTES_LIBRARY_URI)).thenReturn(right(false));
     when(fhirApi.createResource(argThat(libraryMatcher()))).thenReturn(right(null));
+    when(fhirApi.resourceExists(Library.class, STAR_MODEL_LIBRARY_URI)).thenReturn(right(false));
+    when(fhirApi.createResource(argThat(libraryMatcher(ATTRIBUTES_LIBRARY_URI)))).thenReturn(right(null));
+    when(fhirApi.resourceExists(Library.class, DONORS_LIBRARY_URI)).thenReturn(right(false));
+    when(fhirApi.createResource(argThat(libraryMatcher(DONORS_LIBRARY_URI)))).thenReturn(right(null));
+    when(fhirApi.createResource(argThat(libraryMatcher(STAR_MODEL_LIBRARY_URI)))).thenReturn(right(null));
 
     Either<String, Void> result = reporting.initLibrary();
 
@@ -64,6 +87,9 @@ public class FhirReportingTest {
   @Test
   void testInitLibrary_skipExisting() {
     when(fhirApi.resourceExists(Library.class, LIBRARY_URI)).thenReturn(right(true));
+    when(fhirApi.resourceExists(Library.class, ATTRIBUTES_LIBRARY_URI)).thenReturn(right(true));
+    when(fhirApi.resourceExists(Library.class, DONORS_LIBRARY_URI)).thenReturn(right(true));
+    when(fhirApi.resourceExists(Library.class, STAR_MODEL_LIBRARY_URI)).thenReturn(right(true));
 
     Either<String, Void> result = reporting.initLibrary();
 
@@ -92,8 +118,17 @@ public class FhirReportingTest {
   @Test
   void testInitMeasure_createNonExisting() {
     when(fhirApi.resourceExists(Measure.class, MEASURE_URI)).thenReturn(right(false));
+    when(fhirApi.resourceExists(Measure.class, ATTRIBUTES_MEASURE_URI)).thenReturn(right(false));
     when(fhirApi.createResource(argThat(measureMatcher()))).thenReturn(
         right(null));
+    when(fhirApi.resourceExists(Measure.class, STAR_MODEL_MEASURE_URI)).thenReturn(right(false));
+    when(fhirApi.createResource(argThat(measureMatcher(ATTRIBUTES_MEASURE_URI)))).thenReturn(
+        right(null));
+    when(fhirApi.resourceExists(Measure.class, DONORS_MEASURE_URI)).thenReturn(right(false));
+    when(fhirApi.createResource(argThat(measureMatcher(DONORS_MEASURE_URI)))).thenReturn(
+        right(null));
+    when(fhirApi.createResource(argThat(measureMatcher(STAR_MODEL_MEASURE_URI)))).thenReturn(
+        right(null));
 
     Either<String, Void> result = reporting.initMeasure();
 
@@ -103,6 +138,9 @@ public class FhirReportingTest {
   @Test
   void testInitMeasure_skipExisting() {
     when(fhirApi.resourceExists(Measure.class, MEASURE_URI)).thenReturn(right(true));
+    when(fhirApi.resourceExists(Measure.class, ATTRIBUTES_MEASURE_URI)).thenReturn(right(true));
+    when(fhirApi.resourceExists(Measure.class, DONORS_MEASURE_URI)).thenReturn(right(true));
+    when(fhirApi.resourceExists(Measure.class, STAR_MODEL_MEASURE_URI)).thenReturn(right(true));
 
     Either<String, Void> result = reporting.initMeasure();
 
@@ -217,12 +255,163 @@ public class FhirReportingTest {
     assertEquals(left(error), result);
   }
 
+  @Test
+  void testFetchFhirCollections_fromMeasureReport() {
+    MeasureReport report = new MeasureReport();
+    addGroup(report, "materials").addStratum(createStratum(100, "collection", "Organization/" + COLLECTION_ID, "material", "blood-plasma"))
+        .addStratum(createStratum(20, "collection", "Organization/" + COLLECTION_ID, "material", "tissue-frozen"));
+    // Specimens with several storage temperatures or diagnoses have them joined into one value.
+    addGroup(report, "storage-temperatures").addStratum(createStratum(100, "collection", "Organization/" + COLLECTION_ID, "storage-temperature", "temperatureLN"))
+        .addStratum(createStratum(20, "collection", "Organization/" + COLLECTION_ID, "storage-temperature", "temperatureLN|temperature-18to-35"));
+    addGroup(report, "diagnoses").addStratum(createStratum(120, "collection", "Organization/" + COLLECTION_ID, "diagnosis", "C61"));
+    MeasureReport donorsReport = new MeasureReport();
+    addGroup(donorsReport, "donors").addStratum(createStratum(3, "collection", "Organization/" + COLLECTION_ID, "sex", "male", "age", "42"))
+        .addStratum(createStratum(2, "collection", "Organization/" + COLLECTION_ID, "sex", "male", "age", "67"));
+    when(fhirApi.evaluateMeasure(ATTRIBUTES_MEASURE_URI)).thenReturn(right(report));
+    when(fhirApi.evaluateMeasure(DONORS_MEASURE_URI)).thenReturn(right(donorsReport));
+    when(fhirApi.resolveCollectionReferences(singleton("Organization/" + COLLECTION_ID)))
+        .thenReturn(mapOf("Organization/" + COLLECTION_ID, BBMRI_ERIC_ID.toString()));
+
+    Either<OperationOutcome, List<FhirCollection>> result = reporting.fetchFhirCollections(null);
+
+    FhirCollection collection = result.get().get(0);
+    assertEquals(BBMRI_ERIC_ID.toString(), collection.getId());
+    assertEquals(120, collection.getSize());
+    assertEquals(Arrays.asList("blood-plasma", "tissue-frozen"), collection.getMaterials());
+    assertEquals(Arrays.asList("temperatureLN", "temperature-18to-35"), collection.getStorageTemperatures());
+    assertEquals(singletonList("C61"), collection.getDiagnosisAvailable());
+    assertEquals(5, collection.getNumberOfDonors());
+    assertEquals(singletonList("male"), collection.getSex());
+    assertEquals(42, collection.getAgeLow());
+    assertEquals(67, collection.getAgeHigh());
+  }
+
+  @Test
+  void testFetchFhirCollections_evaluateMeasureErrorFallsBackToSpecimens() {
+    when(fhirApi.evaluateMeasure(ATTRIBUTES_MEASURE_URI)).thenReturn(left(new OperationOutcome()));
+    when(fhirApi.streamSpecimensByCollection(any(), any())).thenReturn(right(null));
+
+    Either<OperationOutcome, List<FhirCollection>> result = reporting.fetchFhirCollections(null);
+
+    assertEquals(right(emptyList()), result);
+    verify(fhirApi).streamSpecimensByCollection(any(), any());
+  }
+
+  @Test
+  void testFetchStarModelInputData_fromMeasureReport() {
+    String[] cell = {"collection", "Organization/" + COLLECTION_ID, "sex", "female", "diagnosis", "C61",
+        "age-range", "Adult", "material", "blood-plasma"};
+    String[] incompleteCell = {"collection", "Organization/" + COLLECTION_ID, "sex", "female",
+        "age-range", "Adult", "material", "blood-plasma"};
+    MeasureReport report = new MeasureReport();
+    addGroup(report, "specimens").addStratum(createStratum(30, cell)).addStratum(createStratum(40, incompleteCell));
+    addGroup(report, "donors").addStratum(createStratum(12, cell)).addStratum(createStratum(15, incompleteCell));
+    when(fhirApi.evaluateMeasure(STAR_MODEL_MEASURE_URI)).thenReturn(right(report));
+    when(fhirApi.resolveCollectionReferences(singleton("Organization/" + COLLECTION_ID)))
+        .thenReturn(mapOf("Organization/" + COLLECTION_ID, BBMRI_ERIC_ID.toString()));
+
+    StarModelData starModelData = reporting.fetchStarModelInputData(null).get();
+    starModelData.setMinDonors(10);
+    CreateFactTablesFromStarModelInputData.createFactTables(starModelData, -1);
+
+    assertEquals(1, starModelData.getFactCount());
+    Map<String, String> fact = starModelData.getFactTables().get(0);
+    assertEquals(BBMRI_ERIC_ID.toString(), fact.get("collection"));
+    assertEquals("FEMALE", fact.get("sex"));
+    assertEquals("urn:miriam:icd:C61", fact.get("disease"));
+    assertEquals("Adult", fact.get("age_range"));
+    assertEquals("SERUM", fact.get("sample_type"));
+    assertEquals("12", fact.get("number_of_donors"));
+    assertEquals("30", fact.get("number_of_samples"));
+    assertTrue(fact.get("id").matches("bbmri-eric:factID:AT_MUG_[0-9a-f]{20}"), fact.get("id"));
+  }
+
+  @Test
+  void testFetchStarModelInputData_fromMeasureReportWithSeveralDiagnoses() {
+    // Specimens with several diagnoses have them joined into one value.
+    MeasureReport report = new MeasureReport();
+    addGroup(report, "specimens").addStratum(createStratum(20, starModelCell("C61|C34.0")))
+        .addStratum(createStratum(10, starModelCell("C61")));
+    addGroup(report, "donors").addStratum(createStratum(12, starModelCell("C61|C34.0")))
+        .addStratum(createStratum(3, starModelCell("C34.0")));
+    when(fhirApi.evaluateMeasure(STAR_MODEL_MEASURE_URI)).thenReturn(right(report));
+    when(fhirApi.resolveCollectionReferences(singleton("Organization/" + COLLECTION_ID)))
+        .thenReturn(mapOf("Organization/" + COLLECTION_ID, BBMRI_ERIC_ID.toString()));
+
+    StarModelData starModelData = reporting.fetchStarModelInputData(null).get();
+    starModelData.setMinDonors(10);
+    CreateFactTablesFromStarModelInputData.createFactTables(starModelData, -1);
+
+    Map<String, Map<String, String>> factsByDisease = starModelData.getFactTables().stream()
+        .collect(Collectors.toMap(fact -> fact.get("disease"), fact -> fact));
+    assertEquals(2, factsByDisease.size());
+    assertEquals("12", factsByDisease.get("urn:miriam:icd:C61").get("number_of_donors"));
+    assertEquals("30", factsByDisease.get("urn:miriam:icd:C61").get("number_of_samples"));
+    assertEquals("15", factsByDisease.get("urn:miriam:icd:C34.0").get("number_of_donors"));
+    assertEquals("20", factsByDisease.get("urn:miriam:icd:C34.0").get("number_of_samples"));
+  }
+
+  private static String[] starModelCell(String diagnoses) {
+    return new String[] {"collection", "Organization/" + COLLECTION_ID, "sex", "female", "diagnosis", diagnoses,
+        "age-range", "Adult", "material", "blood-plasma"};
+  }
+
+  @Test
+  void testStarModelInputRowsAreCountedPerStratum() {
+    StarModelData starModelData = new StarModelData();
+    for (int i = 0; i < 12; i++) {
+      StarModelData.InputRow row = starModelData.newInputRow(BBMRI_ERIC_ID.toString(), "blood-plasma", "patient-" + i, "female", "30");
+      starModelData.addInputRow(BBMRI_ERIC_ID.toString(), starModelData.newInputRow(row, "C61"));
+    }
+
+    assertEquals(1, starModelData.getInputRowCounts(BBMRI_ERIC_ID.toString()).size());
+    CreateFactTablesFromStarModelInputData.createFactTables(starModelData, -1);
+    assertEquals(1, starModelData.getFactCount());
+    assertEquals("12", starModelData.getFactTables().get(0).get("number_of_donors"));
+    assertEquals("Adult", starModelData.getFactTables().get(0).get("age_range"));
+  }
+
+  @Test
+  void testFetchStarModelInputData_evaluateMeasureErrorFallsBackToSpecimens() {
+    when(fhirApi.evaluateMeasure(STAR_MODEL_MEASURE_URI)).thenReturn(left(new OperationOutcome()));
+    when(fhirApi.streamSpecimensByCollection(any(), any())).thenReturn(right(null));
+
+    Either<OperationOutcome, StarModelData> result = reporting.fetchStarModelInputData(null);
+
+    assertEquals(emptySet(), result.get().getInputCollectionIds());
+    verify(fhirApi).streamSpecimensByCollection(any(), any());
+  }
+
   private ArgumentMatcher<Library> libraryMatcher() {
-    return argument -> argument != null && LIBRARY_URI.equals(argument.getUrl());
+    return libraryMatcher(LIBRARY_URI);
+  }
+
+  private ArgumentMatcher<Library> libraryMatcher(String uri) {
+    return argument -> argument != null && uri.equals(argument.getUrl());
   }
 
   private ArgumentMatcher<Measure> measureMatcher() {
-    return argument -> argument != null && MEASURE_URI.equals(argument.getUrl());
+    return measureMatcher(MEASURE_URI);
+  }
+
+  private ArgumentMatcher<Measure> measureMatcher(String uri) {
+    return argument -> argument != null && uri.equals(argument.getUrl());
+  }
+
+  private static MeasureReportGroupStratifierComponent addGroup(MeasureReport report, String code) {
+    MeasureReportGroupComponent group = report.addGroup();
+    group.getCode().setText(code);
+    return group.getStratifierFirstRep();
+  }
+
+  private static StratifierGroupComponent createStratum(int count, String... codesAndValues) {
+    StratifierGroupComponent stratum = new StratifierGroupComponent();
+    for (int i = 0; i < codesAndValues.length; i += 2)
+      stratum.addComponent()
+          .setCode(new CodeableConcept().setText(codesAndValues[i]))
+          .setValue(new CodeableConcept().setText(codesAndValues[i + 1]));
+    stratum.getPopulationFirstRep().setCount(count);
+    return stratum;
   }
 
   private static StratifierGroupComponent createStratum(String reference, int count) {
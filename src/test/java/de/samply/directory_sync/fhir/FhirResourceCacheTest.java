@@ -0,0 +1,111 @@
+package de.samply.directory_sync.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class FhirResourceCacheTest {
+
+  private final AtomicLong now = new AtomicLong(0);
+  private final FhirResourceCache cache = new FhirResourceCache(Duration.ofMillis(100), 10, now::get);
+
+  @Test
+  void testGet_expiresAfterTimeToLive() {
+    AtomicInteger loads = new AtomicInteger();
+
+    cache.get("key", loads::incrementAndGet, value -> 1);
+    now.set(99);
+    cache.get("key", loads::incrementAndGet, value -> 1);
+    now.set(100);
+    Integer value = cache.get("key", loads::incrementAndGet, v -> 1);
+
+    assertEquals(2, loads.get());
+    assertEquals(2, value);
+  }
+
+  @Test
+  void testRun_keepsEntriesValidAtItsStart() {
+    cache.put("key", "value", 1);
+    now.set(50);
+    cache.startRun();
+    now.set(500);
+
+    assertEquals("value", cache.getIfPresent("key"));
+
+    cache.endRun();
+    assertNull(cache.getIfPresent("key"));
+  }
+
+  @Test
+  void testRun_dropsEntriesExpiredAtItsStart() {
+    cache.put("key", "value", 1);
+    now.set(100);
+    cache.startRun();
+
+    assertNull(cache.getIfPresent("key"));
+  }
+
+  @Test
+  void testPut_evictsLeastRecentlyUsed() {
+    cache.put("a", "a", 4);
+    cache.put("b", "b", 4);
+    cache.getIfPresent("a");
+    cache.put("c", "c", 4);
+
+    assertEquals("a", cache.getIfPresent("a"));
+    assertNull(cache.getIfPresent("b"));
+    assertEquals("c", cache.getIfPresent("c"));
+  }
+
+  @Test
+  void testPut_tooHeavyIsNotCached() {
+    cache.put("key", "value", 11);
+
+    assertNull(cache.getIfPresent("key"));
+  }
+
+  @Test
+  void testInvalidate() {
+    cache.put("a", "a", 1);
+    cache.put("b", "b", 1);
+
+    cache.invalidate("a");
+    assertNull(cache.getIfPresent("a"));
+    assertEquals("b", cache.getIfPresent("b"));
+
+    cache.invalidate();
+    assertNull(cache.getIfPresent("b"));
+  }
+
+  @Test
+  void testGet_concurrentCallersLoadOnce() throws InterruptedException {
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        cache.get("key", loads::incrementAndGet, value -> 1);
+      });
+      thread.start();
+      threads.add(thread);
+    }
+
+    start.countDown();
+    for (Thread thread : threads)
+      thread.join();
+
+    assertEquals(1, loads.get());
+  }
+}
@@ -0,0 +1,127 @@
+package de.samply.directory_sync.fhir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.vavr.control.Either;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SpecimenSnapshotTest {
+
+  private static final String STORAGE_TEMPERATURE_URI = "https://fhir.bbmri.de/StructureDefinition/StorageTemperature";
+  private static final String SAMPLE_DIAGNOSIS_URI = "https://fhir.bbmri.de/StructureDefinition/SampleDiagnosis";
+  private static final String COLLECTION_ID = "bbmri-eric:ID:DE_ABC:collection:XYZ";
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void testWriteAndReplay() throws IOException {
+    SpecimenSnapshot snapshot = new SpecimenSnapshot(directory.resolve("specimens.snapshot"));
+    Patient patient = new Patient();
+    patient.setId("patient-1");
+    patient.setGender(AdministrativeGender.FEMALE);
+    patient.getBirthDateElement().setValueAsString("1970-05-03");
+    try (SpecimenSnapshot.Writer writer = snapshot.newWriter(1234L, counts(2, 1))) {
+      writer.add(COLLECTION_ID, specimen("specimen-1"), patient, p -> Arrays.asList("C18.0", "E11.9"));
+      writer.add("DEFAULT", specimen("specimen-2"), null, p -> Collections.emptyList());
+      writer.commit();
+    }
+    Map<String, Set<String>> conditionCodes = new HashMap<>();
+    List<String> collectionIds = new ArrayList<>();
+    List<Specimen> specimens = new ArrayList<>();
+    List<Patient> patients = new ArrayList<>();
+
+    Either<OperationOutcome, Void> result = snapshot.replay(conditionCodes, (collectionId, specimen, p) -> {
+      collectionIds.add(collectionId);
+      specimens.add(specimen);
+      patients.add(p);
+    });
+
+    assertTrue(result.isRight(), "the result is right");
+    assertEquals(Arrays.asList(COLLECTION_ID, "DEFAULT"), collectionIds);
+    Specimen specimen = specimens.get(0);
+    assertEquals("specimen-1", specimen.getIdElement().getIdPart());
+    assertEquals("blood-plasma", specimen.getType().getCodingFirstRep().getCode());
+    assertEquals("temperature2to10", codeOf(specimen, STORAGE_TEMPERATURE_URI));
+    assertEquals("C18.0", codeOf(specimen, SAMPLE_DIAGNOSIS_URI));
+    assertEquals("2005-06-17", specimen.getCollection().getCollectedDateTimeType().getValueAsString());
+    assertEquals("Patient/patient-1", specimen.getSubject().getReference());
+    assertEquals(AdministrativeGender.FEMALE, patients.get(0).getGender());
+    assertEquals("1970-05-03", patients.get(0).getBirthDateElement().getValueAsString());
+    assertNull(patients.get(1));
+    assertEquals(Collections.singletonMap("patient-1", Set.of("C18.0", "E11.9")), conditionCodes);
+    assertEquals(1234L, snapshot.readMetadata().get().getSnapshotTime());
+    assertEquals(counts(2, 1), snapshot.readMetadata().get().getResourceCounts());
+  }
+
+  @Test
+  void testUncommittedWriterKeepsPreviousSnapshot() throws IOException {
+    Path file = directory.resolve("specimens.snapshot");
+    SpecimenSnapshot snapshot = new SpecimenSnapshot(file);
+    try (SpecimenSnapshot.Writer writer = snapshot.newWriter(1L, counts(0, 0))) {
+      writer.commit();
+    }
+
+    try (SpecimenSnapshot.Writer writer = snapshot.newWriter(2L, counts(1, 0))) {
+      writer.add(COLLECTION_ID, specimen("specimen-1"), null, p -> Collections.emptyList());
+    }
+
+    assertEquals(1L, snapshot.readMetadata().get().getSnapshotTime());
+    assertFalse(Files.exists(directory.resolve("specimens.snapshot.tmp")));
+  }
+
+  @Test
+  void testReadMetadata_noSnapshot() {
+    SpecimenSnapshot snapshot = new SpecimenSnapshot(directory.resolve("missing.snapshot"));
+
+    assertFalse(snapshot.exists());
+    assertTrue(snapshot.readMetadata().isLeft(), "the result is left");
+  }
+
+  private static Map<String, Integer> counts(int specimens, int patients) {
+    Map<String, Integer> counts = new LinkedHashMap<>();
+    counts.put("Specimen", specimens);
+    counts.put("Patient", patients);
+    return counts;
+  }
+
+  private static Specimen specimen(String id) {
+    Specimen specimen = new Specimen();
+    specimen.setId(id);
+    specimen.getType().addCoding().setCode("blood-plasma");
+    specimen.addExtension(STORAGE_TEMPERATURE_URI, new CodeableConcept().addCoding(
+        new Coding().setCode("temperature2to10")));
+    specimen.addExtension(SAMPLE_DIAGNOSIS_URI, new CodeableConcept().addCoding(
+        new Coding().setSystem("http://hl7.org/fhir/sid/icd-10").setCode("C18.0")));
+    specimen.getCollection().setCollected(new DateTimeType("2005-06-17"));
+    specimen.setSubject(new Reference("Patient/patient-1"));
+    return specimen;
+  }
+
+  private static String codeOf(Specimen specimen, String url) {
+    return ((CodeableConcept) specimen.getExtensionByUrl(url).getValue()).getCodingFirstRep().getCode();
+  }
+}